@@ -0,0 +1,104 @@
+package nl.ymor.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local HTTP server that serves a {@link SyntheticArchive} on the download path of Jira, with or without byte ranges
+ */
+final class ArchiveServer implements AutoCloseable {
+
+    static final String DOWNLOAD_PATH = "/plugins/servlet/";
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final int WRITE_SIZE = 64 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long size;
+    private final boolean acceptRanges;
+
+    /**
+     * @param size         Archive size in bytes
+     * @param acceptRanges true to announce and serve byte ranges
+     */
+    ArchiveServer(final long size, final boolean acceptRanges) throws IOException {
+        this.size = size;
+        this.acceptRanges = acceptRanges;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newFixedThreadPool(32);
+
+        server.createContext(DOWNLOAD_PATH, this::serve);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return Base URL of the server, without a trailing slash
+     */
+    String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    private void serve(final HttpExchange exchange) throws IOException {
+        try {
+            if (acceptRanges) exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Content-Length", String.valueOf(size));
+                // The server drops the connection after a response without body, so the client must not reuse it
+                exchange.getResponseHeaders().set("Connection", "close");
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            final Matcher rangeMatcher = range == null ? null : RANGE.matcher(range);
+
+            if (acceptRanges && rangeMatcher != null && rangeMatcher.matches()) {
+                final long firstByte = Long.parseLong(rangeMatcher.group(1));
+                final long lastByte = Math.min(Long.parseLong(rangeMatcher.group(2)), size - 1);
+
+                exchange.getResponseHeaders().set("Content-Range",
+                        String.format("bytes %d-%d/%d", firstByte, lastByte, size));
+                exchange.sendResponseHeaders(206, lastByte - firstByte + 1);
+                write(exchange, firstByte, lastByte + 1);
+            } else {
+                exchange.sendResponseHeaders(200, size);
+                write(exchange, 0, size);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void write(final HttpExchange exchange, final long firstByte, final long end) throws IOException {
+        final byte[] buffer = new byte[WRITE_SIZE];
+
+        try (OutputStream body = exchange.getResponseBody()) {
+            long position = firstByte;
+
+            while (position < end) {
+                final int count = SyntheticArchive.read(position, end, buffer, buffer.length);
+
+                body.write(buffer, 0, count);
+                position += count;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
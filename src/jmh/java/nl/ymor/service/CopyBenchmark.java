@@ -0,0 +1,136 @@
+package nl.ymor.service;
+
+import nl.ymor.sink.ArchiveWriter;
+import nl.ymor.sink.LocalFileSink;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares ways to copy a download stream to the archive file, without HTTP in between:
+ * <ul>
+ * <li>{@code direct}: {@link StreamingTransfer} with direct buffers, as used by the downloads</li>
+ * <li>{@code heap}: {@link StreamingTransfer} with heap buffers</li>
+ * <li>{@code stream}: an input stream copied to an output stream through a byte array</li>
+ * <li>{@code transferFrom}: {@link FileChannel#transferFrom}, which leaves the buffering to the JDK</li>
+ * </ul>
+ * <pre>
+ * mvn -P benchmarks compile exec:exec -Djmh.args="CopyBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+public class CopyBenchmark {
+
+    private static final String ARCHIVE_NAME = "jira-backup.zip";
+
+    @Param({"268435456"})
+    public long archiveSize;
+
+    @Param({"direct", "heap", "stream", "transferFrom"})
+    public String strategy;
+
+    @Param({"65536", "1048576"})
+    public int bufferSize;
+
+    private Path directory;
+    private LocalFileSink sink;
+    private StreamingTransfer transfer;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("copy-benchmark");
+        sink = new LocalFileSink(directory);
+        transfer = new StreamingTransfer(bufferSize, 1, !"heap".equals(strategy));
+    }
+
+    @Benchmark
+    public long copy() throws IOException {
+        final ReadableByteChannel source = SyntheticArchive.channel(0, archiveSize);
+
+        switch (strategy) {
+            case "stream":
+                return copyStream(source);
+            case "transferFrom":
+                return transferFrom(source);
+            default:
+                try (ArchiveWriter writer = sink.open(ARCHIVE_NAME, archiveSize, false)) {
+                    final long transferred = transfer.transfer(source, writer, 0, archiveSize);
+
+                    writer.commit();
+
+                    return transferred;
+                }
+        }
+    }
+
+    private long copyStream(final ReadableByteChannel source) throws IOException {
+        final byte[] buffer = new byte[bufferSize];
+        long transferred = 0;
+
+        try (InputStream input = Channels.newInputStream(source);
+             OutputStream output = Files.newOutputStream(directory.resolve(ARCHIVE_NAME))) {
+            int count;
+
+            while ((count = input.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+                transferred += count;
+            }
+        }
+
+        return transferred;
+    }
+
+    private long transferFrom(final ReadableByteChannel source) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(ARCHIVE_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long transferred = 0;
+
+            while (transferred < archiveSize) {
+                final long count = channel.transferFrom(source, transferred, bufferSize);
+
+                if (count <= 0) break;
+
+                transferred += count;
+            }
+
+            return transferred;
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteArchive() throws IOException {
+        Files.deleteIfExists(directory.resolve(ARCHIVE_NAME));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDirectory() throws IOException {
+        deleteArchive();
+        Files.deleteIfExists(directory);
+    }
+}
@@ -0,0 +1,152 @@
+package nl.ymor.service;
+
+import ch.qos.logback.classic.Logger;
+import nl.ymor.config.ApplicationConfiguration;
+import nl.ymor.model.Arguments;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.support.ResourcePropertySource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link BackupService#downloadBackupFile(String)} against an {@link ArchiveServer} on the loopback
+ * interface, so the result shows the cost of the client and the disk rather than of the network.
+ * <p>
+ * Every invocation downloads the whole archive, computes its checksum and saves it to a temporary directory, in
+ * plaintext or encrypted. The service is wired like the application, with the defaults of
+ * {@code application.properties}, and only the measured settings are overridden. Run with {@code -prof gc} to see
+ * the allocation rate, and with {@code -p archiveSize=21474836480} for a 20 GB archive:
+ * <pre>
+ * mvn -P benchmarks compile exec:exec -Djmh.args="DownloadBenchmark -prof gc -p archiveSize=1073741824"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx512m")
+public class DownloadBenchmark {
+
+    private static final String BACKUP_FILE_URL = "export/download/?fileId=benchmark";
+
+    @Param({"104857600"})
+    public long archiveSize;
+
+    @Param({"single", "ranged"})
+    public String mode;
+
+    @Param({"65536", "1048576"})
+    public String bufferSize;
+
+    @Param({"4"})
+    public String concurrency;
+
+    @Param({"16777216"})
+    public String chunkSize;
+
+    @Param({"false", "true"})
+    public String encrypt;
+
+    private ArchiveServer server;
+    private Path directory;
+    private AnnotationConfigApplicationContext context;
+    private BackupService backupService;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException {
+        // Without Spring Boot, Logback logs every byte on the wire
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(ch.qos.logback.classic.Level.WARN);
+
+        server = new ArchiveServer(archiveSize, "ranged".equals(mode));
+        directory = Files.createTempDirectory("download-benchmark");
+
+        final Map<String, Object> measured = new HashMap<>();
+        measured.put("download.chunk.size.bytes", chunkSize);
+        measured.put("download.concurrency", concurrency);
+        measured.put("download.buffer.size.bytes", bufferSize);
+        measured.put("archive.encrypt", encrypt);
+        measured.put("archive.encryption.key", Base64.getEncoder().encodeToString(new byte[32]));
+        // Every download starts afresh, with a single attempt, a resumed or retried download would skew the
+        // measurement
+        measured.put("download.resume", "false");
+        measured.put("job.state.directory", "");
+        measured.put("retry.max.attempts", "1");
+        // The synthetic archive is no ZIP file
+        measured.put("archive.verify", "false");
+
+        context = createContext(measured);
+
+        final Arguments arguments = new Arguments();
+        arguments.setInstanceUrl(server.getUrl());
+        arguments.setDirectory(directory.toString());
+        arguments.setAuthorization(BackupService.getAuthorization("benchmark", "token"));
+
+        backupService = context.getBean(BackupService.class).forInstance(arguments);
+    }
+
+    /**
+     * @param measured Properties that the benchmark measures or has to change
+     * @return Started context of {@link ApplicationConfiguration} with the defaults of {@code application.properties}
+     */
+    private static AnnotationConfigApplicationContext createContext(final Map<String, Object> measured)
+            throws IOException {
+        final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        final MutablePropertySources propertySources = context.getEnvironment().getPropertySources();
+
+        propertySources.addFirst(new MapPropertySource("benchmark", measured));
+        propertySources.addLast(new ResourcePropertySource(new ClassPathResource("application.properties")));
+
+        context.registerBean(PropertySourcesPlaceholderConfigurer.class);
+        context.register(ApplicationConfiguration.class);
+        context.refresh();
+
+        return context;
+    }
+
+    @Benchmark
+    public void download() throws Exception {
+        backupService.downloadBackupFile(BACKUP_FILE_URL);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteArchive() throws IOException {
+        Files.deleteIfExists(directory.resolve("jira-backup.zip"));
+        Files.deleteIfExists(directory.resolve("jira-backup.zip.sha256"));
+        Files.deleteIfExists(directory.resolve("jira-backup.zip.enc"));
+        Files.deleteIfExists(directory.resolve("jira-backup.zip.enc.sha256"));
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        backupService.close();
+        context.close();
+        server.close();
+        deleteArchive();
+        Files.deleteIfExists(directory);
+    }
+}
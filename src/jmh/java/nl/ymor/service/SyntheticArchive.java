@@ -0,0 +1,74 @@
+package nl.ymor.service;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+/**
+ * Archive content of any size that is generated while it is read, so archives of many gigabytes can be served
+ * without keeping them in memory or on disk. The content repeats a block of random bytes, which does not compress.
+ */
+final class SyntheticArchive {
+
+    private static final int BLOCK_SIZE = 1 << 20;
+    private static final byte[] BLOCK = new byte[BLOCK_SIZE];
+
+    static {
+        new Random(42).nextBytes(BLOCK);
+    }
+
+    private SyntheticArchive() {
+    }
+
+    /**
+     * @param firstByte Archive position of the first byte to read
+     * @param length    Number of bytes to read
+     * @return Channel that reads the given range of the archive
+     */
+    static ReadableByteChannel channel(final long firstByte, final long length) {
+        return new ReadableByteChannel() {
+            private long position = firstByte;
+            private final long end = firstByte + length;
+            private boolean open = true;
+
+            @Override
+            public int read(final ByteBuffer target) {
+                if (position >= end) return -1;
+
+                final int offset = (int) (position % BLOCK_SIZE);
+                final int count = (int) Math.min(Math.min(target.remaining(), BLOCK_SIZE - offset), end - position);
+
+                target.put(BLOCK, offset, count);
+                position += count;
+
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    /**
+     * Copy the archive from a position into an array, but not beyond the given end
+     *
+     * @return Number of bytes copied, -1 if the position is at or past the end
+     */
+    static int read(final long position, final long end, final byte[] target, final int length) {
+        if (position >= end) return -1;
+
+        final int offset = (int) (position % BLOCK_SIZE);
+        final int count = (int) Math.min(Math.min(length, BLOCK_SIZE - offset), end - position);
+
+        System.arraycopy(BLOCK, offset, target, 0, count);
+
+        return count;
+    }
+}
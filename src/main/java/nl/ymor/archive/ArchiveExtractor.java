@@ -0,0 +1,385 @@
+package nl.ymor.archive;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Extracts single entries of a backup archive with random access, without unzipping the whole archive.
+ * <p>
+ * The entries are looked up in the {@link ArchiveIndex} next to the archive if it was saved with the archive, and
+ * otherwise in the central directory, which is mapped into memory. Only the local headers and the data of the wanted
+ * entries are read after that, so a single attachment comes out of an archive of hundreds of gigabytes in
+ * milliseconds. An entry is named by its path in the archive, or by the ID of a Jira attachment, which is the file
+ * name of the attachment. Many entries are extracted in parallel, one entry per thread at a time, and every entry is
+ * checked against its CRC. Entries that were re-encoded with Zstandard are decoded as well.
+ */
+public class ArchiveExtractor implements Closeable {
+
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final String PARTIAL_EXTENSION = ".partial";
+
+    private final Path archive;
+    private final FileChannel channel;
+    private final Map<String, ZipCentralDirectoryEntry> entries = new LinkedHashMap<>();
+    private final boolean indexed;
+
+    private ArchiveExtractor(final Path archive, final FileChannel channel,
+                             final List<? extends ZipCentralDirectoryEntry> entries, final boolean indexed) {
+        this.archive = archive;
+        this.channel = channel;
+        this.indexed = indexed;
+
+        for (final ZipCentralDirectoryEntry entry : entries) {
+            this.entries.put(entry.getName(), entry);
+        }
+    }
+
+    /**
+     * Open an archive, with its index if there is one
+     *
+     * @throws ZipException if the archive has no index and no valid central directory
+     */
+    public static ArchiveExtractor open(final Path archive) throws IOException {
+        final Path indexFile = archive.resolveSibling(archive.getFileName() + ArchiveIndex.EXTENSION);
+        final FileChannel channel = FileChannel.open(archive);
+
+        try {
+            // An index that is older than the archive belongs to an earlier download
+            if (Files.isRegularFile(indexFile) && Files.getLastModifiedTime(indexFile)
+                    .compareTo(Files.getLastModifiedTime(archive)) >= 0) {
+                return new ArchiveExtractor(archive, channel, ArchiveIndex.read(indexFile).getEntries(), true);
+            }
+
+            return new ArchiveExtractor(archive, channel, ZipCentralDirectory.map(channel).getEntries(), false);
+        } catch (final IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the entries were looked up in the index of the archive, rather than in its central directory
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * @param nameOrAttachmentID Path of an entry in the archive, or the ID of an attachment
+     * @return Entries with the path, or the attachments with the ID
+     * @throws ZipException if the archive holds no such entry
+     */
+    public List<ZipCentralDirectoryEntry> find(final String nameOrAttachmentID) throws ZipException {
+        final ZipCentralDirectoryEntry entry = entries.get(nameOrAttachmentID);
+
+        if (entry != null) return Collections.singletonList(entry);
+
+        final List<ZipCentralDirectoryEntry> attachments = new ArrayList<>();
+
+        for (final ZipCentralDirectoryEntry candidate : entries.values()) {
+            final String name = candidate.getName();
+
+            if (name.startsWith(AttachmentIndex.ATTACHMENTS)
+                    && name.substring(name.lastIndexOf('/') + 1).equals(nameOrAttachmentID)) {
+                attachments.add(candidate);
+            }
+        }
+
+        if (attachments.isEmpty()) throw new ZipException("Archive holds no entry " + nameOrAttachmentID);
+
+        return attachments;
+    }
+
+    /**
+     * Extract entries into a directory, at the path they have in the archive
+     *
+     * @param namesOrAttachmentIDs Paths of entries in the archive, or IDs of attachments
+     * @param directory            Directory to extract the entries to
+     * @param threads              Number of entries to extract at the same time
+     * @return Summary of the extracted entries
+     * @throws ZipException if the archive does not hold one of the entries, or an entry is damaged
+     */
+    public Summary extract(final List<String> namesOrAttachmentIDs, final Path directory, final int threads)
+            throws IOException {
+        final Map<String, ZipCentralDirectoryEntry> wanted = new LinkedHashMap<>();
+
+        for (final String nameOrAttachmentID : namesOrAttachmentIDs) {
+            for (final ZipCentralDirectoryEntry entry : find(nameOrAttachmentID)) {
+                wanted.put(entry.getName(), entry);
+            }
+        }
+
+        final List<ZipCentralDirectoryEntry> queue = new ArrayList<>(wanted.values());
+        final AtomicInteger nextEntry = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final int workerCount = Math.max(1, Math.min(threads, queue.size()));
+        final ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        final List<Future<Void>> workers = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < workerCount; i++) {
+                workers.add(executor.submit(() -> {
+                    int index;
+
+                    while ((index = nextEntry.getAndIncrement()) < queue.size()
+                            && !Thread.currentThread().isInterrupted()) {
+                        bytes.addAndGet(extractEntry(queue.get(index), directory));
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (final Future<Void> worker : workers) {
+                await(worker);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return new Summary(queue.size(), bytes.get());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return Size of the extracted entry in bytes
+     */
+    private long extractEntry(final ZipCentralDirectoryEntry entry, final Path directory) throws IOException {
+        final Path root = directory.toAbsolutePath().normalize();
+        final Path target = root.resolve(entry.getName()).normalize();
+
+        // A crafted name such as ../../.bashrc must not write outside the directory
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new ZipException("Entry lies outside the target directory: " + entry.getName());
+        }
+
+        if (entry.getName().endsWith("/")) {
+            Files.createDirectories(target);
+            return 0;
+        }
+
+        Files.createDirectories(target.getParent());
+
+        final Path partialTarget = target.resolveSibling(target.getFileName() + PARTIAL_EXTENSION);
+        final CRC32 crc = new CRC32();
+        long size = 0;
+
+        try {
+            try (InputStream data = decode(entry, new EntryData(dataOffset(entry), entry.getCompressedSize()));
+                 OutputStream output = new CheckedOutputStream(Files.newOutputStream(partialTarget), crc)) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+
+                while ((read = data.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                    size += read;
+                }
+            }
+
+            if (crc.getValue() != entry.getCrc() || size != entry.getSize()) {
+                throw new ZipException(String.format("Entry %s is damaged: CRC %08x and size %d, expected %08x and %d",
+                        entry.getName(), crc.getValue(), size, entry.getCrc(), entry.getSize()));
+            }
+
+            Files.move(partialTarget, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partialTarget);
+        }
+
+        return size;
+    }
+
+    /**
+     * Read the local header of an entry, which the central directory and the index only point to
+     *
+     * @return Position of the data of the entry
+     */
+    private long dataOffset(final ZipCentralDirectoryEntry entry) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        readFully(header, entry.getLocalHeaderOffset());
+
+        final int nameLength = Short.toUnsignedInt(header.getShort(26));
+        final ByteBuffer name = ByteBuffer.allocate(nameLength);
+
+        readFully(name, entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE);
+
+        final long dataOffset = entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE + nameLength
+                + Short.toUnsignedInt(header.getShort(28));
+
+        if (header.getInt(0) != LOCAL_SIGNATURE
+                || !entry.getName().equals(new String(name.array(), StandardCharsets.UTF_8))
+                || entry instanceof ArchiveIndex.Entry && ((ArchiveIndex.Entry) entry).getDataOffset() != dataOffset) {
+            throw new ZipException(String.format("%s does not match entry %s at %d", indexed ? "Index of " + archive
+                    : archive.toString(), entry.getName(), entry.getLocalHeaderOffset()));
+        }
+
+        return dataOffset;
+    }
+
+    private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("Archive ended at byte " + (position + buffer.position()));
+            }
+        }
+    }
+
+    private static InputStream decode(final ZipCentralDirectoryEntry entry, final InputStream data)
+            throws IOException {
+        switch (entry.getMethod()) {
+            case ZipEntry.STORED:
+                return data;
+            case ZipEntry.DEFLATED:
+                return new EntryInflaterStream(data);
+            case ZipReencoder.ZSTD:
+                return new ZstdInputStream(data);
+            default:
+                data.close();
+                throw new ZipException(String.format("Entry %s has unsupported compression method %d",
+                        entry.getName(), entry.getMethod()));
+        }
+    }
+
+    private static void await(final Future<Void> worker) throws IOException {
+        try {
+            worker.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while extracting the archive");
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * The compressed data of an entry, read with positional reads, so threads can read entries at the same time
+     */
+    private final class EntryData extends InputStream {
+
+        private long position;
+        private final long end;
+
+        private EntryData(final long position, final long length) {
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (position >= end) return -1;
+            if (length == 0) return 0;
+
+            final int count = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, end - position)),
+                    position);
+
+            if (count < 0) throw new ZipException("Archive ended at byte " + position);
+
+            position += count;
+
+            return count;
+        }
+    }
+
+    /**
+     * Inflates raw deflated data, which may need one byte more than the data to finish, like the JDK adds for ZIP files
+     */
+    private static final class EntryInflaterStream extends InflaterInputStream {
+
+        private boolean ended;
+
+        private EntryInflaterStream(final InputStream data) {
+            super(data, new Inflater(true), BUFFER_SIZE);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (ended) throw new EOFException("Unexpected end of deflated data");
+
+            len = in.read(buf, 0, buf.length);
+
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                ended = true;
+            }
+
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+
+    /**
+     * Outcome of an extraction, for the log
+     */
+    public static final class Summary {
+
+        private final int entries;
+        private final long size;
+
+        Summary(final int entries, final long size) {
+            this.entries = entries;
+            this.size = size;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return Uncompressed bytes of the extracted entries
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package nl.ymor.archive;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.zip.ZipException;
+
+/**
+ * Index of the entries of a backup archive, saved next to it, so single entries can be read with random access and
+ * the content of a backup can be audited without unzipping it.
+ * <p>
+ * The index is built by the {@link ArchiveInspector} while the archive is downloaded. It lists every entry with the
+ * position of its local header and of its data, its compression method, sizes and CRC, and counts the entities in
+ * {@code entities.xml} per type, such as the issues, projects or pages of the site.
+ * <p>
+ * Format of the index, one line per entry and per entity type:
+ * <pre>
+ * entry localHeaderOffset dataOffset method compressedSize size crc name
+ * entity count type
+ * </pre>
+ */
+public class ArchiveIndex {
+
+    public static final String EXTENSION = ".entries";
+
+    private static final String HEADER = "# archive index 1";
+    private static final String ENTRY = "entry";
+    private static final String ENTITY = "entity";
+
+    private final Map<String, Entry> entries;
+    private final Map<String, Long> entityCounts;
+
+    ArchiveIndex(final List<Entry> entries, final Map<String, Long> entityCounts) {
+        final Map<String, Entry> entriesByName = new LinkedHashMap<>();
+
+        for (final Entry entry : entries) {
+            entriesByName.put(entry.getName(), entry);
+        }
+
+        this.entries = Collections.unmodifiableMap(entriesByName);
+        this.entityCounts = Collections.unmodifiableMap(new TreeMap<>(entityCounts));
+    }
+
+    /**
+     * Read a saved index
+     *
+     * @throws ZipException if the file is not an archive index
+     */
+    public static ArchiveIndex read(final Path file) throws IOException {
+        final List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        final List<Entry> entries = new ArrayList<>();
+        final Map<String, Long> entityCounts = new TreeMap<>();
+
+        if (lines.isEmpty() || !HEADER.equals(lines.get(0))) throw new ZipException("Not an archive index: " + file);
+
+        try {
+            for (final String line : lines.subList(1, lines.size())) {
+                if (line.startsWith(ENTRY + " ")) {
+                    final String[] fields = line.split(" ", 8);
+                    entries.add(new Entry(fields[7], Integer.parseInt(fields[3]), Long.parseLong(fields[6], 16),
+                            Long.parseLong(fields[4]), Long.parseLong(fields[5]), Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2])));
+                } else if (line.startsWith(ENTITY + " ")) {
+                    final String[] fields = line.split(" ", 3);
+                    entityCounts.put(fields[2], Long.parseLong(fields[1]));
+                }
+            }
+        } catch (final NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new ZipException("Archive index " + file + " is damaged: " + e.getMessage());
+        }
+
+        return new ArchiveIndex(entries, entityCounts);
+    }
+
+    /**
+     * @return Content of the index file
+     */
+    public byte[] content() {
+        final StringBuilder content = new StringBuilder(HEADER).append('\n');
+
+        for (final Entry entry : entries.values()) {
+            content.append(String.format("%s %d %d %d %d %d %08x %s%n", ENTRY, entry.getLocalHeaderOffset(),
+                    entry.getDataOffset(), entry.getMethod(), entry.getCompressedSize(), entry.getSize(),
+                    entry.getCrc(), entry.getName()));
+        }
+
+        for (final Map.Entry<String, Long> entityCount : entityCounts.entrySet()) {
+            content.append(String.format("%s %d %s%n", ENTITY, entityCount.getValue(), entityCount.getKey()));
+        }
+
+        return content.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Entries in the order of the archive
+     */
+    public List<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public Optional<Entry> getEntry(final String name) {
+        return Optional.ofNullable(entries.get(name));
+    }
+
+    /**
+     * @return Number of entities in {@code entities.xml} per type, empty if the archive has none
+     */
+    public Map<String, Long> getEntityCounts() {
+        return entityCounts;
+    }
+
+    /**
+     * One entry of an archive, with the position of its data
+     */
+    public static class Entry extends ZipCentralDirectoryEntry {
+
+        private final long dataOffset;
+
+        Entry(final String name, final int method, final long crc, final long compressedSize, final long size,
+              final long localHeaderOffset, final long dataOffset) {
+            super(name, method, crc, compressedSize, size, localHeaderOffset);
+            this.dataOffset = dataOffset;
+        }
+
+        /**
+         * @return Position of the data of the entry in the archive, right after its local header
+         */
+        public long getDataOffset() {
+            return dataOffset;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package nl.ymor.archive;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Builds the {@link ArchiveIndex} of a ZIP archive while the archive streams by, in a single pass.
+ * <p>
+ * The local header of every entry gives its name and the position of its data. Jira writes its entries with a data
+ * descriptor, so their sizes only follow their data: deflated data is inflated to find its end, but nothing is kept of
+ * it. {@code entities.xml} is parsed on the fly with StAX and every child of its root element counts as an entity of
+ * the type of its element name. Confluence names all its entities {@code object}, with the type in their
+ * {@code class} attribute. The central directory at the end of the archive is skipped, the entries are known by then.
+ */
+public class ArchiveInspector {
+
+    public static final String ENTITIES = "entities.xml";
+
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int DIGITAL_SIGNATURE = 0x05054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE_AFTER_SIGNATURE = 18;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int FLAG_DESCRIPTOR = 0x0008;
+    private static final String CONFLUENCE_ENTITY = "object";
+    private static final String CONFLUENCE_ENTITY_TYPE = "class";
+
+    private final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    public ArchiveInspector() {
+        // The export is parsed on the backup host, so it must not make the parser read other files
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Inspect an archive
+     *
+     * @param source Archive to read until its end
+     * @return Index of the archive
+     * @throws ZipException if the archive is damaged or incomplete
+     */
+    public ArchiveIndex inspect(final InputStream source) throws IOException {
+        final ZipInput input = new ZipInput(source);
+        final List<ArchiveIndex.Entry> entries = new ArrayList<>();
+        final Map<String, Long> entityCounts = new HashMap<>();
+        boolean ended = false;
+
+        while (!ended) {
+            final long offset = input.getOffset();
+            final int signature = input.readInt();
+
+            switch (signature) {
+                case LOCAL_SIGNATURE:
+                    entries.add(readEntry(input, offset, entityCounts));
+                    break;
+                case CENTRAL_SIGNATURE:
+                    final ByteBuffer header = input.read(CENTRAL_HEADER_SIZE - 4);
+                    input.skip(Short.toUnsignedInt(header.getShort(24)) + Short.toUnsignedInt(header.getShort(26))
+                            + Short.toUnsignedInt(header.getShort(28)));
+                    break;
+                case DIGITAL_SIGNATURE:
+                    input.skip(Short.toUnsignedInt(input.read(2).getShort()));
+                    break;
+                case ZIP64_END_SIGNATURE:
+                    input.skip(input.read(8).getLong());
+                    break;
+                case ZIP64_LOCATOR_SIGNATURE:
+                    input.skip(16);
+                    break;
+                case END_SIGNATURE:
+                    input.read(END_SIZE_AFTER_SIGNATURE);
+                    ended = true;
+                    break;
+                default:
+                    throw new ZipException(String.format("Unexpected signature %08x at %d", signature, offset));
+            }
+        }
+
+        return new ArchiveIndex(entries, entityCounts);
+    }
+
+    private ArchiveIndex.Entry readEntry(final ZipInput input, final long offset, final Map<String, Long> entityCounts)
+            throws IOException {
+        final ByteBuffer header = input.read(LOCAL_HEADER_SIZE - 4);
+        final int flags = Short.toUnsignedInt(header.getShort(2));
+        final int method = Short.toUnsignedInt(header.getShort(4));
+        final String name = new String(input.read(Short.toUnsignedInt(header.getShort(22))).array(),
+                StandardCharsets.UTF_8);
+        final byte[] extra = input.read(Short.toUnsignedInt(header.getShort(24))).array();
+        final long dataOffset = input.getOffset();
+        final boolean zip64 = findZip64(extra) >= 0;
+        final boolean descriptor = (flags & FLAG_DESCRIPTOR) != 0;
+        long crc = Integer.toUnsignedLong(header.getInt(10));
+        long compressedSize = Integer.toUnsignedLong(header.getInt(14));
+        long size = Integer.toUnsignedLong(header.getInt(18));
+
+        if (zip64) {
+            final ByteBuffer zip64Extra = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+            zip64Extra.position(findZip64(extra) + 4);
+
+            // The local ZIP64 field holds both sizes, even where the header does not point to it
+            if (zip64Extra.remaining() >= 16) {
+                size = zip64Extra.getLong();
+                compressedSize = zip64Extra.getLong();
+            }
+        }
+
+        // Only deflated data tells where it ends, the size of other data has to be known in advance
+        if (descriptor && method != ZipEntry.DEFLATED) {
+            throw new ZipException("Entry with a data descriptor cannot be streamed: " + name);
+        }
+
+        ZipInput.Inflated inflated = null;
+
+        if (ENTITIES.equals(name) && method == ZipEntry.STORED) {
+            try (InputStream entities = input.stored(compressedSize)) {
+                countEntities(entities, entityCounts);
+            }
+        } else if (ENTITIES.equals(name) && method == ZipEntry.DEFLATED) {
+            try (ZipInput.Inflated entities = input.inflated()) {
+                countEntities(entities, entityCounts);
+                inflated = entities;
+            }
+        } else if (descriptor) {
+            try (ZipInput.Inflated data = input.inflated()) {
+                drain(data);
+                inflated = data;
+            }
+        } else {
+            input.skip(compressedSize);
+        }
+
+        if (descriptor) {
+            int descriptorCrc = input.readInt();
+
+            if (descriptorCrc == DESCRIPTOR_SIGNATURE) descriptorCrc = input.readInt();
+
+            // Like ZipInputStream, the sizes are ZIP64 values once the data is too large for the ordinary ones, a
+            // writer that did not know the size in advance has no ZIP64 field in the local header
+            final boolean zip64Descriptor = zip64 || inflated.getCompressedSize() >= ZIP64_MAGIC
+                    || inflated.getSize() >= ZIP64_MAGIC;
+            final ByteBuffer sizes = input.read(zip64Descriptor ? 16 : 8);
+
+            crc = Integer.toUnsignedLong(descriptorCrc);
+            compressedSize = zip64Descriptor ? sizes.getLong(0) : Integer.toUnsignedLong(sizes.getInt(0));
+            size = zip64Descriptor ? sizes.getLong(8) : Integer.toUnsignedLong(sizes.getInt(4));
+        }
+
+        return new ArchiveIndex.Entry(name, method, crc, compressedSize, size, offset, dataOffset);
+    }
+
+    /**
+     * Count the children of the root element per type, and read the entities up to their end
+     */
+    private void countEntities(final InputStream entities, final Map<String, Long> entityCounts)
+            throws IOException {
+        try {
+            final XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(entities);
+            int depth = 0;
+
+            try {
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        if (++depth == 2) entityCounts.merge(entityType(reader), 1L, Long::sum);
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        depth--;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException e) {
+            throw new ZipException(ENTITIES + " is not valid XML: " + e.getMessage());
+        }
+
+        // The parser may stop right after the root element, the rest of the data is still part of the entry
+        drain(entities);
+    }
+
+    private static String entityType(final XMLStreamReader reader) {
+        final String type = CONFLUENCE_ENTITY.equals(reader.getLocalName())
+                ? reader.getAttributeValue(null, CONFLUENCE_ENTITY_TYPE) : null;
+
+        return type != null ? type : reader.getLocalName();
+    }
+
+    private static void drain(final InputStream data) throws IOException {
+        final byte[] buffer = new byte[8192];
+
+        while (data.read(buffer) != -1) {
+            // Read up to the end of the entry
+        }
+    }
+
+    /**
+     * @return Position of the ZIP64 field in the extra fields, -1 if there is none
+     */
+    private static int findZip64(final byte[] extra) {
+        final ByteBuffer fields = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int field = 0; field + 4 <= extra.length; field += 4 + Short.toUnsignedInt(fields.getShort(field + 2))) {
+            if (Short.toUnsignedInt(fields.getShort(field)) == ZIP64_EXTRA_ID) return field;
+        }
+
+        return -1;
+    }
+}
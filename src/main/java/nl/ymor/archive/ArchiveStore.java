@@ -0,0 +1,357 @@
+package nl.ymor.archive;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Content-addressed store for the entries of backup archives.
+ * <p>
+ * Every entry of an archive is saved once, as an object named after the SHA-256 hash of its content, and every run
+ * writes a small manifest that lists the entries of its archive with their hashes. Attachments that did not change
+ * since the previous run are found again by their size and CRC in the previous manifest of the instance. Their
+ * content is only hashed to make sure it is the same, so they cost neither disk space nor write I/O. The archive of
+ * any run can be rebuilt from its manifest with {@link #rebuild(Path, Path)}.
+ * <p>
+ * The archive is stored once it is saved, not while it downloads: whether an entry has to be written at all depends on
+ * its size and CRC in the central directory at the end of the archive, and an entry that only matched by size and
+ * CRC is read a second time. The saved archive is read from start to end once, plus those rare second reads.
+ * <p>
+ * Nothing prunes the store. Objects and manifests stay until they are deleted by hand, and an object can only be
+ * deleted once no manifest that is kept lists its hash.
+ * <p>
+ * Layout of the store:
+ * <pre>
+ * objects/ab/abcdef...                   content of an entry, named after its hash
+ * manifests/&lt;instance&gt;/&lt;time&gt;.manifest  one line per entry: hash size crc method time name
+ * </pre>
+ * The URL of the instance is turned into one directory name by {@link InstanceFileName}, as the other stores do.
+ */
+public class ArchiveStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveStore.class);
+    private static final String OBJECTS = "objects";
+    private static final String MANIFESTS = "manifests";
+    private static final String MANIFEST_EXTENSION = ".manifest";
+    private static final String MANIFEST_HEADER = "# archive store manifest 1";
+    private static final DateTimeFormatter MANIFEST_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path root;
+
+    public ArchiveStore(final Path root) {
+        this.root = root;
+    }
+
+    /**
+     * @param manifest Manifest in a store
+     * @return Store the manifest belongs to
+     */
+    public static ArchiveStore forManifest(final Path manifest) {
+        // Manifests written before instance names were sanitized can be nested deeper, by the path of the URL
+        for (Path directory = manifest.toAbsolutePath().getParent().getParent(); directory != null;
+             directory = directory.getParent()) {
+            if (directory.getFileName() != null && MANIFESTS.equals(directory.getFileName().toString())) {
+                return new ArchiveStore(directory.getParent());
+            }
+        }
+
+        throw new IllegalArgumentException("Manifest " + manifest + " is not in an archive store");
+    }
+
+    /**
+     * Store the entries of an archive and write the manifest of this run. The archive is read as a stream, after the
+     * download saved it completely.
+     *
+     * @param archive  Saved archive
+     * @param instance Name of the instance the archive belongs to
+     * @return Summary of the stored entries
+     */
+    public Summary ingest(final Path archive, final String instance) throws IOException {
+        final Path manifestDirectory = manifestDirectory(instance);
+        final Map<String, String> previousHashes = readHashesBySizeAndCrc(latestManifest(manifestDirectory));
+        final Map<String, ZipCentralDirectoryEntry> centralEntries = readCentralEntries(archive);
+        final List<String> manifestLines = new ArrayList<>();
+        final Summary summary = new Summary();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        Files.createDirectories(root.resolve(OBJECTS));
+        Files.createDirectories(manifestDirectory);
+        manifestLines.add(MANIFEST_HEADER);
+
+        try (ZipInputStream zipStream =
+                     new ZipInputStream(new BufferedInputStream(Files.newInputStream(archive), BUFFER_SIZE))) {
+            ZipEntry entry;
+
+            while ((entry = zipStream.getNextEntry()) != null) {
+                // Entries written with a data descriptor only reveal their size and CRC after their data
+                final ZipCentralDirectoryEntry centralEntry = centralEntries.get(entry.getName());
+                final String previousHash = centralEntry == null ? null
+                        : previousHashes.get(sizeAndCrc(centralEntry.getSize(), centralEntry.getCrc()));
+                StoredEntry stored = previousHash != null && Files.exists(objectPath(previousHash))
+                        ? hashUnchanged(zipStream, previousHash, buffer)
+                        : writeObject(zipStream, buffer);
+
+                if (stored.hash == null) {
+                    // Only the size and CRC were the same, read the entry again to store it
+                    stored = rewriteEntry(archive, entry.getName(), buffer);
+                }
+
+                summary.entries++;
+                if (stored.reused) summary.reusedBytes += stored.size;
+                else summary.writtenBytes += stored.written;
+
+                manifestLines.add(String.format("%s %d %08x %d %d %s", stored.hash, stored.size, stored.crc,
+                        entry.getMethod(), entry.getTime(), entry.getName()));
+            }
+        }
+
+        // The manifest appears at once, so a crash never leaves a partial one behind
+        final Path manifest = manifestDirectory.resolve(
+                LocalDateTime.now().format(MANIFEST_TIME) + MANIFEST_EXTENSION);
+        final Path partialManifest = manifestDirectory.resolve(manifest.getFileName() + ".tmp");
+
+        Files.write(partialManifest, manifestLines, StandardCharsets.UTF_8);
+        Files.move(partialManifest, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        summary.manifest = manifest;
+
+        return summary;
+    }
+
+    /**
+     * Rebuild the archive of a run from its manifest. The entries are the same, their compressed form may differ
+     * from the downloaded archive.
+     *
+     * @param manifest Manifest of the run
+     * @param target   Archive to write
+     */
+    public void rebuild(final Path manifest, final Path target) throws IOException {
+        try (ZipOutputStream zipStream = new ZipOutputStream(Files.newOutputStream(target))) {
+            for (final String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                if (line.startsWith("#") || line.trim().isEmpty()) continue;
+
+                final String[] fields = line.split(" ", 6);
+                final ZipEntry entry = new ZipEntry(fields[5]);
+                final long size = Long.parseLong(fields[1]);
+
+                entry.setTime(Long.parseLong(fields[4]));
+
+                if (Integer.parseInt(fields[3]) == ZipEntry.STORED) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(size);
+                    entry.setCompressedSize(size);
+                    entry.setCrc(Long.parseLong(fields[2], 16));
+                }
+
+                zipStream.putNextEntry(entry);
+                Files.copy(objectPath(fields[0]), zipStream);
+                zipStream.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * @param instance Name of the instance
+     * @return Manifest of the latest run of the instance, null if there is none
+     */
+    public Path latestManifest(final String instance) throws IOException {
+        return latestManifest(manifestDirectory(instance));
+    }
+
+    private Path manifestDirectory(final String instance) {
+        return root.resolve(MANIFESTS).resolve(InstanceFileName.of(instance));
+    }
+
+    private static Path latestManifest(final Path manifestDirectory) throws IOException {
+        if (!Files.isDirectory(manifestDirectory)) return null;
+
+        Path latest = null;
+
+        try (DirectoryStream<Path> manifests = Files.newDirectoryStream(manifestDirectory, "*" + MANIFEST_EXTENSION)) {
+            for (final Path manifest : manifests) {
+                if (latest == null || manifest.getFileName().toString().compareTo(
+                        latest.getFileName().toString()) > 0) {
+                    latest = manifest;
+                }
+            }
+        }
+
+        return latest;
+    }
+
+    /**
+     * Hash an entry that is expected to be stored already, without writing it
+     */
+    private static StoredEntry hashUnchanged(final InputStream entryStream, final String expectedHash,
+                                             final byte[] buffer) throws IOException {
+        final MessageDigest digest = ChecksumFile.newDigest();
+        final CRC32 crc = new CRC32();
+        long size = 0;
+        int read;
+
+        while ((read = entryStream.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+            crc.update(buffer, 0, read);
+            size += read;
+        }
+
+        final String hash = ChecksumFile.toHex(digest.digest());
+
+        // A different hash means only the size and CRC were the same, the entry has to be written after all
+        return new StoredEntry(hash.equals(expectedHash) ? hash : null, size, crc.getValue(), 0, true);
+    }
+
+    /**
+     * Write an entry to a temporary object, which becomes the object of its hash unless that exists already
+     */
+    private StoredEntry writeObject(final InputStream entryStream, final byte[] buffer) throws IOException {
+        final MessageDigest digest = ChecksumFile.newDigest();
+        final CRC32 crc = new CRC32();
+        final Path partialObject = Files.createTempFile(root.resolve(OBJECTS), "object", ".tmp");
+        long size = 0;
+
+        try {
+            try (OutputStream objectStream = Files.newOutputStream(partialObject)) {
+                int read;
+
+                while ((read = entryStream.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    crc.update(buffer, 0, read);
+                    objectStream.write(buffer, 0, read);
+                    size += read;
+                }
+            }
+
+            final String hash = ChecksumFile.toHex(digest.digest());
+            final Path object = objectPath(hash);
+
+            if (Files.exists(object)) return new StoredEntry(hash, size, crc.getValue(), 0, true);
+
+            Files.createDirectories(object.getParent());
+            Files.move(partialObject, object, StandardCopyOption.ATOMIC_MOVE);
+
+            return new StoredEntry(hash, size, crc.getValue(), size, false);
+        } finally {
+            Files.deleteIfExists(partialObject);
+        }
+    }
+
+    /**
+     * Read an entry again from the archive and write it as a new object
+     */
+    private StoredEntry rewriteEntry(final Path archive, final String name, final byte[] buffer)
+            throws IOException {
+        try (ZipFile zipFile = new ZipFile(archive.toFile());
+             InputStream entryStream = zipFile.getInputStream(zipFile.getEntry(name))) {
+            return writeObject(entryStream, buffer);
+        }
+    }
+
+    private Path objectPath(final String hash) {
+        return root.resolve(OBJECTS).resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static Map<String, ZipCentralDirectoryEntry> readCentralEntries(final Path archive) throws IOException {
+        final Map<String, ZipCentralDirectoryEntry> entries = new HashMap<>();
+
+        try (FileChannel channel = FileChannel.open(archive, READ)) {
+            for (final ZipCentralDirectoryEntry entry : ZipCentralDirectory.read(channel).getEntries()) {
+                entries.put(entry.getName(), entry);
+            }
+        }
+
+        return entries;
+    }
+
+    private static Map<String, String> readHashesBySizeAndCrc(final Path manifest) throws IOException {
+        final Map<String, String> hashes = new HashMap<>();
+
+        if (manifest == null) return hashes;
+
+        for (final String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            if (line.startsWith("#") || line.trim().isEmpty()) continue;
+
+            final String[] fields = line.split(" ", 6);
+            hashes.put(sizeAndCrc(Long.parseLong(fields[1]), Long.parseLong(fields[2], 16)), fields[0]);
+        }
+
+        return hashes;
+    }
+
+    private static String sizeAndCrc(final long size, final long crc) {
+        return size + ":" + crc;
+    }
+
+    private static class StoredEntry {
+        private final String hash;
+        private final long size;
+        private final long crc;
+        private final long written;
+        private final boolean reused;
+
+        StoredEntry(final String hash, final long size, final long crc, final long written, final boolean reused) {
+            this.hash = hash;
+            this.size = size;
+            this.crc = crc;
+            this.written = written;
+            this.reused = reused;
+        }
+    }
+
+    /**
+     * Outcome of storing one archive
+     */
+    public static class Summary {
+        private int entries;
+        private long writtenBytes;
+        private long reusedBytes;
+        private Path manifest;
+
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return Bytes of new content written to the store
+         */
+        public long getWrittenBytes() {
+            return writtenBytes;
+        }
+
+        /**
+         * @return Bytes of content that was stored already
+         */
+        public long getReusedBytes() {
+            return reusedBytes;
+        }
+
+        public Path getManifest() {
+            return manifest;
+        }
+    }
+}
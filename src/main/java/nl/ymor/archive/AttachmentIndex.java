@@ -0,0 +1,237 @@
+package nl.ymor.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Local index of the attachments of an instance that were archived already, for incremental backups.
+ * <p>
+ * Jira always exports the whole site, attachments included. The index lists every attachment of the previous backup
+ * with its size, CRC, SHA-256 hash and the incremental archive that holds it. A new export is reduced to an
+ * incremental archive with the XML, the other data and only the attachments that are new or whose size or CRC
+ * changed. Unchanged attachments are recognized from the central directory of the export, so they are never read, and
+ * the work after a download grows with the changes rather than with the size of the site. The index is updated with
+ * the new archive and a copy of it is saved next to the archive, so a restore knows which archive holds each
+ * attachment of that backup.
+ * <p>
+ * Format of the index, one line per attachment:
+ * <pre>
+ * hash size crc archive name
+ * </pre>
+ */
+public class AttachmentIndex {
+
+    public static final String ATTACHMENTS = "data/attachments/";
+    public static final String EXTENSION = ".index";
+
+    private static final String HEADER = "# attachment index 1";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path file;
+
+    /**
+     * @param directory Directory with the indexes of all instances
+     * @param instance  Name of the instance the index belongs to
+     */
+    public AttachmentIndex(final Path directory, final String instance) {
+        this.file = directory.resolve(InstanceFileName.of(instance) + EXTENSION);
+    }
+
+    /**
+     * Write the incremental archive of an export, and record its attachments in the index
+     *
+     * @param archive Downloaded export
+     * @param target  Incremental archive to write, which is removed again if it cannot be written completely
+     * @param digest  Digest to feed the incremental archive to, may be null
+     * @return Summary of the incremental archive
+     */
+    public Summary reduce(final Path archive, final Path target, final MessageDigest digest) throws IOException {
+        final Map<String, Attachment> previous = read();
+        final List<String> lines = new ArrayList<>();
+        final Summary summary = new Summary();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        lines.add(HEADER);
+
+        try (ZipFile zipFile = new ZipFile(archive.toFile());
+             OutputStream fileStream = Files.newOutputStream(target);
+             ZipOutputStream zipStream = new ZipOutputStream(
+                     digest == null ? fileStream : new DigestOutputStream(fileStream, digest))) {
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                final boolean attachment = !entry.isDirectory() && entry.getName().startsWith(ATTACHMENTS);
+                final Attachment known = attachment ? previous.remove(entry.getName()) : null;
+
+                summary.entries++;
+
+                if (known != null && known.size == entry.getSize() && known.crc == entry.getCrc()) {
+                    summary.unchangedAttachments++;
+                    summary.unchangedBytes += entry.getSize();
+                    lines.add(known.line);
+                    continue;
+                }
+
+                final String hash = copyEntry(zipFile, entry, zipStream, buffer);
+
+                if (attachment) {
+                    summary.newAttachments++;
+                    lines.add(String.format("%s %d %08x %s %s", hash, entry.getSize(), entry.getCrc(),
+                            target.getFileName(), entry.getName()));
+                }
+            }
+
+            summary.removedAttachments = previous.size();
+        } catch (final IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+
+        summary.size = Files.size(target);
+
+        // The index appears at once, so a crash never leaves a partial one behind
+        final Path partialIndex = file.resolveSibling(file.getFileName() + ".tmp");
+
+        Files.createDirectories(file.getParent());
+        Files.write(partialIndex, lines, StandardCharsets.UTF_8);
+        Files.copy(partialIndex, target.resolveSibling(target.getFileName() + EXTENSION),
+                StandardCopyOption.REPLACE_EXISTING);
+        Files.move(partialIndex, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return summary;
+    }
+
+    /**
+     * Copy an entry to the incremental archive
+     *
+     * @return SHA-256 hash of the content of the entry
+     */
+    private static String copyEntry(final ZipFile zipFile, final ZipEntry entry, final ZipOutputStream zipStream,
+                                    final byte[] buffer) throws IOException {
+        final ZipEntry copy = new ZipEntry(entry.getName());
+        final MessageDigest digest = ChecksumFile.newDigest();
+
+        copy.setTime(entry.getTime());
+        copy.setComment(entry.getComment());
+
+        if (entry.getMethod() == ZipEntry.STORED) {
+            copy.setMethod(ZipEntry.STORED);
+            copy.setSize(entry.getSize());
+            copy.setCompressedSize(entry.getSize());
+            copy.setCrc(entry.getCrc());
+        }
+
+        zipStream.putNextEntry(copy);
+
+        try (InputStream entryStream = zipFile.getInputStream(entry)) {
+            int read;
+
+            while ((read = entryStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+                zipStream.write(buffer, 0, read);
+            }
+        }
+
+        zipStream.closeEntry();
+
+        return ChecksumFile.toHex(digest.digest());
+    }
+
+    private Map<String, Attachment> read() throws IOException {
+        final Map<String, Attachment> attachments = new HashMap<>();
+
+        if (!Files.exists(file)) return attachments;
+
+        for (final String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.startsWith("#") || line.trim().isEmpty()) continue;
+
+            final String[] fields = line.split(" ", 5);
+            attachments.put(fields[4],
+                    new Attachment(Long.parseLong(fields[1]), Long.parseLong(fields[2], 16), line));
+        }
+
+        return attachments;
+    }
+
+    private static class Attachment {
+        private final long size;
+        private final long crc;
+        private final String line;
+
+        Attachment(final long size, final long crc, final String line) {
+            this.size = size;
+            this.crc = crc;
+            this.line = line;
+        }
+    }
+
+    /**
+     * Outcome of reducing one export to an incremental archive
+     */
+    public static class Summary {
+        private int entries;
+        private int newAttachments;
+        private int unchangedAttachments;
+        private int removedAttachments;
+        private long unchangedBytes;
+        private long size;
+
+        /**
+         * @return Entries of the export
+         */
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return Attachments that are new or changed, and therefore in the incremental archive
+         */
+        public int getNewAttachments() {
+            return newAttachments;
+        }
+
+        /**
+         * @return Attachments that are left out, as an earlier archive holds them
+         */
+        public int getUnchangedAttachments() {
+            return unchangedAttachments;
+        }
+
+        /**
+         * @return Attachments of the previous backup that are no longer in the export
+         */
+        public int getRemovedAttachments() {
+            return removedAttachments;
+        }
+
+        /**
+         * @return Uncompressed bytes of the attachments that are left out
+         */
+        public long getUnchangedBytes() {
+            return unchangedBytes;
+        }
+
+        /**
+         * @return Size of the incremental archive in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+}
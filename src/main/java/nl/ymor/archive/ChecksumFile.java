@@ -0,0 +1,49 @@
+package nl.ymor.archive;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 checksum file next to an archive, in the format of {@code sha256sum}, so it can be checked with
+ * {@code sha256sum -c jira-backup.zip.sha256}
+ */
+public class ChecksumFile {
+
+    public static final String EXTENSION = ".sha256";
+    private static final String ALGORITHM = "SHA-256";
+
+    private ChecksumFile() {
+    }
+
+    /**
+     * @return New SHA-256 digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param archiveName File name of the archive
+     * @param digest      SHA-256 digest of the archive
+     * @return Content of the checksum file of the archive
+     */
+    public static byte[] content(final String archiveName, final byte[] digest) {
+        return (toHex(digest) + "  " + archiveName + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (final byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return hex.toString();
+    }
+}
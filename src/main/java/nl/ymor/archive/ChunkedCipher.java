@@ -0,0 +1,353 @@
+package nl.ymor.archive;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
+
+/**
+ * Encrypts an archive with AES-GCM in chunks of a fixed size, so it can be encrypted while it is downloaded and
+ * decrypted from any position.
+ * <p>
+ * An encrypted archive starts with a header that holds the chunk size, a random nonce and the id of the key. Chunk
+ * {@code i} of the archive follows at {@link Header#chunkPosition(long)}, sealed with its own authentication tag. The
+ * nonce of a chunk is the nonce of the archive with the chunk index mixed in, and the header and whether the chunk is
+ * the last one are authenticated with it. Chunks therefore cannot be swapped, taken from another archive or dropped
+ * from the end without the decryption failing.
+ */
+public class ChunkedCipher {
+
+    public static final String EXTENSION = ".enc";
+    public static final int HEADER_SIZE = 32;
+    public static final int TAG_SIZE = 16;
+
+    private static final byte[] MAGIC = "JBKAES01".getBytes(StandardCharsets.US_ASCII);
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_SIZE = 12;
+    private static final int KEY_ID_SIZE = 8;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKeySpec key;
+    private final byte[] keyId;
+
+    /**
+     * @param key AES key of 16, 24 or 32 bytes
+     */
+    public ChunkedCipher(final byte[] key) {
+        if (!isKeySize(key.length)) {
+            throw new IllegalArgumentException("Encryption key must be 16, 24 or 32 bytes, not " + key.length);
+        }
+
+        this.key = new SecretKeySpec(key, "AES");
+        this.keyId = Arrays.copyOf(ChecksumFile.newDigest().digest(key), KEY_ID_SIZE);
+    }
+
+    /**
+     * Read the key from a key file, or else from its Base64 encoding.
+     * <p>
+     * A key file is read as Base64 first, with surrounding white space ignored. Only a file that does not decode to a
+     * key is taken as a raw key. The Base64 encoding of a 24 byte key is 32 characters long, so the length of a file
+     * alone does not tell the formats apart.
+     *
+     * @param keyFile    File that holds the raw key or its Base64 encoding, may be empty
+     * @param encodedKey Base64 encoding of the key, used if there is no key file, may be empty
+     * @return The key
+     * @throws IllegalArgumentException if neither holds a key
+     */
+    public static byte[] readKey(final String keyFile, final String encodedKey) throws IOException {
+        if (!keyFile.trim().isEmpty()) {
+            final byte[] content = Files.readAllBytes(Paths.get(keyFile.trim()));
+
+            try {
+                final byte[] decoded =
+                        Base64.getDecoder().decode(new String(content, StandardCharsets.US_ASCII).trim());
+
+                if (isKeySize(decoded.length)) return decoded;
+            } catch (final IllegalArgumentException e) {
+                // Not Base64, the file may hold the raw key
+            }
+
+            if (isKeySize(content.length)) return content;
+
+            throw new IllegalArgumentException(
+                    "Encryption key in " + keyFile + " is neither Base64 encoded nor a raw key of 16, 24 or 32 bytes");
+        }
+
+        if (!encodedKey.trim().isEmpty()) return decodeKey(encodedKey, "the encryption key setting");
+
+        throw new IllegalArgumentException("No encryption key, set a key file or the Base64 encoded key");
+    }
+
+    private static boolean isKeySize(final int length) {
+        return length == 16 || length == 24 || length == 32;
+    }
+
+    private static byte[] decodeKey(final String encodedKey, final String source) {
+        try {
+            return Base64.getDecoder().decode(encodedKey.trim());
+        } catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException("Encryption key in " + source + " is not Base64 encoded", e);
+        }
+    }
+
+    /**
+     * @param size      Size of the archive in bytes
+     * @param chunkSize Chunk size in bytes
+     * @return Size of the encrypted archive in bytes
+     */
+    public static long encryptedSize(final long size, final int chunkSize) {
+        return HEADER_SIZE + size + chunks(size, chunkSize) * TAG_SIZE;
+    }
+
+    /**
+     * @return Number of chunks of an archive, which has one empty chunk if the archive is empty
+     */
+    private static long chunks(final long size, final int chunkSize) {
+        return size == 0 ? 1 : (size + chunkSize - 1) / chunkSize;
+    }
+
+    /**
+     * @param chunkSize Chunk size in bytes
+     * @return Header of a new encrypted archive, with a nonce of its own
+     */
+    public Header newHeader(final int chunkSize) {
+        if (chunkSize <= 0) throw new IllegalArgumentException("Chunk size must be positive, not " + chunkSize);
+
+        final byte[] nonce = new byte[NONCE_SIZE];
+        RANDOM.nextBytes(nonce);
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).putInt(chunkSize).put(nonce).put(keyId);
+
+        return new Header(header.array());
+    }
+
+    /**
+     * Read the header of an encrypted archive
+     *
+     * @throws ZipException if the file is not an encrypted archive, or was encrypted with another key
+     */
+    public Header readHeader(final FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) throw new ZipException("Encrypted archive is truncated");
+        }
+
+        final byte[] bytes = header.array();
+
+        if (!Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC)) {
+            throw new ZipException("File is not an encrypted archive");
+        }
+
+        if (!Arrays.equals(Arrays.copyOfRange(bytes, HEADER_SIZE - KEY_ID_SIZE, HEADER_SIZE), keyId)) {
+            throw new ZipException("Archive was encrypted with another key");
+        }
+
+        final Header result = new Header(bytes);
+
+        if (result.getChunkSize() <= 0) throw new ZipException("Encrypted archive has a damaged header");
+
+        return result;
+    }
+
+    /**
+     * Encrypt one chunk
+     *
+     * @param header    Header of the archive
+     * @param index     Index of the chunk in the archive
+     * @param last      true for the last chunk of the archive
+     * @param plaintext Bytes of the chunk, a full chunk unless it is the last one
+     * @param length    Number of bytes of the chunk
+     * @return The sealed chunk, {@link #TAG_SIZE} bytes longer than the chunk
+     */
+    public byte[] seal(final Header header, final long index, final boolean last, final byte[] plaintext,
+                       final int length) {
+        try {
+            return newCipher(Cipher.ENCRYPT_MODE, header, index, last).doFinal(plaintext, 0, length);
+        } catch (final GeneralSecurityException e) {
+            // AES-GCM is available on every Java platform and encryption has nothing to authenticate
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decrypt one chunk
+     *
+     * @param sealed    The sealed chunk
+     * @param length    Length of the sealed chunk in bytes
+     * @param plaintext Array to decrypt the chunk into, at least as long as a chunk
+     * @return Number of bytes of the chunk
+     * @throws ZipException if the chunk is damaged, or does not belong at this index
+     */
+    public int open(final Header header, final long index, final boolean last, final byte[] sealed, final int length,
+                    final byte[] plaintext) throws IOException {
+        try {
+            return newCipher(Cipher.DECRYPT_MODE, header, index, last).doFinal(sealed, 0, length, plaintext);
+        } catch (final AEADBadTagException e) {
+            throw new ZipException(String.format("Chunk %d of the encrypted archive is damaged", index));
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Cipher newCipher(final int mode, final Header header, final long index, final boolean last)
+            throws GeneralSecurityException {
+        final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+
+        cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, header.nonce(index)));
+        cipher.updateAAD(header.bytes);
+        cipher.updateAAD(new byte[]{(byte) (last ? 1 : 0)});
+
+        return cipher;
+    }
+
+    /**
+     * Decrypt an encrypted archive, with the chunks spread over several threads
+     *
+     * @param source  Encrypted archive
+     * @param target  File to write the archive to
+     * @param threads Number of threads that decrypt chunks at the same time
+     * @return Size of the decrypted archive in bytes
+     * @throws ZipException if the encrypted archive is damaged or truncated
+     */
+    public long decrypt(final Path source, final Path target, final int threads) throws IOException {
+        try (FileChannel input = FileChannel.open(source);
+             FileChannel output = FileChannel.open(target,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final Header header = readHeader(input);
+            final long chunkSize = header.getChunkSize();
+            final long sealedSize = input.size() - HEADER_SIZE;
+            final long chunks = (sealedSize + chunkSize + TAG_SIZE - 1) / (chunkSize + TAG_SIZE);
+
+            if (chunks == 0 || sealedSize - (chunks - 1) * (chunkSize + TAG_SIZE) < TAG_SIZE) {
+                throw new ZipException("Encrypted archive is truncated");
+            }
+
+            final ExecutorService executor = Executors.newFixedThreadPool(threads);
+            final AtomicLong nextChunk = new AtomicLong();
+            final List<Future<Void>> workers = new ArrayList<>();
+
+            try {
+                for (int i = 0; i < threads; i++) {
+                    workers.add(executor.submit(() -> {
+                        decryptChunks(header, input, output, chunks, nextChunk);
+                        return null;
+                    }));
+                }
+
+                for (final Future<Void> worker : workers) {
+                    await(worker);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            return sealedSize - chunks * TAG_SIZE;
+        }
+    }
+
+    /**
+     * Decrypt the next chunk that no other thread took, until all chunks are decrypted
+     */
+    private void decryptChunks(final Header header, final FileChannel input, final FileChannel output,
+                               final long chunks, final AtomicLong nextChunk) throws IOException {
+        final int chunkSize = header.getChunkSize();
+        final byte[] sealed = new byte[chunkSize + TAG_SIZE];
+        final byte[] plaintext = new byte[chunkSize];
+        long index;
+
+        while ((index = nextChunk.getAndIncrement()) < chunks && !Thread.currentThread().isInterrupted()) {
+            final long position = header.chunkPosition(index);
+            final ByteBuffer buffer =
+                    ByteBuffer.wrap(sealed, 0, (int) Math.min(sealed.length, input.size() - position));
+
+            while (buffer.hasRemaining()) {
+                if (input.read(buffer, position + buffer.position()) < 0) {
+                    throw new ZipException("Encrypted archive is truncated");
+                }
+            }
+
+            final int length = open(header, index, index == chunks - 1, sealed, buffer.position(), plaintext);
+            final ByteBuffer decrypted = ByteBuffer.wrap(plaintext, 0, length);
+
+            while (decrypted.hasRemaining()) {
+                output.write(decrypted, index * chunkSize + decrypted.position());
+            }
+        }
+    }
+
+    private static void await(final Future<Void> worker) throws IOException {
+        try {
+            worker.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decrypting the archive");
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Header of an encrypted archive
+     */
+    public static final class Header {
+
+        private final byte[] bytes;
+
+        private Header(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        public int getChunkSize() {
+            return ByteBuffer.wrap(bytes, MAGIC.length, 4).getInt();
+        }
+
+        /**
+         * @return Position of a sealed chunk in the encrypted archive
+         */
+        public long chunkPosition(final long index) {
+            return HEADER_SIZE + index * (getChunkSize() + (long) TAG_SIZE);
+        }
+
+        /**
+         * @return Bytes of the header, as they start the encrypted archive
+         */
+        public ByteBuffer toBuffer() {
+            return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+
+        private byte[] nonce(final long index) {
+            final byte[] nonce = Arrays.copyOfRange(bytes, MAGIC.length + 4, MAGIC.length + 4 + NONCE_SIZE);
+
+            for (int i = 0; i < Long.BYTES; i++) {
+                nonce[NONCE_SIZE - 1 - i] ^= (byte) (index >>> (8 * i));
+            }
+
+            return nonce;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package nl.ymor.archive;
+
+/**
+ * Turns the URL of an instance into a name that the stores can use as a single file or directory name. A Confluence
+ * URL such as {@code blackdog.atlassian.net/wiki} and a URL with a scheme and port would otherwise add directories.
+ */
+public class InstanceFileName {
+
+    private InstanceFileName() {
+    }
+
+    /**
+     * @param instance URL of the instance, with or without scheme and path
+     * @return Name with every character other than letters, digits, dots and dashes replaced by an underscore
+     */
+    public static String of(final String instance) {
+        return instance.replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+}
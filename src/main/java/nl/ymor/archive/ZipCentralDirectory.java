@@ -0,0 +1,243 @@
+package nl.ymor.archive;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * Central directory of a ZIP archive, read from the end of the file without reading the entries themselves.
+ * <p>
+ * The central directory is the last part of a ZIP archive that is written, so an archive that was cut off during the
+ * download has none, and one that was damaged in the middle has one whose entries point past their data. Reading
+ * it therefore catches a broken archive right after the download, long before a restore would fail on it. Archives
+ * larger than 4 GB use the ZIP64 records, which are supported.
+ */
+public class ZipCentralDirectory {
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ENTRY_SIGNATURE = 0x02014b50;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int ENTRY_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private final long offset;
+    private final List<ZipCentralDirectoryEntry> entries;
+
+    private ZipCentralDirectory(final long offset, final List<ZipCentralDirectoryEntry> entries) {
+        this.offset = offset;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Read and check the central directory of an archive
+     *
+     * @param channel Archive file
+     * @return Central directory
+     * @throws ZipException if the archive has no valid central directory, or one of its entries lies outside the
+     *                      archive
+     */
+    public static ZipCentralDirectory read(final FileChannel channel) throws IOException {
+        return read(channel, false);
+    }
+
+    /**
+     * Read and check the central directory of an archive, mapped into memory rather than copied to the heap. The
+     * pages of a large directory are then shared with other processes and the page cache, which lets a command that
+     * looks up a few entries start without reading the whole directory first.
+     *
+     * @param channel Archive file, which cannot be deleted on some platforms while the mapping is in use
+     * @return Central directory
+     * @throws ZipException if the archive has no valid central directory, or one of its entries lies outside the
+     *                      archive
+     */
+    public static ZipCentralDirectory map(final FileChannel channel) throws IOException {
+        return read(channel, true);
+    }
+
+    private static ZipCentralDirectory read(final FileChannel channel, final boolean mapped) throws IOException {
+        final long fileSize = channel.size();
+        final long endPosition = findEnd(channel, fileSize);
+        final ByteBuffer end = readFully(channel, endPosition, END_SIZE);
+
+        long entryCount = Short.toUnsignedInt(end.getShort(10));
+        long directorySize = Integer.toUnsignedLong(end.getInt(12));
+        long directoryOffset = Integer.toUnsignedLong(end.getInt(16));
+        long directoryEnd = endPosition;
+
+        if (entryCount == ZIP64_MAGIC_COUNT || directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC) {
+            if (endPosition < ZIP64_LOCATOR_SIZE) throw new ZipException("ZIP64 end of central directory is missing");
+
+            final ByteBuffer locator = readFully(channel, endPosition - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+
+            if (locator.getInt(0) != ZIP64_LOCATOR_SIGNATURE) {
+                throw new ZipException("ZIP64 end of central directory locator is missing");
+            }
+
+            final long zip64EndPosition = locator.getLong(8);
+
+            if (zip64EndPosition < 0 || zip64EndPosition + ZIP64_END_SIZE > endPosition - ZIP64_LOCATOR_SIZE) {
+                throw new ZipException("ZIP64 end of central directory lies outside the archive");
+            }
+
+            final ByteBuffer zip64End = readFully(channel, zip64EndPosition, ZIP64_END_SIZE);
+
+            if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                throw new ZipException("ZIP64 end of central directory is invalid");
+            }
+
+            entryCount = zip64End.getLong(32);
+            directorySize = zip64End.getLong(40);
+            directoryOffset = zip64End.getLong(48);
+            directoryEnd = zip64EndPosition;
+        }
+
+        if (directoryOffset < 0 || directorySize < 0 || directoryOffset + directorySize > directoryEnd
+                || directorySize > Integer.MAX_VALUE) {
+            throw new ZipException(String.format("Central directory at %d (%d bytes) lies outside the archive",
+                    directoryOffset, directorySize));
+        }
+
+        final ByteBuffer directory = mapped
+                ? channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, directorySize)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                : readFully(channel, directoryOffset, (int) directorySize);
+        final List<ZipCentralDirectoryEntry> entries = new ArrayList<>();
+
+        while (directory.remaining() >= ENTRY_SIZE) {
+            entries.add(readEntry(directory, directoryOffset));
+        }
+
+        if (entries.size() != entryCount) {
+            throw new ZipException(String.format("Central directory holds %d entries instead of %d",
+                    entries.size(), entryCount));
+        }
+
+        return new ZipCentralDirectory(directoryOffset, entries);
+    }
+
+    /**
+     * @return Position of the central directory in the archive, which is also where the entry data ends
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return Entries in the order of the central directory
+     */
+    public List<ZipCentralDirectoryEntry> getEntries() {
+        return entries;
+    }
+
+    private static ZipCentralDirectoryEntry readEntry(final ByteBuffer directory, final long directoryOffset)
+            throws ZipException {
+        final int start = directory.position();
+
+        if (directory.getInt(start) != ENTRY_SIGNATURE) {
+            throw new ZipException("Invalid central directory entry at " + (directoryOffset + start));
+        }
+
+        final int method = Short.toUnsignedInt(directory.getShort(start + 10));
+        final long crc = Integer.toUnsignedLong(directory.getInt(start + 16));
+        long compressedSize = Integer.toUnsignedLong(directory.getInt(start + 20));
+        long size = Integer.toUnsignedLong(directory.getInt(start + 24));
+        final int nameLength = Short.toUnsignedInt(directory.getShort(start + 28));
+        final int extraLength = Short.toUnsignedInt(directory.getShort(start + 30));
+        final int commentLength = Short.toUnsignedInt(directory.getShort(start + 32));
+        long localHeaderOffset = Integer.toUnsignedLong(directory.getInt(start + 42));
+        final int end = start + ENTRY_SIZE + nameLength + extraLength + commentLength;
+
+        if (end > directory.limit()) {
+            throw new ZipException("Central directory entry at " + (directoryOffset + start) + " is cut off");
+        }
+
+        final byte[] name = new byte[nameLength];
+        directory.position(start + ENTRY_SIZE);
+        directory.get(name);
+
+        // Sizes and offsets that do not fit in 32 bits are moved to the ZIP64 extra field, in this order
+        int extra = start + ENTRY_SIZE + nameLength;
+        final int extraEnd = extra + extraLength;
+
+        while (extra + 4 <= extraEnd) {
+            final int id = Short.toUnsignedInt(directory.getShort(extra));
+            final int length = Short.toUnsignedInt(directory.getShort(extra + 2));
+            int field = extra + 4;
+
+            if (id == ZIP64_EXTRA_ID) {
+                if (size == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                    size = directory.getLong(field);
+                    field += 8;
+                }
+                if (compressedSize == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                    compressedSize = directory.getLong(field);
+                    field += 8;
+                }
+                if (localHeaderOffset == ZIP64_MAGIC && field + 8 <= extraEnd) {
+                    localHeaderOffset = directory.getLong(field);
+                }
+            }
+
+            extra += 4 + length;
+        }
+
+        directory.position(end);
+
+        final String entryName = new String(name, StandardCharsets.UTF_8);
+
+        // The local header holds at least the fixed fields and the name before the data
+        if (localHeaderOffset < 0 || compressedSize < 0
+                || localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + compressedSize > directoryOffset) {
+            throw new ZipException(String.format("Entry %s at %d (%d bytes) lies outside the archive",
+                    entryName, localHeaderOffset, compressedSize));
+        }
+
+        return new ZipCentralDirectoryEntry(entryName, method, crc, compressedSize, size, localHeaderOffset);
+    }
+
+    private static long findEnd(final FileChannel channel, final long fileSize) throws IOException {
+        if (fileSize < END_SIZE) throw new ZipException("Archive is too small to be a ZIP archive");
+
+        // The end record is followed by a comment of at most 64 KB, so search backwards from the end
+        final int searchSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT_SIZE);
+        final long searchStart = fileSize - searchSize;
+        final ByteBuffer tail = readFully(channel, searchStart, searchSize);
+
+        for (int position = searchSize - END_SIZE; position >= 0; position--) {
+            if (tail.getInt(position) == END_SIGNATURE
+                    && position + END_SIZE + Short.toUnsignedInt(tail.getShort(position + 20)) == searchSize) {
+                return searchStart + position;
+            }
+        }
+
+        throw new ZipException("End of central directory not found, the archive is incomplete");
+    }
+
+    private static ByteBuffer readFully(final FileChannel channel, final long position, final int length)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("Archive ended at byte " + (position + buffer.position()));
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,54 @@
+package nl.ymor.archive;
+
+/**
+ * One entry of a {@link ZipCentralDirectory}
+ */
+public class ZipCentralDirectoryEntry {
+
+    private final String name;
+    private final int method;
+    private final long crc;
+    private final long compressedSize;
+    private final long size;
+    private final long localHeaderOffset;
+
+    ZipCentralDirectoryEntry(final String name, final int method, final long crc, final long compressedSize,
+                             final long size, final long localHeaderOffset) {
+        this.name = name;
+        this.method = method;
+        this.crc = crc;
+        this.compressedSize = compressedSize;
+        this.size = size;
+        this.localHeaderOffset = localHeaderOffset;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Compression method, {@link java.util.zip.ZipEntry#STORED} or {@link java.util.zip.ZipEntry#DEFLATED}
+     */
+    public int getMethod() {
+        return method;
+    }
+
+    public long getCrc() {
+        return crc;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return Position of the local header of the entry in the archive
+     */
+    public long getLocalHeaderOffset() {
+        return localHeaderOffset;
+    }
+}
@@ -0,0 +1,251 @@
+package nl.ymor.archive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * ZIP archive that is read front to back as it streams by. The bytes read are counted, and the inflater gives back
+ * what it did not use, so the end of deflated data is found without knowing its size in advance.
+ */
+final class ZipInput {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream source;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private long offset;
+
+    ZipInput(final InputStream source) {
+        this.source = source;
+    }
+
+    /**
+     * @return Number of bytes read so far, which is the position in the archive
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    ByteBuffer read(final int length) throws IOException {
+        final byte[] bytes = new byte[length];
+
+        for (int done = 0; done < length; ) {
+            fill();
+
+            final int count = Math.min(length - done, limit - position);
+            System.arraycopy(buffer, position, bytes, done, count);
+            consume(count);
+            done += count;
+        }
+
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    int readInt() throws IOException {
+        return read(4).getInt();
+    }
+
+    void skip(final long length) throws IOException {
+        copy(length, null, null);
+    }
+
+    long copy(final long length, final OutputStream target) throws IOException {
+        return copy(length, target, null);
+    }
+
+    long copy(final long length, final OutputStream target, final CRC32 crc) throws IOException {
+        for (long done = 0; done < length; ) {
+            fill();
+
+            final int count = (int) Math.min(length - done, limit - position);
+
+            if (crc != null) crc.update(buffer, position, count);
+            if (target != null) target.write(buffer, position, count);
+            consume(count);
+            done += count;
+        }
+
+        return length;
+    }
+
+    /**
+     * Inflate the deflated data of an entry up to its end
+     *
+     * @param raw          Stream to copy the deflated data to, may be null
+     * @param uncompressed Stream to write the inflated data to, may be null
+     * @return Number of inflated bytes
+     */
+    long inflate(final OutputStream raw, final OutputStream uncompressed, final CRC32 crc) throws IOException {
+        final Inflater inflater = new Inflater(true);
+        final byte[] inflated = new byte[BUFFER_SIZE];
+
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    fill();
+                    inflater.setInput(buffer, position, limit - position);
+                }
+
+                final int available = limit - position;
+                final int count = inflater.inflate(inflated);
+
+                if (count > 0) {
+                    crc.update(inflated, 0, count);
+                    if (uncompressed != null) uncompressed.write(inflated, 0, count);
+                }
+
+                if (inflater.needsInput() || inflater.finished()) {
+                    final int consumed = available - inflater.getRemaining();
+
+                    if (raw != null) raw.write(buffer, position, consumed);
+                    consume(consumed);
+                } else if (count == 0 && inflater.needsDictionary()) {
+                    throw new ZipException("Deflated data needs a preset dictionary");
+                }
+            }
+
+            return inflater.getBytesWritten();
+        } catch (final DataFormatException e) {
+            throw new ZipException("Invalid deflated data: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return The inflated data of an entry, for a reader that pulls the data rather than having it pushed, such as
+     * an XML parser. The stream has to be read up to its end before the archive is read any further.
+     */
+    Inflated inflated() {
+        return new Inflated();
+    }
+
+    /**
+     * Inflated data of an entry, which knows the sizes of the entry once it is read up to its end
+     */
+    final class Inflated extends InputStream {
+
+        private final Inflater inflater = new Inflater(true);
+        private int available;
+        private long compressedSize = -1;
+        private long size = -1;
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (length == 0) return 0;
+
+            try {
+                while (!inflater.finished()) {
+                    if (inflater.needsInput()) {
+                        fill();
+                        available = limit - position;
+                        inflater.setInput(buffer, position, available);
+                    }
+
+                    final int count = inflater.inflate(bytes, offset, length);
+
+                    if (inflater.needsInput() || inflater.finished()) {
+                        consume(available - inflater.getRemaining());
+                    } else if (count == 0 && inflater.needsDictionary()) {
+                        throw new ZipException("Deflated data needs a preset dictionary");
+                    }
+
+                    if (count > 0) return count;
+                }
+
+                return -1;
+            } catch (final DataFormatException e) {
+                throw new ZipException("Invalid deflated data: " + e.getMessage());
+            }
+        }
+
+        /**
+         * @return Size of the deflated data, -1 until the stream is closed
+         */
+        long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * @return Size of the inflated data, -1 until the stream is closed
+         */
+        long getSize() {
+            return size;
+        }
+
+        @Override
+        public void close() {
+            if (size < 0) {
+                compressedSize = inflater.getBytesRead();
+                size = inflater.getBytesWritten();
+            }
+
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return The next bytes of the archive, for a reader that pulls the data of a stored entry
+     */
+    InputStream stored(final long size) {
+        return new InputStream() {
+
+            private long remaining = size;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+                if (remaining == 0) return -1;
+                if (length == 0) return 0;
+
+                fill();
+
+                final int count = (int) Math.min(Math.min(length, remaining), limit - position);
+                System.arraycopy(buffer, position, bytes, offset, count);
+                consume(count);
+                remaining -= count;
+
+                return count;
+            }
+        };
+    }
+
+    /**
+     * Make sure the buffer holds at least one byte
+     */
+    private void fill() throws IOException {
+        if (position < limit) return;
+
+        final int count = source.read(buffer);
+
+        if (count < 0) throw new ZipException("Archive ended at byte " + offset);
+
+        position = 0;
+        limit = count;
+    }
+
+    private void consume(final int count) {
+        position += count;
+        offset += count;
+    }
+}
@@ -0,0 +1,534 @@
+package nl.ymor.archive;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Re-encodes the entries of a ZIP archive with Zstandard while the archive streams by.
+ * <p>
+ * Jira deflates the XML of a backup, which Zstandard compresses a lot better. Every entry that is stored or deflated
+ * is therefore inflated and compressed again with Zstandard, as ZIP compression method 93, and written with a data
+ * descriptor, since its size is only known afterwards. Entries that hold compressed data already, such as images,
+ * PDF files or nested archives, are copied as they are: they are recognized by their file extension, or by deflate
+ * having saved less than a tenth of their size. The archive is read and written in a single pass, and the central
+ * directory is written anew at the end. Inflating an entry checks its CRC, so a damaged archive fails here.
+ * <p>
+ * Restoring the archive needs a ZIP reader that supports Zstandard (method 93).
+ */
+public class ZipReencoder {
+
+    public static final int ZSTD = 93;
+
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int DIGITAL_SIGNATURE = 0x05054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE_AFTER_SIGNATURE = 18;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int FLAG_ENCRYPTED = 0x0001;
+    private static final int FLAG_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    // Version 6.3 of the ZIP specification introduced Zstandard, 4.5 introduced ZIP64
+    private static final int VERSION_ZSTD = 63;
+    private static final int VERSION_ZIP64 = 45;
+    private static final double MIN_DEFLATE_SAVING = 0.1;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "7z", "avi", "bz2", "docx", "gif", "gz", "jar", "jpeg", "jpg", "mkv", "mov", "mp3", "mp4", "odp", "ods",
+            "odt", "pdf", "png", "pptx", "rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst"));
+
+    private final int level;
+    private final int workers;
+
+    /**
+     * @param level   Zstandard compression level, 1 (fastest) to 19 (smallest)
+     * @param workers Number of threads that compress each entry, 0 to compress on the calling thread
+     */
+    public ZipReencoder(final int level, final int workers) {
+        this.level = level;
+        this.workers = workers;
+    }
+
+    /**
+     * Re-encode an archive
+     *
+     * @param source Archive to read until its end
+     * @param target Stream to write the re-encoded archive to, which is flushed but not closed
+     * @return Summary of the re-encoded archive
+     * @throws ZipException if the archive is damaged or incomplete
+     */
+    public Summary reencode(final InputStream source, final OutputStream target) throws IOException {
+        final ZipInput input = new ZipInput(source);
+        final Output output = new Output(target);
+        final List<Entry> entries = new ArrayList<>();
+        final Map<Long, Entry> entriesBySourceOffset = new HashMap<>();
+        byte[] comment = new byte[0];
+        boolean ended = false;
+
+        while (!ended) {
+            final long offset = input.getOffset();
+            final int signature = input.readInt();
+
+            switch (signature) {
+                case LOCAL_SIGNATURE:
+                    final Entry entry = copyEntry(input, output);
+                    entries.add(entry);
+                    entriesBySourceOffset.put(offset, entry);
+                    break;
+                case CENTRAL_SIGNATURE:
+                    readCentralEntry(input, entriesBySourceOffset);
+                    break;
+                case DIGITAL_SIGNATURE:
+                    input.skip(Short.toUnsignedInt(input.read(2).getShort()));
+                    break;
+                case ZIP64_END_SIGNATURE:
+                    input.skip(input.read(8).getLong());
+                    break;
+                case ZIP64_LOCATOR_SIGNATURE:
+                    input.skip(16);
+                    break;
+                case END_SIGNATURE:
+                    final ByteBuffer end = input.read(END_SIZE_AFTER_SIGNATURE);
+                    comment = input.read(Short.toUnsignedInt(end.getShort(16))).array();
+                    ended = true;
+                    break;
+                default:
+                    throw new ZipException(String.format("Unexpected signature %08x at %d", signature, offset));
+            }
+        }
+
+        writeCentralDirectory(output, entries, comment);
+        output.flush();
+
+        return new Summary(entries.size(), (int) entries.stream().filter(entry -> entry.reencoded).count(),
+                input.getOffset(), output.offset);
+    }
+
+    private Entry copyEntry(final ZipInput input, final Output output) throws IOException {
+        final ByteBuffer header = input.read(LOCAL_HEADER_SIZE - 4);
+        final int versionNeeded = Short.toUnsignedInt(header.getShort(0));
+        final int flags = Short.toUnsignedInt(header.getShort(2));
+        final int method = Short.toUnsignedInt(header.getShort(4));
+        final int time = header.getInt(6);
+        final Entry entry = new Entry(input.read(Short.toUnsignedInt(header.getShort(22))).array(), time);
+        final byte[] extra = input.read(Short.toUnsignedInt(header.getShort(24))).array();
+        final boolean zip64 = findZip64(extra) >= 0;
+
+        entry.crc = Integer.toUnsignedLong(header.getInt(10));
+        entry.compressedSize = Integer.toUnsignedLong(header.getInt(14));
+        entry.size = Integer.toUnsignedLong(header.getInt(18));
+        entry.localHeaderOffset = output.offset;
+
+        if (zip64) {
+            final ByteBuffer zip64Extra = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+            zip64Extra.position(findZip64(extra) + 4);
+
+            // The local ZIP64 field holds both sizes, even where the header does not point to it
+            if (zip64Extra.remaining() >= 16) {
+                entry.size = zip64Extra.getLong();
+                entry.compressedSize = zip64Extra.getLong();
+            }
+        }
+
+        final boolean descriptor = (flags & FLAG_DESCRIPTOR) != 0;
+
+        // Only deflated data tells where it ends, the size of other data has to be known in advance
+        if (descriptor && method != ZipEntry.DEFLATED) {
+            throw new ZipException("Entry with a data descriptor cannot be streamed: " + entry.getName());
+        }
+
+        if ((flags & FLAG_ENCRYPTED) != 0 || !isCompressible(entry, method, descriptor)) {
+            entry.versionNeeded = versionNeeded;
+            entry.flags = flags;
+            entry.method = method;
+            entry.extra = extra;
+
+            output.writeInt(LOCAL_SIGNATURE);
+            output.write(header.array());
+            output.write(entry.name);
+            output.write(extra);
+
+            if (descriptor) {
+                input.inflate(output, null, new CRC32());
+                readDescriptor(input, entry, zip64, output);
+            } else {
+                input.copy(entry.compressedSize, output);
+            }
+
+            return entry;
+        }
+
+        entry.versionNeeded = VERSION_ZSTD;
+        entry.flags = (flags & FLAG_UTF8) | FLAG_DESCRIPTOR;
+        entry.method = ZSTD;
+        entry.extra = extra;
+        entry.reencoded = true;
+
+        // Sizes follow in a ZIP64 data descriptor, as the entry may grow beyond 4 GB
+        final ByteBuffer localHeader = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        localHeader.putInt(LOCAL_SIGNATURE)
+                .putShort((short) entry.versionNeeded)
+                .putShort((short) entry.flags)
+                .putShort((short) ZSTD)
+                .putInt(time)
+                .putInt(0)
+                .putInt((int) ZIP64_MAGIC)
+                .putInt((int) ZIP64_MAGIC)
+                .putShort((short) entry.name.length)
+                .putShort((short) (withoutZip64(entry.extra).length + 20));
+        output.write(localHeader.array());
+        output.write(entry.name);
+        output.write(ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) ZIP64_EXTRA_ID).putShort((short) 16).putLong(0).putLong(0).array());
+        output.write(withoutZip64(entry.extra));
+
+        final long dataOffset = output.offset;
+        final CRC32 crc = new CRC32();
+        final long size;
+
+        try (ZstdOutputStream compressed = new ZstdOutputStream(output.unclosable(), level)) {
+            if (workers > 0) compressed.setWorkers(workers);
+
+            if (method == ZipEntry.STORED) {
+                size = input.copy(entry.compressedSize, compressed, crc);
+            } else {
+                size = input.inflate(null, compressed, crc);
+            }
+        }
+
+        if (descriptor) readDescriptor(input, entry, zip64, null);
+
+        if (crc.getValue() != entry.crc || size != entry.size) {
+            throw new ZipException(String.format("Entry %s is damaged: CRC %08x and size %d, expected %08x and %d",
+                    entry.getName(), crc.getValue(), size, entry.crc, entry.size));
+        }
+
+        entry.compressedSize = output.offset - dataOffset;
+
+        output.write(ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(DESCRIPTOR_SIGNATURE)
+                .putInt((int) entry.crc)
+                .putLong(entry.compressedSize)
+                .putLong(entry.size)
+                .array());
+
+        return entry;
+    }
+
+    private static boolean isCompressible(final Entry entry, final int method, final boolean descriptor) {
+        final String name = entry.getName();
+        final int dot = name.lastIndexOf('.');
+
+        if (name.endsWith("/")) return false;
+        if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) return false;
+        if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) return false;
+
+        // Deflate did not get far with it, so Zstandard will not either
+        return method == ZipEntry.STORED || descriptor || entry.size == 0
+                || entry.compressedSize < entry.size * (1 - MIN_DEFLATE_SAVING);
+    }
+
+    private static void readDescriptor(final ZipInput input, final Entry entry, final boolean zip64,
+                                       final Output copy) throws IOException {
+        int crc = input.readInt();
+        final boolean signature = crc == DESCRIPTOR_SIGNATURE;
+
+        if (signature) crc = input.readInt();
+
+        final ByteBuffer sizes = input.read(zip64 ? 16 : 8);
+
+        entry.crc = Integer.toUnsignedLong(crc);
+        entry.compressedSize = zip64 ? sizes.getLong(0) : Integer.toUnsignedLong(sizes.getInt(0));
+        entry.size = zip64 ? sizes.getLong(8) : Integer.toUnsignedLong(sizes.getInt(4));
+
+        if (copy != null) {
+            if (signature) copy.writeInt(DESCRIPTOR_SIGNATURE);
+            copy.writeInt(crc);
+            copy.write(sizes.array());
+        }
+    }
+
+    /**
+     * Take the attributes and comment of an entry from the central directory of the source archive
+     */
+    private static void readCentralEntry(final ZipInput input, final Map<Long, Entry> entriesBySourceOffset)
+            throws IOException {
+        final ByteBuffer header = input.read(CENTRAL_HEADER_SIZE - 4);
+        final byte[] name = input.read(Short.toUnsignedInt(header.getShort(24))).array();
+        final byte[] extra = input.read(Short.toUnsignedInt(header.getShort(26))).array();
+        final byte[] comment = input.read(Short.toUnsignedInt(header.getShort(28))).array();
+        long localHeaderOffset = Integer.toUnsignedLong(header.getInt(38));
+
+        if (localHeaderOffset == ZIP64_MAGIC && findZip64(extra) >= 0) {
+            // The offset is the last of the ZIP64 fields, after the sizes that did not fit either
+            final ByteBuffer zip64Extra = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+            final int start = findZip64(extra);
+            localHeaderOffset = zip64Extra.getLong(start + 4 + Short.toUnsignedInt(zip64Extra.getShort(start + 2)) - 8);
+        }
+
+        final Entry entry = entriesBySourceOffset.get(localHeaderOffset);
+
+        if (entry == null || !Arrays.equals(entry.name, name)) {
+            throw new ZipException("Central directory does not match the entries: " +
+                    new String(name, StandardCharsets.UTF_8));
+        }
+
+        entry.versionMadeBy = Short.toUnsignedInt(header.getShort(0));
+        entry.internalAttributes = Short.toUnsignedInt(header.getShort(32));
+        entry.externalAttributes = header.getInt(34);
+        entry.comment = comment;
+    }
+
+    private static void writeCentralDirectory(final Output output, final List<Entry> entries, final byte[] comment)
+            throws IOException {
+        final long directoryOffset = output.offset;
+
+        for (final Entry entry : entries) {
+            // The sizes of the local ZIP64 field are moved to a field of the central directory if needed
+            final byte[] extra = withoutZip64(entry.extra);
+            final boolean zip64Size = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+            final boolean zip64Offset = entry.localHeaderOffset >= ZIP64_MAGIC;
+            final ByteBuffer zip64 = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+
+            if (zip64Size) zip64.putLong(entry.size).putLong(entry.compressedSize);
+            if (zip64Offset) zip64.putLong(entry.localHeaderOffset);
+
+            final int zip64Length = zip64.position() == 0 ? 0 : zip64.position() + 4;
+            final int versionNeeded = zip64Length > 0 ? Math.max(entry.versionNeeded, VERSION_ZIP64)
+                    : entry.versionNeeded;
+            final ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            header.putInt(CENTRAL_SIGNATURE)
+                    .putShort((short) ((entry.versionMadeBy & 0xFF00) | Math.max(entry.versionMadeBy & 0xFF,
+                            versionNeeded)))
+                    .putShort((short) versionNeeded)
+                    .putShort((short) entry.flags)
+                    .putShort((short) entry.method)
+                    .putInt(entry.time)
+                    .putInt((int) entry.crc)
+                    .putInt((int) (zip64Size ? ZIP64_MAGIC : entry.compressedSize))
+                    .putInt((int) (zip64Size ? ZIP64_MAGIC : entry.size))
+                    .putShort((short) entry.name.length)
+                    .putShort((short) (zip64Length + extra.length))
+                    .putShort((short) entry.comment.length)
+                    .putShort((short) 0)
+                    .putShort((short) entry.internalAttributes)
+                    .putInt(entry.externalAttributes)
+                    .putInt((int) (zip64Offset ? ZIP64_MAGIC : entry.localHeaderOffset));
+            output.write(header.array());
+            output.write(entry.name);
+
+            if (zip64Length > 0) {
+                output.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN)
+                        .putShort((short) ZIP64_EXTRA_ID).putShort((short) (zip64Length - 4)).array());
+                output.write(zip64.array(), 0, zip64Length - 4);
+            }
+
+            output.write(extra);
+            output.write(entry.comment);
+        }
+
+        final long directorySize = output.offset - directoryOffset;
+        final boolean zip64End = entries.size() >= ZIP64_MAGIC_COUNT || directorySize >= ZIP64_MAGIC
+                || directoryOffset >= ZIP64_MAGIC;
+
+        if (zip64End) {
+            final long zip64EndOffset = output.offset;
+
+            output.write(ByteBuffer.allocate(56 + 20).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(ZIP64_END_SIGNATURE)
+                    .putLong(44)
+                    .putShort((short) VERSION_ZSTD)
+                    .putShort((short) VERSION_ZIP64)
+                    .putInt(0)
+                    .putInt(0)
+                    .putLong(entries.size())
+                    .putLong(entries.size())
+                    .putLong(directorySize)
+                    .putLong(directoryOffset)
+                    .putInt(ZIP64_LOCATOR_SIGNATURE)
+                    .putInt(0)
+                    .putLong(zip64EndOffset)
+                    .putInt(1)
+                    .array());
+        }
+
+        output.write(ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(END_SIGNATURE)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) Math.min(entries.size(), ZIP64_MAGIC_COUNT))
+                .putShort((short) Math.min(entries.size(), ZIP64_MAGIC_COUNT))
+                .putInt((int) Math.min(directorySize, ZIP64_MAGIC))
+                .putInt((int) Math.min(directoryOffset, ZIP64_MAGIC))
+                .putShort((short) comment.length)
+                .array());
+        output.write(comment);
+    }
+
+    /**
+     * @return Position of the ZIP64 field in the extra fields, -1 if there is none
+     */
+    private static int findZip64(final byte[] extra) {
+        final ByteBuffer fields = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int field = 0; field + 4 <= extra.length; field += 4 + Short.toUnsignedInt(fields.getShort(field + 2))) {
+            if (Short.toUnsignedInt(fields.getShort(field)) == ZIP64_EXTRA_ID) return field;
+        }
+
+        return -1;
+    }
+
+    private static byte[] withoutZip64(final byte[] extra) {
+        final int field = findZip64(extra);
+
+        if (field < 0) return extra;
+
+        final int length = 4 + Short.toUnsignedInt(ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN)
+                .getShort(field + 2));
+        final byte[] result = new byte[extra.length - Math.min(length, extra.length - field)];
+
+        System.arraycopy(extra, 0, result, 0, field);
+        System.arraycopy(extra, Math.min(field + length, extra.length), result, field, result.length - field);
+
+        return result;
+    }
+
+    /**
+     * Outcome of a re-encoding, for the log
+     */
+    public static final class Summary {
+
+        private final int entries;
+        private final int reencodedEntries;
+        private final long sourceSize;
+        private final long size;
+
+        Summary(final int entries, final int reencodedEntries, final long sourceSize, final long size) {
+            this.entries = entries;
+            this.reencodedEntries = reencodedEntries;
+            this.sourceSize = sourceSize;
+            this.size = size;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        public int getReencodedEntries() {
+            return reencodedEntries;
+        }
+
+        public long getSourceSize() {
+            return sourceSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private static final class Entry {
+
+        private final byte[] name;
+        private final int time;
+        private int versionMadeBy;
+        private int versionNeeded;
+        private int flags;
+        private int method;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private long localHeaderOffset;
+        private byte[] extra;
+        private byte[] comment = new byte[0];
+        private int internalAttributes;
+        private int externalAttributes;
+        private boolean reencoded;
+
+        private Entry(final byte[] name, final int time) {
+            this.name = name;
+            this.time = time;
+        }
+
+        private String getName() {
+            return new String(name, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Re-encoded archive that counts the bytes written
+     */
+    private static final class Output extends OutputStream {
+
+        private final OutputStream target;
+        private long offset;
+
+        private Output(final OutputStream target) {
+            this.target = new BufferedOutputStream(target, BUFFER_SIZE);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            target.write(b);
+            offset++;
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            target.write(bytes, offset, length);
+            this.offset += length;
+        }
+
+        private void writeInt(final int value) throws IOException {
+            write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array());
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        /**
+         * @return This stream, to hand to a stream that closes its target when it is closed
+         */
+        private OutputStream unclosable() {
+            return new OutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    Output.this.write(b);
+                }
+
+                @Override
+                public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+                    Output.this.write(bytes, offset, length);
+                }
+            };
+        }
+    }
+}
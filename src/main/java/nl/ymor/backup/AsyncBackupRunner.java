@@ -0,0 +1,141 @@
+package nl.ymor.backup;
+
+import com.mashape.unirest.http.exceptions.UnirestException;
+import nl.ymor.model.BackupResult;
+import nl.ymor.service.BackupService;
+import nl.ymor.service.ProgressPoll;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs backups as chains of non-blocking stages: request the backup, poll its progress and download it.
+ * <p>
+ * No thread waits between progress checks: the next check is scheduled on a small scheduler and runs on the I/O
+ * executor when it is due. The I/O executor runs the HTTP calls and the downloads. On JDKs with virtual threads
+ * it can create a virtual thread per task, otherwise it is a fixed pool. One process can therefore drive many
+ * backups that spend most of their time waiting for the export.
+ */
+public class AsyncBackupRunner implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncBackupRunner.class);
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService ioExecutor;
+
+    /**
+     * @param ioThreads         Size of the I/O pool if virtual threads are not used
+     * @param useVirtualThreads true to run I/O on virtual threads if the JDK offers them
+     */
+    public AsyncBackupRunner(final int ioThreads, final boolean useVirtualThreads) {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("backup-scheduler-"));
+        this.ioExecutor = createIoExecutor(ioThreads, useVirtualThreads);
+    }
+
+    /**
+     * Start the backup of one instance
+     *
+     * @param backupService Service of the instance
+     * @return Future that completes with the result of the backup, never exceptionally
+     */
+    public CompletableFuture<BackupResult> backup(final BackupService backupService) {
+        final String instanceUrl = BackupService.getProductUrl(backupService.getArguments());
+        final Instant startTime = Instant.now();
+        final BackupJob backupJob = new BackupJob(backupService);
+
+        return CompletableFuture
+                .supplyAsync(() -> {
+                    try {
+                        return backupService.startProgressPoll(backupJob.reattachOrRequestTaskID());
+                    } catch (final UnirestException | BackupException e) {
+                        throw new CompletionException(e);
+                    }
+                }, ioExecutor)
+                .thenCompose(progressPoll -> poll(backupService, progressPoll))
+                .thenApplyAsync(backupFileUrl -> {
+                    try {
+                        backupService.downloadBackupFile(backupFileUrl.orElseThrow(
+                                () -> new CompletionException(new BackupException("Backup file is not ready"))));
+                    } catch (final UnirestException | IOException e) {
+                        throw new CompletionException(e);
+                    }
+
+                    return BackupResult.succeeded(instanceUrl, Duration.between(startTime, Instant.now()));
+                }, ioExecutor)
+                .exceptionally(e -> backupJob.fail(
+                        e instanceof CompletionException && e.getCause() != null ? e.getCause() : e, startTime));
+    }
+
+    private CompletableFuture<Optional<String>> poll(final BackupService backupService,
+                                                     final ProgressPoll progressPoll) {
+        final CompletableFuture<Optional<String>> backupFileUrl = new CompletableFuture<>();
+
+        scheduleCheck(backupService, progressPoll, backupFileUrl, 0);
+
+        return backupFileUrl;
+    }
+
+    private void scheduleCheck(final BackupService backupService, final ProgressPoll progressPoll,
+                               final CompletableFuture<Optional<String>> backupFileUrl, final long delayMillis) {
+        // The scheduler only hands the check over, the request itself runs on the I/O executor
+        scheduler.schedule(() -> ioExecutor.execute(() -> {
+            try {
+                backupService.checkProgress(progressPoll);
+
+                if (progressPoll.isFinished()) {
+                    backupFileUrl.complete(progressPoll.getBackupFileUrl());
+                } else {
+                    scheduleCheck(backupService, progressPoll, backupFileUrl, progressPoll.getPauseMillis());
+                }
+            } catch (final UnirestException | RuntimeException e) {
+                backupFileUrl.completeExceptionally(e);
+            }
+        }), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        ioExecutor.shutdownNow();
+    }
+
+    private static ExecutorService createIoExecutor(final int ioThreads, final boolean useVirtualThreads) {
+        if (useVirtualThreads) {
+            try {
+                // Executors.newVirtualThreadPerTaskExecutor() is only available from JDK 21 on
+                final ExecutorService executor = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+
+                LOG.info("Running backup I/O on virtual threads");
+
+                return executor;
+            } catch (final ReflectiveOperationException e) {
+                LOG.info("Virtual threads are not available, running backup I/O on {} threads", ioThreads);
+            }
+        }
+
+        return Executors.newFixedThreadPool(ioThreads, daemonThreads("backup-io-"));
+    }
+
+    static ThreadFactory daemonThreads(final String namePrefix) {
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        return runnable -> {
+            final Thread thread = new Thread(runnable, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,189 @@
+package nl.ymor.backup;
+
+import nl.ymor.metrics.PrometheusExporter;
+import nl.ymor.model.Arguments;
+import nl.ymor.model.BackupResult;
+import nl.ymor.service.BackupService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.support.CronSequenceGenerator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps running and backs up the instances on the cron schedule of {@code daemon.schedule}, with the fields
+ * {@code second minute hour day-of-month month day-of-week}.
+ * <p>
+ * A resident process starts Spring only once, and keeps its HTTP clients, TLS sessions and compiled code from one run
+ * to the next. The backups of a run do not all start at the scheduled time: every instance has a fixed slot within
+ * {@code daemon.jitter.minutes} after it, derived from its URL, so the instances are spread over the window and every
+ * instance starts at the same time each run. At most {@code batch.concurrency} backups run at the same time, and a
+ * backup that is still running when its instance is due again is not started twice. The batch file is read again for
+ * every run, so instances can be added or removed without a restart.
+ */
+public class BackupDaemon implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BackupDaemon.class);
+
+    @Value("${daemon.schedule}")
+    protected String schedule;
+    @Value("${daemon.jitter.minutes}")
+    protected String jitterMinutes;
+    @Value("${batch.concurrency}")
+    protected String concurrency;
+
+    private BackupService backupService;
+    private BatchBackup batchBackup;
+    private PrometheusExporter prometheusExporter;
+    private final Map<String, BackupService> services = new ConcurrentHashMap<>();
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+    private volatile CountDownLatch stopped;
+
+    public BackupDaemon(final BackupService backupService, final BatchBackup batchBackup,
+                        final PrometheusExporter prometheusExporter) {
+        this.backupService = backupService;
+        this.batchBackup = batchBackup;
+        this.prometheusExporter = prometheusExporter;
+    }
+
+    /**
+     * Back up on the schedule until the daemon is closed
+     *
+     * @param arguments Program arguments, with either an instance or a batch file
+     * @throws IllegalArgumentException if the schedule is not a valid cron expression
+     */
+    public void run(final Arguments arguments) throws InterruptedException {
+        final CronSequenceGenerator cron = new CronSequenceGenerator(schedule.trim());
+        final ScheduledExecutorService scheduler =
+                Executors.newSingleThreadScheduledExecutor(AsyncBackupRunner.daemonThreads("backup-daemon-"));
+        final ExecutorService workers = Executors.newFixedThreadPool(Integer.parseInt(concurrency),
+                AsyncBackupRunner.daemonThreads("backup-worker-"));
+
+        stopped = new CountDownLatch(1);
+
+        try {
+            scheduleRun(cron, arguments, scheduler, workers);
+            stopped.await();
+        } finally {
+            // Interrupted downloads are picked up again by the next process, see JobStateStore
+            scheduler.shutdownNow();
+            workers.shutdownNow();
+            services.values().forEach(BackupService::close);
+            services.clear();
+        }
+    }
+
+    /**
+     * Stop backing up, which Spring also does when the process is terminated
+     */
+    @Override
+    public void close() {
+        final CountDownLatch latch = stopped;
+
+        if (latch != null) latch.countDown();
+    }
+
+    private void scheduleRun(final CronSequenceGenerator cron, final Arguments arguments,
+                             final ScheduledExecutorService scheduler, final ExecutorService workers) {
+        // Runs that were missed, e.g. while the host was suspended, are skipped rather than made up for
+        final Date next = cron.next(new Date());
+
+        LOG.info("Next backups start at {}, spread over {} minutes", next, jitterMinutes);
+
+        scheduler.schedule(() -> {
+            startRun(arguments, scheduler, workers);
+            scheduleRun(cron, arguments, scheduler, workers);
+        }, next.getTime() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void startRun(final Arguments arguments, final ScheduledExecutorService scheduler,
+                          final ExecutorService workers) {
+        final List<Arguments> instances;
+
+        try {
+            instances = arguments.getBatchFile() != null
+                    ? batchBackup.readInstances(Paths.get(arguments.getBatchFile()), arguments)
+                    : Collections.singletonList(arguments);
+        } catch (final IOException e) {
+            LOG.error("Cannot read batch file due to IOException, skipping this run: ", e);
+            return;
+        }
+
+        for (final Arguments instance : instances) {
+            scheduler.schedule(() -> workers.execute(() -> backUp(instance, arguments)),
+                    startOffsetMillis(BackupService.getProductUrl(instance)), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void backUp(final Arguments instance, final Arguments arguments) {
+        final String productUrl = BackupService.getProductUrl(instance);
+
+        if (!running.add(productUrl)) {
+            LOG.warn("Skipping backup of {}, its previous backup is still running", productUrl);
+            return;
+        }
+
+        try {
+            LOG.info("Starting backup of {}", productUrl);
+            Files.createDirectories(Paths.get(instance.getDirectory()));
+
+            final BackupResult result = new BackupJob(instance == arguments ? backupService : serviceFor(instance))
+                    .call();
+
+            LOG.info("{} {} in {}: {}", result.isSuccessful() ? "OK    " : "FAILED", productUrl,
+                    result.getDuration(), result.getMessage());
+        } catch (final IOException | RuntimeException e) {
+            LOG.error("Backup of {} failed: ", productUrl, e);
+        } finally {
+            running.remove(productUrl);
+            prometheusExporter.write();
+        }
+    }
+
+    /**
+     * @return Service of an instance of the batch file, which is kept for the next runs to reuse its connections.
+     * A service whose account changed in the batch file is closed and replaced.
+     */
+    private BackupService serviceFor(final Arguments instance) {
+        return services.compute(BackupService.getProductUrl(instance), (productUrl, service) -> {
+            if (service != null && sameAccount(service.getArguments(), instance)) return service;
+            if (service != null) service.close();
+
+            return backupService.forInstance(instance);
+        });
+    }
+
+    private static boolean sameAccount(final Arguments known, final Arguments instance) {
+        return Objects.equals(known.getUser(), instance.getUser())
+                && Objects.equals(known.getApiToken(), instance.getApiToken())
+                && Objects.equals(known.getDirectory(), instance.getDirectory());
+    }
+
+    /**
+     * @return Delay of the backup of an instance after the scheduled time, the same in every run
+     */
+    long startOffsetMillis(final String instanceUrl) {
+        final long window = TimeUnit.MINUTES.toMillis(Long.parseLong(jitterMinutes));
+
+        if (window <= 0) return 0;
+
+        // The hash of similar URLs differs in few bits, the generator spreads them over the whole window
+        return Math.floorMod(new SplittableRandom(String.valueOf(instanceUrl).hashCode()).nextLong(), window);
+    }
+}
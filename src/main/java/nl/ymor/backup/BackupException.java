@@ -0,0 +1,13 @@
+package nl.ymor.backup;
+
+/**
+ * Thrown when the Atlassian backup API answers, but not with what is needed to continue the backup
+ */
+class BackupException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    BackupException(final String message) {
+        super(message);
+    }
+}
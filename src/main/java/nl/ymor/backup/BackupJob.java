@@ -0,0 +1,125 @@
+package nl.ymor.backup;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import nl.ymor.model.BackupResult;
+import nl.ymor.product.Product;
+import nl.ymor.service.BackupService;
+import nl.ymor.service.TaskFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipException;
+
+/**
+ * Backs up one instance: request the backup, wait until it is ready and download it
+ */
+public class BackupJob implements Callable<BackupResult> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BackupJob.class);
+    private final BackupService backupService;
+
+    public BackupJob(final BackupService backupService) {
+        this.backupService = backupService;
+    }
+
+    @Override
+    public BackupResult call() {
+        final String instanceUrl = BackupService.getProductUrl(backupService.getArguments());
+        final Instant startTime = Instant.now();
+
+        try {
+            final String taskID = reattachOrRequestTaskID();
+            final Optional<String> backupFileUrl = backupService.getBackupFileUrl(taskID);
+
+            if (!backupFileUrl.isPresent()) throw new BackupException("Backup file is not ready");
+
+            backupService.downloadBackupFile(backupFileUrl.get());
+
+            return BackupResult.succeeded(instanceUrl, Duration.between(startTime, Instant.now()));
+        } catch (final BackupException | UnirestException | InterruptedException | IOException e) {
+            return fail(e, startTime);
+        }
+    }
+
+    /**
+     * Turn a failure into a result. The saved job is only forgotten if its task failed, is unknown or left a broken
+     * backup file. After an interruption, a server error or a backup file that is not ready in time the export goes
+     * on, so the next run reattaches to it instead of requesting a backup that Atlassian may refuse.
+     */
+    BackupResult fail(final Throwable cause, final Instant startTime) {
+        if (cause instanceof TaskFailedException || cause instanceof ZipException) {
+            backupService.forgetJob();
+        }
+
+        return failed(BackupService.getProductUrl(backupService.getArguments()), cause, startTime);
+    }
+
+    /**
+     * Reattach to the backup that an earlier process requested and did not finish, or request a new backup
+     *
+     * @return Task ID of the backup
+     * @throws BackupException if the response holds no task ID
+     */
+    String reattachOrRequestTaskID() throws UnirestException, BackupException {
+        final Optional<String> savedTaskID = backupService.getSavedTaskID();
+
+        return savedTaskID.isPresent() ? savedTaskID.get() : requestTaskID();
+    }
+
+    /**
+     * Request the backup
+     *
+     * @return Task ID of the backup
+     * @throws BackupException if the response holds no task ID
+     */
+    String requestTaskID() throws UnirestException, BackupException {
+        // Gotta first get the string response, because response can also be HTML (e.g. if the user is unauthorized)
+        final HttpResponse<String> backupStringResponse = backupService.requestBackup();
+        final Optional<String> taskID = Product.forName(backupService.getArguments().getProduct())
+                .readTaskID(backupStringResponse.getStatus(), backupStringResponse.getBody());
+
+        if (taskID.isPresent()) {
+            LOG.info("Backup task ID is {}", taskID.get());
+
+            return taskID.get();
+        }
+
+        if (backupStringResponse.getStatus() == 200) throw new BackupException("Backup response has no task ID");
+
+        LOG.error("Backup request returned with HTTP code: {}\n Response Body:\n{}",
+                backupStringResponse.getStatus(), backupStringResponse.getBody());
+
+        throw new BackupException("Backup request returned with HTTP code " + backupStringResponse.getStatus());
+    }
+
+    /**
+     * Log the cause of a failed backup and turn it into a result
+     */
+    @SuppressWarnings("squid:S2142")
+    static BackupResult failed(final String instanceUrl, final Throwable cause, final Instant startTime) {
+        final String failure;
+
+        if (cause instanceof BackupException) {
+            failure = cause.getMessage();
+            // InterruptedException may occur due to Thread.sleep used in backupService.getBackupFileUrl() method
+        } else if (cause instanceof UnirestException || cause instanceof InterruptedException) {
+            LOG.error("Error processing request: ", cause);
+            failure = "Error processing request: " + cause.getMessage();
+            // IOException may occur from the downloadBackupFile() method
+        } else if (cause instanceof IOException) {
+            LOG.error("Cannot save backup archive due to IOException: ", cause);
+            failure = "Cannot save backup archive: " + cause.getMessage();
+        } else {
+            LOG.error("Backup of {} failed: ", instanceUrl, cause);
+            failure = cause.toString();
+        }
+
+        return BackupResult.failed(instanceUrl, failure, Duration.between(startTime, Instant.now()));
+    }
+}
@@ -0,0 +1,290 @@
+package nl.ymor.backup;
+
+import nl.ymor.model.Arguments;
+import nl.ymor.model.BackupResult;
+import nl.ymor.product.Product;
+import nl.ymor.service.BackupService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Backs up a list of instances on a bounded pool of workers.
+ * <p>
+ * At most {@code batch.concurrency} backups run at the same time, and at most {@code batch.concurrency.per.host} of
+ * them against the same host, whatever product they back up. A failing instance does not stop the others, every
+ * instance gets a result.
+ * <p>
+ * With {@code batch.async} the backups run on an {@link AsyncBackupRunner} instead, under the same two limits. A
+ * waiting backup does not hold a thread there, so {@code batch.concurrency} can be raised well beyond the number of
+ * I/O threads.
+ */
+public class BatchBackup {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchBackup.class);
+
+    @Value("${batch.concurrency}")
+    protected String concurrency;
+    @Value("${batch.concurrency.per.host}")
+    protected String concurrencyPerHost;
+    @Value("${batch.async}")
+    protected String async;
+    @Value("${batch.async.io.threads}")
+    protected String asyncIoThreads;
+    @Value("${batch.async.virtual.threads}")
+    protected String asyncVirtualThreads;
+
+    private BackupService backupService;
+
+    public BatchBackup(final BackupService backupService) {
+        this.backupService = backupService;
+    }
+
+    /**
+     * Read the instances to back up from a batch file. Every line holds
+     * {@code <instance>,<username>,<token>,<dir>,<product>}, where empty or missing fields default to the program
+     * arguments. Empty lines and lines starting with '#' are skipped. Without an explicit directory, every instance is
+     * saved to its own subdirectory of the default directory. The products of a site can be listed on separate lines,
+     * they share the subdirectory of the site.
+     *
+     * @param batchFile Path of the batch file
+     * @param defaults  Program arguments
+     * @return Arguments per instance, including the authorization
+     * @throws IOException if the batch file cannot be read or names an unknown product
+     */
+    public List<Arguments> readInstances(final Path batchFile, final Arguments defaults) throws IOException {
+        final List<Arguments> instances = new ArrayList<>();
+
+        for (final String line : Files.readAllLines(batchFile, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty() || line.trim().startsWith("#")) continue;
+
+            final String[] fields = line.split(",", -1);
+            final Arguments instance = new Arguments();
+
+            instance.setInstanceUrl(fields[0].trim());
+            instance.setUser(field(fields, 1, defaults.getUser()));
+            instance.setApiToken(field(fields, 2, defaults.getApiToken()));
+            instance.setDirectory(field(fields, 3,
+                    Paths.get(defaults.getDirectory(), instance.getInstanceUrl()).toString()));
+            instance.setProduct(field(fields, 4, defaults.getProduct()));
+            instance.setAuthorization(BackupService.getAuthorization(instance.getUser(), instance.getApiToken()));
+
+            try {
+                Product.forName(instance.getProduct());
+            } catch (final IllegalArgumentException e) {
+                throw new IOException(String.format("%s: %s", batchFile, e.getMessage()), e);
+            }
+
+            instances.add(instance);
+        }
+
+        return instances;
+    }
+
+    /**
+     * Back up the given instances and wait until all of them are finished
+     *
+     * @param instances Arguments per instance
+     * @return Result per instance, in the order of the given instances
+     */
+    public List<BackupResult> run(final List<Arguments> instances) throws InterruptedException {
+        if (Boolean.parseBoolean(async)) return runAsync(instances);
+
+        final int perHostLimit = Integer.parseInt(concurrencyPerHost);
+        final BackupResult[] results = new BackupResult[instances.size()];
+        final CountDownLatch finished = new CountDownLatch(instances.size());
+
+        // Queue the instances per host, every queue starts with as many backups as it is allowed to run
+        final Map<String, Queue<Integer>> hostQueues = queuePerHost(instances);
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(Integer.parseInt(concurrency), new BatchThreadFactory());
+
+        try {
+            for (final Queue<Integer> hostQueue : hostQueues.values()) {
+                for (int lane = 0; lane < perHostLimit; lane++) {
+                    submitNext(executor, hostQueue, instances, results, finished);
+                }
+            }
+
+            finished.await();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return summarize(results);
+    }
+
+    private List<BackupResult> runAsync(final List<Arguments> instances) throws InterruptedException {
+        final int perHostLimit = Integer.parseInt(concurrencyPerHost);
+        final BackupResult[] results = new BackupResult[instances.size()];
+        final CountDownLatch finished = new CountDownLatch(instances.size());
+
+        // Every host has as many lanes as it is allowed to run backups. A lane waits in this queue while none of its
+        // backups runs, so the hosts take turns when more lanes than batch.concurrency are waiting.
+        final Queue<Queue<Integer>> lanes = new ConcurrentLinkedQueue<>();
+
+        for (final Queue<Integer> hostQueue : queuePerHost(instances).values()) {
+            for (int lane = 0; lane < perHostLimit; lane++) lanes.add(hostQueue);
+        }
+
+        try (AsyncBackupRunner runner = new AsyncBackupRunner(Integer.parseInt(asyncIoThreads),
+                Boolean.parseBoolean(asyncVirtualThreads))) {
+            for (int slot = 0; slot < Integer.parseInt(concurrency); slot++) {
+                startNextAsync(runner, lanes, instances, results, finished);
+            }
+
+            finished.await();
+        }
+
+        return summarize(results);
+    }
+
+    /**
+     * Start the next backup of the first waiting lane on the runner. When it completes, its lane waits again and the
+     * next backup of the lane at the head of the queue starts, so no more backups run than were started at first.
+     */
+    private void startNextAsync(final AsyncBackupRunner runner, final Queue<Queue<Integer>> lanes,
+                                final List<Arguments> instances, final BackupResult[] results,
+                                final CountDownLatch finished) {
+        final Queue<Integer> hostQueue = lanes.poll();
+
+        if (hostQueue == null) return;
+
+        final Integer next = hostQueue.poll();
+
+        if (next == null) {
+            // The host has no backups left, its lane is dropped
+            startNextAsync(runner, lanes, instances, results, finished);
+            return;
+        }
+
+        final Arguments instance = instances.get(next);
+
+        try {
+            LOG.info("Starting backup of {}", BackupService.getProductUrl(instance));
+            Files.createDirectories(Paths.get(instance.getDirectory()));
+        } catch (final IOException e) {
+            LOG.error("Backup of {} failed: ", BackupService.getProductUrl(instance), e);
+            results[next] = BackupResult.failed(BackupService.getProductUrl(instance), e.toString(), Duration.ZERO);
+            finished.countDown();
+            lanes.add(hostQueue);
+            startNextAsync(runner, lanes, instances, results, finished);
+            return;
+        }
+
+        final BackupService instanceService = backupService.forInstance(instance);
+
+        runner.backup(instanceService).thenAccept(result -> {
+            instanceService.close();
+            results[next] = result;
+            finished.countDown();
+            lanes.add(hostQueue);
+            startNextAsync(runner, lanes, instances, results, finished);
+        });
+    }
+
+    private static Map<String, Queue<Integer>> queuePerHost(final List<Arguments> instances) {
+        final Map<String, Queue<Integer>> hostQueues = new LinkedHashMap<>();
+
+        for (int i = 0; i < instances.size(); i++) {
+            // The products of a site share its host, so they share its limit too
+            hostQueues.computeIfAbsent(getHost(instances.get(i)), key -> new ConcurrentLinkedQueue<>()).add(i);
+        }
+
+        return hostQueues;
+    }
+
+    private static List<BackupResult> summarize(final BackupResult[] results) {
+        logSummary(results);
+
+        final List<BackupResult> resultList = new ArrayList<>();
+        for (final BackupResult result : results) resultList.add(result);
+
+        return resultList;
+    }
+
+    /**
+     * Start the next backup of a host. When it is finished, it starts the one after that, so the host never has
+     * more backups running than it started with.
+     */
+    private void submitNext(final ExecutorService executor, final Queue<Integer> hostQueue,
+                            final List<Arguments> instances, final BackupResult[] results,
+                            final CountDownLatch finished) {
+        final Integer next = hostQueue.poll();
+
+        if (next == null || executor.isShutdown()) return;
+
+        executor.execute(() -> {
+            final Arguments instance = instances.get(next);
+
+            try {
+                LOG.info("Starting backup of {}", BackupService.getProductUrl(instance));
+                Files.createDirectories(Paths.get(instance.getDirectory()));
+
+                try (BackupService instanceService = backupService.forInstance(instance)) {
+                    results[next] = new BackupJob(instanceService).call();
+                }
+            } catch (final IOException | RuntimeException e) {
+                LOG.error("Backup of {} failed: ", BackupService.getProductUrl(instance), e);
+                results[next] =
+                        BackupResult.failed(BackupService.getProductUrl(instance), e.toString(), Duration.ZERO);
+            } finally {
+                finished.countDown();
+                submitNext(executor, hostQueue, instances, results, finished);
+            }
+        });
+    }
+
+    private static void logSummary(final BackupResult[] results) {
+        int failures = 0;
+
+        for (final BackupResult result : results) {
+            if (!result.isSuccessful()) failures++;
+
+            LOG.info("{} {} in {}: {}", result.isSuccessful() ? "OK    " : "FAILED", result.getInstanceUrl(),
+                    result.getDuration(), result.getMessage());
+        }
+
+        LOG.info("Batch finished: {} of {} backups succeeded", results.length - failures, results.length);
+    }
+
+    private static String getHost(final Arguments instance) {
+        final String url = instance.getInstanceUrl();
+        final int schemeEnd = url.indexOf("://");
+        final String instanceUrl = schemeEnd < 0 ? url : url.substring(schemeEnd + 3);
+        final int pathStart = instanceUrl.indexOf('/');
+
+        return (pathStart < 0 ? instanceUrl : instanceUrl.substring(0, pathStart)).toLowerCase();
+    }
+
+    private static String field(final String[] fields, final int index, final String defaultValue) {
+        return index < fields.length && !fields[index].trim().isEmpty() ? fields[index].trim() : defaultValue;
+    }
+
+    private static class BatchThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(runnable, "batch-backup-" + threadNumber.getAndIncrement());
+        }
+    }
+}
@@ -1,9 +1,10 @@
 package nl.ymor.backup;
 
-import com.mashape.unirest.http.HttpResponse;
-import com.mashape.unirest.http.JsonNode;
-import com.mashape.unirest.http.exceptions.UnirestException;
+import nl.ymor.bandwidth.BandwidthLimiter;
 import nl.ymor.config.ApplicationConfiguration;
+import nl.ymor.metrics.PrometheusExporter;
+import nl.ymor.model.Arguments;
+import nl.ymor.model.BackupResult;
 import nl.ymor.service.BackupService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,7 +14,8 @@ import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
 import java.io.IOException;
-import java.util.Optional;
+import java.nio.file.Paths;
+import java.util.List;
 
 import static java.lang.System.exit;
 
@@ -22,9 +24,18 @@ public class JiraBackup implements CommandLineRunner {
 
     private static final Logger LOG = LoggerFactory.getLogger(JiraBackup.class);
     private BackupService backupService;
+    private BatchBackup batchBackup;
+    private PrometheusExporter prometheusExporter;
+    private BandwidthLimiter bandwidthLimiter;
+    private BackupDaemon backupDaemon;
 
-    public JiraBackup(BackupService backupService) {
+    public JiraBackup(BackupService backupService, BatchBackup batchBackup, PrometheusExporter prometheusExporter,
+                      BandwidthLimiter bandwidthLimiter, BackupDaemon backupDaemon) {
         this.backupService = backupService;
+        this.batchBackup = batchBackup;
+        this.prometheusExporter = prometheusExporter;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.backupDaemon = backupDaemon;
     }
 
     public static void main(String[] args) {
@@ -33,49 +44,116 @@ public class JiraBackup implements CommandLineRunner {
         springApplication.run(args);
     }
 
-    @SuppressWarnings("squid:S2142")
     @Override
     public void run(String... args) {
         if (!backupService.setArguments(args)) exit(1);
 
-        boolean isBackupSuccessful = false;
+        final Arguments arguments = backupService.getArguments();
+
+        if (arguments.getRebuildManifest() != null) {
+            rebuild(arguments);
+            return;
+        }
+
+        if (arguments.getEncryptedArchive() != null) {
+            decrypt(arguments);
+            return;
+        }
+
+        if (arguments.getExtractArchive() != null) {
+            extract(arguments);
+            return;
+        }
+
+        prometheusExporter.start();
+        bandwidthLimiter.start();
+
+        if (arguments.isDaemon()) {
+            runDaemon(arguments);
+            prometheusExporter.finish();
+            return;
+        }
+
+        final boolean succeeded = arguments.getBatchFile() != null ? runBatch(arguments) : runSingle();
+
+        // The metrics of a failed run matter most, so they are written before exiting
+        prometheusExporter.finish();
 
+        if (!succeeded) exit(1);
+    }
+
+    private boolean runSingle() {
+        final BackupResult result = new BackupJob(backupService).call();
+
+        if (!result.isSuccessful()) LOG.error("Backup job failed!");
+
+        return result.isSuccessful();
+    }
+
+    private void rebuild(final Arguments arguments) {
         try {
-            // Gotta first get the string response, because response can also be HTML (e.g. if the user is unauthorized)
-            final HttpResponse<String> backupStringResponse = backupService.requestBackup();
-
-            if (!backupStringResponse.getBody().isEmpty() && backupStringResponse.getStatus() == 200) {
-                // If response code is 200, we have a json response for sure, let's get it
-                final JsonNode backupJsonResponse = new JsonNode(backupStringResponse.getBody());
-
-                if (backupJsonResponse.getObject().has(backupService.KEY_TASK_ID)) {
-                    final String taskID = backupJsonResponse.getObject().get(backupService.KEY_TASK_ID).toString();
-
-                    LOG.info("Backup task ID is {}", taskID);
-
-                    final Optional<String> backupFileUrl = backupService.getBackupFileUrl(taskID);
-
-                    if (backupFileUrl.isPresent()) {
-                        backupService.downloadBackupFile(backupFileUrl.get());
-                        isBackupSuccessful = true;
-                    }
-                }
-            } else {
-                LOG.error("Backup request returned with HTTP code: {}\n Response Body:\n{}",
-                        backupStringResponse.getStatus(), backupStringResponse.getBody());
-            }
-            // InterruptedException may occur due to Thread.sleep used in backupService.getBackupFileUrl() method
-        } catch (final UnirestException | InterruptedException e) {
-            LOG.error("Error processing request: ", e);
-            // IOException may occur from the downloadBackupFile() method
+            backupService.rebuildBackupFile(Paths.get(arguments.getRebuildManifest()));
         } catch (final IOException e) {
-            LOG.error("Cannot save backup archive due to IOException: ", e);
+            LOG.error("Cannot rebuild backup archive due to IOException: ", e);
+            exit(1);
         }
+    }
 
-        if (!isBackupSuccessful) {
-            LOG.error("Backup job failed!");
+    private void decrypt(final Arguments arguments) {
+        try {
+            backupService.decryptBackupFile(Paths.get(arguments.getEncryptedArchive()));
+        } catch (final IOException | IllegalArgumentException e) {
+            LOG.error("Cannot decrypt backup archive: ", e);
             exit(1);
         }
     }
 
+    private void extract(final Arguments arguments) {
+        if (arguments.getExtractEntries().isEmpty()) {
+            LOG.error("Name the entries to extract with --entry");
+            exit(1);
+            return;
+        }
+
+        try {
+            backupService.extractFromBackupFile(Paths.get(arguments.getExtractArchive()),
+                    arguments.getExtractEntries());
+        } catch (final IOException e) {
+            LOG.error("Cannot extract from backup archive: ", e);
+            exit(1);
+        }
+    }
+
+    @SuppressWarnings("squid:S2142")
+    private void runDaemon(final Arguments arguments) {
+        try {
+            backupDaemon.run(arguments);
+        } catch (final IllegalArgumentException e) {
+            LOG.error("Cannot run as a daemon due to an invalid schedule: ", e);
+            exit(1);
+        } catch (final InterruptedException e) {
+            LOG.error("Daemon was interrupted: ", e);
+        }
+    }
+
+    @SuppressWarnings("squid:S2142")
+    private boolean runBatch(final Arguments arguments) {
+        try {
+            final List<Arguments> instances =
+                    batchBackup.readInstances(Paths.get(arguments.getBatchFile()), arguments);
+            final List<BackupResult> results = batchBackup.run(instances);
+
+            if (results.stream().allMatch(BackupResult::isSuccessful)) return true;
+
+            LOG.error("Backup job failed for {} of {} instances!",
+                    results.stream().filter(result -> !result.isSuccessful()).count(), results.size());
+        } catch (final IOException e) {
+            LOG.error("Cannot read batch file due to IOException: ", e);
+        } catch (final InterruptedException e) {
+            LOG.error("Batch backup was interrupted: ", e);
+        }
+
+        return false;
+    }
+
 }
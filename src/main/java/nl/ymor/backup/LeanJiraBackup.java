@@ -0,0 +1,79 @@
+package nl.ymor.backup;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import nl.ymor.config.ApplicationConfiguration;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MutablePropertySources;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.support.ResourcePropertySource;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a backup without Spring Boot, for the short runs started by cron, where starting up takes a noticeable share
+ * of every run.
+ * <p>
+ * Spring Boot reads the factories of all jars, sets up logging and lets its listeners prepare the environment before
+ * the context starts. The lean start creates a plain context of {@link ApplicationConfiguration} instead, which
+ * wires the beans explicitly and scans for nothing. The properties are read from {@code application.properties} on
+ * the class path, overridden by {@code application.properties} and {@code config/application.properties} in the
+ * working directory, by environment variables and by system properties, like Spring Boot does. Profiles and the other
+ * features of Spring Boot are not available. The {@code appcds} build profile packages this start with a class data
+ * archive, which also saves the loading and verifying of the classes.
+ */
+public final class LeanJiraBackup {
+
+    private static final org.slf4j.Logger LOG = LoggerFactory.getLogger(LeanJiraBackup.class);
+    private static final String PROPERTIES = "application.properties";
+
+    private LeanJiraBackup() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final long startNanos = System.nanoTime();
+
+        // Spring Boot logs at INFO, without it Logback logs everything
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.INFO);
+
+        try (AnnotationConfigApplicationContext context = createContext()) {
+            LOG.info("Started in {} ms (JVM running for {} ms)",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+                    ManagementFactory.getRuntimeMXBean().getUptime());
+
+            context.getBean(JiraBackup.class).run(args);
+        }
+    }
+
+    /**
+     * @return Started context of {@link ApplicationConfiguration}
+     */
+    static AnnotationConfigApplicationContext createContext() throws IOException {
+        final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        final MutablePropertySources propertySources = context.getEnvironment().getPropertySources();
+
+        for (final Path file : new Path[]{Paths.get("config", PROPERTIES), Paths.get(PROPERTIES)}) {
+            if (Files.isRegularFile(file)) {
+                propertySources.addLast(new ResourcePropertySource(new FileSystemResource(file.toFile())));
+            }
+        }
+
+        propertySources.addLast(new ResourcePropertySource(new ClassPathResource(PROPERTIES)));
+
+        // Fails on properties that are missing, like Spring Boot, instead of injecting the placeholder
+        context.registerBean(PropertySourcesPlaceholderConfigurer.class);
+        context.register(ApplicationConfiguration.class);
+        context.registerShutdownHook();
+        context.refresh();
+
+        return context;
+    }
+}
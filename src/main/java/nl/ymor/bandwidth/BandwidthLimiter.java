@@ -0,0 +1,155 @@
+package nl.ymor.bandwidth;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the bandwidth the downloads take, so that many backups at once do not saturate the uplink.
+ * <p>
+ * All downloads share one global token bucket, and the downloads of an instance also share a bucket of that
+ * instance. The limits are {@code bandwidth.global.bytes.per.second} and {@code bandwidth.instance.bytes.per.second},
+ * unless a window of {@code bandwidth.schedule} applies, see {@link BandwidthSchedule}. The limits are looked up
+ * again every second and can be changed over JMX, so running downloads speed up or slow down without starting over.
+ */
+public class BandwidthLimiter implements BandwidthLimiterMBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BandwidthLimiter.class);
+    private static final String OBJECT_NAME = "nl.ymor:type=BandwidthLimiter";
+    private static final long LIMIT_CHECK_MILLIS = 1000;
+
+    @Value("${bandwidth.global.bytes.per.second}")
+    protected String defaultGlobalBytesPerSecond;
+    @Value("${bandwidth.instance.bytes.per.second}")
+    protected String defaultInstanceBytesPerSecond;
+    @Value("${bandwidth.schedule}")
+    protected String schedule;
+
+    Clock clock = Clock.systemDefaultZone();
+
+    private final TokenBucket globalBucket = new TokenBucket(0, System.nanoTime());
+    private final Map<String, TokenBucket> instanceBuckets = new ConcurrentHashMap<>();
+    private BandwidthSchedule bandwidthSchedule;
+    private long globalOverride = -1;
+    private long instanceOverride = -1;
+    private volatile long instanceBytesPerSecond;
+    private volatile long nextLimitCheckMillis;
+
+    /**
+     * Make the limits adjustable over JMX
+     */
+    public void start() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+
+            if (!server.isRegistered(name)) server.registerMBean(this, name);
+        } catch (final JMException e) {
+            LOG.warn("Cannot make the bandwidth limits adjustable over JMX: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @param instance Jira instance URL
+     * @return Throttle for one download of the instance, to be shared by all connections of the download
+     */
+    public Throttle forInstance(final String instance) {
+        updateLimits();
+
+        final TokenBucket instanceBucket = instanceBuckets.computeIfAbsent(String.valueOf(instance),
+                key -> new TokenBucket(instanceBytesPerSecond, System.nanoTime()));
+
+        return bytes -> {
+            updateLimits();
+
+            // Both buckets are charged at once, so waiting for one of them counts as waiting for the other as well
+            final long nowNanos = System.nanoTime();
+            pause(Math.max(instanceBucket.reserve(bytes, nowNanos), globalBucket.reserve(bytes, nowNanos)));
+        };
+    }
+
+    @Override
+    public long getGlobalBytesPerSecond() {
+        updateLimits();
+        return globalBucket.getRate();
+    }
+
+    @Override
+    public synchronized void setGlobalBytesPerSecond(final long bytesPerSecond) {
+        globalOverride = bytesPerSecond;
+        nextLimitCheckMillis = 0;
+    }
+
+    @Override
+    public long getInstanceBytesPerSecond() {
+        updateLimits();
+        return instanceBytesPerSecond;
+    }
+
+    @Override
+    public synchronized void setInstanceBytesPerSecond(final long bytesPerSecond) {
+        instanceOverride = bytesPerSecond;
+        nextLimitCheckMillis = 0;
+    }
+
+    private void updateLimits() {
+        if (clock.millis() < nextLimitCheckMillis) return;
+
+        synchronized (this) {
+            final long nowMillis = clock.millis();
+
+            if (nowMillis < nextLimitCheckMillis) return;
+
+            if (bandwidthSchedule == null) bandwidthSchedule = BandwidthSchedule.parse(schedule);
+
+            final Optional<BandwidthSchedule.Window> window = bandwidthSchedule.at(LocalDateTime.now(clock));
+            final long global = globalOverride >= 0 ? globalOverride : window
+                    .map(BandwidthSchedule.Window::getGlobalBytesPerSecond)
+                    .filter(limit -> limit >= 0)
+                    .orElse(Long.parseLong(defaultGlobalBytesPerSecond));
+            final long perInstance = instanceOverride >= 0 ? instanceOverride : window
+                    .map(BandwidthSchedule.Window::getInstanceBytesPerSecond)
+                    .filter(limit -> limit >= 0)
+                    .orElse(Long.parseLong(defaultInstanceBytesPerSecond));
+
+            if (global != globalBucket.getRate() || perInstance != instanceBytesPerSecond) {
+                LOG.info("Bandwidth limit of all downloads: {}, of every instance: {}", describe(global),
+                        describe(perInstance));
+            }
+
+            final long nowNanos = System.nanoTime();
+
+            globalBucket.setRate(global, nowNanos);
+            instanceBuckets.values().forEach(bucket -> bucket.setRate(perInstance, nowNanos));
+            instanceBytesPerSecond = perInstance;
+            nextLimitCheckMillis = nowMillis + LIMIT_CHECK_MILLIS;
+        }
+    }
+
+    private static String describe(final long bytesPerSecond) {
+        return bytesPerSecond > 0 ? bytesPerSecond + " bytes per second" : "none";
+    }
+
+    private static void pause(final long nanos) throws InterruptedIOException {
+        if (nanos <= 0) return;
+
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+}
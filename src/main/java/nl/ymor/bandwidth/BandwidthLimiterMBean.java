@@ -0,0 +1,16 @@
+package nl.ymor.bandwidth;
+
+/**
+ * Management interface of the {@link BandwidthLimiter}, to change the limits over JMX while downloads run, e.g.
+ * with {@code jconsole}. A limit of 0 means no limit, and a limit below 0 hands the limit back to the schedule.
+ */
+public interface BandwidthLimiterMBean {
+
+    long getGlobalBytesPerSecond();
+
+    void setGlobalBytesPerSecond(long bytesPerSecond);
+
+    long getInstanceBytesPerSecond();
+
+    void setInstanceBytesPerSecond(long bytesPerSecond);
+}
@@ -0,0 +1,155 @@
+package nl.ymor.bandwidth;
+
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.TextStyle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bandwidth limits that apply during windows of the week.
+ * <p>
+ * Windows are separated by semicolons. A window names its days (optional, every day by default), its time of day and
+ * the limits that apply, e.g. {@code Mon-Fri 08:00-18:00 global=4194304 instance=1048576; Sat 10:00-12:00 global=0}.
+ * A limit that a window leaves out keeps its default, and a limit of 0 means no limit. A window that ends before it
+ * starts runs past midnight, and the first window that matches wins.
+ */
+class BandwidthSchedule {
+
+    private static final Pattern WINDOW = Pattern.compile(
+            "(?:(?<firstDay>[a-z]{3})(?:-(?<lastDay>[a-z]{3}))?\\s+)?(?<start>\\d{1,2}:\\d{2})-(?<end>\\d{1,2}:\\d{2})"
+                    + "(?<limits>(?:\\s+(?:global|instance)=\\d+)*)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LIMIT = Pattern.compile("(global|instance)=(\\d+)", Pattern.CASE_INSENSITIVE);
+
+    private final List<Window> windows;
+
+    private BandwidthSchedule(final List<Window> windows) {
+        this.windows = windows;
+    }
+
+    /**
+     * @param schedule Schedule as described above, may be empty
+     * @throws IllegalArgumentException if a window cannot be parsed
+     */
+    static BandwidthSchedule parse(final String schedule) {
+        final List<Window> windows = new ArrayList<>();
+
+        for (final String window : schedule.split(";")) {
+            if (!window.trim().isEmpty()) windows.add(Window.parse(window.trim()));
+        }
+
+        return new BandwidthSchedule(Collections.unmodifiableList(windows));
+    }
+
+    /**
+     * @param time Local time to look up
+     * @return Window that applies at the given time, empty if none does
+     */
+    Optional<Window> at(final LocalDateTime time) {
+        return windows.stream().filter(window -> window.contains(time)).findFirst();
+    }
+
+    static final class Window {
+
+        private final Set<DayOfWeek> days;
+        private final LocalTime start;
+        private final LocalTime end;
+        private final long globalBytesPerSecond;
+        private final long instanceBytesPerSecond;
+
+        private Window(final Set<DayOfWeek> days, final LocalTime start, final LocalTime end,
+                       final long globalBytesPerSecond, final long instanceBytesPerSecond) {
+            this.days = days;
+            this.start = start;
+            this.end = end;
+            this.globalBytesPerSecond = globalBytesPerSecond;
+            this.instanceBytesPerSecond = instanceBytesPerSecond;
+        }
+
+        private static Window parse(final String window) {
+            final Matcher matcher = WINDOW.matcher(window);
+
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException(String.format("Invalid bandwidth window: %s", window));
+            }
+
+            final Set<DayOfWeek> days = EnumSet.allOf(DayOfWeek.class);
+
+            if (matcher.group("firstDay") != null) {
+                final DayOfWeek firstDay = parseDay(matcher.group("firstDay"));
+                final DayOfWeek lastDay =
+                        matcher.group("lastDay") == null ? firstDay : parseDay(matcher.group("lastDay"));
+
+                days.clear();
+
+                for (DayOfWeek day = firstDay; day != lastDay; day = day.plus(1)) {
+                    days.add(day);
+                }
+
+                days.add(lastDay);
+            }
+
+            long globalBytesPerSecond = -1;
+            long instanceBytesPerSecond = -1;
+            final Matcher limitMatcher = LIMIT.matcher(matcher.group("limits"));
+
+            while (limitMatcher.find()) {
+                if ("global".equalsIgnoreCase(limitMatcher.group(1))) {
+                    globalBytesPerSecond = Long.parseLong(limitMatcher.group(2));
+                } else {
+                    instanceBytesPerSecond = Long.parseLong(limitMatcher.group(2));
+                }
+            }
+
+            return new Window(days, parseTime(matcher.group("start")), parseTime(matcher.group("end")),
+                    globalBytesPerSecond, instanceBytesPerSecond);
+        }
+
+        private static DayOfWeek parseDay(final String day) {
+            for (final DayOfWeek dayOfWeek : DayOfWeek.values()) {
+                if (dayOfWeek.getDisplayName(TextStyle.SHORT, Locale.ENGLISH).equalsIgnoreCase(day)) return dayOfWeek;
+            }
+
+            throw new IllegalArgumentException(String.format("Invalid day in bandwidth window: %s", day));
+        }
+
+        private static LocalTime parseTime(final String time) {
+            // 24:00 is the end of the day
+            return "24:00".equals(time) ? LocalTime.MAX : LocalTime.parse(time.length() == 4 ? "0" + time : time);
+        }
+
+        private boolean contains(final LocalDateTime dateTime) {
+            final LocalTime time = dateTime.toLocalTime();
+
+            if (!start.isAfter(end)) {
+                return days.contains(dateTime.getDayOfWeek()) && !time.isBefore(start) && time.isBefore(end);
+            }
+
+            // Past midnight the window still belongs to the day it started on
+            return days.contains(dateTime.getDayOfWeek()) && !time.isBefore(start)
+                    || days.contains(dateTime.getDayOfWeek().minus(1)) && time.isBefore(end);
+        }
+
+        /**
+         * @return Global limit during the window, below 0 if the window keeps the default
+         */
+        long getGlobalBytesPerSecond() {
+            return globalBytesPerSecond;
+        }
+
+        /**
+         * @return Limit of every instance during the window, below 0 if the window keeps the default
+         */
+        long getInstanceBytesPerSecond() {
+            return instanceBytesPerSecond;
+        }
+    }
+}
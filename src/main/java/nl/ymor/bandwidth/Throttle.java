@@ -0,0 +1,23 @@
+package nl.ymor.bandwidth;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Slows a download down to its share of the bandwidth
+ */
+public interface Throttle {
+
+    /**
+     * Throttle that never waits
+     */
+    Throttle NONE = bytes -> {
+    };
+
+    /**
+     * Account for bytes that were read, waiting as long as needed to stay within the limits
+     *
+     * @param bytes Number of bytes read
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    void acquire(long bytes) throws InterruptedIOException;
+}
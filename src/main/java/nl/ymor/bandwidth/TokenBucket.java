@@ -0,0 +1,70 @@
+package nl.ymor.bandwidth;
+
+/**
+ * Token bucket that hands out bytes at a fixed rate, with a burst of one second worth of bytes.
+ * <p>
+ * A reservation may take more bytes than the bucket holds. The bucket then runs into debt and the caller waits
+ * until the debt is paid off, so callers that keep asking are served in the order they asked, each after the bytes
+ * of the callers before it. With small reservations, concurrent downloads therefore get an equal share of the rate.
+ */
+class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param bytesPerSecond Rate of the bucket, 0 or less for no limit
+     * @param nowNanos       Current time in nanoseconds
+     */
+    TokenBucket(final long bytesPerSecond, final long nowNanos) {
+        this.bytesPerSecond = Math.max(bytesPerSecond, 0);
+        this.tokens = this.bytesPerSecond;
+        this.lastRefillNanos = nowNanos;
+    }
+
+    /**
+     * Change the rate. Bytes that are already reserved keep their time, later reservations get the new rate.
+     *
+     * @param bytesPerSecond New rate, 0 or less for no limit
+     * @param nowNanos       Current time in nanoseconds
+     */
+    synchronized void setRate(final long bytesPerSecond, final long nowNanos) {
+        refill(nowNanos);
+
+        this.bytesPerSecond = Math.max(bytesPerSecond, 0);
+        this.tokens = Math.min(tokens, this.bytesPerSecond);
+    }
+
+    synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Take bytes from the bucket
+     *
+     * @param bytes    Number of bytes to take
+     * @param nowNanos Current time in nanoseconds
+     * @return Time to wait in nanoseconds before the bytes may be used, 0 if they may be used right away
+     */
+    synchronized long reserve(final long bytes, final long nowNanos) {
+        refill(nowNanos);
+
+        if (bytesPerSecond == 0) return 0;
+
+        tokens -= bytes;
+
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * NANOS_PER_SECOND / bytesPerSecond);
+    }
+
+    private void refill(final long nowNanos) {
+        if (bytesPerSecond > 0 && nowNanos > lastRefillNanos) {
+            tokens = Math.min(bytesPerSecond,
+                    tokens + (nowNanos - lastRefillNanos) * bytesPerSecond / NANOS_PER_SECOND);
+        }
+
+        lastRefillNanos = Math.max(lastRefillNanos, nowNanos);
+    }
+}
@@ -1,9 +1,20 @@
 package nl.ymor.config;
 
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import nl.ymor.backup.BackupDaemon;
+import nl.ymor.backup.BatchBackup;
 import nl.ymor.backup.JiraBackup;
+import nl.ymor.bandwidth.BandwidthLimiter;
+import nl.ymor.metrics.BackupMetrics;
+import nl.ymor.metrics.PrometheusExporter;
 import nl.ymor.model.Arguments;
 import nl.ymor.service.BackupService;
+import nl.ymor.service.HttpEngine;
+import nl.ymor.service.JobStateStore;
 import nl.ymor.service.RestClient;
+import nl.ymor.service.RetryPolicy;
+import nl.ymor.sink.BackupSinkFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.annotation.Order;
@@ -17,21 +28,87 @@ public class ApplicationConfiguration {
         return new Arguments();
     }
 
+    @Bean
+    @Order(11)
+    public PrometheusMeterRegistry meterRegistry() {
+        return new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    }
+
+    @Bean
+    @Order(12)
+    public BackupMetrics backupMetrics(PrometheusMeterRegistry meterRegistry) {
+        return new BackupMetrics(meterRegistry);
+    }
+
+    @Bean
+    @Order(13)
+    public PrometheusExporter prometheusExporter(PrometheusMeterRegistry meterRegistry) {
+        return new PrometheusExporter(meterRegistry);
+    }
+
+    @Bean
+    @Order(14)
+    public BandwidthLimiter bandwidthLimiter() {
+        return new BandwidthLimiter();
+    }
+
+    @Bean
+    @Order(15)
+    public BackupSinkFactory backupSinkFactory(HttpEngine httpEngine) {
+        return new BackupSinkFactory(httpEngine);
+    }
+
+    @Bean
+    @Order(16)
+    public JobStateStore jobStateStore() {
+        return new JobStateStore();
+    }
+
+    @Bean
+    @Order(25)
+    public HttpEngine httpEngine() {
+        return new HttpEngine();
+    }
+
+    @Bean
+    @Order(26)
+    public RetryPolicy retryPolicy(BackupMetrics backupMetrics) {
+        return new RetryPolicy(backupMetrics);
+    }
+
     @Bean
     @Order(30)
-    public RestClient restClient(Arguments arguments) {
-        return new RestClient(arguments);
+    public RestClient restClient(Arguments arguments, HttpEngine httpEngine, RetryPolicy retryPolicy) {
+        return new RestClient(arguments, httpEngine, retryPolicy);
     }
 
     @Bean
     @Order(20)
-    public BackupService backupService(Arguments arguments, RestClient restClient) {
-        return new BackupService(arguments, restClient);
+    public BackupService backupService(Arguments arguments, RestClient restClient,
+                                       BackupSinkFactory backupSinkFactory, BackupMetrics backupMetrics,
+                                       BandwidthLimiter bandwidthLimiter, JobStateStore jobStateStore) {
+        return new BackupService(arguments, restClient, backupSinkFactory, backupMetrics, bandwidthLimiter,
+                jobStateStore);
+    }
+
+    @Bean
+    @Order(35)
+    public BatchBackup batchBackup(BackupService backupService) {
+        return new BatchBackup(backupService);
+    }
+
+    @Bean
+    @Order(38)
+    public BackupDaemon backupDaemon(BackupService backupService, BatchBackup batchBackup,
+                                     PrometheusExporter prometheusExporter) {
+        return new BackupDaemon(backupService, batchBackup, prometheusExporter);
     }
 
     @Bean
     @Order(40)
-    public JiraBackup jiraBackup(BackupService backupService) {
-        return new JiraBackup(backupService);
+    public JiraBackup jiraBackup(BackupService backupService, BatchBackup batchBackup,
+                                 PrometheusExporter prometheusExporter, BandwidthLimiter bandwidthLimiter,
+                                 BackupDaemon backupDaemon) {
+        return new JiraBackup(backupService, batchBackup, prometheusExporter, bandwidthLimiter, backupDaemon);
     }
 }
@@ -0,0 +1,112 @@
+package nl.ymor.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Meters of the phases of a backup, tagged with the instance they belong to:
+ * <ul>
+ * <li>{@code jira.backup.request}: latency of the backup request, also tagged with the HTTP status</li>
+ * <li>{@code jira.backup.progress.checks}: number of progress checks</li>
+ * <li>{@code jira.backup.progress}: last reported progress percentage</li>
+ * <li>{@code jira.backup.export}: time from the backup request until the progress reached 100%</li>
+ * <li>{@code jira.backup.download.first.byte}: time until a download request returned its response headers</li>
+ * <li>{@code jira.backup.download}: duration of the download</li>
+ * <li>{@code jira.backup.download.bytes}: bytes downloaded</li>
+ * <li>{@code jira.backup.download.bytes.per.second}: throughput of every download</li>
+ * <li>{@code jira.backup.retries}: requests that had to be repeated, tagged with the reason</li>
+ * </ul>
+ */
+public class BackupMetrics {
+
+    private static final String INSTANCE = "instance";
+
+    private final MeterRegistry registry;
+    private final Map<String, AtomicInteger> progress = new ConcurrentHashMap<>();
+
+    public BackupMetrics(final MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    public void recordBackupRequest(final String instance, final int status, final Duration latency) {
+        Timer.builder("jira.backup.request")
+                .description("Latency of the backup request")
+                .tag(INSTANCE, name(instance))
+                .tag("status", String.valueOf(status))
+                .register(registry)
+                .record(latency);
+    }
+
+    public void recordProgressCheck(final String instance, final int progressPercentage) {
+        Counter.builder("jira.backup.progress.checks")
+                .description("Number of progress checks")
+                .tag(INSTANCE, name(instance))
+                .register(registry)
+                .increment();
+
+        progress.computeIfAbsent(name(instance), key -> registry.gauge("jira.backup.progress",
+                Tags.of(INSTANCE, key), new AtomicInteger()))
+                .set(progressPercentage);
+    }
+
+    public void recordExportCompleted(final String instance, final Duration timeToComplete) {
+        Timer.builder("jira.backup.export")
+                .description("Time from the backup request until the backup file was ready")
+                .tag(INSTANCE, name(instance))
+                .register(registry)
+                .record(timeToComplete);
+    }
+
+    public void recordTimeToFirstByte(final String instance, final Duration timeToFirstByte) {
+        Timer.builder("jira.backup.download.first.byte")
+                .description("Time until a download request returned its response headers")
+                .tag(INSTANCE, name(instance))
+                .register(registry)
+                .record(timeToFirstByte);
+    }
+
+    public void recordDownload(final String instance, final long bytes, final Duration duration) {
+        Timer.builder("jira.backup.download")
+                .description("Duration of the download of the backup file")
+                .tag(INSTANCE, name(instance))
+                .register(registry)
+                .record(duration);
+
+        Counter.builder("jira.backup.download.bytes")
+                .description("Bytes downloaded")
+                .tag(INSTANCE, name(instance))
+                .register(registry)
+                .increment(bytes);
+
+        DistributionSummary.builder("jira.backup.download.bytes.per.second")
+                .description("Throughput of the download of the backup file")
+                .tag(INSTANCE, name(instance))
+                .register(registry)
+                .record(bytes * 1000.0 / Math.max(duration.toMillis(), 1));
+    }
+
+    public void recordRetry(final String instance, final String reason) {
+        Counter.builder("jira.backup.retries")
+                .description("Requests that had to be repeated")
+                .tag(INSTANCE, name(instance))
+                .tag("reason", reason)
+                .register(registry)
+                .increment();
+    }
+
+    private static String name(final String instance) {
+        return instance == null ? "unknown" : instance;
+    }
+}
@@ -0,0 +1,98 @@
+package nl.ymor.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Publishes the metrics in the Prometheus text format.
+ * <p>
+ * With {@code metrics.prometheus.file} the metrics are written to a file when the backups are done, which suits
+ * the textfile collector of the node exporter for runs started by cron. With {@code metrics.prometheus.port} they
+ * are also served on {@code /metrics} while the backups run.
+ */
+public class PrometheusExporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PrometheusExporter.class);
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Value("${metrics.prometheus.file}")
+    protected String file;
+    @Value("${metrics.prometheus.port}")
+    protected String port;
+
+    private final PrometheusMeterRegistry registry;
+    private HttpServer server;
+
+    public PrometheusExporter(final PrometheusMeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Start serving the metrics, if a port is configured
+     */
+    public void start() {
+        if (Integer.parseInt(port) <= 0 || server != null) return;
+
+        try {
+            server = HttpServer.create(new InetSocketAddress(Integer.parseInt(port)), 0);
+            server.createContext("/metrics", exchange -> {
+                final byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+
+                try (OutputStream responseBody = exchange.getResponseBody()) {
+                    responseBody.write(body);
+                }
+            });
+            server.start();
+
+            LOG.info("Serving metrics on port {}", server.getAddress().getPort());
+        } catch (final IOException e) {
+            LOG.warn("Cannot serve metrics on port {}: {}", port, e.getMessage());
+        }
+    }
+
+    /**
+     * Write the metrics file, if one is configured, and stop serving the metrics
+     */
+    public void finish() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+
+        write();
+    }
+
+    /**
+     * Write the metrics file, if one is configured, and keep serving the metrics
+     */
+    public void write() {
+        if (file.trim().isEmpty()) return;
+
+        final Path metricsPath = Paths.get(file);
+        final Path partialPath = metricsPath.resolveSibling(metricsPath.getFileName() + ".tmp");
+
+        try {
+            // Collectors read the file at any time, so it has to be replaced at once
+            Files.write(partialPath, registry.scrape().getBytes(StandardCharsets.UTF_8));
+            Files.move(partialPath, metricsPath, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            LOG.warn("Cannot write metrics to {}: {}", metricsPath, e.getMessage());
+        }
+    }
+}
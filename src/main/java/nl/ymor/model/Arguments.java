@@ -3,6 +3,9 @@ package nl.ymor.model;
 import com.beust.jcommander.Parameter;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Component
 public class Arguments {
     //<user email> <API token> <instance> <download directory>
@@ -13,12 +16,40 @@ public class Arguments {
     @Parameter(names = {"-t", "--token"}, description = "API token to authenticate the user", required = true)
     private String apiToken;
 
-    @Parameter(names = {"-i", "--instance"}, description = "Jira instance URL")
+    @Parameter(names = {"-i", "--instance"}, description = "URL of the Atlassian site to back up")
     private String instanceUrl;
 
     @Parameter(names = {"-d", "--dir"}, description = "Directory path to save the downloaded backup file (optional)")
     private String directory = ".";
 
+    @Parameter(names = {"-p", "--product"}, description = "Product to back up: jira or confluence (optional)")
+    private String product = "jira";
+
+    @Parameter(names = {"-b", "--batch"}, description = "File listing the instances to back up, one " +
+            "'<instance>,<username>,<token>,<dir>,<product>' per line. Empty or missing fields default to the other " +
+            "options (optional)")
+    private String batchFile;
+
+    @Parameter(names = {"-r", "--rebuild"}, description = "Manifest of a backup in the archive store to rebuild " +
+            "into an archive in the download directory, instead of running a backup (optional)")
+    private String rebuildManifest;
+
+    @Parameter(names = {"-x", "--decrypt"}, description = "Encrypted backup archive to decrypt into the download " +
+            "directory, instead of running a backup (optional)")
+    private String encryptedArchive;
+
+    @Parameter(names = {"-e", "--extract"}, description = "Backup archive to extract single entries from into the " +
+            "download directory, instead of running a backup (optional)")
+    private String extractArchive;
+
+    @Parameter(names = {"-n", "--entry"}, description = "Path of an entry, or ID of an attachment, to extract from " +
+            "the archive of --extract. Can be given more than once (optional)")
+    private List<String> extractEntries = new ArrayList<>();
+
+    @Parameter(names = {"-D", "--daemon"}, description = "Keep running and back up on the schedule of " +
+            "daemon.schedule, instead of backing up once (optional)")
+    private boolean daemon;
+
     @Parameter(hidden = true)
     private String authorization;
 
@@ -54,6 +85,22 @@ public class Arguments {
         this.directory = directory;
     }
 
+    public String getProduct() {
+        return product;
+    }
+
+    public void setProduct(final String product) {
+        this.product = product;
+    }
+
+    public String getBatchFile() {
+        return batchFile;
+    }
+
+    public void setBatchFile(final String batchFile) {
+        this.batchFile = batchFile;
+    }
+
     public String getAuthorization() {
         return authorization;
     }
@@ -61,4 +108,44 @@ public class Arguments {
     public void setAuthorization(final String authorization) {
         this.authorization = authorization;
     }
+
+    public String getRebuildManifest() {
+        return rebuildManifest;
+    }
+
+    public void setRebuildManifest(final String rebuildManifest) {
+        this.rebuildManifest = rebuildManifest;
+    }
+
+    public boolean isDaemon() {
+        return daemon;
+    }
+
+    public void setDaemon(final boolean daemon) {
+        this.daemon = daemon;
+    }
+
+    public String getEncryptedArchive() {
+        return encryptedArchive;
+    }
+
+    public void setEncryptedArchive(final String encryptedArchive) {
+        this.encryptedArchive = encryptedArchive;
+    }
+
+    public String getExtractArchive() {
+        return extractArchive;
+    }
+
+    public void setExtractArchive(final String extractArchive) {
+        this.extractArchive = extractArchive;
+    }
+
+    public List<String> getExtractEntries() {
+        return extractEntries;
+    }
+
+    public void setExtractEntries(final List<String> extractEntries) {
+        this.extractEntries = extractEntries;
+    }
 }
@@ -0,0 +1,46 @@
+package nl.ymor.model;
+
+import java.time.Duration;
+
+/**
+ * Outcome of the backup of one instance
+ */
+public class BackupResult {
+
+    private final String instanceUrl;
+    private final boolean successful;
+    private final String message;
+    private final Duration duration;
+
+    private BackupResult(final String instanceUrl, final boolean successful, final String message,
+                         final Duration duration) {
+        this.instanceUrl = instanceUrl;
+        this.successful = successful;
+        this.message = message;
+        this.duration = duration;
+    }
+
+    public static BackupResult succeeded(final String instanceUrl, final Duration duration) {
+        return new BackupResult(instanceUrl, true, "Backup job succeeded", duration);
+    }
+
+    public static BackupResult failed(final String instanceUrl, final String message, final Duration duration) {
+        return new BackupResult(instanceUrl, false, message, duration);
+    }
+
+    public String getInstanceUrl() {
+        return instanceUrl;
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public Duration getDuration() {
+        return duration;
+    }
+}
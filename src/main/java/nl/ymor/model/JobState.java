@@ -0,0 +1,98 @@
+package nl.ymor.model;
+
+import java.time.Instant;
+
+/**
+ * State of the backup job of one instance, as far as it is needed to pick the job up again in another process
+ */
+public class JobState {
+
+    /**
+     * Phase of a backup job
+     */
+    public enum Phase {
+        /**
+         * Jira is exporting the backup, its progress is polled
+         */
+        EXPORTING,
+        /**
+         * The backup file is ready and is being downloaded
+         */
+        DOWNLOADING
+    }
+
+    private final String instanceUrl;
+    private final String taskID;
+    private final Phase phase;
+    private final String backupFileUrl;
+    private final long downloadedBytes;
+    private final Instant startTime;
+    private final Instant updateTime;
+
+    public JobState(final String instanceUrl, final String taskID, final Phase phase, final String backupFileUrl,
+                    final long downloadedBytes, final Instant startTime, final Instant updateTime) {
+        this.instanceUrl = instanceUrl;
+        this.taskID = taskID;
+        this.phase = phase;
+        this.backupFileUrl = backupFileUrl;
+        this.downloadedBytes = downloadedBytes;
+        this.startTime = startTime;
+        this.updateTime = updateTime;
+    }
+
+    /**
+     * @return State of a job whose backup was just requested
+     */
+    public static JobState exporting(final String instanceUrl, final String taskID) {
+        final Instant now = Instant.now();
+        return new JobState(instanceUrl, taskID, Phase.EXPORTING, null, 0, now, now);
+    }
+
+    /**
+     * @return State of this job once its backup file is ready
+     */
+    public JobState downloading(final String readyBackupFileUrl) {
+        return new JobState(instanceUrl, taskID, Phase.DOWNLOADING, readyBackupFileUrl, 0, startTime, Instant.now());
+    }
+
+    /**
+     * @return State of this job after more of its backup file was downloaded
+     */
+    public JobState downloaded(final long bytes) {
+        return new JobState(instanceUrl, taskID, phase, backupFileUrl, bytes, startTime, Instant.now());
+    }
+
+    public String getInstanceUrl() {
+        return instanceUrl;
+    }
+
+    public String getTaskID() {
+        return taskID;
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return Partial URL of the backup file, null while the backup is exported
+     */
+    public String getBackupFileUrl() {
+        return backupFileUrl;
+    }
+
+    /**
+     * @return Bytes of the backup file downloaded by the latest attempt
+     */
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    public Instant getStartTime() {
+        return startTime;
+    }
+
+    public Instant getUpdateTime() {
+        return updateTime;
+    }
+}
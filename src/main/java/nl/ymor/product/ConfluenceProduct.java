@@ -0,0 +1,85 @@
+package nl.ymor.product;
+
+import org.json.JSONObject;
+
+import java.util.Optional;
+
+/**
+ * Backup API of Confluence Cloud, below {@code /wiki} on the site: {@code runbackup} starts the backup of the site
+ * without naming a task, {@code getprogress.json} reports the progress of the latest backup, and names the file once
+ * the backup is exported. Confluence runs one backup per site at a time, so all its backups share one task ID.
+ * <p>
+ * Until the requested backup reports its own progress, {@code getprogress.json} may still describe the previous
+ * backup, with its file name and {@code isOutdated} set. The file name of such a response is not the requested backup
+ * and is ignored.
+ */
+class ConfluenceProduct implements Product {
+
+    static final String TASK_ID = "latest";
+
+    private static final String KEY_PERCENTAGE = "alternativePercentage";
+    private static final String KEY_FILE_NAME = "fileName";
+    private static final String KEY_OUTDATED = "isOutdated";
+
+    @Override
+    public String getName() {
+        return "confluence";
+    }
+
+    @Override
+    public String getProductUrl(final String instanceUrl) {
+        final String siteUrl = instanceUrl.endsWith("/") ? instanceUrl.substring(0, instanceUrl.length() - 1)
+                : instanceUrl;
+
+        return siteUrl.endsWith("/wiki") ? siteUrl : siteUrl + "/wiki";
+    }
+
+    @Override
+    public String getBackupPath() {
+        // --data-binary '{"cbAttachments":"true", "exportToCloud":"true"}'
+        // --request POST "https://${INSTANCE}/wiki/rest/obm/1.0/runbackup"
+        return "/rest/obm/1.0/runbackup";
+    }
+
+    @Override
+    public String getBackupRequestBody() {
+        return "{\"cbAttachments\":\"true\", \"exportToCloud\":\"true\"}";
+    }
+
+    @Override
+    public Optional<String> readTaskID(final int status, final String body) {
+        // A started backup is acknowledged without a body, a refused one explains why
+        return status == 200 || status == 204 ? Optional.of(TASK_ID) : Optional.empty();
+    }
+
+    @Override
+    public String getProgressPath(final String taskID) {
+        // "https://${INSTANCE}/wiki/rest/obm/1.0/getprogress.json"
+        return "/rest/obm/1.0/getprogress.json";
+    }
+
+    @Override
+    public Optional<ExportProgress> readProgress(final JSONObject body) {
+        final String fileName = body.optString(KEY_FILE_NAME, "");
+
+        // The file of the previous backup, the requested one has not started yet
+        if (body.optBoolean(KEY_OUTDATED, false)) return Optional.of(new ExportProgress(0, null));
+
+        // File name example: temp/filestore/b1d6e8b2-5a4d-4a0b-9f8e-0b4b7b6c1f3e
+        if (!fileName.isEmpty()) return Optional.of(new ExportProgress(100, fileName));
+
+        if (!body.has(KEY_PERCENTAGE)) return Optional.empty();
+
+        // The percentage is a text such as "45%", or a status while the backup is being prepared
+        final String percentage = body.get(KEY_PERCENTAGE).toString().replaceAll("[^0-9]", "");
+
+        return Optional.of(new ExportProgress(
+                percentage.isEmpty() ? 0 : Math.min(Integer.parseInt(percentage), 99), null));
+    }
+
+    @Override
+    public String getDownloadPath(final String backupFileUrl) {
+        // 'https://${INSTANCE}/wiki/download/${FILE_NAME}'
+        return "/download/" + backupFileUrl;
+    }
+}
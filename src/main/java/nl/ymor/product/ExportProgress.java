@@ -0,0 +1,42 @@
+package nl.ymor.product;
+
+/**
+ * Progress of a backup that is being exported, as reported by the product
+ */
+public class ExportProgress {
+
+    private final int percentage;
+    private final String backupFileUrl;
+    private final String failure;
+
+    public ExportProgress(final int percentage, final String backupFileUrl) {
+        this(percentage, backupFileUrl, null);
+    }
+
+    /**
+     * @param failure Reason the export failed, null while it has not
+     */
+    public ExportProgress(final int percentage, final String backupFileUrl, final String failure) {
+        this.percentage = percentage;
+        this.backupFileUrl = backupFileUrl;
+        this.failure = failure;
+    }
+
+    public int getPercentage() {
+        return percentage;
+    }
+
+    /**
+     * @return Partial URL of the backup file, null until the backup is exported
+     */
+    public String getBackupFileUrl() {
+        return backupFileUrl;
+    }
+
+    /**
+     * @return Reason the export failed, null while it has not
+     */
+    public String getFailure() {
+        return failure;
+    }
+}
@@ -0,0 +1,79 @@
+package nl.ymor.product;
+
+import com.mashape.unirest.http.JsonNode;
+import org.json.JSONObject;
+
+import java.util.Optional;
+
+/**
+ * Backup API of Jira Cloud: {@code runbackup} answers with a task ID, {@code getProgress} reports the progress of
+ * the task in percent, and the finished backup is downloaded through the download servlet.
+ */
+class JiraProduct implements Product {
+
+    private static final String KEY_TASK_ID = "taskId";
+    private static final String KEY_PROGRESS = "progress";
+    private static final String KEY_BACKUP_FILE_URL = "result";
+    private static final String KEY_STATUS = "status";
+    private static final String KEY_MESSAGE = "message";
+    private static final String STATUS_FAILED = "Failed";
+
+    @Override
+    public String getName() {
+        return "jira";
+    }
+
+    @Override
+    public String getProductUrl(final String instanceUrl) {
+        return instanceUrl;
+    }
+
+    @Override
+    public String getBackupPath() {
+        // --data-binary '{"cbAttachments":"true", "exportToCloud":"true"}'
+        // --request POST "https://${INSTANCE}/rest/backup/1/export/runbackup"
+        return "/rest/backup/1/export/runbackup";
+    }
+
+    @Override
+    public String getBackupRequestBody() {
+        return "{\"cbAttachments\":\"true\", \"exportToCloud\":\"true\"}";
+    }
+
+    @Override
+    public Optional<String> readTaskID(final int status, final String body) {
+        // The response can also be HTML (e.g. if the user is unauthorized), only a 200 response holds JSON for sure
+        if (status != 200 || body == null || body.isEmpty()) return Optional.empty();
+
+        final JSONObject response = new JsonNode(body).getObject();
+
+        return response.has(KEY_TASK_ID) ? Optional.of(response.get(KEY_TASK_ID).toString()) : Optional.empty();
+    }
+
+    @Override
+    public String getProgressPath(final String taskID) {
+        // "https://${INSTANCE}/rest/backup/1/export/getProgress?taskId=${TASK_ID}"
+        return "/rest/backup/1/export/getProgress?taskId=" + taskID;
+    }
+
+    @Override
+    public Optional<ExportProgress> readProgress(final JSONObject body) {
+        if (STATUS_FAILED.equalsIgnoreCase(body.optString(KEY_STATUS))) {
+            return Optional.of(new ExportProgress(0, null, body.optString(KEY_MESSAGE, STATUS_FAILED)));
+        }
+
+        if (!body.has(KEY_PROGRESS)) return Optional.empty();
+
+        final int percentage = Integer.parseInt(body.get(KEY_PROGRESS).toString());
+
+        // Backup File URL example: export/download/?fileId=11f959da-1c70-4519-8e6f-633748f7b832
+        return Optional.of(new ExportProgress(percentage,
+                percentage == 100 ? body.get(KEY_BACKUP_FILE_URL).toString() : null));
+    }
+
+    @Override
+    public String getDownloadPath(final String backupFileUrl) {
+        // 'https://${INSTANCE}/plugins/servlet/export/download/?fileId=${FILE_ID}'
+        return "/plugins/servlet/" + backupFileUrl;
+    }
+}
@@ -0,0 +1,78 @@
+package nl.ymor.product;
+
+import org.json.JSONObject;
+
+import java.util.Optional;
+
+/**
+ * Endpoints and responses of the backup API of one Atlassian Cloud product. The backup engine requests a backup,
+ * checks its progress and downloads the archive the same way for every product, the product tells it where to send
+ * the requests and how to read the answers.
+ * <p>
+ * All paths are relative to the {@link #getProductUrl(String) product URL}, which also names the backups of the
+ * product in logs, metrics and saved state, so the products of one site do not get in each other's way.
+ */
+public interface Product {
+
+    Product JIRA = new JiraProduct();
+    Product CONFLUENCE = new ConfluenceProduct();
+
+    /**
+     * @param name Name of the product, case insensitive
+     * @return Product with the name
+     * @throws IllegalArgumentException if there is no such product
+     */
+    static Product forName(final String name) {
+        for (final Product product : new Product[]{JIRA, CONFLUENCE}) {
+            if (product.getName().equalsIgnoreCase(String.valueOf(name).trim())) return product;
+        }
+
+        throw new IllegalArgumentException(String.format("Unknown product '%s', expected %s or %s",
+                name, JIRA.getName(), CONFLUENCE.getName()));
+    }
+
+    /**
+     * @return Name of the product, as given on the command line
+     */
+    String getName();
+
+    /**
+     * @param instanceUrl URL of the Atlassian site
+     * @return URL of the product on the site
+     */
+    String getProductUrl(String instanceUrl);
+
+    /**
+     * @return Path of the endpoint that starts a backup
+     */
+    String getBackupPath();
+
+    /**
+     * @return JSON body of the request that starts a backup
+     */
+    String getBackupRequestBody();
+
+    /**
+     * @param status HTTP status of the response to the backup request
+     * @param body   Body of the response, which may also be HTML
+     * @return ID of the backup task, empty if the backup was not started
+     */
+    Optional<String> readTaskID(int status, String body);
+
+    /**
+     * @return Path of the endpoint that reports the progress of a backup task
+     */
+    String getProgressPath(String taskID);
+
+    /**
+     * @param body JSON body of a successful progress response
+     * @return Progress of the backup, empty if the body reports none
+     */
+    Optional<ExportProgress> readProgress(JSONObject body);
+
+    /**
+     * @param backupFileUrl Partial URL of the backup file, as reported by {@link #readProgress(JSONObject)}
+     * @return Path to download the backup file from
+     */
+    String getDownloadPath(String backupFileUrl);
+}
@@ -5,52 +5,150 @@ import com.beust.jcommander.ParameterException;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.exceptions.UnirestException;
-import com.mashape.unirest.http.utils.Base64Coder;
+import nl.ymor.archive.ArchiveExtractor;
+import nl.ymor.archive.ArchiveIndex;
+import nl.ymor.archive.ArchiveInspector;
+import nl.ymor.archive.ArchiveStore;
+import nl.ymor.archive.AttachmentIndex;
+import nl.ymor.archive.ChecksumFile;
+import nl.ymor.archive.ChunkedCipher;
+import nl.ymor.archive.ZipCentralDirectory;
+import nl.ymor.archive.ZipReencoder;
+import nl.ymor.bandwidth.BandwidthLimiter;
+import nl.ymor.bandwidth.Throttle;
+import nl.ymor.metrics.BackupMetrics;
 import nl.ymor.model.Arguments;
-import org.json.JSONObject;
+import nl.ymor.model.JobState;
+import nl.ymor.product.ExportProgress;
+import nl.ymor.product.Product;
+import nl.ymor.sink.ArchiveCatalog;
+import nl.ymor.sink.ArchiveWriter;
+import nl.ymor.sink.BackupSink;
+import nl.ymor.sink.BackupSinkFactory;
+import nl.ymor.sink.InspectingWriter;
+import nl.ymor.sink.ReencodingWriter;
+import nl.ymor.sink.RetentionPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.time.format.TextStyle;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.Locale;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
+
 
 @SuppressWarnings({"squid:S1192", "squid:S00116", "squid:S1170"})
 @Service
-public class BackupService {
+public class BackupService implements Closeable {
 
     private static final Logger LOG = LoggerFactory.getLogger(BackupService.class);
-    private static final String CHECK_PROGRESS_ENDPOINT = "https://%s/rest/backup/1/export/getProgress?taskId=%s";
+    private static final String NO_REENCODING = "none";
+    private static final String ZSTD = "zstd";
+    private static final long JOB_SAVE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final DateTimeFormatter INCREMENTAL_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+    private static final DateTimeFormatter ARCHIVE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
 
     @Value("${archive.file.name.extension}")
     protected String archiveFileName;
+    @Value("${archive.file.name.confluence}")
+    protected String confluenceArchiveFileName;
     @Value("${maximum.progress.check.times}")
     protected String progressChecks;
+    @Value("${maximum.progress.check.minutes}")
+    protected String progressCheckMinutes;
     @Value("${pause.milliseconds.between.progress.checks}")
     protected String sleepTimeMillis;
+    @Value("${maximum.pause.milliseconds.between.progress.checks}")
+    protected String maxSleepTimeMillis;
+    @Value("${download.chunk.size.bytes}")
+    protected String chunkSizeBytes;
+    @Value("${download.concurrency}")
+    protected String downloadConcurrency;
+    @Value("${download.resume}")
+    protected String resumeDownload;
+    @Value("${download.buffer.size.bytes}")
+    protected String bufferSizeBytes;
+    @Value("${archive.checksum}")
+    protected String checksumArchive;
+    @Value("${archive.verify}")
+    protected String verifyArchive;
+    @Value("${archive.store.directory}")
+    protected String storeDirectory;
+    @Value("${archive.store.keep.archive}")
+    protected String keepStoredArchive;
+    @Value("${archive.reencode}")
+    protected String reencodeArchive;
+    @Value("${archive.reencode.level}")
+    protected String reencodeLevel;
+    @Value("${archive.reencode.workers}")
+    protected String reencodeWorkers;
+    @Value("${archive.encrypt}")
+    protected String encryptArchive;
+    @Value("${archive.encryption.key.file}")
+    protected String encryptionKeyFile;
+    @Value("${archive.encryption.key}")
+    protected String encryptionKey;
+    @Value("${archive.encryption.chunk.size.bytes}")
+    protected String encryptionChunkSizeBytes;
+    @Value("${archive.incremental.index.directory}")
+    protected String incrementalIndexDirectory;
+    @Value("${archive.inspect}")
+    protected String inspectArchive;
+    @Value("${archive.file.name.timestamp}")
+    protected String timestampArchive;
+    @Value("${retention.daily}")
+    protected String retentionDaily;
+    @Value("${retention.weekly}")
+    protected String retentionWeekly;
+    @Value("${retention.monthly}")
+    protected String retentionMonthly;
+    @Value("${retention.delete.concurrency}")
+    protected String retentionDeleteConcurrency;
     private final ZoneId TIME_ZONE = ZoneId.systemDefault();
 
-    private static final String KEY_PROGRESS = "progress";
-    private static final String KEY_BACKUP_FILE_URL = "result";
-    public final String KEY_TASK_ID = "taskId";
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
     private Arguments arguments;
     private RestClient restClient;
+    private BackupSinkFactory sinkFactory;
+    private BackupMetrics metrics;
+    private BandwidthLimiter bandwidthLimiter;
+    private JobStateStore jobStateStore;
     private Instant startTime;
+    private LocalDateTime archiveTime;
 
-    public BackupService(final Arguments arguments, final RestClient restClient) {
+    public BackupService(final Arguments arguments, final RestClient restClient,
+                         final BackupSinkFactory sinkFactory, final BackupMetrics metrics,
+                         final BandwidthLimiter bandwidthLimiter, final JobStateStore jobStateStore) {
         this.arguments = arguments;
         this.restClient = restClient;
+        this.sinkFactory = sinkFactory;
+        this.metrics = metrics;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.jobStateStore = jobStateStore;
     }
 
     /**
@@ -64,10 +162,10 @@ public class BackupService {
 
         try {
             argumentParser.parse(args);
+            Product.forName(arguments.getProduct());
 
-            arguments.setAuthorization(
-                    "Basic " + Base64Coder.encodeString(arguments.getUser() + ":" + arguments.getApiToken()));
-        } catch (final ParameterException e) {
+            arguments.setAuthorization(getAuthorization(arguments.getUser(), arguments.getApiToken()));
+        } catch (final ParameterException | IllegalArgumentException e) {
             LOG.error(e.getMessage());
             argumentParser.usage();
 
@@ -77,6 +175,115 @@ public class BackupService {
         return true;
     }
 
+    /**
+     * Create a service that backs up another instance with the same settings as this service
+     *
+     * @param instanceArguments Arguments of the other instance, including the authorization
+     * @return Service with its own REST client, to be closed when the backup of the instance is done
+     */
+    public BackupService forInstance(final Arguments instanceArguments) {
+        final BackupService service = new BackupService(instanceArguments, restClient.forInstance(instanceArguments),
+                sinkFactory, metrics, bandwidthLimiter, jobStateStore);
+
+        service.archiveFileName = archiveFileName;
+        service.confluenceArchiveFileName = confluenceArchiveFileName;
+        service.progressChecks = progressChecks;
+        service.progressCheckMinutes = progressCheckMinutes;
+        service.sleepTimeMillis = sleepTimeMillis;
+        service.maxSleepTimeMillis = maxSleepTimeMillis;
+        service.chunkSizeBytes = chunkSizeBytes;
+        service.downloadConcurrency = downloadConcurrency;
+        service.resumeDownload = resumeDownload;
+        service.bufferSizeBytes = bufferSizeBytes;
+        service.checksumArchive = checksumArchive;
+        service.verifyArchive = verifyArchive;
+        service.storeDirectory = storeDirectory;
+        service.keepStoredArchive = keepStoredArchive;
+        service.reencodeArchive = reencodeArchive;
+        service.reencodeLevel = reencodeLevel;
+        service.reencodeWorkers = reencodeWorkers;
+        service.encryptArchive = encryptArchive;
+        service.encryptionKeyFile = encryptionKeyFile;
+        service.encryptionKey = encryptionKey;
+        service.encryptionChunkSizeBytes = encryptionChunkSizeBytes;
+        service.incrementalIndexDirectory = incrementalIndexDirectory;
+        service.inspectArchive = inspectArchive;
+        service.timestampArchive = timestampArchive;
+        service.retentionDaily = retentionDaily;
+        service.retentionWeekly = retentionWeekly;
+        service.retentionMonthly = retentionMonthly;
+        service.retentionDeleteConcurrency = retentionDeleteConcurrency;
+
+        return service;
+    }
+
+    /**
+     * Close the connection pool of the REST client. A pool that cannot be closed is left to the idle eviction.
+     */
+    @Override
+    public void close() {
+        try {
+            restClient.close();
+        } catch (final IOException e) {
+            LOG.warn("Cannot close the connections to {}: {}", productUrl(), e.getMessage());
+        }
+    }
+
+    public Arguments getArguments() {
+        return arguments;
+    }
+
+    /**
+     * @return Product that is backed up
+     */
+    private Product getProduct() {
+        return Product.forName(arguments.getProduct());
+    }
+
+    /**
+     * @return URL of the product that is backed up, which names its backups in logs, metrics and saved state
+     */
+    public static String getProductUrl(final Arguments arguments) {
+        return Product.forName(arguments.getProduct()).getProductUrl(arguments.getInstanceUrl());
+    }
+
+    private String productUrl() {
+        return getProductUrl(arguments);
+    }
+
+    /**
+     * @return File name of the archive of the product, with the time of the backup while a timestamped archive is
+     * downloaded
+     */
+    private String getArchiveFileName() {
+        if (archiveTime == null) return getBaseFileName();
+
+        return timestamped(getBaseFileName(), archiveTime.format(ARCHIVE_TIME));
+    }
+
+    /**
+     * @return File name of the archive of the product as configured
+     */
+    private String getBaseFileName() {
+        return getProduct() == Product.CONFLUENCE ? confluenceArchiveFileName : archiveFileName;
+    }
+
+    /**
+     * @return File name with a time before its extension
+     */
+    private static String timestamped(final String fileName, final String time) {
+        final int dot = fileName.lastIndexOf('.');
+
+        return dot < 0 ? fileName + "-" + time : fileName.substring(0, dot) + "-" + time + fileName.substring(dot);
+    }
+
+    /**
+     * @return Value of the basic authorization header for the given user
+     */
+    public static String getAuthorization(final String user, final String apiToken) {
+        return "Basic " + Base64.getEncoder().encodeToString((user + ":" + apiToken).getBytes(StandardCharsets.UTF_8));
+    }
+
     public HttpResponse<String> requestBackup() throws UnirestException {
         // Save the start time
         startTime = Instant.now();
@@ -85,70 +292,593 @@ public class BackupService {
                 startTime.atZone(TIME_ZONE).toLocalDateTime(),
                 TIME_ZONE.getDisplayName(TextStyle.SHORT, Locale.ENGLISH));
 
-        return restClient.doBackupRequest();
+        final HttpResponse<String> backupResponse = restClient.doBackupRequest();
+
+        if (backupResponse != null) {
+            metrics.recordBackupRequest(productUrl(), backupResponse.getStatus(),
+                    Duration.between(startTime, Instant.now()));
+        }
+
+        return backupResponse;
+    }
+
+    /**
+     * @return Task ID of a backup that an earlier process requested and did not finish, to reattach to instead of
+     * requesting another backup
+     */
+    public Optional<String> getSavedTaskID() {
+        final Optional<JobState> job = jobStateStore.load(productUrl());
+
+        job.ifPresent(state -> LOG.info("Reattaching to backup task {}, requested at {} and {} since",
+                state.getTaskID(), state.getStartTime().atZone(TIME_ZONE).toLocalDateTime(),
+                state.getPhase() == JobState.Phase.EXPORTING ? "exporting" : "downloading"));
+
+        return job.map(JobState::getTaskID);
+    }
+
+    /**
+     * Forget the saved job of the instance after a failure that reattaching to its task cannot fix, so the next run
+     * requests a new backup
+     */
+    public void forgetJob() {
+        jobStateStore.load(productUrl()).ifPresent(job -> {
+            LOG.info("Forgetting backup task {}, the next run requests a new backup", job.getTaskID());
+            jobStateStore.remove(productUrl());
+        });
     }
 
-    @SuppressWarnings("squid:ForLoopCounterChangedCheck")
     public Optional<String> getBackupFileUrl(final String taskID) throws UnirestException, InterruptedException {
-        final int progressCheckCount = Integer.parseInt(progressChecks);
-        final int sleepTime = Integer.parseInt(sleepTimeMillis);
+        final ProgressPoll progressPoll = startProgressPoll(taskID);
 
-        for (int i = 0, progressPercentage = 0; i < progressCheckCount && progressPercentage < 100; i++) {
-            final String progressCheckUrl = String.format(CHECK_PROGRESS_ENDPOINT, arguments.getInstanceUrl(), taskID);
+        checkProgress(progressPoll);
 
-            final HttpResponse<JsonNode> progressResponse = restClient.doProgressCheckRequest(progressCheckUrl);
-            final JSONObject responseBody = progressResponse.getBody().getObject();
+        while (!progressPoll.isFinished()) {
+            Thread.sleep(progressPoll.getPauseMillis());
+            checkProgress(progressPoll);
+        }
 
-            if (progressResponse.getStatus() == HttpURLConnection.HTTP_OK && responseBody.has(KEY_PROGRESS)) {
-                progressPercentage =
-                        Integer.valueOf(responseBody.get(KEY_PROGRESS).toString());
+        return progressPoll.getBackupFileUrl();
+    }
 
-                LOG.info("Backup progress: {}", progressPercentage);
+    /**
+     * Prepare the progress checks of a backup task, to be performed one by one with
+     * {@link #checkProgress(ProgressPoll)}
+     */
+    public ProgressPoll startProgressPoll(final String taskID) {
+        final ProgressPoll progressPoll = new ProgressPoll(taskID, new ProgressPollScheduler(
+                Long.parseLong(sleepTimeMillis), Long.parseLong(maxSleepTimeMillis)), Integer.parseInt(progressChecks),
+                TimeUnit.MINUTES.toMillis(Long.parseLong(progressCheckMinutes)));
+        final Optional<JobState> job = loadJob(taskID);
+
+        if (!job.isPresent()) {
+            jobStateStore.save(JobState.exporting(productUrl(), taskID));
+        } else if (job.get().getBackupFileUrl() != null) {
+            progressPoll.completed(job.get().getBackupFileUrl());
+        }
 
-                if (progressPercentage == 100) {
-                    LOG.info("Backup finished successfully.");
+        return progressPoll;
+    }
+
+    /**
+     * @return Saved state of the job of a task on this instance
+     */
+    private Optional<JobState> loadJob(final String taskID) {
+        return jobStateStore.load(productUrl()).filter(state -> state.getTaskID().equals(taskID));
+    }
+
+    /**
+     * Check the progress of a backup task once, without waiting. The poll tells whether the backup file is ready
+     * and otherwise how long to wait before the next check.
+     */
+    public void checkProgress(final ProgressPoll progressPoll) throws UnirestException {
+        // The backup file of a reattached task may be ready already
+        if (progressPoll.getBackupFileUrl().isPresent()) return;
+
+        final String progressCheckUrl =
+                RestClient.getBaseUrl(productUrl()) + getProduct().getProgressPath(progressPoll.getTaskID());
+
+        final HttpResponse<JsonNode> progressResponse = restClient.doProgressCheckRequest(progressCheckUrl);
+        final String retryAfterHeader = RestClient.getHeader(progressResponse, HEADER_RETRY_AFTER);
+        final long retryAfter = ProgressPollScheduler.parseRetryAfter(retryAfterHeader, System.currentTimeMillis());
+
+        if (retryAfterHeader != null && (progressResponse.getStatus() == HTTP_TOO_MANY_REQUESTS ||
+                progressResponse.getStatus() == HttpURLConnection.HTTP_UNAVAILABLE)) {
+            final long pauseMillis = progressPoll.getScheduler().retryPause(retryAfter);
+            LOG.info("Server asked to retry the progress check in {} ms, retrying in {} ms", retryAfter, pauseMillis);
+            metrics.recordRetry(productUrl(), "progress_check_throttled");
+
+            progressPoll.checked(pauseMillis);
+            return;
+        }
+
+        final Optional<ExportProgress> progress = progressResponse.getStatus() == HttpURLConnection.HTTP_OK
+                ? getProduct().readProgress(progressResponse.getBody().getObject()) : Optional.empty();
+
+        if (progress.isPresent() && progress.get().getFailure() != null) {
+            throw new TaskFailedException(String.format("Backup task %s failed: %s",
+                    progressPoll.getTaskID(), progress.get().getFailure()));
+        }
+
+        if (progress.isPresent()) {
+            final int progressPercentage = progress.get().getPercentage();
+
+            LOG.info("Backup progress: {}", progressPercentage);
+            metrics.recordProgressCheck(productUrl(), progressPercentage);
+
+            if (progress.get().getBackupFileUrl() != null) {
+                LOG.info("Backup finished successfully.");
 
-                    return Optional.of(responseBody.get(KEY_BACKUP_FILE_URL).toString());
-                    // Backup File URL example: export/download/?fileId=11f959da-1c70-4519-8e6f-633748f7b832
+                if (startTime != null) {
+                    metrics.recordExportCompleted(productUrl(),
+                            Duration.between(startTime, Instant.now()));
                 }
 
-                Thread.sleep(sleepTime);
-            } else {
-                throw new UnirestException(String.format("Cannot check progress. Response from server: %s",
-                        progressResponse.getStatus()));
+                progressPoll.completed(progress.get().getBackupFileUrl());
+                jobStateStore.save(loadJob(progressPoll.getTaskID())
+                        .orElseGet(() -> JobState.exporting(productUrl(), progressPoll.getTaskID()))
+                        .downloading(progress.get().getBackupFileUrl()));
+                return;
             }
-        }
 
-        return Optional.empty();
+            progressPoll.checked(progressPoll.getScheduler()
+                    .nextPause(progressPercentage, System.currentTimeMillis(), retryAfter));
+        } else {
+            // A task that is refused is gone and polling it again will not help, a server error may pass
+            throw TaskFailedException.forStatus(progressResponse.getStatus(), String.format(
+                    "Cannot check progress. Response from server: %s", progressResponse.getStatus()));
+        }
     }
 
     public void downloadBackupFile(final String backupFilePartialURL) throws UnirestException, IOException {
-        final String instance = arguments.getInstanceUrl();
-        final String downloadDirectory = arguments.getDirectory();
+        final String instance = productUrl();
+
+        archiveTime = getArchiveTime();
+
+        final int concurrency = Integer.parseInt(downloadConcurrency);
+        final StreamingTransfer transfer = new StreamingTransfer(Integer.parseInt(bufferSizeBytes), concurrency,
+                recordingDownload(bandwidthLimiter.forInstance(instance)));
+        final RangedDownloader rangedDownloader =
+                new RangedDownloader(restClient, transfer, Long.parseLong(chunkSizeBytes), concurrency, metrics);
+        final OptionalLong archiveSize = rangedDownloader.probe(backupFilePartialURL, instance);
+
+        final Instant downloadStartTime = Instant.now();
+        final long downloadedBytes;
+
+        try (BackupSink sink = sinkFactory.create(arguments.getDirectory(), instance)) {
+            if (archiveSize.isPresent()) {
+                LOG.info("Downloading now: {} ({} bytes over {} connections, this may take a while)",
+                        backupFilePartialURL, archiveSize.getAsLong(), concurrency);
+
+                final boolean transformed = isReencoding() || isEncrypting();
+                final MessageDigest savedDigest = transformed ? newDigest() : null;
+
+                try (ArchiveWriter writer = openArchive(sink, archiveSize.getAsLong(),
+                        Boolean.parseBoolean(resumeDownload), savedDigest)) {
+                    // Ranges that complete out of order can only be digested if the archive can be read back
+                    final boolean readBack = writer.getChannel().isPresent();
+                    final MessageDigest digest = transformed || !readBack ? null : newDigest();
+
+                    downloadedBytes = rangedDownloader.download(
+                            backupFilePartialURL, instance, writer, archiveSize.getAsLong(), digest);
+                    // The re-encoder writes in order, so only an archive that is just encrypted has to be read back
+                    saveBackupFile(sink, writer, !transformed ? digest
+                            : isReencoding() || readBack ? savedDigest : null);
+                }
+            } else {
+                LOG.info("Downloading now: {} (this may take a while)", backupFilePartialURL);
 
-        LOG.info("Downloading now: {} (this may take a while)", backupFilePartialURL);
-        final HttpResponse<InputStream> downloadRequest = restClient.doDownloadRequest(backupFilePartialURL, instance);
+                try (DownloadStream downloadStream = restClient.doDownloadRequest(backupFilePartialURL, instance)) {
+                    metrics.recordTimeToFirstByte(instance, Duration.between(downloadStartTime, Instant.now()));
 
-        if (downloadRequest.getStatus() == HttpURLConnection.HTTP_OK) {
-            LOG.info("Downloaded the backup file. Saving to {}", downloadDirectory);
+                    if (downloadStream.getStatus() != HttpURLConnection.HTTP_OK) {
+                        throw TaskFailedException.forStatus(downloadStream.getStatus(), String.format(
+                                "Cannot download file: %s%nDownload response: %s",
+                                backupFilePartialURL, downloadStream.getStatus()));
+                    }
 
-            final InputStream inputStream = downloadRequest.getRawBody();
-            Files.copy(inputStream, Paths.get(downloadDirectory, archiveFileName), StandardCopyOption.REPLACE_EXISTING);
+                    LOG.info("Saving the backup file to {}", sink.getLocation());
 
-            LOG.info("Saved the backup file to {}", downloadDirectory);
+                    final MessageDigest digest = newDigest();
 
-            inputStream.close();
-        } else {
-            throw new UnirestException(String.format("Cannot download file: %s%nDownload response: %s",
-                    backupFilePartialURL, downloadRequest.getStatus()));
+                    final boolean transformed = isReencoding() || isEncrypting();
+
+                    try (ArchiveWriter writer = openArchive(sink, -1, false, transformed ? digest : null)) {
+                        downloadedBytes = transfer.transfer(downloadStream.getChannel(), writer, 0, Long.MAX_VALUE,
+                                transformed ? null : digest);
+                        saveBackupFile(sink, writer, digest);
+                    }
+                }
+            }
         }
 
-        // Log the result with duration
+        metrics.recordDownload(instance, downloadedBytes, Duration.between(downloadStartTime, Instant.now()));
+        jobStateStore.remove(instance);
+
+        // Log the result with duration, counted from the download if this service did not request the backup
         final Instant endTime = Instant.now();
         LOG.info("Backup job succeeded on {} {} and it took {} seconds",
                 endTime.atZone(TIME_ZONE).toLocalDateTime(),
                 TIME_ZONE.getDisplayName(TextStyle.SHORT, Locale.ENGLISH),
-                Duration.between(startTime, endTime));
+                Duration.between(startTime == null ? downloadStartTime : startTime, endTime));
     }
 
+    /**
+     * @return Time to name the archive after, null if the archive has a fixed name. A resumed job keeps the time it
+     * started at, so it finds the partial archive of the earlier attempt.
+     */
+    private LocalDateTime getArchiveTime() {
+        if (!Boolean.parseBoolean(timestampArchive)) return null;
+
+        if (!incrementalIndexDirectory.trim().isEmpty()) {
+            LOG.warn("Not adding a timestamp to the backup file, an incremental backup file has one of its own");
+            return null;
+        }
+
+        return jobStateStore.load(productUrl())
+                .map(job -> LocalDateTime.ofInstant(job.getStartTime(), TIME_ZONE))
+                .orElseGet(LocalDateTime::now)
+                .truncatedTo(ChronoUnit.SECONDS);
+    }
+
+    /**
+     * Record the downloaded bytes in the state of the job, at most once per second, on their way to the throttle
+     */
+    private Throttle recordingDownload(final Throttle throttle) {
+        final Optional<JobState> job = jobStateStore.load(productUrl());
+
+        if (!job.isPresent()) return throttle;
+
+        final AtomicLong downloadedBytes = new AtomicLong();
+        final AtomicLong nextSave = new AtomicLong(System.nanoTime() + JOB_SAVE_INTERVAL_NANOS);
+
+        return bytes -> {
+            final long downloaded = downloadedBytes.addAndGet(bytes);
+            final long now = System.nanoTime();
+            final long due = nextSave.get();
+
+            if (now - due >= 0 && nextSave.compareAndSet(due, now + JOB_SAVE_INTERVAL_NANOS)) {
+                jobStateStore.save(job.get().downloaded(downloaded));
+            }
+
+            throttle.acquire(bytes);
+        };
+    }
+
+    /**
+     * @return true if the archive is re-encoded on its way to the sink, see {@link ZipReencoder}
+     */
+    private boolean isReencoding() {
+        if (NO_REENCODING.equalsIgnoreCase(reencodeArchive)) return false;
+        if (ZSTD.equalsIgnoreCase(reencodeArchive)) return true;
+
+        throw new IllegalArgumentException("Unknown archive encoding: " + reencodeArchive);
+    }
+
+    /**
+     * @return true if the archive is encrypted on its way to the sink, see {@link ChunkedCipher}
+     */
+    private boolean isEncrypting() {
+        return Boolean.parseBoolean(encryptArchive);
+    }
+
+    /**
+     * @return File name of the archive in the sink
+     */
+    private String getSavedFileName() {
+        return isEncrypting() ? getArchiveFileName() + ChunkedCipher.EXTENSION : getArchiveFileName();
+    }
+
+    /**
+     * Open the archive in the sink, behind a re-encoder if the archive is re-encoded and behind an encrypter if the
+     * archive is encrypted. The archive is re-encoded before it is encrypted.
+     *
+     * @param savedDigest Digest to compute over the re-encoded or encrypted archive, may be null
+     */
+    private ArchiveWriter openArchive(final BackupSink sink, final long size, final boolean resume,
+                                      final MessageDigest savedDigest) throws IOException {
+        if (!isReencoding() && !isEncrypting()) return inspecting(sink.open(getArchiveFileName(), size, resume), sink);
+
+        if (Boolean.parseBoolean(inspectArchive)) LOG.warn("Cannot inspect a re-encoded or encrypted backup file");
+
+        // The size of the re-encoded archive is only known at its end, and it is written in one go
+        final long savedSize = isReencoding() ? -1 : size;
+        final ArchiveWriter target = isEncrypting()
+                ? openEncrypted(sink, savedSize, savedDigest) : sink.open(getArchiveFileName(), -1, false);
+
+        if (!isReencoding()) return target;
+
+        final int workers = Integer.parseInt(reencodeWorkers);
+
+        return new ReencodingWriter(target,
+                new ZipReencoder(Integer.parseInt(reencodeLevel),
+                        workers > 0 ? workers : Runtime.getRuntime().availableProcessors()),
+                isEncrypting() ? null : savedDigest);
+    }
+
+    /**
+     * Inspect the archive on its way to the sink if wanted, see {@link ArchiveInspector}
+     */
+    private ArchiveWriter inspecting(final ArchiveWriter writer, final BackupSink sink) {
+        if (!Boolean.parseBoolean(inspectArchive)) return writer;
+
+        if (!incrementalIndexDirectory.trim().isEmpty()) {
+            // The index would point into the downloaded archive, which the incremental archive replaces
+            LOG.warn("Cannot inspect the backup file of an incremental backup");
+        } else if (!writer.getChannel().isPresent()) {
+            LOG.warn("Cannot inspect the backup file, {} does not keep it locally", sink.getLocation());
+        } else {
+            return new InspectingWriter(writer, new ArchiveInspector());
+        }
+
+        return writer;
+    }
+
+    /**
+     * Open the archive in the sink behind an encrypter, which cannot resume an earlier attempt
+     *
+     * @param size   Size of the archive before it is encrypted, -1 if it is not known in advance
+     * @param digest Digest to compute over the encrypted archive, may be null
+     */
+    private ArchiveWriter openEncrypted(final BackupSink sink, final long size, final MessageDigest digest)
+            throws IOException {
+        final ChunkedCipher cipher = new ChunkedCipher(ChunkedCipher.readKey(encryptionKeyFile, encryptionKey));
+        final int chunkSize = Integer.parseInt(encryptionChunkSizeBytes);
+        final ArchiveWriter target = sink.open(getSavedFileName(),
+                size < 0 ? -1 : ChunkedCipher.encryptedSize(size, chunkSize), false);
+
+        // Chunks that are sealed out of order can only be digested if the encrypted archive can be read back
+        final boolean digestible = size < 0 || target.getChannel().isPresent();
+
+        try {
+            return new EncryptingWriter(target, cipher, chunkSize, size, digestible ? digest : null);
+        } catch (final IOException | RuntimeException e) {
+            target.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Digest to compute the checksum of the archive with, null if no checksum is wanted
+     */
+    private MessageDigest newDigest() {
+        return Boolean.parseBoolean(checksumArchive) ? ChecksumFile.newDigest() : null;
+    }
+
+    /**
+     * Verify and commit a downloaded archive, save its checksum, add it to the archive store and prune old archives
+     */
+    private void saveBackupFile(final BackupSink sink, final ArchiveWriter writer, final MessageDigest digest)
+            throws IOException {
+        writer.finish();
+
+        // Verify before the commit, so a broken archive never replaces a good one
+        if (Boolean.parseBoolean(verifyArchive)) {
+            if (isEncrypting()) {
+                LOG.info("Cannot verify an encrypted backup file, it is verified when it is decrypted");
+            } else if (writer.getChannel().isPresent()) {
+                verifyBackupFile(writer.getChannel().get(), sink.getLocation());
+            } else {
+                LOG.info("Cannot verify the backup file, {} does not keep it locally", sink.getLocation());
+            }
+        }
+
+        writer.commit();
+
+        LOG.info("Saved the backup file to {}", sink.getLocation());
+
+        // Files that belong to the archive, which are pruned with it
+        final List<String> files = new ArrayList<>();
+        final Optional<ArchiveIndex> index = writer instanceof InspectingWriter
+                ? ((InspectingWriter) writer).getIndex() : Optional.empty();
+
+        if (index.isPresent()) {
+            sink.writeFile(getArchiveFileName() + ArchiveIndex.EXTENSION, index.get().content());
+            files.add(getArchiveFileName() + ArchiveIndex.EXTENSION);
+            LOG.info("Saved the index of the backup file to {}", sink.getLocation());
+        }
+
+        if (!incrementalIndexDirectory.trim().isEmpty()) {
+            if (isEncrypting() || isReencoding()) {
+                LOG.warn("Cannot make an incremental backup of an encrypted or re-encoded backup file");
+            } else if (writer.getLocalPath().isPresent()) {
+                // The incremental archive replaces the backup file, and takes the place of the archive store
+                saveIncrementalBackupFile(writer.getLocalPath().get(), digest != null);
+
+                // Every incremental archive only holds what changed since the ones before it
+                if (getRetentionPolicy().isEnabled()) LOG.warn("Cannot prune old incremental backup files");
+
+                return;
+            } else {
+                LOG.warn("Cannot make an incremental backup, {} does not keep the backup file locally",
+                        sink.getLocation());
+            }
+        }
+
+        if (digest != null) {
+            sink.writeFile(getSavedFileName() + ChecksumFile.EXTENSION,
+                    ChecksumFile.content(getSavedFileName(), digest.digest()));
+            files.add(getSavedFileName() + ChecksumFile.EXTENSION);
+            LOG.info("Saved the SHA-256 checksum of the backup file to {}", sink.getLocation());
+        }
+
+        boolean kept = true;
+
+        if (!storeDirectory.trim().isEmpty()) {
+            if (isEncrypting()) {
+                LOG.warn("Cannot add an encrypted backup file to the archive store");
+            } else if (isReencoding()) {
+                // The store reads the entries back, which the JDK cannot do for Zstandard
+                LOG.warn("Cannot add a re-encoded backup file to the archive store");
+            } else if (writer.getLocalPath().isPresent()) {
+                storeBackupFile(writer.getLocalPath().get());
+                kept = Boolean.parseBoolean(keepStoredArchive);
+            } else {
+                LOG.warn("Cannot add the backup file to the archive store, {} does not keep it locally",
+                        sink.getLocation());
+            }
+        }
+
+        if (kept) pruneBackupFiles(sink, files);
+    }
+
+    private RetentionPolicy getRetentionPolicy() {
+        return new RetentionPolicy(Integer.parseInt(retentionDaily), Integer.parseInt(retentionWeekly),
+                Integer.parseInt(retentionMonthly));
+    }
+
+    /**
+     * Add the saved archive to the catalog of the sink, then delete the archives that the retention policy does not
+     * keep. The backup itself succeeded, so a failure to prune is only logged.
+     *
+     * @param files Files that belong to the archive
+     */
+    private void pruneBackupFiles(final BackupSink sink, final List<String> files) {
+        final RetentionPolicy policy = getRetentionPolicy();
+
+        if (!policy.isEnabled()) return;
+
+        if (archiveTime == null) {
+            LOG.warn("Cannot prune old backup files, the backup file has a fixed name");
+            return;
+        }
+
+        try {
+            final ArchiveCatalog.Summary summary = new ArchiveCatalog(sink, getBaseFileName()).add(
+                    new ArchiveCatalog.Archive(archiveTime, getSavedFileName(), files), policy,
+                    Integer.parseInt(retentionDeleteConcurrency));
+
+            LOG.info("Pruned the backup files in {}: {} deleted, {} left, of which {} could not be deleted",
+                    sink.getLocation(), summary.getDeleted(), summary.getKept(), summary.getFailed());
+        } catch (final IOException e) {
+            LOG.warn("Cannot prune old backup files in {}: {}", sink.getLocation(), e.getMessage());
+        }
+    }
+
+    /**
+     * Read the central directory of the downloaded archive, which fails if the archive is incomplete
+     */
+    private static void verifyBackupFile(final FileChannel channel, final String location) throws IOException {
+        try {
+            final ZipCentralDirectory centralDirectory = ZipCentralDirectory.read(channel);
+
+            LOG.info("Verified the backup file, it holds {} entries", centralDirectory.getEntries().size());
+        } catch (final ZipException e) {
+            throw new ZipException("Backup file for " + location + " is corrupt: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reduce the saved archive to an incremental archive with only the new or changed attachments, then remove it
+     *
+     * @param checksum true to save the checksum of the incremental archive
+     */
+    private void saveIncrementalBackupFile(final Path archivePath, final boolean checksum) throws IOException {
+        final String fileName = archivePath.getFileName().toString();
+        final Path incrementalPath =
+                archivePath.resolveSibling(timestamped(fileName, LocalDateTime.now().format(INCREMENTAL_TIME)));
+        final MessageDigest digest = checksum ? ChecksumFile.newDigest() : null;
+
+        final AttachmentIndex.Summary summary =
+                new AttachmentIndex(Paths.get(incrementalIndexDirectory), productUrl())
+                        .reduce(archivePath, incrementalPath, digest);
+
+        LOG.info("Saved the incremental backup file {}: {} new or changed attachments, {} unchanged attachments " +
+                        "({} bytes) left out, {} attachments removed, {} bytes",
+                incrementalPath, summary.getNewAttachments(), summary.getUnchangedAttachments(),
+                summary.getUnchangedBytes(), summary.getRemovedAttachments(), summary.getSize());
+
+        if (digest != null) {
+            Files.write(incrementalPath.resolveSibling(incrementalPath.getFileName() + ChecksumFile.EXTENSION),
+                    ChecksumFile.content(incrementalPath.getFileName().toString(), digest.digest()));
+        }
+
+        Files.delete(archivePath);
+        Files.deleteIfExists(archivePath.resolveSibling(fileName + ChecksumFile.EXTENSION));
+    }
+
+    /**
+     * Add the entries of the saved archive to the archive store, and remove the archive unless it should be kept
+     */
+    private void storeBackupFile(final Path archivePath) throws IOException {
+        final ArchiveStore.Summary summary =
+                new ArchiveStore(Paths.get(storeDirectory)).ingest(archivePath, productUrl());
+
+        LOG.info("Stored {} entries of the backup file in {}: {} bytes written, {} bytes unchanged",
+                summary.getEntries(), summary.getManifest(), summary.getWrittenBytes(), summary.getReusedBytes());
+
+        if (!Boolean.parseBoolean(keepStoredArchive)) {
+            Files.delete(archivePath);
+            Files.deleteIfExists(archivePath.resolveSibling(archivePath.getFileName() + ChecksumFile.EXTENSION));
+            Files.deleteIfExists(archivePath.resolveSibling(archivePath.getFileName() + ArchiveIndex.EXTENSION));
+        }
+    }
+
+    /**
+     * Rebuild a backup archive from the archive store into the download directory
+     *
+     * @param manifest Manifest of the backup in the store
+     * @return Path of the rebuilt archive
+     */
+    public Path rebuildBackupFile(final Path manifest) throws IOException {
+        final Path archivePath = Paths.get(arguments.getDirectory(), getArchiveFileName());
+
+        ArchiveStore.forManifest(manifest).rebuild(manifest, archivePath);
+        LOG.info("Rebuilt the backup file {} from {}", archivePath, manifest);
+
+        return archivePath;
+    }
+
+    /**
+     * Extract single entries of a backup archive into the download directory, with a thread per processor
+     *
+     * @param archive              Archive that was saved by a backup
+     * @param namesOrAttachmentIDs Paths of entries in the archive, or IDs of attachments
+     * @return Summary of the extracted entries
+     */
+    public ArchiveExtractor.Summary extractFromBackupFile(final Path archive, final List<String> namesOrAttachmentIDs)
+            throws IOException {
+        final long startNanos = System.nanoTime();
+
+        try (ArchiveExtractor extractor = ArchiveExtractor.open(archive)) {
+            final ArchiveExtractor.Summary summary = extractor.extract(namesOrAttachmentIDs,
+                    Paths.get(arguments.getDirectory()), Runtime.getRuntime().availableProcessors());
+
+            LOG.info("Extracted {} entries ({} bytes) of {} to {} in {} ms, looked up in its {}", summary.getEntries(),
+                    summary.getSize(), archive, arguments.getDirectory(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+                    extractor.isIndexed() ? "index" : "central directory");
+
+            return summary;
+        }
+    }
+
+    /**
+     * Decrypt an encrypted backup archive into the download directory, with a thread per processor
+     *
+     * @param encryptedArchive Archive that was encrypted by a backup
+     * @return Path of the decrypted archive
+     */
+    public Path decryptBackupFile(final Path encryptedArchive) throws IOException {
+        final String fileName = encryptedArchive.getFileName().toString();
+        final Path archivePath = Paths.get(arguments.getDirectory(), fileName.endsWith(ChunkedCipher.EXTENSION)
+                ? fileName.substring(0, fileName.length() - ChunkedCipher.EXTENSION.length()) : getArchiveFileName());
+        final ChunkedCipher cipher = new ChunkedCipher(ChunkedCipher.readKey(encryptionKeyFile, encryptionKey));
+
+        try {
+            final long size = cipher.decrypt(encryptedArchive, archivePath, Runtime.getRuntime().availableProcessors());
+
+            LOG.info("Decrypted the backup file {} to {}, {} bytes", encryptedArchive, archivePath, size);
+
+            if (Boolean.parseBoolean(verifyArchive)) {
+                try (FileChannel channel = FileChannel.open(archivePath)) {
+                    verifyBackupFile(channel, archivePath.toString());
+                }
+            }
+        } catch (final IOException e) {
+            Files.deleteIfExists(archivePath);
+            throw e;
+        }
+
+        return archivePath;
+    }
 }
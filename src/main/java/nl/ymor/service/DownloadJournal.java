@@ -0,0 +1,143 @@
+package nl.ymor.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Keeps track of the byte ranges of a partial download that are safely on disk.
+ * <p>
+ * The journal is a small text file next to the partial archive. The first line identifies the download
+ * ({@code <url> <size> <chunk size>}), every following line holds one completed range ({@code <first>-<last>}).
+ * A range is only recorded after its bytes have been forced to disk, so a journal that survives a crash never
+ * claims more than the partial file holds. A torn last line is ignored.
+ */
+class DownloadJournal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DownloadJournal.class);
+
+    private final Path journalPath;
+    private final Set<Long> completedRanges;
+    private final BufferedWriter writer;
+
+    private DownloadJournal(final Path journalPath, final Set<Long> completedRanges, final BufferedWriter writer) {
+        this.journalPath = journalPath;
+        this.completedRanges = completedRanges;
+        this.writer = writer;
+    }
+
+    /**
+     * Open the journal of a download, continuing an existing journal if it belongs to the same download
+     *
+     * @param journalPath   Journal file
+     * @param backupFileUrl Partial URL of the backup file
+     * @param size          Archive size in bytes
+     * @param chunkSize     Size of the byte ranges
+     * @param resume        false to discard any existing journal
+     */
+    static DownloadJournal open(final Path journalPath, final String backupFileUrl, final long size,
+                                final long chunkSize, final boolean resume) throws IOException {
+        final String header = String.format("%s %d %d", backupFileUrl, size, chunkSize);
+        final Set<Long> completedRanges = new HashSet<>();
+
+        if (resume && Files.exists(journalPath)) {
+            final List<String> lines = Files.readAllLines(journalPath, StandardCharsets.UTF_8);
+
+            if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                for (final String line : lines.subList(1, lines.size())) {
+                    parseRange(line, chunkSize, size, completedRanges);
+                }
+
+                LOG.info("Resuming download, {} byte ranges are already saved", completedRanges.size());
+            } else {
+                LOG.info("Download journal {} belongs to another download, starting over", journalPath);
+            }
+        }
+
+        // Rewrite the journal, which also drops a torn last line
+        final BufferedWriter writer =
+                Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8, CREATE, WRITE, TRUNCATE_EXISTING);
+        writer.write(header);
+        writer.newLine();
+
+        for (final long firstByte : completedRanges) {
+            writer.write(firstByte + "-" + (Math.min(firstByte + chunkSize, size) - 1));
+            writer.newLine();
+        }
+
+        writer.flush();
+
+        return new DownloadJournal(journalPath, completedRanges, writer);
+    }
+
+    /**
+     * @return Journal that only lives in memory, for archives that cannot be resumed
+     */
+    static DownloadJournal inMemory() {
+        return new DownloadJournal(null, new HashSet<>(), null);
+    }
+
+    boolean isResumed() {
+        return !completedRanges.isEmpty();
+    }
+
+    synchronized boolean isComplete(final long firstByte) {
+        return completedRanges.contains(firstByte);
+    }
+
+    /**
+     * Record a range whose bytes have been forced to disk
+     */
+    synchronized void markComplete(final long firstByte, final long lastByte) throws IOException {
+        if (writer != null) {
+            writer.write(firstByte + "-" + lastByte);
+            writer.newLine();
+            writer.flush();
+        }
+
+        completedRanges.add(firstByte);
+    }
+
+    /**
+     * Close and remove the journal once the download is complete
+     */
+    void delete() throws IOException {
+        close();
+        if (journalPath != null) Files.deleteIfExists(journalPath);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) writer.close();
+    }
+
+    private static void parseRange(final String line, final long chunkSize, final long size,
+                                   final Set<Long> completedRanges) {
+        final int separator = line.indexOf('-');
+
+        try {
+            final long firstByte = Long.parseLong(line.substring(0, separator));
+            final long lastByte = Long.parseLong(line.substring(separator + 1));
+
+            // Only accept whole ranges of this download
+            if (firstByte % chunkSize == 0 && lastByte == Math.min(firstByte + chunkSize, size) - 1) {
+                completedRanges.add(firstByte);
+            }
+        } catch (final NumberFormatException | StringIndexOutOfBoundsException e) {
+            LOG.debug("Ignoring journal line '{}'", line);
+        }
+    }
+}
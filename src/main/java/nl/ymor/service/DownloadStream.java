@@ -0,0 +1,56 @@
+package nl.ymor.service;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Response of a download request whose body is read straight from the connection instead of being buffered in
+ * memory. Closing the stream returns the connection to the pool, or drops it if the body was not read to the end.
+ */
+class DownloadStream implements Closeable {
+
+    private final HttpRequestBase request;
+    private final HttpResponse response;
+
+    DownloadStream(final HttpRequestBase request, final HttpResponse response) {
+        this.request = request;
+        this.response = response;
+    }
+
+    int getStatus() {
+        return response.getStatusLine().getStatusCode();
+    }
+
+    /**
+     * @return Value of the first header with the given name (case insensitive), null if there is none
+     */
+    String getHeader(final String name) {
+        final Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    /**
+     * @return Channel to read the response body from
+     */
+    ReadableByteChannel getChannel() throws IOException {
+        final HttpEntity entity = response.getEntity();
+        final InputStream content = entity == null ? null : entity.getContent();
+
+        return Channels.newChannel(content == null ? new ByteArrayInputStream(new byte[0]) : content);
+    }
+
+    @Override
+    public void close() {
+        // Aborts the connection if the body has not been consumed, otherwise it is already back in the pool
+        request.releaseConnection();
+    }
+}
@@ -0,0 +1,255 @@
+package nl.ymor.service;
+
+import nl.ymor.archive.ChunkedCipher;
+import nl.ymor.sink.ArchiveWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encrypts an archive with a {@link ChunkedCipher} on its way to another writer, so the archive is never saved in
+ * plaintext.
+ * <p>
+ * The bytes of a chunk are collected until the chunk is complete, then the chunk is sealed and written to the target
+ * by the thread that completed it. Ranges that are downloaded at the same time are therefore encrypted at the same
+ * time, and only the chunks that are being filled are kept in memory. If the size of the archive is not known in
+ * advance, the bytes have to be written in order, and a full chunk is only sealed once the next byte shows that it is
+ * not the last chunk. The encrypted archive cannot be resumed, as the chunks that were not sealed yet are lost when a
+ * download is interrupted.
+ */
+class EncryptingWriter implements ArchiveWriter {
+
+    private final ArchiveWriter target;
+    private final ChunkedCipher cipher;
+    private final ChunkedCipher.Header header;
+    private final int chunkSize;
+    private final long size;
+    private final RangeDigest rangeDigest;
+    private final Map<Long, Chunk> chunks = new ConcurrentHashMap<>();
+    private Chunk deferred;
+    private long end;
+    private boolean finished;
+
+    /**
+     * @param target    Writer of the encrypted archive, opened with {@link ChunkedCipher#encryptedSize(long, int)}
+     *                  if the size of the archive is known
+     * @param cipher    Cipher to encrypt the archive with
+     * @param chunkSize Size of the chunks in bytes
+     * @param size      Size of the archive in bytes, -1 if it is not known in advance
+     * @param digest    Digest to feed the encrypted archive to, may be null. Chunks that are sealed out of order are
+     *                  read back from the target, which must then have a channel.
+     */
+    EncryptingWriter(final ArchiveWriter target, final ChunkedCipher cipher, final int chunkSize, final long size,
+                     final MessageDigest digest) throws IOException {
+        this.target = target;
+        this.cipher = cipher;
+        this.header = cipher.newHeader(chunkSize);
+        this.chunkSize = chunkSize;
+        this.size = size;
+        this.rangeDigest = digest == null ? null : new RangeDigest(digest, target.getChannel().orElse(null));
+
+        save(0, header.toBuffer());
+    }
+
+    @Override
+    public int write(final ByteBuffer source, final long position) throws IOException {
+        final int length = source.remaining();
+        long nextPosition = position;
+
+        if (size >= 0 && position + length > size) {
+            throw new IOException(String.format("Bytes %d-%d are beyond the end of the archive of %d bytes",
+                    position, position + length - 1, size));
+        }
+
+        if (size < 0) releaseDeferred(position / chunkSize);
+
+        while (source.hasRemaining()) {
+            final long index = nextPosition / chunkSize;
+            final int offset = (int) (nextPosition % chunkSize);
+            final int count = Math.min(source.remaining(), chunkSize - offset);
+            final Chunk chunk = chunks.computeIfAbsent(index, Chunk::new);
+
+            if (chunk.fill(source, offset, count)) complete(chunk);
+
+            nextPosition += count;
+        }
+
+        synchronized (this) {
+            end = Math.max(end, nextPosition);
+        }
+
+        return length;
+    }
+
+    /**
+     * Seal a chunk that is complete, or hold on to it until it is known whether it is the last one
+     */
+    private void complete(final Chunk chunk) throws IOException {
+        if (size >= 0) {
+            chunks.remove(chunk.index);
+            seal(chunk, chunk.index == lastIndex(size));
+            return;
+        }
+
+        final Chunk previous;
+
+        synchronized (this) {
+            previous = deferred;
+            deferred = chunk;
+        }
+
+        if (previous != null) {
+            chunks.remove(previous.index);
+            seal(previous, false);
+        }
+    }
+
+    /**
+     * Seal the full chunk that was held on to, once a byte of a later chunk arrives
+     */
+    private void releaseDeferred(final long index) throws IOException {
+        final Chunk previous;
+
+        synchronized (this) {
+            if (deferred == null || deferred.index >= index) return;
+
+            previous = deferred;
+            deferred = null;
+        }
+
+        chunks.remove(previous.index);
+        seal(previous, false);
+    }
+
+    private long lastIndex(final long archiveSize) {
+        return archiveSize == 0 ? 0 : (archiveSize - 1) / chunkSize;
+    }
+
+    private void seal(final Chunk chunk, final boolean last) throws IOException {
+        final byte[] sealed = cipher.seal(header, chunk.index, last, chunk.bytes, chunk.filled);
+
+        chunk.bytes = null;
+        save(header.chunkPosition(chunk.index), ByteBuffer.wrap(sealed));
+    }
+
+    private void save(final long position, final ByteBuffer bytes) throws IOException {
+        final MessageDigest digest = rangeDigest == null ? null : rangeDigest.claim(position);
+        final long lastByte = position + bytes.remaining() - 1;
+
+        if (digest != null) digest.update(bytes.duplicate());
+
+        while (bytes.hasRemaining()) {
+            target.write(bytes, position + bytes.position());
+        }
+
+        if (rangeDigest != null) rangeDigest.completed(position, lastByte, digest != null);
+    }
+
+    @Override
+    public void force() {
+        // Nothing is recorded in a journal, the encrypted archive is made durable when it is committed
+    }
+
+    @Override
+    public boolean isResumed() {
+        return false;
+    }
+
+    @Override
+    public Optional<Path> getJournalPath() {
+        return Optional.empty();
+    }
+
+    /**
+     * @return Channel of the encrypted archive, complete once {@link #finish()} returned
+     */
+    @Override
+    public Optional<FileChannel> getChannel() {
+        return target.getChannel();
+    }
+
+    @Override
+    public Optional<Path> getLocalPath() {
+        return target.getLocalPath();
+    }
+
+    /**
+     * Seal the last chunk
+     *
+     * @throws IOException if bytes of the archive are missing
+     */
+    @Override
+    public synchronized void finish() throws IOException {
+        if (finished) return;
+
+        final long archiveSize = size >= 0 ? size : end;
+        final long lastIndex = lastIndex(archiveSize);
+
+        if (end != archiveSize) {
+            throw new IOException(String.format("Archive of %d bytes was written up to %d", archiveSize, end));
+        }
+
+        if (archiveSize == 0) {
+            seal(new Chunk(0), true);
+        } else if (size < 0) {
+            deferred = null;
+
+            final Chunk last = chunks.remove(lastIndex);
+
+            if (last != null) seal(last, true);
+        }
+
+        if (!chunks.isEmpty()) {
+            throw new IOException(String.format("Archive is missing bytes of %d chunks", chunks.size()));
+        }
+
+        if (rangeDigest != null) {
+            rangeDigest.checkComplete(ChunkedCipher.encryptedSize(archiveSize, chunkSize));
+        }
+
+        finished = true;
+    }
+
+    @Override
+    public void commit() throws IOException {
+        finish();
+        target.commit();
+    }
+
+    @Override
+    public void close() throws IOException {
+        chunks.clear();
+        target.close();
+    }
+
+    /**
+     * Plaintext of a chunk, as its bytes come in
+     */
+    private final class Chunk {
+
+        private final long index;
+        private byte[] bytes;
+        private int filled;
+
+        private Chunk(final long index) {
+            this.index = index;
+            this.bytes = new byte[size < 0 ? chunkSize : (int) Math.min(chunkSize, size - index * chunkSize)];
+        }
+
+        /**
+         * @return true if the chunk is complete
+         */
+        private synchronized boolean fill(final ByteBuffer source, final int offset, final int count) {
+            source.get(bytes, offset, count);
+            filled += count;
+
+            return filled == bytes.length;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package nl.ymor.service;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the HTTP clients of the instances.
+ * <p>
+ * Every client keeps its own pool of keep-alive connections, with at most {@code http.max.connections.per.host}
+ * connections to a host. The progress checks and the ranges of a download therefore reuse connections instead of
+ * connecting again. All clients share one TLS context, so a new connection to a host that was seen before can resume
+ * the TLS session instead of doing a full handshake. Connections that are idle for {@code http.idle.timeout.millis}
+ * are closed by a single background thread for all clients, and a connection that was idle for a while is checked
+ * before it is reused, as the server may have closed it in the meantime. A request that finds all connections of the
+ * pool in use waits at most {@code http.connection.request.timeout.millis} for one to be returned.
+ */
+public class HttpEngine {
+
+    private static final int STALE_CHECK_AFTER_MILLIS = 2000;
+
+    @Value("${http.connect.timeout.millis}")
+    protected String connectTimeoutMillis;
+    @Value("${http.read.timeout.millis}")
+    protected String readTimeoutMillis;
+    @Value("${http.connection.request.timeout.millis}")
+    protected String connectionRequestTimeoutMillis;
+    @Value("${http.idle.timeout.millis}")
+    protected String idleTimeoutMillis;
+    @Value("${http.max.connections.per.host}")
+    protected String maxConnectionsPerHost;
+
+    private final SSLConnectionSocketFactory sslSocketFactory =
+            new SSLConnectionSocketFactory(SSLContexts.createDefault());
+    private final Set<PoolingHttpClientConnectionManager> connectionManagers =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+    private ScheduledExecutorService evictor;
+
+    /**
+     * @return New client with its own connection pool
+     */
+    public CloseableHttpClient newClient() {
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", sslSocketFactory)
+                        .build());
+
+        connectionManager.setDefaultMaxPerRoute(Integer.parseInt(maxConnectionsPerHost));
+        connectionManager.setMaxTotal(Integer.parseInt(maxConnectionsPerHost));
+        connectionManager.setValidateAfterInactivity(STALE_CHECK_AFTER_MILLIS);
+
+        final long idleTimeout = Long.parseLong(idleTimeoutMillis);
+
+        startEvictor(idleTimeout);
+        connectionManagers.add(connectionManager);
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(getRequestConfig())
+                // Keep connections alive as long as the server allows, but never beyond the idle timeout
+                .setKeepAliveStrategy((response, context) -> {
+                    final long keepAlive =
+                            DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAlive > 0 ? Math.min(keepAlive, idleTimeout) : idleTimeout;
+                })
+                .build();
+    }
+
+    /**
+     * @return Connect, pool lease and read timeouts of the clients, for other clients that should honour them too
+     */
+    public RequestConfig getRequestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(Integer.parseInt(connectTimeoutMillis))
+                .setConnectionRequestTimeout(Integer.parseInt(connectionRequestTimeoutMillis))
+                .setSocketTimeout(Integer.parseInt(readTimeoutMillis))
+                .build();
+    }
+
+    private synchronized void startEvictor(final long idleTimeout) {
+        if (evictor != null) return;
+
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "http-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        evictor.scheduleWithFixedDelay(() -> {
+            synchronized (connectionManagers) {
+                for (final PoolingHttpClientConnectionManager connectionManager : connectionManagers) {
+                    connectionManager.closeExpiredConnections();
+                    connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, idleTimeout / 2, Math.max(idleTimeout / 2, 1), TimeUnit.MILLISECONDS);
+    }
+}
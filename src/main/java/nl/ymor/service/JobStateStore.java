@@ -0,0 +1,132 @@
+package nl.ymor.service;
+
+import nl.ymor.archive.InstanceFileName;
+import nl.ymor.model.JobState;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Keeps the state of the running backup jobs in {@code job.state.directory}, one small JSON file per instance, so a
+ * process that is restarted during the export or the download can reattach to the task of the earlier process. It
+ * neither requests a second export nor runs into the backup frequency limit of Jira that way.
+ * <p>
+ * A file is replaced at once on every change, so a crash never leaves a partial one behind. A job that was not
+ * updated for {@code job.state.max.age.minutes} is forgotten, as Jira no longer offers its backup file by then. The
+ * store is disabled if the directory is empty. It never fails a backup: a state that cannot be saved is logged and
+ * only costs the reattaching.
+ */
+public class JobStateStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobStateStore.class);
+    private static final String EXTENSION = ".json";
+
+    @Value("${job.state.directory}")
+    protected String directory;
+    @Value("${job.state.max.age.minutes}")
+    protected String maxAgeMinutes;
+
+    /**
+     * @param instanceUrl URL of the product on the site, which keeps the jobs of the products of a site apart
+     * @return State of the job of the instance, empty if no job is running or the job is too old
+     */
+    public Optional<JobState> load(final String instanceUrl) {
+        if (!isEnabled()) return Optional.empty();
+
+        final Path file = stateFile(instanceUrl);
+
+        try {
+            final JSONObject json = new JSONObject(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            final JobState state = new JobState(json.getString("instanceUrl"), json.getString("taskID"),
+                    JobState.Phase.valueOf(json.getString("phase")), json.optString("backupFileUrl", null),
+                    json.getLong("downloadedBytes"), Instant.parse(json.getString("startTime")),
+                    Instant.parse(json.getString("updateTime")));
+
+            if (Duration.between(state.getUpdateTime(), Instant.now())
+                    .compareTo(Duration.ofMinutes(Long.parseLong(maxAgeMinutes))) > 0) {
+                LOG.info("Forgetting backup task {} of {}, it was last updated at {}",
+                        state.getTaskID(), instanceUrl, state.getUpdateTime());
+                remove(instanceUrl);
+
+                return Optional.empty();
+            }
+
+            return Optional.of(state);
+        } catch (final NoSuchFileException e) {
+            return Optional.empty();
+        } catch (final IOException | JSONException | IllegalArgumentException e) {
+            LOG.warn("Cannot read the job state of {} from {}: {}", instanceUrl, file, e.getMessage());
+
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Save the state of a job, replacing the earlier state of its instance
+     */
+    public void save(final JobState state) {
+        if (!isEnabled()) return;
+
+        final Path file = stateFile(state.getInstanceUrl());
+        final JSONObject json = new JSONObject()
+                .put("instanceUrl", state.getInstanceUrl())
+                .put("taskID", state.getTaskID())
+                .put("phase", state.getPhase().name())
+                .put("downloadedBytes", state.getDownloadedBytes())
+                .put("startTime", state.getStartTime().toString())
+                .put("updateTime", state.getUpdateTime().toString());
+
+        if (state.getBackupFileUrl() != null) json.put("backupFileUrl", state.getBackupFileUrl());
+
+        try {
+            Files.createDirectories(file.getParent());
+
+            // Every save has a file of its own, as the download threads of a job may save at the same time
+            final Path partialFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+
+            try {
+                Files.write(partialFile, json.toString().getBytes(StandardCharsets.UTF_8));
+                Files.move(partialFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(partialFile);
+            }
+        } catch (final IOException e) {
+            LOG.warn("Cannot save the job state of {} to {}: {}", state.getInstanceUrl(), file, e.getMessage());
+        }
+    }
+
+    /**
+     * Forget the job of an instance, once it is done
+     */
+    public void remove(final String instanceUrl) {
+        if (!isEnabled()) return;
+
+        try {
+            Files.deleteIfExists(stateFile(instanceUrl));
+        } catch (final IOException e) {
+            LOG.warn("Cannot remove the job state of {}: {}", instanceUrl, e.getMessage());
+        }
+    }
+
+    private boolean isEnabled() {
+        return !directory.trim().isEmpty();
+    }
+
+    private Path stateFile(final String instanceUrl) {
+        return Paths.get(directory.trim())
+                .resolve(InstanceFileName.of(String.valueOf(instanceUrl)) + EXTENSION);
+    }
+}
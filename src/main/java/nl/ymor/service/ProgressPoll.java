@@ -0,0 +1,71 @@
+package nl.ymor.service;
+
+import java.util.Optional;
+
+/**
+ * State of the progress checks of one backup task. Every call to {@link BackupService#checkProgress(ProgressPoll)}
+ * performs one check and updates the poll, the caller decides how to wait for the pause before the next check.
+ */
+public class ProgressPoll {
+
+    private final String taskID;
+    private final ProgressPollScheduler scheduler;
+    private final long deadlineMillis;
+    private int remainingChecks;
+    private boolean finished;
+    private String backupFileUrl;
+    private long pauseMillis;
+
+    /**
+     * @param maximumChecks Number of checks after which the poll gives up
+     * @param maximumMillis Time in milliseconds after which the poll gives up, whichever limit comes first
+     */
+    ProgressPoll(final String taskID, final ProgressPollScheduler scheduler, final int maximumChecks,
+                 final long maximumMillis) {
+        this.taskID = taskID;
+        this.scheduler = scheduler;
+        this.deadlineMillis = System.currentTimeMillis() + maximumMillis;
+        this.remainingChecks = maximumChecks;
+        this.finished = maximumChecks <= 0 || maximumMillis <= 0;
+    }
+
+    String getTaskID() {
+        return taskID;
+    }
+
+    ProgressPollScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return true if the backup file is ready, or no checks or time are left
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return Partial URL of the backup file, empty if the backup did not finish within the allowed checks or time
+     */
+    public Optional<String> getBackupFileUrl() {
+        return Optional.ofNullable(backupFileUrl);
+    }
+
+    /**
+     * @return Pause in milliseconds before the next check
+     */
+    public long getPauseMillis() {
+        return pauseMillis;
+    }
+
+    void completed(final String backupFileUrl) {
+        this.backupFileUrl = backupFileUrl;
+        this.finished = true;
+    }
+
+    void checked(final long pauseMillis) {
+        this.pauseMillis = pauseMillis;
+        // No point in waiting for a check that would come after the deadline
+        this.finished = --remainingChecks <= 0 || System.currentTimeMillis() + pauseMillis > deadlineMillis;
+    }
+}
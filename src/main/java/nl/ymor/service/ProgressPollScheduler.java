@@ -0,0 +1,125 @@
+package nl.ymor.service;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Decides how long to wait before the next progress check of a backup.
+ * <p>
+ * As long as the progress does not move, the pause grows from four times the minimum pause up to the maximum
+ * pause. Once the progress moves, the completion rate is estimated from the progress changes seen so far, and the
+ * next check is planned halfway to the estimated completion. The pause therefore shrinks towards the
+ * minimum pause as the progress nears 100, which keeps the delay between completion and download small without
+ * polling often during the long first part of the backup. A {@code Retry-After} header wins over a shorter pause,
+ * but never beyond the maximum pause, so a server cannot stall the backup with a far-off retry time.
+ */
+class ProgressPollScheduler {
+
+    private static final int INITIAL_BACKOFF_FACTOR = 4;
+
+    private final long minPauseMillis;
+    private final long maxPauseMillis;
+
+    private int startProgress = -1;
+    private long startMillis;
+    private int anchorProgress;
+    private long anchorMillis;
+    private int lastProgress;
+    private long lastChangeMillis;
+    private int changes;
+    private int pollsWithoutChange;
+
+    ProgressPollScheduler(final long minPauseMillis, final long maxPauseMillis) {
+        this.minPauseMillis = minPauseMillis;
+        this.maxPauseMillis = Math.max(minPauseMillis, maxPauseMillis);
+    }
+
+    /**
+     * Record a progress check and compute the pause before the next one
+     *
+     * @param progress         Progress percentage returned by the check
+     * @param nowMillis        Time of the check in milliseconds
+     * @param retryAfterMillis Pause requested by the server, 0 if none
+     * @return Pause in milliseconds
+     */
+    long nextPause(final int progress, final long nowMillis, final long retryAfterMillis) {
+        recordProgress(progress, nowMillis);
+
+        return Math.max(computePause(progress, nowMillis), retryPause(retryAfterMillis));
+    }
+
+    /**
+     * @param retryAfterMillis Pause requested by the server, 0 if none
+     * @return Requested pause within the minimum and maximum pause
+     */
+    long retryPause(final long retryAfterMillis) {
+        return clamp(retryAfterMillis);
+    }
+
+    private void recordProgress(final int progress, final long nowMillis) {
+        if (startProgress < 0) {
+            startProgress = progress;
+            startMillis = nowMillis;
+            lastProgress = progress;
+            lastChangeMillis = nowMillis;
+            pollsWithoutChange = 1;
+        } else if (progress > lastProgress) {
+            if (changes == 0) {
+                anchorProgress = progress;
+                anchorMillis = nowMillis;
+            }
+
+            changes++;
+            lastProgress = progress;
+            lastChangeMillis = nowMillis;
+            pollsWithoutChange = 0;
+        } else {
+            pollsWithoutChange++;
+        }
+    }
+
+    private long computePause(final int progress, final long nowMillis) {
+        if (changes == 0) {
+            // No completion rate yet, back off exponentially from a long first pause
+            final int exponent = Math.min(pollsWithoutChange - 1, 20);
+            return clamp(minPauseMillis * INITIAL_BACKOFF_FACTOR * (1L << exponent));
+        }
+
+        // The time before the first change is mostly spent preparing the export, so it is left out once possible
+        final double percentPerMilli = changes == 1
+                ? (double) (lastProgress - startProgress) / Math.max(lastChangeMillis - startMillis, 1)
+                : (double) (lastProgress - anchorProgress) / Math.max(lastChangeMillis - anchorMillis, 1);
+        final double remainingMillis = (100 - progress) / percentPerMilli - (nowMillis - lastChangeMillis);
+
+        return clamp((long) (remainingMillis / 2));
+    }
+
+    private long clamp(final long pauseMillis) {
+        return Math.min(Math.max(pauseMillis, minPauseMillis), maxPauseMillis);
+    }
+
+    /**
+     * Parse the value of a {@code Retry-After} header, which holds either a number of seconds or an HTTP date
+     *
+     * @param retryAfter Header value, may be null
+     * @param nowMillis  Current time in milliseconds
+     * @return Requested pause in milliseconds, 0 if the header is missing or invalid
+     */
+    static long parseRetryAfter(final String retryAfter, final long nowMillis) {
+        if (retryAfter == null || retryAfter.trim().isEmpty()) return 0;
+
+        try {
+            return Math.max(Long.parseLong(retryAfter.trim()) * 1000, 0);
+        } catch (final NumberFormatException e) {
+            try {
+                final Instant retryAt = ZonedDateTime.parse(retryAfter.trim(),
+                        DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                return Math.max(retryAt.toEpochMilli() - nowMillis, 0);
+            } catch (final DateTimeParseException ignored) {
+                return 0;
+            }
+        }
+    }
+}
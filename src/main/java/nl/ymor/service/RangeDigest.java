@@ -0,0 +1,98 @@
+package nl.ymor.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Computes the digest of a file whose byte ranges are downloaded in parallel and complete in any order.
+ * <p>
+ * A digest has to see the bytes in file order. The range that starts where the digest stopped is fed to the digest
+ * while it is downloaded. Ranges that complete ahead of it are remembered, and read back from the file as soon as
+ * the digest reaches them. They were written moments before, so they are usually still in the page cache.
+ */
+class RangeDigest {
+
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private final MessageDigest digest;
+    private final FileChannel channel;
+    private final Map<Long, Long> completedAhead = new TreeMap<>();
+
+    private long nextPosition;
+    private boolean claimed;
+    private ByteBuffer readBuffer;
+
+    RangeDigest(final MessageDigest digest, final FileChannel channel) {
+        this.digest = digest;
+        this.channel = channel;
+    }
+
+    /**
+     * Claim the digest for the download of a range
+     *
+     * @param firstByte First byte of the range
+     * @return Digest to feed the range to while it is downloaded, null if the range has to be read back later
+     */
+    synchronized MessageDigest claim(final long firstByte) {
+        if (claimed || firstByte != nextPosition) return null;
+
+        claimed = true;
+        return digest;
+    }
+
+    /**
+     * Record a range whose bytes are in the file
+     *
+     * @param firstByte First byte of the range
+     * @param lastByte  Last byte of the range
+     * @param digested  true if the range was fed to the digest it claimed
+     */
+    synchronized void completed(final long firstByte, final long lastByte, final boolean digested)
+            throws IOException {
+        if (digested) {
+            nextPosition = lastByte + 1;
+            claimed = false;
+        } else {
+            completedAhead.put(firstByte, lastByte);
+        }
+
+        if (!claimed) catchUp();
+    }
+
+    /**
+     * Make sure the digest has seen the whole file
+     *
+     * @param size Size of the file in bytes
+     * @throws IOException if not every byte of the file was digested
+     */
+    synchronized void checkComplete(final long size) throws IOException {
+        if (nextPosition != size) {
+            throw new IOException(String.format("Digest stopped at byte %d of %d", nextPosition, size));
+        }
+    }
+
+    private void catchUp() throws IOException {
+        Long lastByte;
+
+        while ((lastByte = completedAhead.remove(nextPosition)) != null) {
+            if (readBuffer == null) readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+            while (nextPosition <= lastByte) {
+                readBuffer.clear();
+                readBuffer.limit((int) Math.min(readBuffer.capacity(), lastByte - nextPosition + 1));
+
+                final int read = channel.read(readBuffer, nextPosition);
+
+                if (read < 0) throw new IOException("File ended at byte " + nextPosition);
+
+                readBuffer.flip();
+                digest.update(readBuffer);
+                nextPosition += read;
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package nl.ymor.service;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import nl.ymor.metrics.BackupMetrics;
+import nl.ymor.sink.ArchiveWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads the backup archive over several connections at once.
+ * <p>
+ * The archive size is read with a HEAD request and every byte range is written to its own position of a shared
+ * {@link ArchiveWriter}, so the ranges may complete in any order.
+ */
+class RangedDownloader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RangedDownloader.class);
+    private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+
+    private final RestClient restClient;
+    private final StreamingTransfer transfer;
+    private final long chunkSize;
+    private final int concurrency;
+    private final BackupMetrics metrics;
+
+    RangedDownloader(final RestClient restClient, final StreamingTransfer transfer, final long chunkSize,
+                     final int concurrency, final BackupMetrics metrics) {
+        this.restClient = restClient;
+        this.transfer = transfer;
+        this.chunkSize = chunkSize;
+        this.concurrency = concurrency;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Ask the server for the size of the archive
+     *
+     * @param backupFileUrl Partial URL of the backup file
+     * @param instance      Product URL of the instance
+     * @return Archive size in bytes if the server accepts byte ranges, empty if the archive should be downloaded as
+     * a single stream
+     */
+    OptionalLong probe(final String backupFileUrl, final String instance) throws UnirestException {
+        final HttpResponse<String> headResponse = restClient.doHeadRequest(backupFileUrl, instance);
+
+        if (headResponse == null || headResponse.getStatus() != HttpURLConnection.HTTP_OK) return OptionalLong.empty();
+
+        final String acceptRanges = RestClient.getHeader(headResponse, HEADER_ACCEPT_RANGES);
+        final String contentLength = RestClient.getHeader(headResponse, HEADER_CONTENT_LENGTH);
+
+        if (!"bytes".equalsIgnoreCase(acceptRanges) || contentLength == null) {
+            LOG.info("Server does not accept byte ranges, falling back to a single download stream");
+            return OptionalLong.empty();
+        }
+
+        try {
+            final long size = Long.parseLong(contentLength.trim());
+            return size > 0 ? OptionalLong.of(size) : OptionalLong.empty();
+        } catch (final NumberFormatException e) {
+            LOG.warn("Invalid content length {}, falling back to a single download stream", contentLength);
+            return OptionalLong.empty();
+        }
+    }
+
+    /**
+     * Download the archive in byte ranges of {@code chunkSize} with {@code concurrency} parallel requests.
+     * <p>
+     * If the writer keeps a journal, completed ranges are recorded in a {@link DownloadJournal}, so a download that
+     * is interrupted can be resumed by a later call for the same backup file. The writer is not committed.
+     *
+     * @param backupFileUrl Partial URL of the backup file
+     * @param instance      Product URL of the instance
+     * @param writer        Archive to write the ranges to, opened with the size of the archive
+     * @param size          Archive size as returned by {@link #probe(String, String)}
+     * @param digest        Digest to compute over the whole archive, may be null if the writer cannot be read back
+     * @return Number of bytes downloaded, which leaves out the ranges saved by an earlier run
+     */
+    long download(final String backupFileUrl, final String instance, final ArchiveWriter writer, final long size,
+                  final MessageDigest digest) throws UnirestException, IOException {
+        final Optional<Path> journalPath = writer.getJournalPath();
+
+        try (DownloadJournal journal = journalPath.isPresent()
+                ? DownloadJournal.open(journalPath.get(), backupFileUrl, size, chunkSize, writer.isResumed())
+                : DownloadJournal.inMemory()) {
+            final RangeDigest rangeDigest = digest == null ? null : new RangeDigest(digest, writer.getChannel()
+                    .orElseThrow(() -> new IOException("Archive cannot be read back to compute its digest")));
+            final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+            long downloaded = 0;
+
+            try {
+                final List<Future<Long>> ranges = new ArrayList<>();
+
+                for (long firstByte = 0; firstByte < size; firstByte += chunkSize) {
+                    final long rangeStart = firstByte;
+                    final long rangeEnd = Math.min(firstByte + chunkSize, size) - 1;
+
+                    if (journal.isComplete(firstByte)) {
+                        // Saved by an earlier run, so it can only be digested by reading it back
+                        if (rangeDigest != null) rangeDigest.completed(rangeStart, rangeEnd, false);
+                        continue;
+                    }
+
+                    ranges.add(executor.submit(() -> {
+                        downloadRange(backupFileUrl, instance, writer, rangeStart, rangeEnd, rangeDigest);
+                        journal.markComplete(rangeStart, rangeEnd);
+                        return rangeEnd - rangeStart + 1;
+                    }));
+                }
+
+                for (final Future<Long> range : ranges) {
+                    downloaded += awaitRange(range);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            if (rangeDigest != null) rangeDigest.checkComplete(size);
+
+            journal.delete();
+
+            return downloaded;
+        }
+    }
+
+    private void downloadRange(final String backupFileUrl, final String instance, final ArchiveWriter writer,
+                               final long firstByte, final long lastByte, final RangeDigest rangeDigest)
+            throws UnirestException, IOException {
+        final long rangeLength = lastByte - firstByte + 1;
+        final MessageDigest digest = rangeDigest == null ? null : rangeDigest.claim(firstByte);
+
+        final Instant requestTime = Instant.now();
+
+        try (DownloadStream rangeStream =
+                     restClient.doRangeDownloadRequest(backupFileUrl, instance, firstByte, lastByte)) {
+            metrics.recordTimeToFirstByte(instance, Duration.between(requestTime, Instant.now()));
+
+            if (rangeStream.getStatus() != HttpURLConnection.HTTP_PARTIAL) {
+                throw TaskFailedException.forStatus(rangeStream.getStatus(), String.format(
+                        "Cannot download bytes %d-%d of file: %s%nDownload response: %s",
+                        firstByte, lastByte, backupFileUrl, rangeStream.getStatus()));
+            }
+
+            final long transferred =
+                    transfer.transfer(rangeStream.getChannel(), writer, firstByte, rangeLength, digest);
+
+            if (transferred != rangeLength) {
+                throw new IOException(String.format("Download of bytes %d-%d ended after %d bytes",
+                        firstByte, lastByte, transferred));
+            }
+        }
+
+        // Only a range that is on disk may be recorded in the journal
+        writer.force();
+
+        if (rangeDigest != null) rangeDigest.completed(firstByte, lastByte, digest != null);
+
+        LOG.debug("Downloaded bytes {}-{}", firstByte, lastByte);
+    }
+
+    private static long awaitRange(final Future<Long> range) throws UnirestException, IOException {
+        try {
+            return range.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading the backup file");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof UnirestException) throw (UnirestException) cause;
+            if (cause instanceof IOException) throw (IOException) cause;
+
+            throw new IOException(cause);
+        }
+    }
+}
@@ -1,22 +1,62 @@
 package nl.ymor.service;
 
+import com.mashape.unirest.http.Headers;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.JsonNode;
-import com.mashape.unirest.http.Unirest;
 import com.mashape.unirest.http.exceptions.UnirestException;
 import nl.ymor.model.Arguments;
+import nl.ymor.product.Product;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
 
-import java.io.InputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
-public class RestClient {
+/**
+ * Performs the requests to an instance with the pooled client of the {@link HttpEngine}.
+ * <p>
+ * The requests no longer go through Unirest, but its {@link HttpResponse}, {@link JsonNode} and
+ * {@link UnirestException} are kept on purpose as the types of the responses and failures. The services, products
+ * and tests all use them, and Unirest builds them from the response of the underlying client as it is.
+ */
+public class RestClient implements Closeable {
     private final Arguments arguments;
-    private static final String DOWNLOAD_END_POINT = "https://%s/plugins/servlet/%s";
-    private static final String BACKUP_ENDPOINT = "https://%s/rest/backup/1/export/runbackup";
+    private final HttpEngine engine;
+    private final RetryPolicy retryPolicy;
+    private final CloseableHttpClient httpClient;
 
-    public RestClient(final Arguments arguments) {
+    public RestClient(final Arguments arguments, final HttpEngine engine, final RetryPolicy retryPolicy) {
         this.arguments = arguments;
-        Unirest.setDefaultHeader("accept-encoding", "gzip, deflate, br");
-        Unirest.setDefaultHeader("Authorization", this.arguments.getAuthorization());
+        this.engine = engine;
+        // The policy is shared by all instances, so its retry budget and circuits cover the whole batch
+        this.retryPolicy = retryPolicy;
+        // Every instance gets its own pool of keep-alive connections. The client asks for gzip and deflate encoded
+        // responses by itself. Authorization is set per request, as the arguments are only parsed after the client
+        // is created
+        this.httpClient = engine.newClient();
+    }
+
+    /**
+     * @return Client for one instance of a batch, with its own connection pool, to be closed when its backup is done
+     */
+    public RestClient forInstance(final Arguments instanceArguments) {
+        return new RestClient(instanceArguments, engine, retryPolicy);
+    }
+
+    /**
+     * Close the connection pool of the client
+     */
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
     }
 
     HttpResponse<String> doBackupRequest() throws UnirestException {
@@ -26,16 +66,21 @@ public class RestClient {
         // -H 'content-type: application/json'
         // -H 'accept: application/json, text/javascript, */*; q=0.01'
         // -H 'x-requested-with: XMLHttpRequest'
-        // --data-binary '{"cbAttachments":"true", "exportToCloud":"true"}'
-        // --request POST "https://${INSTANCE}/rest/backup/1/export/runbackup"
+        // -H 'x-atlassian-token: no-check'
+        // --data-binary and the endpoint of the product, see Product#getBackupPath()
         // --user ${EMAIL}:${API_TOKEN}
-        return Unirest.post(String.format(BACKUP_ENDPOINT, arguments.getInstanceUrl()))
-                .header("origin", arguments.getInstanceUrl())
-                .header("content-type", "application/json")
-                .header("accept", "application/json, text/javascript, */*; q=0.01")
-                .header("x-requested-with", "XMLHttpRequest")
-                .body("{\"cbAttachments\":\"true\", \"exportToCloud\":\"true\"}")
-                .asString();
+        final Product product = getProduct();
+        final HttpPost request = new HttpPost(
+                getBaseUrl(product.getProductUrl(arguments.getInstanceUrl())) + product.getBackupPath());
+        request.setHeader("origin", arguments.getInstanceUrl());
+        request.setHeader("accept", "application/json, text/javascript, */*; q=0.01");
+        request.setHeader("x-requested-with", "XMLHttpRequest");
+        // Confluence refuses the request as cross-site request forgery without it
+        request.setHeader("x-atlassian-token", "no-check");
+        request.setHeader("Authorization", arguments.getAuthorization());
+        request.setEntity(new StringEntity(product.getBackupRequestBody(), ContentType.APPLICATION_JSON));
+
+        return execute(request, String.class);
     }
 
     HttpResponse<JsonNode> doProgressCheckRequest(final String progressCheckUrl) throws UnirestException {
@@ -43,22 +88,105 @@ public class RestClient {
         // -H 'accept-encoding: gzip, deflate, br'
         // -H 'accept: application/json, text/javascript, */*; q=0.01'
         // --user ${EMAIL}:${API_TOKEN}
-        // "https://${INSTANCE}/rest/backup/1/export/getProgress?taskId=${TASK_ID}"
-        return Unirest.get(progressCheckUrl)
-                .header("accept", "application/json, text/javascript, */*; q=0.01")
-                .asJson();
+        // and the endpoint of the product, see Product#getProgressPath(String)
+        final HttpGet request = new HttpGet(progressCheckUrl);
+        request.setHeader("accept", "application/json, text/javascript, */*; q=0.01");
+        request.setHeader("Authorization", arguments.getAuthorization());
+
+        return execute(request, JsonNode.class);
     }
 
-    HttpResponse<InputStream> doDownloadRequest(final String backupFileUrl, final String instance)
-            throws UnirestException {
+    DownloadStream doDownloadRequest(final String backupFileUrl, final String instance) throws UnirestException {
         // curl 'https://${INSTANCE}/plugins/servlet/export/download/?fileId=${FILE_ID}'
         //      -H 'accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,image/apng,*/*;q=0
         //      .8,application/signed-exchange;v=b3'
-        //      -H 'accept-encoding: gzip, deflate, br'
         //      --user ${EMAIL}:${API_TOKEN}
-        return Unirest.get(String.format(DOWNLOAD_END_POINT, instance, backupFileUrl))
-                .header("accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,image/apng," +
-                        "*/*;q=0.8,application/signed-exchange;v=b3")
-                .asBinary();
+        return openDownloadStream(new HttpGet(getDownloadUrl(backupFileUrl, instance)));
+    }
+
+    HttpResponse<String> doHeadRequest(final String backupFileUrl, final String instance) throws UnirestException {
+        // curl --head 'https://${INSTANCE}/plugins/servlet/export/download/?fileId=${FILE_ID}'
+        //      --user ${EMAIL}:${API_TOKEN}
+        final HttpHead request = new HttpHead(getDownloadUrl(backupFileUrl, instance));
+        request.setHeader("Authorization", arguments.getAuthorization());
+
+        return execute(request, String.class);
+    }
+
+    DownloadStream doRangeDownloadRequest(final String backupFileUrl, final String instance,
+                                          final long firstByte, final long lastByte) throws UnirestException {
+        // curl 'https://${INSTANCE}/plugins/servlet/export/download/?fileId=${FILE_ID}'
+        //      -H 'range: bytes=${FIRST_BYTE}-${LAST_BYTE}'
+        //      --user ${EMAIL}:${API_TOKEN}
+        final HttpGet request = new HttpGet(getDownloadUrl(backupFileUrl, instance));
+        request.setHeader("range", String.format("bytes=%d-%d", firstByte, lastByte));
+
+        return openDownloadStream(request);
+    }
+
+    /**
+     * @param instance Product URL of the instance, see {@link Product#getProductUrl(String)}
+     */
+    private String getDownloadUrl(final String backupFileUrl, final String instance) {
+        return getBaseUrl(instance) + getProduct().getDownloadPath(backupFileUrl);
+    }
+
+    private Product getProduct() {
+        return Product.forName(arguments.getProduct());
+    }
+
+    private DownloadStream openDownloadStream(final HttpGet request) throws UnirestException {
+        // Unirest reads the whole body into memory, so the archive is streamed by the underlying client instead
+        request.setHeader("accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,image/apng," +
+                "*/*;q=0.8,application/signed-exchange;v=b3");
+        // The archive is already compressed, and byte ranges only make sense on the unencoded body
+        request.setHeader("accept-encoding", "identity");
+        request.setHeader("Authorization", arguments.getAuthorization());
+
+        try {
+            return new DownloadStream(request, retryPolicy.execute(httpClient, request));
+        } catch (final IOException e) {
+            request.releaseConnection();
+            throw new UnirestException(e);
+        }
+    }
+
+    /**
+     * Execute a request whose response is small enough to be read into memory at once. The body is read fully, so
+     * the connection goes back to the pool for the next request.
+     */
+    private <T> HttpResponse<T> execute(final HttpUriRequest request, final Class<T> responseClass)
+            throws UnirestException {
+        try (CloseableHttpResponse response = retryPolicy.execute(httpClient, request)) {
+            return new HttpResponse<>(response, responseClass);
+        } catch (final IOException | RuntimeException e) {
+            throw new UnirestException(e);
+        }
+    }
+
+    /**
+     * @return URL of the instance to append the endpoints to. That is the HTTPS URL of the instance, unless the
+     * instance URL names its own scheme, e.g. {@code http://localhost:8080} to reach a simulator.
+     */
+    static String getBaseUrl(final String instance) {
+        return instance != null && instance.matches("(?i)https?://.*") ? instance : "https://" + instance;
+    }
+
+    /**
+     * @return Value of the first response header with the given name (case insensitive), null if there is none
+     */
+    static String getHeader(final HttpResponse<?> response, final String name) {
+        final Headers headers = response.getHeaders();
+
+        if (headers == null) return null;
+
+        // Header names are kept as sent by the server
+        for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+
+        return null;
     }
 }
@@ -0,0 +1,293 @@
+package nl.ymor.service;
+
+import nl.ymor.metrics.BackupMetrics;
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Repeats the requests of all instances that fail for a transient reason, such as a dropped connection or a server
+ * that is overloaded for a moment, so a hiccup does not cost the backup of a night.
+ * <p>
+ * A request is sent at most {@code retry.max.attempts} times. The pause before each retry doubles from
+ * {@code retry.initial.backoff.millis} up to {@code retry.max.backoff.millis}, and a random part of it is left out,
+ * so the instances that failed together do not retry together. A {@code Retry-After} header of a 429 or 503 response
+ * is honoured; a server that asks for a longer pause than {@code retry.max.backoff.millis} gets its response back to
+ * the caller. Requests that are not idempotent, the backup request, are only repeated if the server certainly did not
+ * handle them: when no connection was made, or when the server answered 429 or 503.
+ * <p>
+ * Two limits keep the retries from adding to the load during an outage of Atlassian, with many instances backed up at
+ * the same time:
+ * <ul>
+ * <li>A retry budget that all hosts share: every request earns {@code retry.budget.ratio} of a retry and every retry
+ * spends one, up to {@code retry.budget.tokens} saved retries. Retries therefore never make up more than that ratio
+ * of the requests for long.</li>
+ * <li>A circuit breaker per host: after {@code circuit.failure.threshold} failures in a row no requests are sent to the
+ * host for {@code circuit.open.millis}. Then one request at a time is let through to test the host, and the first
+ * success closes the circuit again. A request that finds the circuit open waits like after a failure, without being
+ * sent, or fails at once if the circuit stays open longer than {@code retry.max.backoff.millis}.</li>
+ * </ul>
+ */
+public class RetryPolicy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final Set<Integer> TRANSIENT_STATUSES = new HashSet<>(Arrays.asList(HTTP_TOO_MANY_REQUESTS,
+            HttpURLConnection.HTTP_INTERNAL_ERROR, HttpURLConnection.HTTP_BAD_GATEWAY,
+            HttpURLConnection.HTTP_UNAVAILABLE, HttpURLConnection.HTTP_GATEWAY_TIMEOUT));
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD"));
+
+    @Value("${retry.max.attempts}")
+    protected String maxAttempts;
+    @Value("${retry.initial.backoff.millis}")
+    protected String initialBackoffMillis;
+    @Value("${retry.max.backoff.millis}")
+    protected String maxBackoffMillis;
+    @Value("${retry.budget.ratio}")
+    protected String budgetRatio;
+    @Value("${retry.budget.tokens}")
+    protected String budgetTokens;
+    @Value("${circuit.failure.threshold}")
+    protected String failureThreshold;
+    @Value("${circuit.open.millis}")
+    protected String openMillis;
+
+    private final BackupMetrics metrics;
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private double savedRetries = -1;
+
+    public RetryPolicy(final BackupMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Send a request until it gets a response that is not a transient failure, or until it may not be repeated
+     *
+     * @param client  Client to send the request with
+     * @param request Request, which is sent again as it is
+     * @return Response of the last attempt, which the caller has to close
+     * @throws IOException of the last attempt, or if the circuit of the host stayed open
+     */
+    public CloseableHttpResponse execute(final CloseableHttpClient client, final HttpUriRequest request)
+            throws IOException {
+        final HttpHost host = URIUtils.extractHost(request.getURI());
+        final String hostName = host == null ? String.valueOf(request.getURI()) : host.toHostString();
+        final Circuit circuit = circuits.computeIfAbsent(hostName, name -> new Circuit());
+        final boolean idempotent = IDEMPOTENT_METHODS.contains(request.getMethod());
+        final int attempts = Math.max(Integer.parseInt(maxAttempts), 1);
+
+        earnRetry();
+
+        for (int attempt = 1; ; attempt++) {
+            final boolean last = attempt >= attempts;
+            final long pause;
+            final String reason;
+
+            if (!circuit.allowRequest()) {
+                final long openMillis = circuit.getOpenMillis();
+
+                // Waiting for the circuit sends no request, so it costs nothing of the retry budget
+                if (last || openMillis > Long.parseLong(maxBackoffMillis)) {
+                    throw new IOException(String.format("Circuit of %s is open after %d failures in a row",
+                            hostName, circuit.getFailures()));
+                }
+
+                pause = Math.max(backoff(attempt), openMillis);
+                reason = "circuit_open";
+            } else {
+                final CloseableHttpResponse response;
+
+                try {
+                    response = client.execute(request);
+                } catch (final IOException e) {
+                    circuit.failed(hostName);
+
+                    if (last || !isRepeatable(e, idempotent) || !spendRetry(hostName)) throw e;
+
+                    LOG.warn("Request to {} failed, retrying ({} of {}): {}", hostName, attempt, attempts - 1,
+                            e.toString());
+                    pauseBeforeRetry(backoff(attempt), hostName, "connection_failure");
+                    continue;
+                }
+
+                final int status = response.getStatusLine().getStatusCode();
+
+                if (!TRANSIENT_STATUSES.contains(status)) {
+                    circuit.succeeded();
+                    return response;
+                }
+
+                circuit.failed(hostName);
+
+                final long retryAfter = retryAfterMillis(response);
+
+                if (last || !isRepeatable(status, idempotent) || retryAfter > Long.parseLong(maxBackoffMillis)
+                        || !spendRetry(hostName)) {
+                    return response;
+                }
+
+                discard(response);
+                LOG.warn("Request to {} returned HTTP {}, retrying ({} of {})", hostName, status, attempt,
+                        attempts - 1);
+                pause = Math.max(backoff(attempt), retryAfter);
+                reason = "http_" + status;
+            }
+
+            pauseBeforeRetry(pause, hostName, reason);
+        }
+    }
+
+    private void pauseBeforeRetry(final long pauseMillis, final String hostName, final String reason)
+            throws InterruptedIOException {
+        metrics.recordRetry(hostName, reason);
+
+        try {
+            Thread.sleep(pauseMillis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry a request to " + hostName);
+        }
+    }
+
+    /**
+     * @return Pause before a retry: a random part of the exponential backoff of the attempt, so retries spread out
+     */
+    long backoff(final int attempt) {
+        final long initial = Long.parseLong(initialBackoffMillis);
+        final long ceiling = Math.min(Long.parseLong(maxBackoffMillis),
+                initial << Math.min(attempt - 1, Long.numberOfLeadingZeros(Math.max(initial, 1)) - 1));
+
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    /**
+     * A failure without a response can only be repeated if the request did not reach the server, unless repeating it
+     * is harmless. A host that is unknown or not trusted will not come right by retrying.
+     */
+    private static boolean isRepeatable(final IOException e, final boolean idempotent) {
+        if (e instanceof UnknownHostException || e instanceof SSLPeerUnverifiedException) return false;
+
+        return idempotent || e instanceof ConnectException || e instanceof ConnectTimeoutException;
+    }
+
+    /**
+     * The server did not handle a request that it refused with 429 or 503
+     */
+    private static boolean isRepeatable(final int status, final boolean idempotent) {
+        return idempotent || status == HTTP_TOO_MANY_REQUESTS || status == HttpURLConnection.HTTP_UNAVAILABLE;
+    }
+
+    private static long retryAfterMillis(final CloseableHttpResponse response) {
+        final Header header = response.getFirstHeader(HEADER_RETRY_AFTER);
+
+        if (header == null) return 0;
+
+        return ProgressPollScheduler.parseRetryAfter(header.getValue(), System.currentTimeMillis());
+    }
+
+    /**
+     * Read the rest of a response that is not used, so its connection can be reused
+     */
+    private static void discard(final CloseableHttpResponse response) {
+        try {
+            EntityUtils.consumeQuietly(response.getEntity());
+            response.close();
+        } catch (final IOException e) {
+            LOG.debug("Cannot close the response of a request to retry: {}", e.toString());
+        }
+    }
+
+    private synchronized void earnRetry() {
+        final double capacity = Double.parseDouble(budgetTokens);
+
+        // The budget starts full, so the first requests of a run may be retried as well
+        savedRetries = savedRetries < 0 ? capacity
+                : Math.min(capacity, savedRetries + Double.parseDouble(budgetRatio));
+    }
+
+    private synchronized boolean spendRetry(final String hostName) {
+        if (savedRetries >= 1) {
+            savedRetries--;
+            return true;
+        }
+
+        LOG.warn("Not retrying the request to {}, too many requests were retried lately", hostName);
+        metrics.recordRetry(hostName, "budget_exhausted");
+
+        return false;
+    }
+
+    /**
+     * Circuit breaker of one host
+     */
+    private final class Circuit {
+
+        private int failures;
+        private long openUntilNanos;
+        private boolean open;
+        private boolean testing;
+
+        /**
+         * @return true if a request may be sent, which is then the only test request while the circuit is half open
+         */
+        private synchronized boolean allowRequest() {
+            if (!open) return true;
+            if (System.nanoTime() - openUntilNanos < 0 || testing) return false;
+
+            testing = true;
+            return true;
+        }
+
+        private synchronized void succeeded() {
+            failures = 0;
+            open = false;
+            testing = false;
+        }
+
+        private synchronized void failed(final String hostName) {
+            failures++;
+            testing = false;
+
+            if (failures >= Integer.parseInt(failureThreshold)) {
+                if (!open) LOG.warn("Opening the circuit of {} after {} failures in a row", hostName, failures);
+
+                open = true;
+                openUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Long.parseLong(openMillis));
+            }
+        }
+
+        private synchronized int getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return Time until a test request may be sent
+         */
+        private synchronized long getOpenMillis() {
+            return open ? Math.max(TimeUnit.NANOSECONDS.toMillis(openUntilNanos - System.nanoTime()), 0) : 0;
+        }
+    }
+}
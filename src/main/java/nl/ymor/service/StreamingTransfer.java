@@ -0,0 +1,130 @@
+package nl.ymor.service;
+
+import nl.ymor.bandwidth.Throttle;
+import nl.ymor.sink.ArchiveWriter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Moves bytes from a download stream to an archive through a fixed set of reusable direct buffers.
+ * <p>
+ * The bytes never pass through the Java heap, and the memory used by a download is the buffer size times the
+ * number of parallel transfers, whatever the size of the archive.
+ */
+class StreamingTransfer {
+
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final Throttle throttle;
+
+    /**
+     * @param bufferSize Size of each direct buffer in bytes
+     * @param transfers  Number of transfers that may run at the same time
+     */
+    StreamingTransfer(final int bufferSize, final int transfers) {
+        this(bufferSize, transfers, Throttle.NONE);
+    }
+
+    /**
+     * @param throttle Throttle that every read is accounted to
+     */
+    StreamingTransfer(final int bufferSize, final int transfers, final Throttle throttle) {
+        this(bufferSize, transfers, true, throttle);
+    }
+
+    /**
+     * @param direct false to use heap buffers, which only makes sense to compare both in a benchmark
+     */
+    StreamingTransfer(final int bufferSize, final int transfers, final boolean direct) {
+        this(bufferSize, transfers, direct, Throttle.NONE);
+    }
+
+    private StreamingTransfer(final int bufferSize, final int transfers, final boolean direct,
+                              final Throttle throttle) {
+        this.throttle = throttle;
+        buffers = new ArrayBlockingQueue<>(transfers);
+
+        for (int i = 0; i < transfers; i++) {
+            buffers.add(direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize));
+        }
+    }
+
+    /**
+     * Copy a stream to an archive, starting at the given position. Several transfers can write to different regions
+     * of the same archive at once.
+     *
+     * @param source   Stream to read until its end
+     * @param target   Archive to write to
+     * @param position Archive position of the first byte
+     * @param maxBytes Maximum number of bytes the stream may hold
+     * @return Number of bytes copied
+     * @throws IOException if the stream holds more than {@code maxBytes} bytes
+     */
+    long transfer(final ReadableByteChannel source, final ArchiveWriter target, final long position,
+                  final long maxBytes) throws IOException {
+        return transfer(source, target, position, maxBytes, null);
+    }
+
+    /**
+     * Copy a stream to an archive like {@link #transfer(ReadableByteChannel, ArchiveWriter, long, long)}, and feed
+     * every byte to a digest on the way, so the archive does not have to be read again to compute its checksum.
+     *
+     * @param digest Digest to update, may be null
+     */
+    long transfer(final ReadableByteChannel source, final ArchiveWriter target, final long position,
+                  final long maxBytes, final MessageDigest digest) throws IOException {
+        final ByteBuffer buffer = takeBuffer();
+
+        try {
+            long transferred = 0;
+            boolean endOfStream = false;
+
+            while (!endOfStream) {
+                buffer.clear();
+
+                // Fill the whole buffer first, the stream usually hands out far smaller pieces. Those pieces are
+                // accounted to the throttle one by one, so that concurrent transfers take turns on the bandwidth
+                while (buffer.hasRemaining()) {
+                    final int read = source.read(buffer);
+
+                    if (read == -1) {
+                        endOfStream = true;
+                        break;
+                    }
+
+                    throttle.acquire(read);
+                }
+
+                buffer.flip();
+
+                if (transferred + buffer.remaining() > maxBytes) {
+                    throw new IOException(String.format("Server sent more than the expected %d bytes", maxBytes));
+                }
+
+                if (digest != null) digest.update(buffer.duplicate());
+
+                while (buffer.hasRemaining()) {
+                    transferred += target.write(buffer, position + transferred);
+                }
+            }
+
+            return transferred;
+        } finally {
+            buffers.add(buffer);
+        }
+    }
+
+    private ByteBuffer takeBuffer() throws InterruptedIOException {
+        try {
+            return buffers.take();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a transfer buffer");
+        }
+    }
+}
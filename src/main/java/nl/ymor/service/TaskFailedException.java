@@ -0,0 +1,24 @@
+package nl.ymor.service;
+
+import com.mashape.unirest.http.exceptions.UnirestException;
+
+/**
+ * Thrown when the backup task cannot be continued, such as when its export failed or its backup file is refused, so
+ * the next run has to request a new backup instead of reattaching to the task
+ */
+public class TaskFailedException extends UnirestException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TaskFailedException(final String message) {
+        super(message);
+    }
+
+    /**
+     * @return Exception for a response with an unexpected status: a request that the server refused will be refused
+     * again, a server error may pass
+     */
+    static UnirestException forStatus(final int status, final String message) {
+        return status / 100 == 4 ? new TaskFailedException(message) : new UnirestException(message);
+    }
+}
@@ -0,0 +1,261 @@
+package nl.ymor.sink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Catalog of the timestamped archives in a sink, saved in the sink next to them, so old archives can be pruned
+ * without listing the directory or bucket.
+ * <p>
+ * Every saved archive is added to the catalog with the files that belong to it, such as its checksum and index. The
+ * archives that the {@link RetentionPolicy} does not keep are then deleted with their files, several at a time. An
+ * archive that cannot be deleted stays in the catalog, so the next backup tries again. Archives that were saved
+ * before the catalog existed are not in it, and are left alone.
+ * <p>
+ * Format of the catalog, one line per archive, with tabs between the fields:
+ * <pre>
+ * time archive [file...]
+ * </pre>
+ */
+public class ArchiveCatalog {
+
+    public static final String EXTENSION = ".catalog";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ArchiveCatalog.class);
+    private static final String HEADER = "# archive catalog 1";
+    private static final String SEPARATOR = "\t";
+
+    private final BackupSink sink;
+    private final String fileName;
+
+    /**
+     * @param sink            Sink the archives are saved in
+     * @param archiveFileName File name of the archives without their timestamp, which names the catalog
+     */
+    public ArchiveCatalog(final BackupSink sink, final String archiveFileName) {
+        this.sink = sink;
+        this.fileName = archiveFileName + EXTENSION;
+    }
+
+    /**
+     * @return Archives in the catalog, oldest first, empty if the sink has no catalog yet
+     * @throws IOException if the catalog is damaged
+     */
+    public List<Archive> read() throws IOException {
+        final Optional<byte[]> content = sink.readFile(fileName);
+
+        if (!content.isPresent()) return new ArrayList<>();
+
+        final List<String> lines = Arrays.asList(new String(content.get(), StandardCharsets.UTF_8).split("\n"));
+        final List<Archive> archives = new ArrayList<>();
+
+        if (!HEADER.equals(lines.get(0))) throw new IOException("Not an archive catalog: " + fileName);
+
+        try {
+            for (final String line : lines.subList(1, lines.size())) {
+                if (line.isEmpty()) continue;
+
+                final String[] fields = line.split(SEPARATOR);
+                archives.add(new Archive(LocalDateTime.parse(fields[0]), fields[1],
+                        Arrays.asList(fields).subList(2, fields.length)));
+            }
+        } catch (final DateTimeParseException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Archive catalog " + fileName + " is damaged: " + e.getMessage());
+        }
+
+        archives.sort(Comparator.comparing(Archive::getTime));
+
+        return archives;
+    }
+
+    /**
+     * Add a saved archive to the catalog, then delete the archives that the policy does not keep
+     *
+     * @param archive Archive that was saved, which replaces an archive of the same name in the catalog
+     * @param policy  Policy that decides which archives to keep
+     * @param threads Number of archives to delete at the same time
+     * @return Summary of the pruning
+     */
+    public Summary add(final Archive archive, final RetentionPolicy policy, final int threads) throws IOException {
+        final List<Archive> archives = read().stream()
+                .filter(cataloged -> !cataloged.getName().equals(archive.getName()))
+                .collect(Collectors.toList());
+        archives.add(archive);
+
+        final Set<LocalDateTime> kept = policy.select(archives.stream().map(Archive::getTime)
+                .collect(Collectors.toList()));
+        final List<Archive> pruned = archives.stream()
+                .filter(cataloged -> !kept.contains(cataloged.getTime()))
+                .collect(Collectors.toList());
+        final Queue<Archive> failed = pruned.isEmpty() ? new ConcurrentLinkedQueue<>() : delete(pruned, threads);
+
+        final List<Archive> remaining = archives.stream()
+                .filter(cataloged -> kept.contains(cataloged.getTime()) || failed.contains(cataloged))
+                .sorted(Comparator.comparing(Archive::getTime))
+                .collect(Collectors.toList());
+
+        write(remaining);
+
+        return new Summary(remaining.size(), pruned.size() - failed.size(), failed.size());
+    }
+
+    /**
+     * Delete archives with their files, several archives at a time
+     *
+     * @return Archives that could not be deleted
+     */
+    private Queue<Archive> delete(final List<Archive> archives, final int threads) throws IOException {
+        final Queue<Archive> failed = new ConcurrentLinkedQueue<>();
+        final AtomicInteger nextArchive = new AtomicInteger();
+        final int workerCount = Math.max(1, Math.min(threads, archives.size()));
+        final ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        final List<Future<Void>> workers = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < workerCount; i++) {
+                workers.add(executor.submit(() -> {
+                    int index;
+
+                    while ((index = nextArchive.getAndIncrement()) < archives.size()
+                            && !Thread.currentThread().isInterrupted()) {
+                        final Archive archive = archives.get(index);
+
+                        try {
+                            // The files first, so an archive that is cataloged still has them
+                            for (final String file : archive.getFiles()) sink.deleteFile(file);
+
+                            sink.deleteFile(archive.getName());
+                            LOG.info("Deleted the backup file {} from {}", archive.getName(), sink.getLocation());
+                        } catch (final IOException e) {
+                            LOG.warn("Cannot delete the backup file {} from {}: {}", archive.getName(),
+                                    sink.getLocation(), e.getMessage());
+                            failed.add(archive);
+                        }
+                    }
+
+                    return null;
+                }));
+            }
+
+            for (final Future<Void> worker : workers) {
+                await(worker);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return failed;
+    }
+
+    private void write(final List<Archive> archives) throws IOException {
+        final StringBuilder content = new StringBuilder(HEADER).append('\n');
+
+        for (final Archive archive : archives) {
+            content.append(archive.getTime()).append(SEPARATOR).append(archive.getName());
+
+            for (final String file : archive.getFiles()) content.append(SEPARATOR).append(file);
+
+            content.append('\n');
+        }
+
+        sink.writeFile(fileName, content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void await(final Future<Void> worker) throws IOException {
+        try {
+            worker.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while deleting old archives");
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * One archive in the catalog
+     */
+    public static final class Archive {
+
+        private final LocalDateTime time;
+        private final String name;
+        private final List<String> files;
+
+        /**
+         * @param time  Time the backup was made at, which the retention policy goes by
+         * @param name  File name of the archive in the sink
+         * @param files File names of the files that belong to the archive, such as its checksum
+         */
+        public Archive(final LocalDateTime time, final String name, final List<String> files) {
+            this.time = time;
+            this.name = name;
+            this.files = Collections.unmodifiableList(new ArrayList<>(files));
+        }
+
+        public LocalDateTime getTime() {
+            return time;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public List<String> getFiles() {
+            return files;
+        }
+    }
+
+    /**
+     * Outcome of a pruning, for the log
+     */
+    public static final class Summary {
+
+        private final int kept;
+        private final int deleted;
+        private final int failed;
+
+        Summary(final int kept, final int deleted, final int failed) {
+            this.kept = kept;
+            this.deleted = deleted;
+            this.failed = failed;
+        }
+
+        /**
+         * @return Number of archives in the catalog after the pruning, including the ones that could not be deleted
+         */
+        public int getKept() {
+            return kept;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+    }
+}
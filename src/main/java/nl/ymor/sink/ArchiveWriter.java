@@ -0,0 +1,61 @@
+package nl.ymor.sink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Writes one archive to a {@link BackupSink}. Several threads may write to different positions at the same time,
+ * like ranged downloads do. Closing a writer that was not committed discards the archive, but may keep what is
+ * needed to resume it.
+ */
+public interface ArchiveWriter extends Closeable {
+
+    /**
+     * Write bytes at the given position of the archive, with the contract of
+     * {@link FileChannel#write(ByteBuffer, long)}
+     *
+     * @return Number of bytes written
+     */
+    int write(ByteBuffer source, long position) throws IOException;
+
+    /**
+     * Make the bytes written so far durable, before they are recorded as saved
+     */
+    void force() throws IOException;
+
+    /**
+     * @return true if the bytes of an earlier attempt were kept, as recorded in the journal
+     */
+    boolean isResumed();
+
+    /**
+     * @return Journal that records the saved byte ranges, empty if the writer cannot resume
+     */
+    Optional<Path> getJournalPath();
+
+    /**
+     * @return Channel to read back the bytes written so far, empty if the bytes are not kept locally
+     */
+    Optional<FileChannel> getChannel();
+
+    /**
+     * @return Local file of the archive once committed, empty if the archive is not saved locally
+     */
+    Optional<Path> getLocalPath();
+
+    /**
+     * Wait until every byte written is saved, before the archive is verified. Only writers that save other bytes
+     * than they are given have to wait for anything.
+     */
+    default void finish() throws IOException {
+    }
+
+    /**
+     * Complete the archive, every byte has been written
+     */
+    void commit() throws IOException;
+}
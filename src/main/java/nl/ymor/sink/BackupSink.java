@@ -0,0 +1,48 @@
+package nl.ymor.sink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Destination of backup archives. The downloader writes an archive to the sink as it arrives, the sink decides
+ * where the bytes end up.
+ */
+public interface BackupSink extends Closeable {
+
+    /**
+     * Open the destination of one archive
+     *
+     * @param archiveName File name of the archive
+     * @param size        Size of the archive in bytes, -1 if it is not known in advance
+     * @param resume      true to keep the bytes of an earlier, interrupted attempt at the same archive if possible
+     * @return Writer of the archive, which has to be committed to make the archive appear
+     */
+    ArchiveWriter open(String archiveName, long size, boolean resume) throws IOException;
+
+    /**
+     * Save a small file next to the archives, such as a checksum
+     */
+    void writeFile(String fileName, byte[] content) throws IOException;
+
+    /**
+     * Read a small file next to the archives, such as the catalog of the archives
+     *
+     * @return Content of the file, empty if the sink has no such file
+     */
+    Optional<byte[]> readFile(String fileName) throws IOException;
+
+    /**
+     * Delete an archive or a small file next to the archives, if the sink has it
+     */
+    void deleteFile(String fileName) throws IOException;
+
+    /**
+     * @return Where the archives are saved, for the log
+     */
+    String getLocation();
+
+    @Override
+    default void close() throws IOException {
+    }
+}
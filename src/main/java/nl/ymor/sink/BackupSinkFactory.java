@@ -0,0 +1,61 @@
+package nl.ymor.sink;
+
+import nl.ymor.service.HttpEngine;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.nio.file.Paths;
+
+/**
+ * Creates the sink configured with {@code archive.sink}: {@code local} saves the archives to the download
+ * directory, {@code s3} uploads them to the bucket configured with the {@code s3.*} properties, with the timeouts of
+ * the {@link HttpEngine}.
+ */
+public class BackupSinkFactory {
+
+    public static final String LOCAL = "local";
+    public static final String S3 = "s3";
+
+    @Value("${archive.sink}")
+    protected String sink;
+    @Value("${s3.endpoint}")
+    protected String s3Endpoint;
+    @Value("${s3.region}")
+    protected String s3Region;
+    @Value("${s3.bucket}")
+    protected String s3Bucket;
+    @Value("${s3.prefix}")
+    protected String s3Prefix;
+    @Value("${s3.access.key}")
+    protected String s3AccessKey;
+    @Value("${s3.secret.key}")
+    protected String s3SecretKey;
+    @Value("${s3.part.size.bytes}")
+    protected String s3PartSizeBytes;
+    @Value("${s3.upload.concurrency}")
+    protected String s3UploadConcurrency;
+    @Value("${s3.path.style}")
+    protected String s3PathStyle;
+
+    private final HttpEngine httpEngine;
+
+    public BackupSinkFactory(final HttpEngine httpEngine) {
+        this.httpEngine = httpEngine;
+    }
+
+    /**
+     * @param directory Download directory of the instance
+     * @param instance  Instance URL, which separates the archives of different instances in a bucket
+     * @return Sink for the archives of the instance
+     */
+    public BackupSink create(final String directory, final String instance) {
+        if (S3.equalsIgnoreCase(sink)) {
+            return new S3Sink(s3Endpoint, s3Region, s3Bucket, s3Prefix + instance + "/", s3AccessKey, s3SecretKey,
+                    Integer.parseInt(s3PartSizeBytes), Integer.parseInt(s3UploadConcurrency),
+                    Boolean.parseBoolean(s3PathStyle), httpEngine.getRequestConfig());
+        }
+
+        if (!LOCAL.equalsIgnoreCase(sink)) throw new IllegalArgumentException("Unknown archive sink: " + sink);
+
+        return new LocalFileSink(Paths.get(directory));
+    }
+}
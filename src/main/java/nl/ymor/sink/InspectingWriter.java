@@ -0,0 +1,220 @@
+package nl.ymor.sink;
+
+import nl.ymor.archive.ArchiveIndex;
+import nl.ymor.archive.ArchiveInspector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Inspects an archive with an {@link ArchiveInspector} while it is written to another writer, which has to keep the
+ * archive locally.
+ * <p>
+ * Unlike the {@link ReencodingWriter}, the writes are never held up: the inspector follows the archive in the local
+ * file, and reads every byte as soon as all bytes before it are written. Ranges that complete out of order are
+ * therefore inspected once the ranges before them are done, usually from the page cache. The bytes that a resumed
+ * download kept from an earlier attempt are not written again, so the inspector reads those once the archive is
+ * finished. A failed inspection never fails the backup, the archive just has no index.
+ */
+public class InspectingWriter implements ArchiveWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InspectingWriter.class);
+    private static final long POLL_MILLIS = 100;
+
+    private final ArchiveWriter target;
+    private final FileChannel channel;
+    // Written ranges after the first gap, by their first byte
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+    private final ExecutorService executor;
+    private final Future<ArchiveIndex> inspection;
+    private long writtenPosition;
+    private boolean finished;
+    private ArchiveIndex index;
+
+    /**
+     * @param target    Writer of the archive, with a channel to read the archive back from
+     * @param inspector Inspector to run the archive through
+     */
+    public InspectingWriter(final ArchiveWriter target, final ArchiveInspector inspector) {
+        this.target = target;
+        this.channel = target.getChannel()
+                .orElseThrow(() -> new IllegalArgumentException("Archive has to be kept locally to inspect it"));
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "archive-inspector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.inspection = executor.submit(() -> inspector.inspect(new WrittenInput()));
+    }
+
+    @Override
+    public int write(final ByteBuffer source, final long position) throws IOException {
+        final int count = target.write(source, position);
+
+        if (count > 0) written(position, position + count);
+
+        return count;
+    }
+
+    @Override
+    public void force() throws IOException {
+        target.force();
+    }
+
+    @Override
+    public boolean isResumed() {
+        return target.isResumed();
+    }
+
+    @Override
+    public Optional<Path> getJournalPath() {
+        return target.getJournalPath();
+    }
+
+    @Override
+    public Optional<FileChannel> getChannel() {
+        return target.getChannel();
+    }
+
+    @Override
+    public Optional<Path> getLocalPath() {
+        return target.getLocalPath();
+    }
+
+    /**
+     * Wait until the whole archive is inspected
+     */
+    @Override
+    public void finish() throws IOException {
+        target.finish();
+
+        synchronized (this) {
+            if (finished) return;
+
+            finished = true;
+            notifyAll();
+        }
+
+        try {
+            index = inspection.get();
+
+            LOG.info("Inspected the backup file, it holds {} entries and {} entities",
+                    index.getEntries().size(), index.getEntityCounts().values().stream().mapToLong(Long::longValue)
+                            .sum());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while inspecting the archive");
+        } catch (final ExecutionException e) {
+            LOG.warn("Cannot inspect the backup file: {}", e.getCause().toString());
+        }
+    }
+
+    /**
+     * @return Index of the archive once {@link #finish()} returned, empty if the archive could not be inspected
+     */
+    public Optional<ArchiveIndex> getIndex() {
+        return Optional.ofNullable(index);
+    }
+
+    @Override
+    public void commit() throws IOException {
+        finish();
+        target.commit();
+    }
+
+    @Override
+    public void close() throws IOException {
+        inspection.cancel(true);
+        executor.shutdownNow();
+        target.close();
+    }
+
+    /**
+     * Record a written range, and move the end of the bytes written without gaps
+     */
+    private synchronized void written(final long start, final long end) {
+        if (start > writtenPosition) {
+            // Ranges are written buffer by buffer, which extend the range they continue
+            final Map.Entry<Long, Long> before = ranges.floorEntry(start);
+
+            if (before != null && before.getValue() >= start) {
+                ranges.put(before.getKey(), Math.max(before.getValue(), end));
+            } else {
+                ranges.put(start, end);
+            }
+
+            return;
+        }
+
+        writtenPosition = Math.max(writtenPosition, end);
+
+        for (Map.Entry<Long, Long> range = ranges.firstEntry();
+             range != null && range.getKey() <= writtenPosition; range = ranges.firstEntry()) {
+            writtenPosition = Math.max(writtenPosition, range.getValue());
+            ranges.pollFirstEntry();
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * @return End of the bytes that can be inspected, waiting until there is a byte after the position
+     */
+    private synchronized long awaitWritten(final long position) throws IOException {
+        while (!finished && writtenPosition <= position) {
+            try {
+                wait(POLL_MILLIS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the bytes after " + position);
+            }
+        }
+
+        return finished ? channel.size() : writtenPosition;
+    }
+
+    /**
+     * The archive, read back as far as it is written
+     */
+    private final class WrittenInput extends InputStream {
+
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (length == 0) return 0;
+
+            final long end = awaitWritten(position);
+
+            if (position >= end) return -1;
+
+            final int count = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, end - position)),
+                    position);
+
+            if (count < 0) return -1;
+
+            position += count;
+
+            return count;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package nl.ymor.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Saves the archives to a local directory.
+ * <p>
+ * An archive is written to a partial file next to its target, which replaces the target once committed. The
+ * partial file and its journal are kept when the download fails, so it can be resumed.
+ */
+public class LocalFileSink implements BackupSink {
+
+    private static final String PARTIAL_EXTENSION = ".part";
+    private static final String JOURNAL_EXTENSION = ".journal";
+
+    private final Path directory;
+
+    public LocalFileSink(final Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public ArchiveWriter open(final String archiveName, final long size, final boolean resume) throws IOException {
+        final Path target = directory.resolve(archiveName);
+        final Path partialPath = directory.resolve(archiveName + PARTIAL_EXTENSION);
+
+        // A partial file only belongs to the same archive if it still has the size it was preallocated with
+        final boolean resumed = resume && size > 0 && Files.exists(partialPath) && Files.size(partialPath) == size;
+        final FileChannel channel = FileChannel.open(partialPath, CREATE, READ, WRITE);
+
+        try {
+            if (!resumed) {
+                channel.truncate(0);
+
+                // Preallocate the file by writing its last byte, the ranges are then written in place
+                if (size > 0) channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return new LocalArchiveWriter(channel, partialPath, target, resumed);
+    }
+
+    @Override
+    public void writeFile(final String fileName, final byte[] content) throws IOException {
+        Files.write(directory.resolve(fileName), content);
+    }
+
+    @Override
+    public Optional<byte[]> readFile(final String fileName) throws IOException {
+        final Path file = directory.resolve(fileName);
+
+        return Files.exists(file) ? Optional.of(Files.readAllBytes(file)) : Optional.empty();
+    }
+
+    @Override
+    public void deleteFile(final String fileName) throws IOException {
+        Files.deleteIfExists(directory.resolve(fileName));
+    }
+
+    @Override
+    public String getLocation() {
+        return directory.toString();
+    }
+
+    private static class LocalArchiveWriter implements ArchiveWriter {
+        private final FileChannel channel;
+        private final Path partialPath;
+        private final Path target;
+        private final boolean resumed;
+
+        LocalArchiveWriter(final FileChannel channel, final Path partialPath, final Path target,
+                           final boolean resumed) {
+            this.channel = channel;
+            this.partialPath = partialPath;
+            this.target = target;
+            this.resumed = resumed;
+        }
+
+        @Override
+        public int write(final ByteBuffer source, final long position) throws IOException {
+            return channel.write(source, position);
+        }
+
+        @Override
+        public void force() throws IOException {
+            channel.force(false);
+        }
+
+        @Override
+        public boolean isResumed() {
+            return resumed;
+        }
+
+        @Override
+        public Optional<Path> getJournalPath() {
+            return Optional.of(target.resolveSibling(target.getFileName() + JOURNAL_EXTENSION));
+        }
+
+        @Override
+        public Optional<FileChannel> getChannel() {
+            return Optional.of(channel);
+        }
+
+        @Override
+        public Optional<Path> getLocalPath() {
+            return Optional.of(target);
+        }
+
+        @Override
+        public void commit() throws IOException {
+            channel.close();
+            Files.move(partialPath, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package nl.ymor.sink;
+
+import nl.ymor.archive.ZipReencoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-encodes an archive with a {@link ZipReencoder} on its way to another writer, without saving the archive as it
+ * was downloaded.
+ * <p>
+ * The archive is re-encoded front to back, so a write waits until all bytes before its position are written. Ranges
+ * that are downloaded at the same time therefore take turns, and the connections of later ranges stall until the
+ * ranges before them are done. The re-encoded archive cannot be resumed, and its size is only known at its end.
+ */
+public class ReencodingWriter implements ArchiveWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReencodingWriter.class);
+    private static final byte[] END = new byte[0];
+    private static final int QUEUED_CHUNKS = 16;
+    private static final long POLL_MILLIS = 100;
+
+    private final ArchiveWriter target;
+    private final MessageDigest digest;
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+    private final ExecutorService executor;
+    private final Future<ZipReencoder.Summary> reencoding;
+    private long nextPosition;
+    private boolean finished;
+
+    /**
+     * @param target    Writer of the re-encoded archive, which only has to accept bytes in order
+     * @param reencoder Re-encoder to run the archive through
+     * @param digest    Digest to feed the re-encoded archive to, may be null
+     */
+    public ReencodingWriter(final ArchiveWriter target, final ZipReencoder reencoder, final MessageDigest digest) {
+        this.target = target;
+        this.digest = digest;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "archive-reencoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reencoding = executor.submit(() -> reencoder.reencode(new ChunkInput(), new TargetOutput()));
+    }
+
+    @Override
+    public synchronized int write(final ByteBuffer source, final long position) throws IOException {
+        while (position > nextPosition) {
+            checkReencoding();
+            await();
+        }
+
+        if (position < nextPosition) {
+            throw new IOException(String.format("Bytes at %d were written already, the archive is re-encoded up to %d",
+                    position, nextPosition));
+        }
+
+        final byte[] chunk = new byte[source.remaining()];
+        source.get(chunk);
+
+        try {
+            while (!chunks.offer(chunk, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                checkReencoding();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while re-encoding the archive");
+        }
+
+        nextPosition += chunk.length;
+        notifyAll();
+
+        return chunk.length;
+    }
+
+    @Override
+    public void force() {
+        // Nothing is recorded in a journal, the re-encoded archive is made durable when it is committed
+    }
+
+    @Override
+    public boolean isResumed() {
+        return false;
+    }
+
+    @Override
+    public Optional<Path> getJournalPath() {
+        return Optional.empty();
+    }
+
+    /**
+     * @return Channel of the re-encoded archive, complete once {@link #finish()} returned
+     */
+    @Override
+    public Optional<FileChannel> getChannel() {
+        return target.getChannel();
+    }
+
+    @Override
+    public Optional<Path> getLocalPath() {
+        return target.getLocalPath();
+    }
+
+    /**
+     * Wait until the whole archive is re-encoded
+     *
+     * @throws java.util.zip.ZipException if the downloaded archive is damaged or incomplete
+     */
+    @Override
+    public synchronized void finish() throws IOException {
+        if (finished) return;
+
+        try {
+            while (!chunks.offer(END, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                checkReencoding();
+            }
+
+            final ZipReencoder.Summary summary = reencoding.get();
+
+            LOG.info("Re-encoded {} of {} entries with Zstandard, {} bytes became {} bytes",
+                    summary.getReencodedEntries(), summary.getEntries(), summary.getSourceSize(), summary.getSize());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while re-encoding the archive");
+        } catch (final ExecutionException e) {
+            throw reencodingFailure(e);
+        }
+
+        finished = true;
+    }
+
+    @Override
+    public void commit() throws IOException {
+        finish();
+        target.commit();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reencoding.cancel(true);
+        executor.shutdownNow();
+        target.close();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait(POLL_MILLIS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the bytes before " + nextPosition);
+        }
+    }
+
+    /**
+     * Fail the write if the re-encoding stopped, e.g. because the archive is damaged
+     */
+    private void checkReencoding() throws IOException {
+        if (!reencoding.isDone()) return;
+
+        try {
+            reencoding.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while re-encoding the archive");
+        } catch (final ExecutionException e) {
+            throw reencodingFailure(e);
+        }
+
+        throw new IOException("Archive was re-encoded before all bytes were written");
+    }
+
+    private static IOException reencodingFailure(final ExecutionException e) {
+        return e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    }
+
+    /**
+     * The downloaded archive, as the chunks come in
+     */
+    private final class ChunkInput extends InputStream {
+
+        private byte[] chunk = new byte[0];
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            while (chunk != END && position == chunk.length) {
+                try {
+                    chunk = chunks.take();
+                    position = 0;
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the archive");
+                }
+            }
+
+            if (chunk == END) return -1;
+
+            final int count = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk, position, bytes, offset, count);
+            position += count;
+
+            return count;
+        }
+    }
+
+    /**
+     * The re-encoded archive, written to the target in order
+     */
+    private final class TargetOutput extends OutputStream {
+
+        private long position;
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+
+            if (digest != null) digest.update(buffer.duplicate());
+
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+        }
+    }
+}
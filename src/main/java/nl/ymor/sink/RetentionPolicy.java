@@ -0,0 +1,79 @@
+package nl.ymor.sink;
+
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Decides which archives to keep: the newest archive of each of the last days, weeks and months that have archives.
+ * <p>
+ * With 7 daily, 4 weekly and 12 monthly archives, a backup every night leaves the archives of the last week, one
+ * archive of each of the four weeks before, and one of each month of the last year. The periods overlap, so an
+ * archive can count as a daily, weekly and monthly archive at the same time. The newest archive is always kept.
+ */
+public class RetentionPolicy {
+
+    private final int daily;
+    private final int weekly;
+    private final int monthly;
+
+    /**
+     * @param daily   Number of days to keep the newest archive of
+     * @param weekly  Number of ISO weeks to keep the newest archive of
+     * @param monthly Number of months to keep the newest archive of
+     */
+    public RetentionPolicy(final int daily, final int weekly, final int monthly) {
+        this.daily = daily;
+        this.weekly = weekly;
+        this.monthly = monthly;
+    }
+
+    /**
+     * @return true if the policy keeps anything, a policy that keeps no periods keeps every archive
+     */
+    public boolean isEnabled() {
+        return daily > 0 || weekly > 0 || monthly > 0;
+    }
+
+    /**
+     * @param times Times the archives were made at, in any order
+     * @return Times of the archives to keep
+     */
+    public Set<LocalDateTime> select(final List<LocalDateTime> times) {
+        if (!isEnabled()) return new HashSet<>(times);
+
+        final List<LocalDateTime> newestFirst = new ArrayList<>(times);
+        newestFirst.sort(Comparator.reverseOrder());
+
+        final Set<LocalDateTime> kept = new HashSet<>();
+
+        if (!newestFirst.isEmpty()) kept.add(newestFirst.get(0));
+
+        kept.addAll(newestPerPeriod(newestFirst, daily, LocalDateTime::toLocalDate));
+        kept.addAll(newestPerPeriod(newestFirst, weekly,
+                time -> time.get(IsoFields.WEEK_BASED_YEAR) * 100 + time.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR)));
+        kept.addAll(newestPerPeriod(newestFirst, monthly, YearMonth::from));
+
+        return kept;
+    }
+
+    private static Set<LocalDateTime> newestPerPeriod(final List<LocalDateTime> newestFirst, final int periods,
+                                                      final Function<LocalDateTime, Object> period) {
+        final Set<Object> seen = new HashSet<>();
+        final Set<LocalDateTime> kept = new LinkedHashSet<>();
+
+        for (final LocalDateTime time : newestFirst) {
+            if (seen.size() >= periods) break;
+            if (seen.add(period.apply(time))) kept.add(time);
+        }
+
+        return kept;
+    }
+}
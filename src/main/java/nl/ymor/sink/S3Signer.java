@@ -0,0 +1,151 @@
+package nl.ymor.sink;
+
+import nl.ymor.archive.ChecksumFile;
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpRequestBase;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Signs requests to an S3-compatible service with AWS Signature Version 4. Bodies are not part of the signature,
+ * their integrity is checked by the service through the {@code Content-MD5} header instead.
+ */
+class S3Signer {
+
+    static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private final String accessKey;
+    private final String secretKey;
+    private final String region;
+
+    S3Signer(final String accessKey, final String secretKey, final String region) {
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.region = region;
+    }
+
+    /**
+     * Add the date, payload and authorization headers to a request whose other headers are set
+     */
+    void sign(final HttpRequestBase request, final ZonedDateTime now) {
+        final ZonedDateTime utcNow = now.withZoneSameInstant(ZoneOffset.UTC);
+        final String dateTime = utcNow.format(DATE_TIME);
+        final String scope = utcNow.format(DATE) + "/" + region + "/" + SERVICE + "/aws4_request";
+
+        request.setHeader("Host", hostHeader(request));
+        request.setHeader("x-amz-date", dateTime);
+        request.setHeader("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+
+        final Map<String, String> headers = new TreeMap<>();
+        for (final Header header : request.getAllHeaders()) {
+            headers.put(header.getName().toLowerCase(), header.getValue().trim());
+        }
+
+        final StringBuilder canonicalHeaders = new StringBuilder();
+        for (final Map.Entry<String, String> header : headers.entrySet()) {
+            canonicalHeaders.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+
+        final String signedHeaders = String.join(";", headers.keySet());
+        final String canonicalRequest = String.join("\n",
+                request.getMethod(),
+                request.getURI().getRawPath().isEmpty() ? "/" : request.getURI().getRawPath(),
+                canonicalQuery(request.getURI().getRawQuery()),
+                canonicalHeaders.toString(),
+                signedHeaders,
+                UNSIGNED_PAYLOAD);
+        final String stringToSign =
+                String.join("\n", ALGORITHM, dateTime, scope, ChecksumFile.toHex(sha256(canonicalRequest)));
+
+        byte[] signingKey = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), utcNow.format(DATE));
+        signingKey = hmac(signingKey, region);
+        signingKey = hmac(signingKey, SERVICE);
+        signingKey = hmac(signingKey, "aws4_request");
+
+        request.setHeader("Authorization", String.format("%s Credential=%s/%s, SignedHeaders=%s, Signature=%s",
+                ALGORITHM, accessKey, scope, signedHeaders, ChecksumFile.toHex(hmac(signingKey, stringToSign))));
+    }
+
+    /**
+     * Encode a URI component as S3 expects it
+     *
+     * @param value     Value to encode
+     * @param keepSlash true to leave slashes alone, as in object keys
+     */
+    static String uriEncode(final String value, final boolean keepSlash) {
+        final StringBuilder encoded = new StringBuilder();
+
+        for (final byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            final char c = (char) (b & 0xFF);
+
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '~' || (keepSlash && c == '/')) {
+                encoded.append(c);
+            } else {
+                encoded.append(String.format("%%%02X", b & 0xFF));
+            }
+        }
+
+        return encoded.toString();
+    }
+
+    private static String hostHeader(final HttpRequestBase request) {
+        final int port = request.getURI().getPort();
+        final boolean defaultPort = port == -1
+                || ("http".equals(request.getURI().getScheme()) && port == 80)
+                || ("https".equals(request.getURI().getScheme()) && port == 443);
+
+        return defaultPort ? request.getURI().getHost() : request.getURI().getHost() + ":" + port;
+    }
+
+    /**
+     * Sort the query parameters, which are already encoded, and give every parameter a value
+     */
+    private static String canonicalQuery(final String rawQuery) {
+        if (rawQuery == null || rawQuery.isEmpty()) return "";
+
+        final List<String> parameters = new ArrayList<>();
+
+        for (final String parameter : rawQuery.split("&")) {
+            parameters.add(parameter.contains("=") ? parameter : parameter + "=");
+        }
+
+        Collections.sort(parameters);
+
+        return String.join("&", parameters);
+    }
+
+    private static byte[] sha256(final String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmac(final byte[] key, final String value) {
+        try {
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,455 @@
+package nl.ymor.sink;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Uploads the archives to a bucket of an S3-compatible service, such as Amazon S3 or MinIO, without saving them
+ * on local disk.
+ * <p>
+ * Every archive is a multipart upload. The bytes are collected in memory per part, and a part is uploaded as soon
+ * as it is complete, while the download goes on. Parts are uploaded in parallel, and a writer waits when twice the
+ * upload concurrency of parts are waiting or in flight, so the memory use stays bounded if the upload is slower than
+ * the download. S3 requires parts of at least 5 MB, except the last one.
+ */
+public class S3Sink implements BackupSink {
+
+    private static final Logger LOG = LoggerFactory.getLogger(S3Sink.class);
+    private static final int MAX_PARTS = 10_000;
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+    private final URI endpoint;
+    private final String bucket;
+    private final String keyPrefix;
+    private final boolean pathStyle;
+    private final S3Signer signer;
+    private final int partSize;
+    private final int uploadConcurrency;
+    private final CloseableHttpClient httpClient;
+
+    /**
+     * @param endpoint          Service URL, e.g. {@code https://s3.eu-west-1.amazonaws.com} or
+     *                          {@code http://localhost:9000}
+     * @param region            Region of the bucket
+     * @param bucket            Bucket to upload to
+     * @param keyPrefix         Prefix of the object keys
+     * @param accessKey         Access key ID
+     * @param secretKey         Secret access key
+     * @param partSize          Size of the upload parts in bytes
+     * @param uploadConcurrency Number of parts to upload at the same time
+     * @param pathStyle         true to address the bucket in the path instead of the host name, as MinIO expects
+     * @param requestConfig     Timeouts of the requests to the service
+     */
+    @SuppressWarnings("squid:S00107")
+    public S3Sink(final String endpoint, final String region, final String bucket, final String keyPrefix,
+                  final String accessKey, final String secretKey, final int partSize, final int uploadConcurrency,
+                  final boolean pathStyle, final RequestConfig requestConfig) {
+        this.endpoint = URI.create(endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint);
+        this.bucket = bucket;
+        this.keyPrefix = keyPrefix;
+        this.pathStyle = pathStyle;
+        this.signer = new S3Signer(accessKey, secretKey, region);
+        this.partSize = partSize;
+        this.uploadConcurrency = uploadConcurrency;
+        this.httpClient = HttpClients.custom()
+                .setMaxConnTotal(uploadConcurrency + 1)
+                .setMaxConnPerRoute(uploadConcurrency + 1)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+    }
+
+    @Override
+    public ArchiveWriter open(final String archiveName, final long size, final boolean resume) throws IOException {
+        final String key = keyPrefix + archiveName;
+        final String response = execute(new HttpPost(objectUri(key, "uploads")), null);
+        final Matcher uploadId = UPLOAD_ID.matcher(response);
+
+        if (!uploadId.find()) throw new IOException("Multipart upload of " + key + " returned no upload ID");
+
+        // Grow the parts if the archive would need more parts than allowed
+        final long archivePartSize = size > 0 ? Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS) : partSize;
+
+        if (archivePartSize > Integer.MAX_VALUE) throw new IOException("Archive is too large: " + size + " bytes");
+
+        LOG.info("Started multipart upload of {} in parts of {} bytes", key, archivePartSize);
+
+        return new S3ArchiveWriter(key, uploadId.group(1), size, (int) archivePartSize);
+    }
+
+    @Override
+    public void writeFile(final String fileName, final byte[] content) throws IOException {
+        final HttpPut request = new HttpPut(objectUri(keyPrefix + fileName, null));
+        request.setEntity(new ByteArrayEntity(content));
+
+        execute(request, content);
+    }
+
+    @Override
+    public Optional<byte[]> readFile(final String fileName) throws IOException {
+        final HttpGet request = new HttpGet(objectUri(keyPrefix + fileName, null));
+
+        signer.sign(request, ZonedDateTime.now());
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            final int status = response.getStatusLine().getStatusCode();
+            final HttpEntity entity = response.getEntity();
+            final byte[] body = entity == null ? new byte[0] : EntityUtils.toByteArray(entity);
+
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) return Optional.empty();
+
+            if (status / 100 != 2) {
+                throw new IOException(String.format("GET %s returned HTTP code %d: %s", request.getURI().getRawPath(),
+                        status, new String(body, StandardCharsets.UTF_8)));
+            }
+
+            return Optional.of(body);
+        }
+    }
+
+    @Override
+    public void deleteFile(final String fileName) throws IOException {
+        // The service answers a delete of a key it does not have with a success as well
+        execute(new HttpDelete(objectUri(keyPrefix + fileName, null)), null);
+    }
+
+    @Override
+    public String getLocation() {
+        return "s3://" + bucket + "/" + keyPrefix;
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    private URI objectUri(final String key, final String query) {
+        final String path = S3Signer.uriEncode(key, true);
+        final String uri = pathStyle
+                ? String.format("%s://%s/%s/%s", endpoint.getScheme(), endpoint.getRawAuthority(), bucket, path)
+                : String.format("%s://%s.%s/%s", endpoint.getScheme(), bucket, endpoint.getRawAuthority(), path);
+
+        return URI.create(query == null ? uri : uri + "?" + query);
+    }
+
+    /**
+     * Sign and execute a request
+     *
+     * @param body Body of the request, to compute its MD5 from, null if it has none
+     * @return Response body
+     * @throws IOException if the service does not answer with a success
+     */
+    private String execute(final HttpRequestBase request, final byte[] body) throws IOException {
+        if (body != null) request.setHeader("Content-MD5", md5(body));
+
+        signer.sign(request, ZonedDateTime.now());
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            final HttpEntity entity = response.getEntity();
+            final String responseBody = entity == null ? "" : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+            final int status = response.getStatusLine().getStatusCode();
+
+            // A completed multipart upload can still fail with an error in a 200 response
+            if (status / 100 != 2 || responseBody.contains("<Error>")) {
+                throw new IOException(String.format("%s %s returned HTTP code %d: %s",
+                        request.getMethod(), request.getURI().getRawPath(), status, responseBody));
+            }
+
+            if (response.containsHeader("ETag")) return response.getFirstHeader("ETag").getValue();
+
+            return responseBody;
+        }
+    }
+
+    private static String md5(final byte[] body) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(body));
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Bytes of one part, which may be written by several threads in any order
+     */
+    private static class Part {
+        private final byte[] bytes;
+        // Written intervals, start to end, so bytes that are written twice are only counted once
+        private final TreeMap<Integer, Integer> written = new TreeMap<>();
+        private int filled;
+
+        Part(final int length) {
+            this.bytes = new byte[length];
+        }
+
+        /**
+         * @return true if every byte of the part is written
+         */
+        synchronized boolean put(final int offset, final ByteBuffer source) {
+            final int length = source.remaining();
+            source.get(bytes, offset, length);
+
+            int start = offset;
+            int end = offset + length;
+            final Map.Entry<Integer, Integer> before = written.floorEntry(start);
+
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+
+            Map.Entry<Integer, Integer> after;
+            while ((after = written.ceilingEntry(start)) != null && after.getKey() <= end) {
+                end = Math.max(end, after.getValue());
+                written.remove(after.getKey());
+                filled -= after.getValue() - after.getKey();
+            }
+
+            written.put(start, end);
+            filled += end - start;
+
+            return filled == bytes.length;
+        }
+
+        /**
+         * @return Number of bytes from the start of the part that are written
+         */
+        synchronized int contiguousLength() {
+            final Integer end = written.get(0);
+            return end == null ? 0 : end;
+        }
+    }
+
+    private class S3ArchiveWriter implements ArchiveWriter {
+        private final String key;
+        private final String uploadId;
+        private final long size;
+        private final int archivePartSize;
+        private final Map<Integer, Part> filling = new HashMap<>();
+        private final Map<Integer, String> eTags = new ConcurrentSkipListMap<>();
+        private final List<Future<?>> uploads = new ArrayList<>();
+        private final Semaphore queuedParts = new Semaphore(uploadConcurrency * 2);
+        private final ExecutorService executor = Executors.newFixedThreadPool(uploadConcurrency);
+        private boolean committed;
+
+        S3ArchiveWriter(final String key, final String uploadId, final long size, final int archivePartSize) {
+            this.key = key;
+            this.uploadId = uploadId;
+            this.size = size;
+            this.archivePartSize = archivePartSize;
+        }
+
+        @Override
+        public int write(final ByteBuffer source, final long position) throws IOException {
+            int written = 0;
+
+            while (source.hasRemaining()) {
+                final long partStart = (position + written) / archivePartSize * archivePartSize;
+                final int index = (int) (partStart / archivePartSize);
+                final int offset = (int) (position + written - partStart);
+                final Part part = partAt(index, partStart);
+                final int length = Math.min(source.remaining(), part.bytes.length - offset);
+
+                if (length <= 0) throw new IOException("Write at " + (position + written) + " exceeds the archive");
+
+                final ByteBuffer piece = source.duplicate();
+                piece.limit(piece.position() + length);
+
+                if (part.put(offset, piece)) upload(index, part, part.bytes.length);
+
+                source.position(source.position() + length);
+                written += length;
+            }
+
+            return written;
+        }
+
+        private Part partAt(final int index, final long partStart) {
+            synchronized (filling) {
+                return filling.computeIfAbsent(index, i -> new Part(
+                        (int) (size < 0 ? archivePartSize : Math.min(archivePartSize, size - partStart))));
+            }
+        }
+
+        /**
+         * Hand a complete part over to the upload pool, waiting if too many parts are queued already
+         */
+        private void upload(final int index, final Part part, final int length) throws InterruptedIOException {
+            synchronized (filling) {
+                filling.remove(index);
+            }
+
+            try {
+                queuedParts.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a part upload");
+            }
+
+            final Future<?> upload = executor.submit(() -> {
+                try {
+                    final byte[] body = length == part.bytes.length ? part.bytes : Arrays.copyOf(part.bytes, length);
+                    final HttpPut request = new HttpPut(objectUri(key,
+                            "partNumber=" + (index + 1) + "&uploadId=" + S3Signer.uriEncode(uploadId, false)));
+                    request.setEntity(new ByteArrayEntity(body));
+
+                    eTags.put(index + 1, execute(request, body));
+                    return null;
+                } finally {
+                    queuedParts.release();
+                }
+            });
+
+            synchronized (uploads) {
+                uploads.add(upload);
+            }
+        }
+
+        @Override
+        public void force() {
+            // Parts only count once the service has them, there is nothing to resume from
+        }
+
+        @Override
+        public boolean isResumed() {
+            return false;
+        }
+
+        @Override
+        public Optional<Path> getJournalPath() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<FileChannel> getChannel() {
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<Path> getLocalPath() {
+            return Optional.empty();
+        }
+
+        @Override
+        public void commit() throws IOException {
+            final TreeMap<Integer, Part> remaining;
+
+            synchronized (filling) {
+                remaining = new TreeMap<>(filling);
+            }
+
+            // Without a known size, the last part is only complete once the stream has ended
+            for (final Map.Entry<Integer, Part> last : remaining.entrySet()) {
+                if (size >= 0 || last.getKey() != remaining.lastKey().intValue()) {
+                    throw new IOException("Part " + (last.getKey() + 1) + " of " + key + " is incomplete");
+                }
+
+                upload(last.getKey(), last.getValue(), last.getValue().contiguousLength());
+            }
+
+            if (eTags.isEmpty() && uploads.isEmpty()) upload(0, new Part(0), 0);
+
+            awaitUploads();
+
+            final StringBuilder completion = new StringBuilder("<CompleteMultipartUpload>");
+            for (final Map.Entry<Integer, String> eTag : eTags.entrySet()) {
+                completion.append("<Part><PartNumber>").append(eTag.getKey()).append("</PartNumber><ETag>")
+                        .append(eTag.getValue()).append("</ETag></Part>");
+            }
+            completion.append("</CompleteMultipartUpload>");
+
+            final HttpPost request =
+                    new HttpPost(objectUri(key, "uploadId=" + S3Signer.uriEncode(uploadId, false)));
+            final byte[] body = completion.toString().getBytes(StandardCharsets.UTF_8);
+            request.setEntity(new StringEntity(completion.toString(), StandardCharsets.UTF_8));
+
+            execute(request, body);
+            committed = true;
+
+            LOG.info("Completed multipart upload of {} in {} parts", key, eTags.size());
+        }
+
+        private void awaitUploads() throws IOException {
+            final List<Future<?>> pending;
+
+            synchronized (uploads) {
+                pending = new ArrayList<>(uploads);
+            }
+
+            for (final Future<?> upload : pending) {
+                try {
+                    upload.get();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while uploading " + key);
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                    throw new IOException(e.getCause());
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            executor.shutdownNow();
+
+            if (committed) return;
+
+            // A part that is being sent cannot be interrupted, and would be stored after the abort
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            // Otherwise the service keeps the uploaded parts, and charges for them, until the upload is aborted
+            try {
+                execute(new HttpDelete(objectUri(key, "uploadId=" + S3Signer.uriEncode(uploadId, false))), null);
+                LOG.info("Aborted multipart upload of {}", key);
+            } catch (final IOException e) {
+                LOG.warn("Cannot abort multipart upload of {}: {}", key, e.getMessage());
+            }
+        }
+    }
+}
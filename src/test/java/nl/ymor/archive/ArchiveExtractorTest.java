@@ -0,0 +1,157 @@
+package nl.ymor.archive;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ArchiveExtractorTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final byte[] entities = ("<entity-engine-xml><Issue id=\"10100\"/></entity-engine-xml>")
+            .getBytes(StandardCharsets.UTF_8);
+    private final byte[] image = random(4096, 1);
+    private final byte[] document = ("Release notes\n" + new String(new char[200]).replace("\0", "line\n"))
+            .getBytes(StandardCharsets.UTF_8);
+
+    private Path directory;
+    private Path archive;
+    private Path index;
+
+    @Before
+    public void setup() throws IOException {
+        directory = temporaryFolder.newFolder("extractor").toPath();
+        archive = temporaryFolder.getRoot().toPath().resolve("extractor-test.zip");
+        index = archive.resolveSibling("extractor-test.zip" + ArchiveIndex.EXTENSION);
+    }
+
+    @Test
+    public void shouldExtractEntriesByNameAndAttachmentID() throws IOException {
+        Files.write(archive, zip());
+
+        try (ArchiveExtractor extractor = ArchiveExtractor.open(archive)) {
+            final ArchiveExtractor.Summary summary =
+                    extractor.extract(Arrays.asList("entities.xml", "10100", "10101"), directory, 4);
+
+            assertThat(extractor.isIndexed()).isFalse();
+            assertThat(summary.getEntries()).isEqualTo(3);
+            assertThat(summary.getSize()).isEqualTo(entities.length + image.length + document.length);
+        }
+
+        assertThat(directory.resolve("entities.xml")).hasBinaryContent(entities);
+        assertThat(directory.resolve("data/attachments/BD/10000/BD-1/10100")).hasBinaryContent(image);
+        assertThat(directory.resolve("data/attachments/BD/10000/BD-2/10101")).hasBinaryContent(document);
+        assertThat(directory.resolve("data/attachments/BD/10000/BD-1/thumbs")).doesNotExist();
+    }
+
+    @Test
+    public void shouldLookUpEntriesInIndex() throws IOException {
+        final byte[] source = zip();
+
+        Files.write(archive, source);
+        Files.write(index, new ArchiveInspector().inspect(new ByteArrayInputStream(source)).content());
+
+        try (ArchiveExtractor extractor = ArchiveExtractor.open(archive)) {
+            extractor.extract(Collections.singletonList("10101"), directory, 1);
+
+            assertThat(extractor.isIndexed()).isTrue();
+        }
+
+        assertThat(directory.resolve("data/attachments/BD/10000/BD-2/10101")).hasBinaryContent(document);
+    }
+
+    @Test
+    public void shouldExtractReencodedEntries() throws IOException {
+        try (OutputStream target = Files.newOutputStream(archive)) {
+            new ZipReencoder(3, 0).reencode(new ByteArrayInputStream(zip()), target);
+        }
+
+        try (ArchiveExtractor extractor = ArchiveExtractor.open(archive)) {
+            extractor.extract(Arrays.asList("entities.xml", "10101"), directory, 2);
+        }
+
+        assertThat(directory.resolve("entities.xml")).hasBinaryContent(entities);
+        assertThat(directory.resolve("data/attachments/BD/10000/BD-2/10101")).hasBinaryContent(document);
+    }
+
+    @Test(expected = ZipException.class)
+    public void shouldFailOnUnknownEntry() throws IOException {
+        Files.write(archive, zip());
+
+        try (ArchiveExtractor extractor = ArchiveExtractor.open(archive)) {
+            extractor.extract(Collections.singletonList("10999"), directory, 1);
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void shouldNotExtractOutsideDirectory() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("../escaped.txt"));
+            zip.write(document);
+            zip.closeEntry();
+        }
+
+        Files.write(archive, bytes.toByteArray());
+
+        try (ArchiveExtractor extractor = ArchiveExtractor.open(archive)) {
+            extractor.extract(Collections.singletonList("../escaped.txt"), directory, 1);
+        }
+    }
+
+    private byte[] zip() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("entities.xml"));
+            zip.write(entities);
+            zip.closeEntry();
+
+            final ZipEntry stored = new ZipEntry("data/attachments/BD/10000/BD-1/10100");
+            final CRC32 crc = new CRC32();
+            crc.update(image);
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(image.length);
+            stored.setCrc(crc.getValue());
+            zip.putNextEntry(stored);
+            zip.write(image);
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("data/attachments/BD/10000/BD-1/thumbs/_thumb_10100.png"));
+            zip.write(random(256, 2));
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("data/attachments/BD/10000/BD-2/10101"));
+            zip.write(document);
+            zip.closeEntry();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] random(final int size, final long seed) {
+        final byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,179 @@
+package nl.ymor.archive;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.Deflater;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class ArchiveInspectorTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final byte[] image = random(4096);
+    private Path archive;
+
+    @Before
+    public void setup() {
+        archive = temporaryFolder.getRoot().toPath().resolve("inspector-test.zip");
+    }
+
+    @Test
+    public void shouldIndexEntriesOfStreamedArchive() throws IOException {
+        final byte[] source = zip(jiraEntities());
+
+        final ArchiveIndex index = new ArchiveInspector().inspect(new ByteArrayInputStream(source));
+
+        Files.write(archive, source);
+
+        try (FileChannel channel = FileChannel.open(archive)) {
+            final List<ZipCentralDirectoryEntry> centralEntries = ZipCentralDirectory.read(channel).getEntries();
+
+            assertThat(index.getEntries()).hasSameSizeAs(centralEntries);
+
+            for (int i = 0; i < centralEntries.size(); i++) {
+                final ZipCentralDirectoryEntry expected = centralEntries.get(i);
+
+                assertThat(index.getEntries().get(i)).isEqualToComparingOnlyGivenFields(expected,
+                        "name", "method", "crc", "compressedSize", "size", "localHeaderOffset");
+            }
+        }
+
+        final ArchiveIndex.Entry attachment = index.getEntry("data/attachments/10000/10100/1").get();
+
+        assertThat(Arrays.copyOfRange(source, (int) attachment.getDataOffset(),
+                (int) (attachment.getDataOffset() + attachment.getCompressedSize()))).isEqualTo(image);
+        assertThat(index.getEntityCounts()).containsOnly(entry("Issue", 3L), entry("Project", 1L));
+    }
+
+    @Test
+    public void shouldCountConfluenceEntitiesByClass() throws IOException {
+        final byte[] entities = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<hibernate-generic>" +
+                "<object class=\"Page\" package=\"com.atlassian.confluence.pages\"><id name=\"id\">1</id></object>" +
+                "<object class=\"Page\" package=\"com.atlassian.confluence.pages\"><id name=\"id\">2</id></object>" +
+                "<object class=\"Space\" package=\"com.atlassian.confluence.spaces\"><id name=\"id\">3</id></object>" +
+                "</hibernate-generic>").getBytes(StandardCharsets.UTF_8);
+
+        final ArchiveIndex index = new ArchiveInspector().inspect(new ByteArrayInputStream(zip(entities)));
+
+        assertThat(index.getEntityCounts()).containsOnly(entry("Page", 2L), entry("Space", 1L));
+    }
+
+    @Test
+    public void shouldReadSavedIndex() throws IOException {
+        final ArchiveIndex index = new ArchiveInspector().inspect(new ByteArrayInputStream(zip(jiraEntities())));
+        final Path file = archive.resolveSibling("inspector-test.zip" + ArchiveIndex.EXTENSION);
+
+        Files.write(file, index.content());
+
+        final ArchiveIndex saved = ArchiveIndex.read(file);
+
+        assertThat(saved.getEntries()).usingFieldByFieldElementComparator().isEqualTo(index.getEntries());
+        assertThat(saved.getEntityCounts()).isEqualTo(index.getEntityCounts());
+    }
+
+    @Test
+    public void shouldReadZip64DataDescriptorOfLargeEntry() throws Exception {
+        // Written without knowing its size, the local header has no ZIP64 field, only the data descriptor is ZIP64
+        final long size = 0x1_0000_0000L + 4096;
+        final PipedInputStream source = new PipedInputStream(1 << 16);
+        final PipedOutputStream target = new PipedOutputStream(source);
+
+        final CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try (ZipOutputStream zip = new ZipOutputStream(target)) {
+                final byte[] zeros = new byte[1 << 20];
+
+                zip.setLevel(Deflater.BEST_SPEED);
+                zip.putNextEntry(new ZipEntry("data/attachments/10000/10100/2"));
+                for (long written = 0; written < size; written += zeros.length) {
+                    zip.write(zeros, 0, (int) Math.min(zeros.length, size - written));
+                }
+                zip.closeEntry();
+
+                zip.putNextEntry(new ZipEntry("activeobjects.xml"));
+                zip.write("<backup/>".getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            } catch (final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        final ArchiveIndex index = new ArchiveInspector().inspect(source);
+        writer.get();
+
+        assertThat(index.getEntries()).extracting(ArchiveIndex.Entry::getName)
+                .containsExactly("data/attachments/10000/10100/2", "activeobjects.xml");
+        assertThat(index.getEntries().get(0).getSize()).isEqualTo(size);
+        assertThat(index.getEntries().get(1).getSize()).isEqualTo("<backup/>".length());
+    }
+
+    @Test(expected = ZipException.class)
+    public void shouldFailOnTruncatedArchive() throws IOException {
+        final byte[] source = zip(jiraEntities());
+
+        new ArchiveInspector().inspect(new ByteArrayInputStream(Arrays.copyOf(source, source.length / 2)));
+    }
+
+    private byte[] zip(final byte[] entities) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("entities.xml"));
+            zip.write(entities);
+            zip.closeEntry();
+
+            final ZipEntry stored = new ZipEntry("data/attachments/10000/10100/1");
+            final CRC32 crc = new CRC32();
+            crc.update(image);
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(image.length);
+            stored.setCrc(crc.getValue());
+            zip.putNextEntry(stored);
+            zip.write(image);
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("activeobjects.xml"));
+            zip.write("<backup/>".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static byte[] jiraEntities() {
+        return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<entity-engine-xml>" +
+                "<Project id=\"10000\" key=\"BD\"/>" +
+                "<Issue id=\"10100\" project=\"10000\"><description>First</description></Issue>" +
+                "<Issue id=\"10101\" project=\"10000\"/>" +
+                "<Issue id=\"10102\" project=\"10000\"/>" +
+                "</entity-engine-xml>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] random(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
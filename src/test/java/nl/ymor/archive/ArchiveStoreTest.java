@@ -0,0 +1,120 @@
+package nl.ymor.archive;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ArchiveStoreTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path data;
+    private Path storeDirectory;
+    private Path archive;
+
+    @Before
+    public void setup() {
+        data = temporaryFolder.getRoot().toPath();
+        storeDirectory = data.resolve("archive-store");
+        archive = data.resolve("archive-store-test.zip");
+    }
+
+    @Test
+    public void shouldOnlyWriteChangedEntries() throws IOException {
+        final ArchiveStore store = new ArchiveStore(storeDirectory);
+        final Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("entities.xml", "<entities version=\"1\"/>");
+        entries.put("data/attachments/10000/1", "An unchanged attachment");
+
+        writeArchive(entries);
+        final ArchiveStore.Summary first = store.ingest(archive, "blackdog.atlassian.net");
+
+        entries.put("entities.xml", "<entities version=\"2\"/>");
+        writeArchive(entries);
+        final ArchiveStore.Summary second = store.ingest(archive, "blackdog.atlassian.net");
+
+        assertThat(first.getEntries()).isEqualTo(2);
+        assertThat(first.getWrittenBytes()).isEqualTo(23 + 23);
+        assertThat(second.getEntries()).isEqualTo(2);
+        assertThat(second.getWrittenBytes()).isEqualTo("<entities version=\"2\"/>".length());
+        assertThat(second.getReusedBytes()).isEqualTo("An unchanged attachment".length());
+        assertThat(store.latestManifest("blackdog.atlassian.net")).isEqualTo(second.getManifest());
+    }
+
+    @Test
+    public void shouldRebuildArchiveFromManifest() throws IOException {
+        final Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("entities.xml", "<entities/>");
+        entries.put("activeobjects.xml", "<backup/>");
+        entries.put("data/attachments/10000/1", "<backup/>");
+
+        writeArchive(entries);
+        final ArchiveStore.Summary summary = new ArchiveStore(storeDirectory).ingest(archive, "blackdog.atlassian.net");
+
+        assertRebuilt(summary.getManifest(), entries);
+    }
+
+    @Test
+    public void shouldRebuildConfluenceArchiveFromManifest() throws IOException {
+        final Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("entities.xml", "<hibernate-generic/>");
+        entries.put("attachments/98305/98306", "An attachment");
+
+        writeArchive(entries);
+        final ArchiveStore.Summary summary =
+                new ArchiveStore(storeDirectory).ingest(archive, "http://localhost:8080/wiki");
+
+        assertThat(summary.getManifest().getParent().getParent()).isEqualTo(storeDirectory.resolve("manifests"));
+        assertRebuilt(summary.getManifest(), entries);
+
+        // A manifest of an older version, nested by the path of the URL
+        final Path nested = storeDirectory.resolve("manifests").resolve("blackdog.atlassian.net").resolve("wiki")
+                .resolve(summary.getManifest().getFileName());
+        Files.createDirectories(nested.getParent());
+        Files.copy(summary.getManifest(), nested);
+
+        assertRebuilt(nested, entries);
+    }
+
+    private void assertRebuilt(final Path manifest, final Map<String, String> entries) throws IOException {
+        final Path rebuilt = data.resolve("archive-store-rebuilt.zip");
+        ArchiveStore.forManifest(manifest).rebuild(manifest, rebuilt);
+
+        try (ZipFile zipFile = new ZipFile(rebuilt.toFile())) {
+            assertThat(zipFile.size()).isEqualTo(entries.size());
+
+            for (final Map.Entry<String, String> entry : entries.entrySet()) {
+                final ZipEntry zipEntry = zipFile.getEntry(entry.getKey());
+                final byte[] content = new byte[(int) zipEntry.getSize()];
+                assertThat(zipFile.getInputStream(zipEntry).read(content)).isEqualTo(content.length);
+                assertThat(new String(content, StandardCharsets.UTF_8)).isEqualTo(entry.getValue());
+            }
+        }
+    }
+
+    private void writeArchive(final Map<String, String> entries) throws IOException {
+        try (OutputStream archiveStream = Files.newOutputStream(archive);
+             ZipOutputStream zipStream = new ZipOutputStream(archiveStream)) {
+            for (final Map.Entry<String, String> entry : entries.entrySet()) {
+                zipStream.putNextEntry(new ZipEntry(entry.getKey()));
+                zipStream.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                zipStream.closeEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package nl.ymor.archive;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AttachmentIndexTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path data;
+    private Path archive;
+
+    @Before
+    public void setup() {
+        data = temporaryFolder.getRoot().toPath();
+        archive = data.resolve("attachment-index-test.zip");
+    }
+
+    @Test
+    public void shouldOnlyKeepNewOrChangedAttachments() throws IOException {
+        final AttachmentIndex index = new AttachmentIndex(data, "blackdog.atlassian.net");
+        final Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("entities.xml", "<entities version=\"1\"/>");
+        entries.put("data/attachments/10000/1", "An unchanged attachment");
+        entries.put("data/attachments/10000/2", "A changed attachment");
+        entries.put("data/attachments/10000/3", "A removed attachment");
+
+        writeArchive(entries);
+        final AttachmentIndex.Summary first = index.reduce(archive, data.resolve("first.zip"), null);
+
+        entries.put("entities.xml", "<entities version=\"2\"/>");
+        entries.put("data/attachments/10000/2", "A changed attachment, longer");
+        entries.remove("data/attachments/10000/3");
+        entries.put("data/attachments/10001/1", "A new attachment");
+        writeArchive(entries);
+        final AttachmentIndex.Summary second = index.reduce(archive, data.resolve("second.zip"), null);
+
+        assertThat(first.getNewAttachments()).isEqualTo(3);
+        assertThat(entryNames(data.resolve("first.zip"))).containsExactly("entities.xml",
+                "data/attachments/10000/1", "data/attachments/10000/2", "data/attachments/10000/3");
+
+        assertThat(second.getEntries()).isEqualTo(4);
+        assertThat(second.getNewAttachments()).isEqualTo(2);
+        assertThat(second.getUnchangedAttachments()).isEqualTo(1);
+        assertThat(second.getUnchangedBytes()).isEqualTo("An unchanged attachment".length());
+        assertThat(second.getRemovedAttachments()).isEqualTo(1);
+        assertThat(entryNames(data.resolve("second.zip")))
+                .containsExactly("entities.xml", "data/attachments/10000/2", "data/attachments/10001/1");
+
+        // The index of the second backup points at the archive that holds each attachment
+        assertThat(Files.readAllLines(data.resolve("second.zip" + AttachmentIndex.EXTENSION)))
+                .filteredOn(line -> !line.startsWith("#"))
+                .extracting(line -> line.split(" ")[3] + " " + line.split(" ")[4])
+                .containsExactly("first.zip data/attachments/10000/1", "second.zip data/attachments/10000/2",
+                        "second.zip data/attachments/10001/1");
+    }
+
+    private static List<String> entryNames(final Path archive) throws IOException {
+        try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+            return zipFile.stream().map(ZipEntry::getName).collect(Collectors.toList());
+        }
+    }
+
+    private void writeArchive(final Map<String, String> entries) throws IOException {
+        try (OutputStream archiveStream = Files.newOutputStream(archive);
+             ZipOutputStream zipStream = new ZipOutputStream(archiveStream)) {
+            for (final Map.Entry<String, String> entry : entries.entrySet()) {
+                zipStream.putNextEntry(new ZipEntry(entry.getKey()));
+                zipStream.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                zipStream.closeEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package nl.ymor.archive;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.ZipException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ChunkedCipherTest {
+
+    private static final int CHUNK_SIZE = 64;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final byte[] key = random(32);
+    private final ChunkedCipher cipher = new ChunkedCipher(key);
+    private Path encrypted;
+    private Path decrypted;
+
+    @Before
+    public void setup() {
+        encrypted = temporaryFolder.getRoot().toPath().resolve("cipher-test.zip.enc");
+        decrypted = temporaryFolder.getRoot().toPath().resolve("cipher-test.zip");
+    }
+
+    @Test
+    public void shouldDecryptChunksInParallel() throws IOException {
+        for (final int size : new int[]{0, 1, CHUNK_SIZE, 10 * CHUNK_SIZE + 7}) {
+            final byte[] archive = random(size);
+
+            Files.write(encrypted, encrypt(archive));
+
+            assertThat(Files.size(encrypted)).isEqualTo(ChunkedCipher.encryptedSize(size, CHUNK_SIZE));
+            assertThat(cipher.decrypt(encrypted, decrypted, 3)).isEqualTo(size);
+            assertThat(Files.readAllBytes(decrypted)).isEqualTo(archive);
+        }
+    }
+
+    @Test
+    public void shouldRejectDamagedOrTruncatedArchive() throws IOException {
+        final byte[] sealed = encrypt(random(4 * CHUNK_SIZE));
+
+        final byte[] damaged = sealed.clone();
+        damaged[ChunkedCipher.HEADER_SIZE + CHUNK_SIZE + 20] ^= 1;
+        Files.write(encrypted, damaged);
+
+        assertThatThrownBy(() -> cipher.decrypt(encrypted, decrypted, 2))
+                .isInstanceOf(ZipException.class).hasMessageContaining("Chunk 1");
+
+        // Dropping whole chunks from the end leaves a chunk that was not sealed as the last one
+        Files.write(encrypted, Arrays.copyOf(sealed, ChunkedCipher.HEADER_SIZE + 2 * (CHUNK_SIZE + 16)));
+
+        assertThatThrownBy(() -> cipher.decrypt(encrypted, decrypted, 2))
+                .isInstanceOf(ZipException.class).hasMessageContaining("Chunk 1");
+    }
+
+    @Test
+    public void shouldRejectOtherKey() throws IOException {
+        Files.write(encrypted, encrypt(random(CHUNK_SIZE)));
+
+        assertThatThrownBy(() -> new ChunkedCipher(random(32)).decrypt(encrypted, decrypted, 1))
+                .isInstanceOf(ZipException.class).hasMessageContaining("another key");
+    }
+
+    @Test
+    public void shouldReadKeyFromFileOrSetting() throws IOException {
+        final Path keyFile = temporaryFolder.getRoot().toPath().resolve("cipher-test.key");
+        final byte[] shortKey = random(24);
+
+        Files.write(keyFile, key);
+        assertThat(ChunkedCipher.readKey(keyFile.toString(), "")).isEqualTo(key);
+
+        Files.write(keyFile, Base64.getEncoder().encode(key));
+        assertThat(ChunkedCipher.readKey(keyFile.toString(), "")).isEqualTo(key);
+
+        // The Base64 encoding of a 24 byte key is 32 bytes long, like a raw 32 byte key
+        Files.write(keyFile, (Base64.getEncoder().encodeToString(shortKey) + "\n").getBytes(StandardCharsets.US_ASCII));
+        assertThat(Files.size(keyFile)).isEqualTo(33);
+        assertThat(ChunkedCipher.readKey(keyFile.toString(), "")).isEqualTo(shortKey);
+
+        Files.write(keyFile, Arrays.copyOf(key, 16));
+        assertThat(ChunkedCipher.readKey(keyFile.toString(), "")).isEqualTo(Arrays.copyOf(key, 16));
+
+        Files.write(keyFile, new byte[]{1, 2, 3});
+        assertThatThrownBy(() -> ChunkedCipher.readKey(keyFile.toString(), ""))
+                .isInstanceOf(IllegalArgumentException.class).hasMessageContaining("neither Base64 encoded");
+
+        assertThat(ChunkedCipher.readKey("", Base64.getEncoder().encodeToString(key))).isEqualTo(key);
+        assertThatThrownBy(() -> ChunkedCipher.readKey("", "")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private byte[] encrypt(final byte[] archive) throws IOException {
+        final ChunkedCipher.Header header = cipher.newHeader(CHUNK_SIZE);
+        final ByteBuffer sealed = ByteBuffer.allocate((int) ChunkedCipher.encryptedSize(archive.length, CHUNK_SIZE));
+        final int chunks = Math.max(1, (archive.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+        sealed.put(header.toBuffer());
+
+        for (int i = 0; i < chunks; i++) {
+            final byte[] chunk = Arrays.copyOfRange(archive, i * CHUNK_SIZE,
+                    Math.min(archive.length, (i + 1) * CHUNK_SIZE));
+
+            sealed.put(cipher.seal(header, i, i == chunks - 1, chunk, chunk.length));
+        }
+
+        return sealed.array();
+    }
+
+    private static byte[] random(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,74 @@
+package nl.ymor.archive;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ZipCentralDirectoryTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path archiveFile;
+
+    @Before
+    public void setup() {
+        archiveFile = temporaryFolder.getRoot().toPath().resolve("central-directory-test.zip");
+    }
+
+    @Test
+    public void shouldReadCentralDirectory() throws IOException {
+        final byte[] archive = zip("entities.xml", "activeobjects.xml");
+        Files.write(archiveFile, archive);
+
+        try (FileChannel channel = FileChannel.open(archiveFile, READ)) {
+            final ZipCentralDirectory centralDirectory = ZipCentralDirectory.read(channel);
+
+            assertThat(centralDirectory.getEntries()).hasSize(2);
+            assertThat(centralDirectory.getEntries().get(0).getName()).isEqualTo("entities.xml");
+            assertThat(centralDirectory.getEntries().get(0).getLocalHeaderOffset()).isZero();
+            assertThat(centralDirectory.getEntries().get(0).getSize()).isEqualTo("<entities.xml/>".length());
+            assertThat(centralDirectory.getEntries().get(1).getName()).isEqualTo("activeobjects.xml");
+            assertThat(centralDirectory.getOffset()).isLessThan(archive.length);
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void shouldFailOnTruncatedArchive() throws IOException {
+        final byte[] archive = zip("entities.xml", "activeobjects.xml");
+        Files.write(archiveFile, Arrays.copyOf(archive, archive.length / 2));
+
+        try (FileChannel channel = FileChannel.open(archiveFile, READ)) {
+            ZipCentralDirectory.read(channel);
+        }
+    }
+
+    private static byte[] zip(final String... entryNames) throws IOException {
+        final ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+
+        try (ZipOutputStream zipStream = new ZipOutputStream(zipBytes)) {
+            for (final String entryName : entryNames) {
+                zipStream.putNextEntry(new ZipEntry(entryName));
+                zipStream.write(("<" + entryName + "/>").getBytes(StandardCharsets.UTF_8));
+                zipStream.closeEntry();
+            }
+        }
+
+        return zipBytes.toByteArray();
+    }
+}
@@ -0,0 +1,165 @@
+package nl.ymor.archive;
+
+import com.github.luben.zstd.ZstdInputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ZipReencoderTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final byte[] entities = entities();
+    private final byte[] image = random(4096);
+
+    private Path archiveFile;
+
+    @Before
+    public void setup() {
+        archiveFile = temporaryFolder.getRoot().toPath().resolve("reencoder-test.zip");
+    }
+
+    @Test
+    public void shouldReencodeCompressibleEntries() throws IOException {
+        final byte[] source = zip();
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+        final ZipReencoder.Summary summary =
+                new ZipReencoder(9, 2).reencode(new ByteArrayInputStream(source), target);
+
+        assertThat(summary.getEntries()).isEqualTo(4);
+        assertThat(summary.getReencodedEntries()).isEqualTo(2);
+        assertThat(summary.getSourceSize()).isEqualTo(source.length);
+        assertThat(summary.getSize()).isEqualTo(target.size());
+
+        Files.write(archiveFile, target.toByteArray());
+
+        try (FileChannel channel = FileChannel.open(archiveFile, READ)) {
+            final List<ZipCentralDirectoryEntry> entries = ZipCentralDirectory.read(channel).getEntries();
+
+            assertThat(entries).extracting(ZipCentralDirectoryEntry::getName)
+                    .containsExactly("entities.xml", "data/", "data/attachments/image.png", "notes.txt");
+            assertThat(entries).extracting(ZipCentralDirectoryEntry::getMethod)
+                    .containsExactly(ZipReencoder.ZSTD, ZipEntry.DEFLATED, ZipEntry.STORED, ZipReencoder.ZSTD);
+
+            assertThat(decompress(read(channel, entries.get(0)))).isEqualTo(entities);
+            assertThat(entries.get(0).getCrc()).isEqualTo(crc(entities));
+            assertThat(read(channel, entries.get(2))).isEqualTo(image);
+            assertThat(decompress(read(channel, entries.get(3)))).isEqualTo("Notes".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void shouldFailOnTruncatedArchive() throws IOException {
+        final byte[] source = zip();
+
+        new ZipReencoder(1, 0).reencode(new ByteArrayInputStream(Arrays.copyOf(source, source.length / 2)),
+                new ByteArrayOutputStream());
+    }
+
+    @Test(expected = ZipException.class)
+    public void shouldFailOnDamagedEntry() throws IOException {
+        final byte[] source = zip();
+        // Somewhere in the deflated entities
+        source[100] ^= 0x55;
+
+        new ZipReencoder(1, 0).reencode(new ByteArrayInputStream(source), new ByteArrayOutputStream());
+    }
+
+    private byte[] zip() throws IOException {
+        final ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+
+        try (ZipOutputStream zipStream = new ZipOutputStream(zipBytes)) {
+            zipStream.putNextEntry(new ZipEntry("entities.xml"));
+            zipStream.write(entities);
+            zipStream.putNextEntry(new ZipEntry("data/"));
+            putStored(zipStream, "data/attachments/image.png", image);
+            putStored(zipStream, "notes.txt", "Notes".getBytes(StandardCharsets.UTF_8));
+        }
+
+        return zipBytes.toByteArray();
+    }
+
+    private static void putStored(final ZipOutputStream zipStream, final String name, final byte[] content)
+            throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(content.length);
+        entry.setCompressedSize(content.length);
+        entry.setCrc(crc(content));
+
+        zipStream.putNextEntry(entry);
+        zipStream.write(content);
+    }
+
+    private static byte[] read(final FileChannel channel, final ZipCentralDirectoryEntry entry) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, entry.getLocalHeaderOffset());
+
+        final long dataOffset = entry.getLocalHeaderOffset() + 30 + Short.toUnsignedInt(header.getShort(26))
+                + Short.toUnsignedInt(header.getShort(28));
+        final ByteBuffer data = ByteBuffer.allocate((int) entry.getCompressedSize());
+        channel.read(data, dataOffset);
+
+        return data.array();
+    }
+
+    private static byte[] decompress(final byte[] compressed) throws IOException {
+        final ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+
+        try (InputStream zstd = new ZstdInputStream(new ByteArrayInputStream(compressed))) {
+            for (int count = zstd.read(buffer); count >= 0; count = zstd.read(buffer)) {
+                decompressed.write(buffer, 0, count);
+            }
+        }
+
+        return decompressed.toByteArray();
+    }
+
+    private static long crc(final byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private static byte[] entities() {
+        final StringBuilder entities = new StringBuilder("<entity-engine-xml>\n");
+
+        for (int i = 0; i < 5000; i++) {
+            entities.append("<Issue id=\"").append(10000 + i).append("\" key=\"TEST-").append(i)
+                    .append("\" summary=\"Issue number ").append(i).append("\"/>\n");
+        }
+
+        return entities.append("</entity-engine-xml>\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] random(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,110 @@
+package nl.ymor.backup;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import nl.ymor.config.TestConfiguration;
+import nl.ymor.model.Arguments;
+import nl.ymor.service.BackupService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.ConfigFileApplicationContextInitializer;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ActiveProfiles("test")
+@ContextConfiguration(classes = TestConfiguration.class,
+        initializers = ConfigFileApplicationContextInitializer.class)
+@TestPropertySource(locations = "classpath:test.properties")
+public class BackupDaemonTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private BackupService backupService;
+
+    @Mock
+    private HttpResponse<String> stringHttpResponse;
+
+    @InjectMocks
+    @Autowired
+    private BackupDaemon instance;
+
+    @Before
+    public void setup() {
+        // Initialize mocks
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void shouldSpreadInstancesOverJitterWindow() {
+        final long window = TimeUnit.MINUTES.toMillis(Long.parseLong(instance.jitterMinutes));
+
+        assertThat(IntStream.range(0, 100).mapToLong(i -> instance.startOffsetMillis("dog" + i + ".atlassian.net")))
+                .allMatch(offset -> offset >= 0 && offset < window)
+                .anyMatch(offset -> offset < window / 2)
+                .anyMatch(offset -> offset >= window / 2);
+        assertThat(instance.startOffsetMillis("blackdog.atlassian.net"))
+                .isEqualTo(instance.startOffsetMillis("blackdog.atlassian.net"));
+    }
+
+    @Test
+    public void shouldBackUpOnSchedule() throws UnirestException, IOException, InterruptedException {
+        final Arguments arguments = new Arguments();
+        arguments.setInstanceUrl("blackdog.atlassian.net");
+        arguments.setDirectory(temporaryFolder.getRoot().getAbsolutePath());
+
+        when(stringHttpResponse.getBody()).thenReturn("{\"taskId\":\"10023\"}");
+        when(stringHttpResponse.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(backupService.getArguments()).thenReturn(arguments);
+        when(backupService.requestBackup()).thenReturn(stringHttpResponse);
+        when(backupService.getBackupFileUrl(anyString())).thenReturn(Optional.of("some/url"));
+
+        final String schedule = instance.schedule;
+        final String jitterMinutes = instance.jitterMinutes;
+        instance.schedule = "* * * * * *";
+        instance.jitterMinutes = "0";
+
+        final Thread daemon = new Thread(() -> {
+            try {
+                instance.run(arguments);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        try {
+            daemon.start();
+
+            verify(backupService, timeout(5000).atLeast(2)).downloadBackupFile("some/url");
+        } finally {
+            instance.close();
+            daemon.join(5000);
+            instance.schedule = schedule;
+            instance.jitterMinutes = jitterMinutes;
+        }
+
+        assertThat(daemon.isAlive()).isFalse();
+        verify(backupService, never()).forInstance(any(Arguments.class));
+    }
+}
@@ -0,0 +1,250 @@
+package nl.ymor.backup;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import nl.ymor.config.TestConfiguration;
+import nl.ymor.model.Arguments;
+import nl.ymor.model.BackupResult;
+import nl.ymor.service.BackupService;
+import nl.ymor.service.ProgressPoll;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.ConfigFileApplicationContextInitializer;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ActiveProfiles("test")
+@ContextConfiguration(classes = TestConfiguration.class,
+        initializers = ConfigFileApplicationContextInitializer.class)
+@TestPropertySource(locations = "classpath:test.properties")
+public class BatchBackupTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private BackupService backupService;
+
+    @Mock
+    private HttpResponse<String> stringHttpResponse;
+
+    @InjectMocks
+    @Autowired
+    private BatchBackup instance;
+
+    @Before
+    public void setup() {
+        // Initialize mocks
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void shouldReadInstancesWithDefaults() throws IOException {
+        final Path batchFile = temporaryFolder.getRoot().toPath().resolve("batch.csv");
+        Files.write(batchFile, Arrays.asList(
+                "# instance,username,token,dir",
+                "blackdog.atlassian.net",
+                "",
+                "whitedog.atlassian.net,other@ymor.com,other-token,/backups/whitedog"));
+
+        final Arguments defaults = new Arguments();
+        defaults.setUser("bluesman80@ymor.com");
+        defaults.setApiToken("token");
+        defaults.setDirectory("/backups");
+
+        final List<Arguments> instances = instance.readInstances(batchFile, defaults);
+
+        assertThat(instances).hasSize(2);
+        assertThat(instances.get(0).getInstanceUrl()).isEqualTo("blackdog.atlassian.net");
+        assertThat(instances.get(0).getUser()).isEqualTo("bluesman80@ymor.com");
+        assertThat(instances.get(0).getApiToken()).isEqualTo("token");
+        assertThat(instances.get(0).getDirectory())
+                .isEqualTo(Paths.get("/backups", "blackdog.atlassian.net").toString());
+        assertThat(instances.get(0).getAuthorization()).startsWith("Basic ");
+        assertThat(instances.get(1).getUser()).isEqualTo("other@ymor.com");
+        assertThat(instances.get(1).getApiToken()).isEqualTo("other-token");
+        assertThat(instances.get(1).getDirectory()).isEqualTo("/backups/whitedog");
+    }
+
+    @Test
+    public void shouldReadProductsOfSite() throws IOException {
+        final Path batchFile = temporaryFolder.getRoot().toPath().resolve("batch-products.csv");
+        Files.write(batchFile, Arrays.asList(
+                "blackdog.atlassian.net",
+                "blackdog.atlassian.net,,,,confluence"));
+
+        final Arguments defaults = new Arguments();
+        defaults.setUser("bluesman80@ymor.com");
+        defaults.setApiToken("token");
+        defaults.setDirectory("/backups");
+
+        final List<Arguments> instances = instance.readInstances(batchFile, defaults);
+
+        assertThat(instances).extracting(Arguments::getProduct).containsExactly("jira", "confluence");
+        assertThat(instances).extracting(BackupService::getProductUrl)
+                .containsExactly("blackdog.atlassian.net", "blackdog.atlassian.net/wiki");
+        assertThat(instances.get(1).getDirectory()).isEqualTo(instances.get(0).getDirectory());
+    }
+
+    @Test
+    public void shouldReportEveryInstanceWhenOneFails() throws UnirestException, InterruptedException, IOException {
+        final BackupService succeedingService = mock(BackupService.class);
+        final BackupService failingService = mock(BackupService.class);
+        final Arguments succeeding = instanceArguments("blackdog.atlassian.net");
+        final Arguments failing = instanceArguments("whitedog.atlassian.net");
+
+        when(stringHttpResponse.getBody()).thenReturn("{\"taskId\":\"10023\"}");
+        when(stringHttpResponse.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
+
+        when(backupService.forInstance(succeeding)).thenReturn(succeedingService);
+        when(succeedingService.getArguments()).thenReturn(succeeding);
+        when(succeedingService.requestBackup()).thenReturn(stringHttpResponse);
+        when(succeedingService.getBackupFileUrl(anyString())).thenReturn(Optional.of("some/url"));
+
+        when(backupService.forInstance(failing)).thenReturn(failingService);
+        when(failingService.getArguments()).thenReturn(failing);
+        when(failingService.requestBackup()).thenThrow(UnirestException.class);
+
+        final List<BackupResult> results = instance.run(Arrays.asList(failing, succeeding));
+
+        assertThat(results).hasSize(2);
+        assertThat(results.get(0).getInstanceUrl()).isEqualTo("whitedog.atlassian.net");
+        assertThat(results.get(0).isSuccessful()).isFalse();
+        assertThat(results.get(1).getInstanceUrl()).isEqualTo("blackdog.atlassian.net");
+        assertThat(results.get(1).isSuccessful()).isTrue();
+        verify(succeedingService, times(1)).downloadBackupFile("some/url");
+        verify(backupService, times(2)).forInstance(any(Arguments.class));
+        verify(succeedingService).close();
+        verify(failingService).close();
+    }
+
+    @Test
+    public void shouldRunBackupsAsynchronously() throws UnirestException, InterruptedException, IOException {
+        final BackupService succeedingService = mock(BackupService.class);
+        final BackupService failingService = mock(BackupService.class);
+        final ProgressPoll progressPoll = mock(ProgressPoll.class);
+        final Arguments succeeding = instanceArguments("blackdog.atlassian.net");
+        final Arguments failing = instanceArguments("whitedog.atlassian.net");
+
+        when(stringHttpResponse.getBody()).thenReturn("{\"taskId\":\"10023\"}");
+        when(stringHttpResponse.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(progressPoll.isFinished()).thenReturn(false, true);
+        when(progressPoll.getPauseMillis()).thenReturn(1L);
+        when(progressPoll.getBackupFileUrl()).thenReturn(Optional.of("some/url"));
+
+        when(backupService.forInstance(succeeding)).thenReturn(succeedingService);
+        when(succeedingService.getArguments()).thenReturn(succeeding);
+        when(succeedingService.requestBackup()).thenReturn(stringHttpResponse);
+        when(succeedingService.startProgressPoll(anyString())).thenReturn(progressPoll);
+
+        when(backupService.forInstance(failing)).thenReturn(failingService);
+        when(failingService.getArguments()).thenReturn(failing);
+        when(failingService.requestBackup()).thenThrow(UnirestException.class);
+
+        instance.async = "true";
+        final List<BackupResult> results;
+        try {
+            results = instance.run(Arrays.asList(failing, succeeding));
+        } finally {
+            instance.async = "false";
+        }
+
+        assertThat(results).hasSize(2);
+        assertThat(results.get(0).isSuccessful()).isFalse();
+        assertThat(results.get(1).isSuccessful()).isTrue();
+        verify(succeedingService, times(2)).checkProgress(progressPoll);
+        verify(succeedingService, times(1)).downloadBackupFile("some/url");
+        verify(succeedingService, never()).getBackupFileUrl(anyString());
+        verify(succeedingService).close();
+        verify(failingService).close();
+    }
+
+    @Test
+    public void shouldLimitAsynchronousBackupsInTotalAndPerHost() throws UnirestException, InterruptedException,
+            IOException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final Set<String> runningHosts = ConcurrentHashMap.newKeySet();
+        final AtomicBoolean hostOverlap = new AtomicBoolean();
+        final Arguments confluence = instanceArguments("blackdog.atlassian.net");
+        final List<Arguments> instances = Arrays.asList(instanceArguments("blackdog.atlassian.net"), confluence,
+                instanceArguments("whitedog.atlassian.net"), instanceArguments("reddog.atlassian.net"));
+
+        confluence.setProduct("confluence");
+        when(stringHttpResponse.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(stringHttpResponse.getBody()).thenReturn("{\"taskId\":\"10023\"}");
+
+        for (final Arguments arguments : instances) {
+            final BackupService service = mock(BackupService.class);
+            final ProgressPoll progressPoll = mock(ProgressPoll.class);
+            final String host = arguments.getInstanceUrl();
+
+            when(backupService.forInstance(arguments)).thenReturn(service);
+            when(service.getArguments()).thenReturn(arguments);
+            when(service.requestBackup()).thenAnswer(invocation -> {
+                if (!runningHosts.add(host)) hostOverlap.set(true);
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                return stringHttpResponse;
+            });
+            when(service.startProgressPoll(anyString())).thenReturn(progressPoll);
+            when(progressPoll.isFinished()).thenReturn(true);
+            when(progressPoll.getBackupFileUrl()).thenReturn(Optional.of("some/url"));
+            doAnswer(invocation -> {
+                Thread.sleep(50);
+                running.decrementAndGet();
+                runningHosts.remove(host);
+                return null;
+            }).when(service).downloadBackupFile("some/url");
+        }
+
+        instance.async = "true";
+        final List<BackupResult> results;
+        try {
+            results = instance.run(instances);
+        } finally {
+            instance.async = "false";
+        }
+
+        assertThat(results).extracting(BackupResult::isSuccessful).containsOnly(true);
+        assertThat(maxRunning.get()).isBetween(1, 2);
+        // Jira and Confluence of the same site share the limit of its host
+        assertThat(hostOverlap).isFalse();
+    }
+
+    private Arguments instanceArguments(final String instanceUrl) {
+        final Arguments arguments = new Arguments();
+        arguments.setInstanceUrl(instanceUrl);
+        arguments.setDirectory(new File(temporaryFolder.getRoot(), instanceUrl).getAbsolutePath());
+
+        return arguments;
+    }
+}
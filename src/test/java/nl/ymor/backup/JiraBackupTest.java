@@ -7,6 +7,7 @@ import ch.qos.logback.core.read.ListAppender;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.exceptions.UnirestException;
 import nl.ymor.config.TestConfiguration;
+import nl.ymor.model.Arguments;
 import nl.ymor.service.BackupService;
 import org.junit.Before;
 import org.junit.Rule;
@@ -26,6 +27,8 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 
@@ -63,6 +66,8 @@ public class JiraBackupTest {
         // Initialize mocks
         MockitoAnnotations.initMocks(this);
 
+        when(backupService.getArguments()).thenReturn(new Arguments());
+
         // Start the ListAppender
         listAppender.start();
         // Add the appender to the logger
@@ -181,4 +186,20 @@ public class JiraBackupTest {
         assertThat(logsList.get(2).getLevel()).isEqualTo(Level.ERROR);
         assertThat(logsList.get(2).getFormattedMessage()).contains("Backup job failed!");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldExtractEntriesInsteadOfBackingUp() throws IOException, UnirestException {
+        final Arguments arguments = new Arguments();
+        arguments.setExtractArchive("backups/jira-backup.zip");
+        arguments.setExtractEntries(Arrays.asList("entities.xml", "10100"));
+
+        when(backupService.getArguments()).thenReturn(arguments);
+        when(backupService.setArguments(anyString())).thenReturn(true);
+
+        instance.run("args");
+
+        verify(backupService).extractFromBackupFile(Paths.get("backups/jira-backup.zip"),
+                Arrays.asList("entities.xml", "10100"));
+        verify(backupService, never()).requestBackup();
+    }
+}
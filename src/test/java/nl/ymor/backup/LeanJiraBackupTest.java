@@ -0,0 +1,30 @@
+package nl.ymor.backup;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LeanJiraBackupTest {
+
+    @After
+    public void tearDown() {
+        System.clearProperty("batch.async.io.threads");
+    }
+
+    @Test
+    public void shouldWireBackupWithoutSpringBoot() throws IOException {
+        System.setProperty("batch.async.io.threads", "3");
+
+        try (AnnotationConfigApplicationContext context = LeanJiraBackup.createContext()) {
+            final BatchBackup batchBackup = context.getBean(BatchBackup.class);
+
+            assertThat(context.getBean(JiraBackup.class)).isNotNull();
+            assertThat(batchBackup.concurrency).isEqualTo("8");
+            assertThat(batchBackup.asyncIoThreads).isEqualTo("3");
+        }
+    }
+}
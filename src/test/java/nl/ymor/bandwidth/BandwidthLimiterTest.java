@@ -0,0 +1,98 @@
+package nl.ymor.bandwidth;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BandwidthLimiterTest {
+
+    private static final long SECOND = 1_000_000_000L;
+    // A Monday
+    private static final LocalDateTime OFFICE_HOURS = LocalDateTime.of(2019, 5, 6, 10, 0);
+    private static final LocalDateTime NIGHT = LocalDateTime.of(2019, 5, 6, 23, 0);
+
+    @Test
+    public void shouldServeReservationsInOrder() {
+        final TokenBucket bucket = new TokenBucket(1000, 0);
+
+        // The burst of one second is free, after that every caller waits for the callers before it
+        assertThat(bucket.reserve(1000, 0)).isZero();
+        assertThat(bucket.reserve(500, 0)).isEqualTo(SECOND / 2);
+        assertThat(bucket.reserve(500, 0)).isEqualTo(SECOND);
+        assertThat(bucket.reserve(500, SECOND)).isEqualTo(SECOND / 2);
+
+        bucket.setRate(2000, SECOND);
+        assertThat(bucket.reserve(1000, SECOND)).isEqualTo(SECOND / 2 + SECOND / 4);
+
+        bucket.setRate(0, SECOND);
+        assertThat(bucket.reserve(1_000_000, SECOND)).isZero();
+    }
+
+    @Test
+    public void shouldParseSchedule() {
+        final BandwidthSchedule schedule =
+                BandwidthSchedule.parse("Mon-Fri 08:00-18:00 global=4000 instance=1000; 22:00-6:00 instance=0");
+
+        assertThat(schedule.at(OFFICE_HOURS)).hasValueSatisfying(window -> {
+            assertThat(window.getGlobalBytesPerSecond()).isEqualTo(4000);
+            assertThat(window.getInstanceBytesPerSecond()).isEqualTo(1000);
+        });
+        // Saturday
+        assertThat(schedule.at(OFFICE_HOURS.plusDays(5))).isEmpty();
+        assertThat(schedule.at(NIGHT.plusHours(5))).hasValueSatisfying(window -> {
+            assertThat(window.getGlobalBytesPerSecond()).isNegative();
+            assertThat(window.getInstanceBytesPerSecond()).isZero();
+        });
+        assertThat(BandwidthSchedule.parse("").at(NIGHT)).isEmpty();
+        assertThatThrownBy(() -> BandwidthSchedule.parse("office hours"))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void shouldApplyScheduleAndOverrides() {
+        final BandwidthLimiter limiter = newLimiter(OFFICE_HOURS, "Mon-Fri 08:00-18:00 global=4000");
+
+        assertThat(limiter.getGlobalBytesPerSecond()).isEqualTo(4000);
+        assertThat(limiter.getInstanceBytesPerSecond()).isEqualTo(2000);
+
+        limiter.setGlobalBytesPerSecond(0);
+        assertThat(limiter.getGlobalBytesPerSecond()).isZero();
+
+        limiter.setGlobalBytesPerSecond(-1);
+        assertThat(limiter.getGlobalBytesPerSecond()).isEqualTo(4000);
+
+        assertThat(newLimiter(NIGHT, "Mon-Fri 08:00-18:00 global=4000").getGlobalBytesPerSecond())
+                .isEqualTo(8000);
+    }
+
+    @Test
+    public void shouldSlowDownDownload() throws InterruptedIOException {
+        final BandwidthLimiter limiter = newLimiter(NIGHT, "");
+        final Throttle throttle = limiter.forInstance("https://whitedog.atlassian.net");
+
+        final long startTime = System.nanoTime();
+
+        // The instance limit of 2000 bytes per second allows a burst of 2000 bytes
+        throttle.acquire(2000);
+        throttle.acquire(1000);
+
+        assertThat(System.nanoTime() - startTime).isGreaterThanOrEqualTo(SECOND / 2 - SECOND / 20);
+    }
+
+    private static BandwidthLimiter newLimiter(final LocalDateTime time, final String schedule) {
+        final BandwidthLimiter limiter = new BandwidthLimiter();
+        limiter.defaultGlobalBytesPerSecond = "8000";
+        limiter.defaultInstanceBytesPerSecond = "2000";
+        limiter.schedule = schedule;
+        limiter.clock = Clock.fixed(time.toInstant(ZoneOffset.UTC), ZoneId.of("UTC"));
+
+        return limiter;
+    }
+}
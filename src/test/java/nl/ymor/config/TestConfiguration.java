@@ -1,9 +1,20 @@
 package nl.ymor.config;
 
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import nl.ymor.backup.BackupDaemon;
+import nl.ymor.backup.BatchBackup;
 import nl.ymor.backup.JiraBackup;
+import nl.ymor.bandwidth.BandwidthLimiter;
+import nl.ymor.metrics.BackupMetrics;
+import nl.ymor.metrics.PrometheusExporter;
 import nl.ymor.model.Arguments;
 import nl.ymor.service.BackupService;
+import nl.ymor.service.HttpEngine;
+import nl.ymor.service.JobStateStore;
 import nl.ymor.service.RestClient;
+import nl.ymor.service.RetryPolicy;
+import nl.ymor.sink.BackupSinkFactory;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -19,18 +30,74 @@ public class TestConfiguration {
     }
 
     @Bean
-    public RestClient restClient(Arguments arguments) {
-        return new RestClient(arguments);
+    public PrometheusMeterRegistry meterRegistry() {
+        return new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
     }
 
     @Bean
-    public BackupService backupService(Arguments arguments, RestClient restClient) {
-        return new BackupService(arguments, restClient);
+    public BackupMetrics backupMetrics(PrometheusMeterRegistry meterRegistry) {
+        return new BackupMetrics(meterRegistry);
     }
 
     @Bean
-    public JiraBackup jiraBackup(BackupService backupService) {
-        return new JiraBackup(backupService);
+    public PrometheusExporter prometheusExporter(PrometheusMeterRegistry meterRegistry) {
+        return new PrometheusExporter(meterRegistry);
+    }
+
+    @Bean
+    public BandwidthLimiter bandwidthLimiter() {
+        return new BandwidthLimiter();
+    }
+
+    @Bean
+    public BackupSinkFactory backupSinkFactory(HttpEngine httpEngine) {
+        return new BackupSinkFactory(httpEngine);
+    }
+
+    @Bean
+    public JobStateStore jobStateStore() {
+        return new JobStateStore();
+    }
+
+    @Bean
+    public HttpEngine httpEngine() {
+        return new HttpEngine();
+    }
+
+    @Bean
+    public RetryPolicy retryPolicy(BackupMetrics backupMetrics) {
+        return new RetryPolicy(backupMetrics);
+    }
+
+    @Bean
+    public RestClient restClient(Arguments arguments, HttpEngine httpEngine, RetryPolicy retryPolicy) {
+        return new RestClient(arguments, httpEngine, retryPolicy);
+    }
+
+    @Bean
+    public BackupService backupService(Arguments arguments, RestClient restClient,
+                                       BackupSinkFactory backupSinkFactory, BackupMetrics backupMetrics,
+                                       BandwidthLimiter bandwidthLimiter, JobStateStore jobStateStore) {
+        return new BackupService(arguments, restClient, backupSinkFactory, backupMetrics, bandwidthLimiter,
+                jobStateStore);
+    }
+
+    @Bean
+    public BatchBackup batchBackup(BackupService backupService) {
+        return new BatchBackup(backupService);
+    }
+
+    @Bean
+    public BackupDaemon backupDaemon(BackupService backupService, BatchBackup batchBackup,
+                                     PrometheusExporter prometheusExporter) {
+        return new BackupDaemon(backupService, batchBackup, prometheusExporter);
+    }
+
+    @Bean
+    public JiraBackup jiraBackup(BackupService backupService, BatchBackup batchBackup,
+                                 PrometheusExporter prometheusExporter, BandwidthLimiter bandwidthLimiter,
+                                 BackupDaemon backupDaemon) {
+        return new JiraBackup(backupService, batchBackup, prometheusExporter, bandwidthLimiter, backupDaemon);
     }
 }
 
@@ -0,0 +1,61 @@
+package nl.ymor.product;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConfluenceProductTest {
+
+    private final Product product = Product.forName("Confluence");
+
+    @Test
+    public void shouldAddressConfluenceBelowWiki() {
+        assertThat(product).isSameAs(Product.CONFLUENCE);
+        assertThat(product.getProductUrl("blackdog.atlassian.net")).isEqualTo("blackdog.atlassian.net/wiki");
+        assertThat(product.getProductUrl("https://blackdog.atlassian.net/wiki/"))
+                .isEqualTo("https://blackdog.atlassian.net/wiki");
+        assertThat(product.getBackupPath()).isEqualTo("/rest/obm/1.0/runbackup");
+        assertThat(product.getDownloadPath("temp/filestore/b1d6e8b2")).isEqualTo("/download/temp/filestore/b1d6e8b2");
+    }
+
+    @Test
+    public void shouldStartBackupWithoutTaskID() {
+        assertThat(product.readTaskID(200, "")).contains(ConfluenceProduct.TASK_ID);
+        assertThat(product.readTaskID(406, "{\"message\":\"Backup frequency is limited\"}")).isEmpty();
+    }
+
+    @Test
+    public void shouldReadProgressUntilFileIsNamed() {
+        final ExportProgress preparing = product.readProgress(new JSONObject(
+                "{\"currentStatus\":\"Estimating...\",\"alternativePercentage\":\"Estimating...\"}")).get();
+        final ExportProgress halfway = product.readProgress(new JSONObject(
+                "{\"currentStatus\":\"Backing up attachments\",\"alternativePercentage\":\"45%\"}")).get();
+        final ExportProgress finished = product.readProgress(new JSONObject(
+                "{\"alternativePercentage\":\"100%\",\"fileName\":\"temp/filestore/b1d6e8b2\"}")).get();
+
+        assertThat(preparing.getPercentage()).isZero();
+        assertThat(halfway.getPercentage()).isEqualTo(45);
+        assertThat(halfway.getBackupFileUrl()).isNull();
+        assertThat(finished.getPercentage()).isEqualTo(100);
+        assertThat(finished.getBackupFileUrl()).isEqualTo("temp/filestore/b1d6e8b2");
+        assertThat(product.readProgress(new JSONObject("{\"error\":\"Unauthorized\"}"))).isEmpty();
+    }
+
+    @Test
+    public void shouldIgnoreFileOfOutdatedBackup() {
+        final ExportProgress outdated = product.readProgress(new JSONObject("{\"alternativePercentage\":\"100%\"," +
+                "\"fileName\":\"temp/filestore/b1d6e8b2\",\"isOutdated\":true}")).get();
+        final ExportProgress current = product.readProgress(new JSONObject("{\"alternativePercentage\":\"100%\"," +
+                "\"fileName\":\"temp/filestore/c2e7f9c3\",\"isOutdated\":false}")).get();
+
+        assertThat(outdated.getPercentage()).isZero();
+        assertThat(outdated.getBackupFileUrl()).isNull();
+        assertThat(current.getBackupFileUrl()).isEqualTo("temp/filestore/c2e7f9c3");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownProduct() {
+        Product.forName("bitbucket");
+    }
+}
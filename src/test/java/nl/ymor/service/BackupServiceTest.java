@@ -4,12 +4,29 @@ import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.read.ListAppender;
+import com.mashape.unirest.http.Headers;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.exceptions.UnirestException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import nl.ymor.archive.ArchiveIndex;
+import nl.ymor.archive.ChecksumFile;
+import nl.ymor.archive.ChunkedCipher;
+import nl.ymor.archive.ZipCentralDirectory;
+import nl.ymor.archive.ZipCentralDirectoryEntry;
+import nl.ymor.archive.ZipReencoder;
+import nl.ymor.backup.BackupJob;
 import nl.ymor.config.TestConfiguration;
+import nl.ymor.model.BackupResult;
+import nl.ymor.model.JobState;
+import nl.ymor.sink.ArchiveCatalog;
+import nl.ymor.sink.LocalFileSink;
+import nl.ymor.sink.RetentionPolicy;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Answers;
 import org.mockito.InjectMocks;
@@ -24,17 +41,31 @@ import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.io.ByteArrayInputStream;
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -51,12 +82,26 @@ public class BackupServiceTest {
     private HttpResponse<JsonNode> httpResponse;
 
     @Mock
-    private HttpResponse<InputStream> downloadRequest;
+    private DownloadStream downloadRequest;
+
+    @Mock
+    private HttpResponse<String> headRequest;
 
     @Autowired
     @InjectMocks
     private BackupService instance;
 
+    @Autowired
+    private PrometheusMeterRegistry meterRegistry;
+
+    @Autowired
+    private JobStateStore jobStateStore;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private String downloadDirectory;
+
     // Get Logback Logger (will be used to assert logs)
     private final Logger backupServiceLogger = (Logger) LoggerFactory.getLogger(BackupService.class);
     // Create a ListAppender
@@ -66,6 +111,7 @@ public class BackupServiceTest {
     public void setup() throws UnirestException {
         // Initialize mocks
         MockitoAnnotations.initMocks(this);
+        downloadDirectory = temporaryFolder.getRoot().getAbsolutePath();
 
         when(restClient.doProgressCheckRequest(anyString())).thenReturn(httpResponse);
 
@@ -91,7 +137,7 @@ public class BackupServiceTest {
         when(httpResponse.getStatus()).thenReturn(200);
         when(httpResponse.getBody()).thenReturn(progressResponseIncomplete, progressResponseComplete);
 
-        Optional<String> backupFileURLOptional = instance.getBackupFileUrl(instance.KEY_TASK_ID);
+        Optional<String> backupFileURLOptional = instance.getBackupFileUrl("10023");
 
         assertThat(backupFileURLOptional).isPresent().get().isEqualTo(backupFileURL);
 
@@ -116,7 +162,7 @@ public class BackupServiceTest {
         when(httpResponse.getStatus()).thenReturn(200);
         when(httpResponse.getBody()).thenReturn(progressResponseIncomplete);
 
-        Optional<String> backupFileURLOptional = instance.getBackupFileUrl(instance.KEY_TASK_ID);
+        Optional<String> backupFileURLOptional = instance.getBackupFileUrl("10023");
 
         assertThat(backupFileURLOptional).isEmpty();
 
@@ -128,12 +174,60 @@ public class BackupServiceTest {
         assertThat(logsList.get(1).getFormattedMessage()).contains("Backup progress: 0");
     }
 
+    @Test
+    public void shouldRetryProgressCheckAfterTooManyRequests() throws UnirestException, InterruptedException {
+        final String backupFileURL = "export/download/?fileId=11f959da-1c70-4519-8e6f-633748f7b832";
+        final Headers headers = new Headers();
+        headers.put("Retry-After", Collections.singletonList("0"));
+
+        final JsonNode progressResponseComplete =
+                new JsonNode("{\"status\":\"Success\",\"description\":\"Cloud Export task\",\"message\":\"Completed " +
+                        "export\",\"result\":\"" + backupFileURL + "\"," +
+                        "\"progress\":100}");
+
+        when(httpResponse.getStatus()).thenReturn(429, HttpURLConnection.HTTP_OK);
+        when(httpResponse.getHeaders()).thenReturn(headers, new Headers());
+        when(httpResponse.getBody()).thenReturn(progressResponseComplete);
+
+        Optional<String> backupFileURLOptional = instance.getBackupFileUrl("10023");
+
+        assertThat(backupFileURLOptional).isPresent().get().isEqualTo(backupFileURL);
+
+        // assert the log messages
+        List<ILoggingEvent> logsList = listAppender.list;
+        assertThat(logsList.get(0).getFormattedMessage()).contains("Server asked to retry the progress check in 0 ms");
+        assertThat(logsList.get(1).getFormattedMessage()).contains("Backup progress: 100");
+    }
+
+    @Test
+    public void shouldGetConfluenceBackupFileUrl() throws UnirestException, InterruptedException {
+        final String fileName = "temp/filestore/b1d6e8b2-5a4d-4a0b-9f8e-0b4b7b6c1f3e";
+
+        when(httpResponse.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(httpResponse.getBody()).thenReturn(
+                new JsonNode("{\"currentStatus\":\"Backing up attachments\",\"alternativePercentage\":\"45%\"}"),
+                new JsonNode("{\"alternativePercentage\":\"100%\",\"fileName\":\"" + fileName + "\"}"));
+
+        instance.setArguments("-u", "bluesman80@ymor.com", "-t", "token", "-i", "blackdog.atlassian.net",
+                "--product", "confluence");
+        try {
+            assertThat(instance.getBackupFileUrl("latest")).contains(fileName);
+        } finally {
+            instance.getArguments().setProduct("jira");
+        }
+
+        verify(restClient, times(2))
+                .doProgressCheckRequest("https://blackdog.atlassian.net/wiki/rest/obm/1.0/getprogress.json");
+        assertThat(listAppender.list).extracting(ILoggingEvent::getFormattedMessage)
+                .contains("Backup progress: 45", "Backup progress: 100");
+    }
+
     @Test(expected = UnirestException.class)
     public void shouldFailBackupFileUrlDueToServerResponse() throws InterruptedException, UnirestException {
         when(httpResponse.getStatus()).thenReturn(HttpURLConnection.HTTP_INTERNAL_ERROR);
         when(httpResponse.getBody()).thenReturn(new JsonNode(""));
 
-        instance.getBackupFileUrl(instance.KEY_TASK_ID);
+        instance.getBackupFileUrl("10023");
     }
 
     @Test
@@ -166,30 +260,142 @@ public class BackupServiceTest {
 
     @Test
     public void shouldDownloadBackupFile() throws UnirestException, IOException {
-        final String downloadDirectory = "src/test/data";
         final Path path = Paths.get(downloadDirectory, instance.archiveFileName);
 
-        if (path.toFile().exists()) {
-            assertThat(path.toFile().delete()).isTrue();
-        } else {
-            if (!new File(downloadDirectory).exists())
-                assertThat(new File(downloadDirectory).mkdirs()).isTrue();
-        }
-
         InputStream backupFileInputStream = new ByteArrayInputStream("This is a backup file".getBytes());
 
         when(restClient.doDownloadRequest(anyString(), anyString())).thenReturn(downloadRequest);
         when(downloadRequest.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
-        when(downloadRequest.getRawBody()).thenReturn(backupFileInputStream);
+        when(downloadRequest.getChannel()).thenReturn(Channels.newChannel(backupFileInputStream));
 
         instance.setArguments(
                 "--username", "bluesman80@ymor.com",
                 "--token", "token",
-                "--dir", new File(downloadDirectory).getAbsolutePath());
+                "--dir", downloadDirectory);
 
         instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
 
-        assertThat(path.toFile()).exists().isFile().hasExtension("zip");
+        assertThat(path.toFile()).exists().isFile().hasExtension("zip").hasContent("This is a backup file");
+        assertThat(Paths.get(downloadDirectory, instance.archiveFileName + ".sha256").toFile())
+                .hasContent(sha256("This is a backup file") + "  " + instance.archiveFileName);
+    }
+
+    @Test
+    public void shouldRecordDownloadMetrics() throws UnirestException, IOException {
+        final byte[] backupFile = "This is a backup file".getBytes(StandardCharsets.UTF_8);
+
+        when(restClient.doDownloadRequest(anyString(), anyString())).thenReturn(downloadRequest);
+        when(downloadRequest.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(downloadRequest.getChannel()).thenReturn(Channels.newChannel(new ByteArrayInputStream(backupFile)));
+
+        instance.setArguments(
+                "--username", "bluesman80@ymor.com",
+                "--token", "token",
+                "--instance", "metrics.atlassian.net",
+                "--dir", downloadDirectory);
+
+        instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
+
+        final Counter downloadedBytes = meterRegistry.find("jira.backup.download.bytes")
+                .tag("instance", "metrics.atlassian.net").counter();
+
+        assertThat(downloadedBytes).isNotNull();
+        assertThat(downloadedBytes.count()).isEqualTo(backupFile.length);
+        assertThat(meterRegistry.scrape())
+                .contains("jira_backup_download_bytes_total{instance=\"metrics.atlassian.net\",}")
+                .contains("jira_backup_download_first_byte_seconds_count{instance=\"metrics.atlassian.net\",}");
+    }
+
+    @Test
+    public void shouldDownloadBackupFileInRanges() throws UnirestException, IOException {
+        final Path path = Paths.get(downloadDirectory, instance.archiveFileName);
+        final String backupFile = "This is a backup file";
+
+        final Headers headers = new Headers();
+        headers.put("Accept-Ranges", Collections.singletonList("bytes"));
+        headers.put("Content-Length", Collections.singletonList(String.valueOf(backupFile.length())));
+
+        when(restClient.doHeadRequest(anyString(), anyString())).thenReturn(headRequest);
+        when(headRequest.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(headRequest.getHeaders()).thenReturn(headers);
+
+        // Chunk size is 8 bytes in test.properties
+        mockRangeResponse(backupFile, 0, 7);
+        mockRangeResponse(backupFile, 8, 15);
+        mockRangeResponse(backupFile, 16, 20);
+
+        instance.setArguments(
+                "--username", "bluesman80@ymor.com",
+                "--token", "token",
+                "--dir", downloadDirectory);
+
+        instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
+
+        assertThat(path.toFile()).exists().isFile().hasContent(backupFile);
+        assertThat(Paths.get(downloadDirectory, instance.archiveFileName + ".sha256").toFile())
+                .hasContent(sha256(backupFile) + "  " + instance.archiveFileName);
+        verify(restClient, never()).doDownloadRequest(anyString(), anyString());
+    }
+
+    @Test
+    public void shouldResumeDownloadingBackupFileInRanges() throws UnirestException, IOException {
+        final String backupFileUrl = "partial/URL/Of/The/Backup/File/To/Resume";
+        final Path path = Paths.get(downloadDirectory, instance.archiveFileName);
+        final Path partialPath = Paths.get(downloadDirectory, instance.archiveFileName + ".part");
+        final Path journalPath = Paths.get(downloadDirectory, instance.archiveFileName + ".journal");
+        final String backupFile = "This is a backup file";
+
+        // A previous run saved the first and the last range before it was interrupted
+        final byte[] partialFile = new byte[backupFile.length()];
+        System.arraycopy(backupFile.getBytes(), 0, partialFile, 0, 8);
+        System.arraycopy(backupFile.getBytes(), 16, partialFile, 16, 5);
+        Files.write(partialPath, partialFile);
+        Files.write(journalPath, Arrays.asList(backupFileUrl + " 21 8", "0-7", "16-20"));
+
+        final Headers headers = new Headers();
+        headers.put("Accept-Ranges", Collections.singletonList("bytes"));
+        headers.put("Content-Length", Collections.singletonList(String.valueOf(backupFile.length())));
+
+        when(restClient.doHeadRequest(anyString(), anyString())).thenReturn(headRequest);
+        when(headRequest.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(headRequest.getHeaders()).thenReturn(headers);
+
+        mockRangeResponse(backupFile, 8, 15);
+
+        instance.setArguments(
+                "--username", "bluesman80@ymor.com",
+                "--token", "token",
+                "--dir", downloadDirectory);
+
+        instance.downloadBackupFile(backupFileUrl);
+
+        assertThat(path.toFile()).exists().isFile().hasContent(backupFile);
+        assertThat(partialPath.toFile()).doesNotExist();
+        assertThat(journalPath.toFile()).doesNotExist();
+        assertThat(Paths.get(downloadDirectory, instance.archiveFileName + ".sha256").toFile())
+                .hasContent(sha256(backupFile) + "  " + instance.archiveFileName);
+        verify(restClient, times(1)).doRangeDownloadRequest(anyString(), anyString(), anyLong(), anyLong());
+    }
+
+    @Test(expected = UnirestException.class)
+    public void shouldFailDownloadingBackupFileInRanges() throws UnirestException, IOException {
+        final Headers headers = new Headers();
+        headers.put("accept-ranges", Collections.singletonList("bytes"));
+        headers.put("content-length", Collections.singletonList("21"));
+
+        when(restClient.doHeadRequest(anyString(), anyString())).thenReturn(headRequest);
+        when(headRequest.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(headRequest.getHeaders()).thenReturn(headers);
+        when(restClient.doRangeDownloadRequest(anyString(), anyString(), anyLong(), anyLong()))
+                .thenReturn(downloadRequest);
+        when(downloadRequest.getStatus()).thenReturn(HttpURLConnection.HTTP_FORBIDDEN);
+
+        instance.setArguments(
+                "--username", "bluesman80@ymor.com",
+                "--token", "token",
+                "--dir", downloadDirectory);
+
+        instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
     }
 
     @Test(expected = UnirestException.class)
@@ -199,6 +405,323 @@ public class BackupServiceTest {
         instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
     }
 
+    @Test
+    public void shouldVerifyDownloadedBackupFile() throws UnirestException, IOException {
+        final byte[] backupFile = zip("entities.xml", "activeobjects.xml");
+
+        mockDownload(backupFile);
+
+        instance.verifyArchive = "true";
+        try {
+            instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
+        } finally {
+            instance.verifyArchive = "false";
+        }
+
+        assertThat(listAppender.list).anySatisfy(event ->
+                assertThat(event.getFormattedMessage()).contains("Verified the backup file, it holds 2 entries"));
+    }
+
+    @Test(expected = ZipException.class)
+    public void shouldFailVerifyingTruncatedBackupFile() throws UnirestException, IOException {
+        final byte[] backupFile = zip("entities.xml", "activeobjects.xml");
+
+        mockDownload(Arrays.copyOf(backupFile, backupFile.length - 10));
+
+        instance.verifyArchive = "true";
+        try {
+            instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
+        } finally {
+            instance.verifyArchive = "false";
+        }
+    }
+
+    @Test
+    public void shouldReencodeBackupFile() throws UnirestException, IOException {
+        final byte[] backupFile = zip("entities.xml", "activeobjects.xml");
+
+        mockDownload(backupFile);
+
+        instance.verifyArchive = "true";
+        instance.reencodeArchive = "zstd";
+        try {
+            instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
+        } finally {
+            instance.verifyArchive = "false";
+            instance.reencodeArchive = "none";
+        }
+
+        final Path archive = Paths.get(downloadDirectory, "jira-backup-test.zip");
+
+        try (FileChannel channel = FileChannel.open(archive)) {
+            assertThat(ZipCentralDirectory.read(channel).getEntries())
+                    .extracting(ZipCentralDirectoryEntry::getMethod)
+                    .containsOnly(ZipReencoder.ZSTD);
+        }
+        // The checksum belongs to the saved archive, not to the downloaded one
+        assertThat(new String(Files.readAllBytes(Paths.get(downloadDirectory, "jira-backup-test.zip.sha256")),
+                StandardCharsets.UTF_8))
+                .startsWith(ChecksumFile.toHex(ChecksumFile.newDigest().digest(Files.readAllBytes(archive))));
+        assertThat(listAppender.list).anySatisfy(event ->
+                assertThat(event.getFormattedMessage()).contains("Verified the backup file, it holds 2 entries"));
+    }
+
+    @Test
+    public void shouldSaveIndexOfBackupFile() throws UnirestException, IOException {
+        final byte[] backupFile = zip("entities.xml", "activeobjects.xml");
+
+        mockDownload(backupFile);
+
+        instance.inspectArchive = "true";
+        try {
+            instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
+        } finally {
+            instance.inspectArchive = "false";
+        }
+
+        final ArchiveIndex index = ArchiveIndex.read(Paths.get(downloadDirectory, "jira-backup-test.zip.entries"));
+
+        assertThat(index.getEntries()).extracting(ArchiveIndex.Entry::getName)
+                .containsExactly("entities.xml", "activeobjects.xml");
+        assertThat(index.getEntry("activeobjects.xml").get().getLocalHeaderOffset()).isPositive();
+    }
+
+    @Test
+    public void shouldEncryptBackupFile() throws UnirestException, IOException {
+        final byte[] backupFile = zip("entities.xml", "activeobjects.xml");
+        final Path encrypted = Paths.get(downloadDirectory, "jira-backup-test.zip.enc");
+
+        mockDownload(backupFile);
+
+        instance.encryptArchive = "true";
+        instance.encryptionKey = Base64.getEncoder().encodeToString(new byte[32]);
+        try {
+            instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
+
+            assertThat(Files.size(encrypted)).isEqualTo(ChunkedCipher.encryptedSize(backupFile.length, 16));
+            assertThat(new String(Files.readAllBytes(Paths.get(downloadDirectory, "jira-backup-test.zip.enc.sha256")),
+                    StandardCharsets.UTF_8))
+                    .isEqualTo(new String(ChecksumFile.content("jira-backup-test.zip.enc",
+                            ChecksumFile.newDigest().digest(Files.readAllBytes(encrypted))), StandardCharsets.UTF_8));
+
+            instance.verifyArchive = "true";
+            assertThat(Files.readAllBytes(instance.decryptBackupFile(encrypted))).isEqualTo(backupFile);
+        } finally {
+            instance.verifyArchive = "false";
+            instance.encryptArchive = "false";
+            instance.encryptionKey = "";
+        }
+    }
+
+    @Test
+    public void shouldReplaceBackupFileWithIncrementalBackupFile() throws UnirestException, IOException {
+        final Path directory = temporaryFolder.newFolder("incremental").toPath();
+        final Path index = temporaryFolder.newFolder("incremental-index").toPath();
+
+        instance.incrementalIndexDirectory = index.toString();
+        try {
+            mockDownload(zip("entities.xml", "data/attachments/10000/1"));
+            instance.getArguments().setDirectory(directory.toString());
+            instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
+
+            mockDownload(zip("entities.xml", "data/attachments/10000/1", "data/attachments/10000/2"));
+            instance.getArguments().setDirectory(directory.toString());
+            instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
+        } finally {
+            instance.incrementalIndexDirectory = "";
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.map(file -> file.getFileName().toString()).filter(name -> name.endsWith(".zip")))
+                    .hasSize(2).allMatch(name -> name.startsWith("jira-backup-test-"));
+        }
+        assertThat(listAppender.list).anySatisfy(event -> assertThat(event.getFormattedMessage())
+                .contains("1 new or changed attachments, 1 unchanged attachments"));
+        assertThat(Files.readAllLines(index.resolve("blackdog.atlassian.net.index"))).hasSize(3);
+    }
+
+    @Test
+    public void shouldPruneTimestampedBackupFiles() throws UnirestException, IOException {
+        final Path directory = temporaryFolder.newFolder("retention").toPath();
+        final LocalFileSink sink = new LocalFileSink(directory);
+        final ArchiveCatalog catalog = new ArchiveCatalog(sink, "jira-backup-test.zip");
+        final LocalDateTime now = LocalDateTime.now();
+
+        for (final String name : Arrays.asList("jira-backup-test-old.zip", "jira-backup-test-older.zip")) {
+            Files.write(directory.resolve(name), new byte[1]);
+            Files.write(directory.resolve(name + ChecksumFile.EXTENSION), new byte[1]);
+        }
+
+        catalog.add(new ArchiveCatalog.Archive(now.minusDays(3), "jira-backup-test-older.zip",
+                Collections.singletonList("jira-backup-test-older.zip" + ChecksumFile.EXTENSION)),
+                new RetentionPolicy(0, 0, 0), 1);
+        catalog.add(new ArchiveCatalog.Archive(now.minusDays(2), "jira-backup-test-old.zip",
+                Collections.singletonList("jira-backup-test-old.zip" + ChecksumFile.EXTENSION)),
+                new RetentionPolicy(0, 0, 0), 1);
+
+        mockDownload(zip("entities.xml"));
+        instance.getArguments().setDirectory(directory.toString());
+        instance.timestampArchive = "true";
+        instance.retentionDaily = "2";
+        try {
+            instance.downloadBackupFile("partial/URL/Of/The/Backup/File/To/Download");
+        } finally {
+            instance.timestampArchive = "false";
+            instance.retentionDaily = "0";
+        }
+
+        final List<ArchiveCatalog.Archive> archives = catalog.read();
+
+        assertThat(archives).extracting(ArchiveCatalog.Archive::getName).hasSize(2)
+                .startsWith("jira-backup-test-old.zip");
+        assertThat(archives.get(1).getName()).matches("jira-backup-test-\\d{8}-\\d{6}\\.zip");
+        assertThat(archives.get(1).getFiles()).containsExactly(archives.get(1).getName() + ChecksumFile.EXTENSION);
+        assertThat(directory.resolve(archives.get(1).getName())).exists();
+        assertThat(directory.resolve("jira-backup-test-old.zip")).exists();
+        assertThat(directory.resolve("jira-backup-test-older.zip")).doesNotExist();
+        assertThat(directory.resolve("jira-backup-test-older.zip" + ChecksumFile.EXTENSION)).doesNotExist();
+    }
+
+    @Test
+    public void shouldReattachToSavedBackupTask() throws UnirestException, IOException, InterruptedException {
+        final String backupFileURL = "export/download/?fileId=11f959da-1c70-4519-8e6f-633748f7b832";
+        final Path directory = temporaryFolder.newFolder("jobs").toPath();
+
+        mockDownload("This is a backup file".getBytes(StandardCharsets.UTF_8));
+        jobStateStore.directory = directory.toString();
+        try {
+            jobStateStore.save(JobState.exporting("blackdog.atlassian.net", "10100").downloading(backupFileURL));
+
+            final Optional<String> taskID = instance.getSavedTaskID();
+
+            assertThat(taskID).contains("10100");
+            assertThat(instance.getBackupFileUrl(taskID.get())).contains(backupFileURL);
+            verify(restClient, never()).doProgressCheckRequest(anyString());
+
+            instance.downloadBackupFile(backupFileURL);
+
+            assertThat(jobStateStore.load("blackdog.atlassian.net")).isEmpty();
+            assertThat(instance.getSavedTaskID()).isEmpty();
+        } finally {
+            jobStateStore.directory = "";
+        }
+    }
+
+    @Test
+    public void shouldRequestNewBackupAfterSavedTaskFailed() throws UnirestException, IOException {
+        final JsonNode progressResponseFailed =
+                new JsonNode("{\"status\":\"Failed\",\"description\":\"Cloud Export task\"," +
+                        "\"message\":\"Export failed\",\"progress\":0}");
+
+        mockDownload(zip("entities.xml"));
+        when(httpResponse.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(httpResponse.getBody()).thenReturn(progressResponseFailed);
+        when(headRequest.getStatus()).thenReturn(HttpURLConnection.HTTP_UNAUTHORIZED);
+        when(restClient.doBackupRequest()).thenReturn(headRequest);
+        jobStateStore.directory = temporaryFolder.getRoot().toString();
+        try {
+            jobStateStore.save(JobState.exporting("blackdog.atlassian.net", "10100"));
+
+            final BackupResult failed = new BackupJob(instance).call();
+
+            assertThat(failed.isSuccessful()).isFalse();
+            assertThat(failed.getMessage()).contains("Backup task 10100 failed: Export failed");
+            assertThat(jobStateStore.load("blackdog.atlassian.net")).isEmpty();
+            verify(restClient, never()).doBackupRequest();
+
+            new BackupJob(instance).call();
+
+            verify(restClient, times(1)).doBackupRequest();
+        } finally {
+            jobStateStore.directory = "";
+        }
+    }
+
+    @Test
+    public void shouldKeepSavedJobAfterServerErrorOfProgressCheck() throws UnirestException, IOException {
+        mockDownload(zip("entities.xml"));
+        when(httpResponse.getStatus()).thenReturn(HttpURLConnection.HTTP_UNAVAILABLE);
+        jobStateStore.directory = temporaryFolder.getRoot().toString();
+        try {
+            jobStateStore.save(JobState.exporting("blackdog.atlassian.net", "10100"));
+
+            final BackupResult failed = new BackupJob(instance).call();
+
+            assertThat(failed.isSuccessful()).isFalse();
+            assertThat(failed.getMessage()).contains("Cannot check progress. Response from server: 503");
+            assertThat(instance.getSavedTaskID()).contains("10100");
+            verify(restClient, never()).doBackupRequest();
+        } finally {
+            jobStateStore.directory = "";
+        }
+    }
+
+    @Test
+    public void shouldKeepSavedJobWhenBackupFileIsNotReadyInTime() throws UnirestException, IOException {
+        final JsonNode progressResponseIncomplete =
+                new JsonNode("{\"status\":\"InProgress\",\"description\":\"Cloud Export task\"," +
+                        "\"message\":\"Exporting attachments\",\"progress\":50}");
+
+        mockDownload(zip("entities.xml"));
+        when(httpResponse.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(httpResponse.getBody()).thenReturn(progressResponseIncomplete);
+        jobStateStore.directory = temporaryFolder.getRoot().toString();
+        try {
+            jobStateStore.save(JobState.exporting("blackdog.atlassian.net", "10100"));
+
+            final BackupResult failed = new BackupJob(instance).call();
+
+            assertThat(failed.isSuccessful()).isFalse();
+            assertThat(failed.getMessage()).isEqualTo("Backup file is not ready");
+            assertThat(instance.getSavedTaskID()).contains("10100");
+            verify(restClient, never()).doBackupRequest();
+        } finally {
+            jobStateStore.directory = "";
+        }
+    }
+
+    private void mockDownload(final byte[] backupFile) throws UnirestException, IOException {
+
+        when(restClient.doDownloadRequest(anyString(), anyString())).thenReturn(downloadRequest);
+        when(downloadRequest.getStatus()).thenReturn(HttpURLConnection.HTTP_OK);
+        when(downloadRequest.getChannel()).thenReturn(Channels.newChannel(new ByteArrayInputStream(backupFile)));
+
+        instance.setArguments(
+                "--username", "bluesman80@ymor.com",
+                "--token", "token",
+                "--instance", "blackdog.atlassian.net",
+                "--dir", downloadDirectory);
+    }
+
+    private static byte[] zip(final String... entryNames) throws IOException {
+        final ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+
+        try (ZipOutputStream zipStream = new ZipOutputStream(zipBytes)) {
+            for (final String entryName : entryNames) {
+                zipStream.putNextEntry(new ZipEntry(entryName));
+                zipStream.write(("<" + entryName + "/>").getBytes(StandardCharsets.UTF_8));
+                zipStream.closeEntry();
+            }
+        }
+
+        return zipBytes.toByteArray();
+    }
+
+    private static String sha256(final String content) {
+        return ChecksumFile.toHex(ChecksumFile.newDigest().digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void mockRangeResponse(final String backupFile, final int firstByte, final int lastByte)
+            throws UnirestException, IOException {
+        final DownloadStream rangeResponse = mock(DownloadStream.class);
+
+        when(rangeResponse.getStatus()).thenReturn(HttpURLConnection.HTTP_PARTIAL);
+        when(rangeResponse.getChannel()).thenReturn(Channels.newChannel(
+                new ByteArrayInputStream(backupFile.substring(firstByte, lastByte + 1).getBytes())));
+        when(restClient.doRangeDownloadRequest(anyString(), anyString(), eq((long) firstByte), eq((long) lastByte)))
+                .thenReturn(rangeResponse);
+    }
+
     @Test
     public void testRequestBackup() throws UnirestException {
         instance.requestBackup();
@@ -0,0 +1,87 @@
+package nl.ymor.service;
+
+import nl.ymor.model.JobState;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JobStateStoreTest {
+
+    private static final String INSTANCE = "blackdog.atlassian.net";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final JobStateStore store = new JobStateStore();
+
+    private Path stateDirectory;
+
+    @Before
+    public void setup() {
+        stateDirectory = temporaryFolder.getRoot().toPath().resolve("job-state");
+        store.directory = stateDirectory.toString();
+        store.maxAgeMinutes = "60";
+    }
+
+    @Test
+    public void shouldLoadSavedState() {
+        final String backupFileURL = "export/download/?fileId=11f959da-1c70-4519-8e6f-633748f7b832";
+
+        store.save(JobState.exporting(INSTANCE, "10100"));
+        assertThat(store.load(INSTANCE)).hasValueSatisfying(state -> {
+            assertThat(state.getTaskID()).isEqualTo("10100");
+            assertThat(state.getPhase()).isEqualTo(JobState.Phase.EXPORTING);
+            assertThat(state.getBackupFileUrl()).isNull();
+        });
+
+        store.save(store.load(INSTANCE).get().downloading(backupFileURL).downloaded(1024));
+        final Optional<JobState> downloading = store.load(INSTANCE);
+
+        assertThat(downloading).hasValueSatisfying(state -> {
+            assertThat(state.getPhase()).isEqualTo(JobState.Phase.DOWNLOADING);
+            assertThat(state.getBackupFileUrl()).isEqualTo(backupFileURL);
+            assertThat(state.getDownloadedBytes()).isEqualTo(1024);
+        });
+
+        store.remove(INSTANCE);
+        assertThat(store.load(INSTANCE)).isEmpty();
+    }
+
+    @Test
+    public void shouldForgetExpiredState() {
+        final Instant longAgo = Instant.now().minus(Duration.ofHours(2));
+
+        store.save(new JobState(INSTANCE, "10100", JobState.Phase.EXPORTING, null, 0, longAgo, longAgo));
+
+        assertThat(store.load(INSTANCE)).isEmpty();
+        assertThat(stateDirectory.resolve(INSTANCE + ".json")).doesNotExist();
+    }
+
+    @Test
+    public void shouldIgnoreDamagedState() throws IOException {
+        Files.createDirectories(stateDirectory);
+        Files.write(stateDirectory.resolve(INSTANCE + ".json"), "{\"taskID\":".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(store.load(INSTANCE)).isEmpty();
+    }
+
+    @Test
+    public void shouldNotSaveStateWithoutDirectory() {
+        store.directory = "";
+        store.save(JobState.exporting(INSTANCE, "10100"));
+
+        assertThat(store.load(INSTANCE)).isEmpty();
+        assertThat(stateDirectory.resolve(INSTANCE + ".json")).doesNotExist();
+    }
+}
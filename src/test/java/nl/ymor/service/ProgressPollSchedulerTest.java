@@ -0,0 +1,68 @@
+package nl.ymor.service;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ProgressPollSchedulerTest {
+
+    private static final long MIN_PAUSE = 3_000;
+    private static final long MAX_PAUSE = 60_000;
+
+    @Test
+    public void shouldBackOffWhileProgressDoesNotMove() {
+        final ProgressPollScheduler scheduler = new ProgressPollScheduler(MIN_PAUSE, MAX_PAUSE);
+
+        assertThat(scheduler.nextPause(0, 0, 0)).isEqualTo(12_000);
+        assertThat(scheduler.nextPause(0, 12_000, 0)).isEqualTo(24_000);
+        assertThat(scheduler.nextPause(0, 36_000, 0)).isEqualTo(48_000);
+        assertThat(scheduler.nextPause(0, 84_000, 0)).isEqualTo(MAX_PAUSE);
+    }
+
+    @Test
+    public void shouldPollFasterAsProgressNearsCompletion() {
+        final ProgressPollScheduler scheduler = new ProgressPollScheduler(MIN_PAUSE, MAX_PAUSE);
+
+        scheduler.nextPause(0, 0, 0);
+        scheduler.nextPause(10, 100_000, 0);
+
+        // 1% per 10 seconds measured from the first change on, the next check is halfway to completion
+        assertThat(scheduler.nextPause(20, 200_000, 0)).isEqualTo(MAX_PAUSE);
+        assertThat(scheduler.nextPause(90, 900_000, 0)).isEqualTo(50_000);
+        assertThat(scheduler.nextPause(98, 980_000, 0)).isEqualTo(10_000);
+        assertThat(scheduler.nextPause(99, 990_000, 0)).isEqualTo(5_000);
+        // The estimate is already overdue
+        assertThat(scheduler.nextPause(99, 1_010_000, 0)).isEqualTo(MIN_PAUSE);
+    }
+
+    @Test
+    public void shouldRespectRetryAfter() {
+        final ProgressPollScheduler scheduler = new ProgressPollScheduler(MIN_PAUSE, MAX_PAUSE);
+
+        assertThat(scheduler.nextPause(0, 0, 50_000)).isEqualTo(50_000);
+        // A far-off retry time does not stall the backup beyond the maximum pause
+        assertThat(scheduler.nextPause(0, 0, 120_000)).isEqualTo(MAX_PAUSE);
+        assertThat(scheduler.retryPause(3_600_000)).isEqualTo(MAX_PAUSE);
+        assertThat(scheduler.retryPause(0)).isEqualTo(MIN_PAUSE);
+        assertThat(ProgressPollScheduler.parseRetryAfter("30", 0)).isEqualTo(30_000);
+        assertThat(ProgressPollScheduler.parseRetryAfter("Thu, 01 Jan 1970 00:01:00 GMT", 0)).isEqualTo(60_000);
+        assertThat(ProgressPollScheduler.parseRetryAfter("soon", 0)).isZero();
+        assertThat(ProgressPollScheduler.parseRetryAfter(null, 0)).isZero();
+    }
+
+    @Test
+    public void shouldStopPollingWhenTimeRunsOut() {
+        final ProgressPollScheduler scheduler = new ProgressPollScheduler(MIN_PAUSE, MAX_PAUSE);
+        final ProgressPoll poll = new ProgressPoll("10000", scheduler, 1200, 120_000);
+
+        poll.checked(MAX_PAUSE);
+        assertThat(poll.isFinished()).isFalse();
+
+        // The next check would come after the two minutes
+        poll.checked(MAX_PAUSE * 3);
+        assertThat(poll.isFinished()).isTrue();
+        assertThat(poll.getBackupFileUrl()).isEmpty();
+
+        assertThat(new ProgressPoll("10000", scheduler, 1200, 0).isFinished()).isTrue();
+    }
+}
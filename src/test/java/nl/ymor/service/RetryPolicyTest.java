@@ -0,0 +1,173 @@
+package nl.ymor.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import nl.ymor.metrics.BackupMetrics;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class RetryPolicyTest {
+
+    private HttpServer server;
+    private CloseableHttpClient client;
+    private String url;
+    private final Queue<Integer> statuses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private String retryAfter;
+    private RetryPolicy retryPolicy;
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+
+        client = HttpClients.createDefault();
+        url = "http://localhost:" + server.getAddress().getPort() + "/rest/backup/1/export/lastTaskId";
+        retryPolicy = retryPolicy(4, 5, "1");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldRetryUnavailableServer() throws IOException {
+        statuses.add(503);
+        statuses.add(502);
+        statuses.add(200);
+
+        try (CloseableHttpResponse response = retryPolicy.execute(client, new HttpGet(url))) {
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+        }
+
+        assertThat(requests).hasValue(3);
+    }
+
+    @Test
+    public void shouldNotRetryBackupRequestThatServerMayHaveHandled() throws IOException {
+        statuses.add(500);
+
+        try (CloseableHttpResponse response = retryPolicy.execute(client, new HttpPost(url))) {
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(500);
+        }
+
+        assertThat(requests).hasValue(1);
+    }
+
+    @Test
+    public void shouldRetryThrottledBackupRequest() throws IOException {
+        statuses.add(429);
+        retryAfter = "0";
+
+        try (CloseableHttpResponse response = retryPolicy.execute(client, new HttpPost(url))) {
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
+        }
+
+        assertThat(requests).hasValue(2);
+    }
+
+    @Test
+    public void shouldReturnResponseWhenServerAsksForLongPause() throws IOException {
+        statuses.add(429);
+        retryAfter = "3600";
+
+        try (CloseableHttpResponse response = retryPolicy.execute(client, new HttpGet(url))) {
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(429);
+        }
+
+        assertThat(requests).hasValue(1);
+    }
+
+    @Test
+    public void shouldStopSendingRequestsWhileCircuitIsOpen() throws IOException {
+        retryPolicy = retryPolicy(4, 2, "0");
+        retryPolicy.openMillis = "60000";
+
+        for (int i = 0; i < 4; i++) statuses.add(503);
+
+        try (CloseableHttpResponse ignored = retryPolicy.execute(client, new HttpGet(url))) {
+            throw new AssertionError("The circuit should have opened after two failures");
+        } catch (final IOException e) {
+            assertThat(e).hasMessageContaining("is open after 2 failures");
+        }
+
+        assertThatThrownBy(() -> retryPolicy.execute(client, new HttpGet(url))).isInstanceOf(IOException.class);
+        assertThat(requests).hasValue(2);
+    }
+
+    @Test
+    public void shouldStopRetryingWhenBudgetIsSpent() throws IOException {
+        retryPolicy.budgetTokens = "1";
+
+        for (int i = 0; i < 4; i++) statuses.add(503);
+
+        try (CloseableHttpResponse response = retryPolicy.execute(client, new HttpGet(url))) {
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(503);
+        }
+
+        // One retry was saved up, a second request earns no more than a tenth of one
+        assertThat(requests).hasValue(2);
+
+        try (CloseableHttpResponse response = retryPolicy.execute(client, new HttpGet(url))) {
+            assertThat(response.getStatusLine().getStatusCode()).isEqualTo(503);
+        }
+
+        assertThat(requests).hasValue(3);
+    }
+
+    @Test
+    public void shouldKeepBackoffWithinBounds() {
+        retryPolicy.initialBackoffMillis = "1000";
+        retryPolicy.maxBackoffMillis = "60000";
+
+        assertThat(retryPolicy.backoff(1)).isBetween(500L, 1000L);
+        assertThat(retryPolicy.backoff(3)).isBetween(2000L, 4000L);
+        assertThat(retryPolicy.backoff(80)).isBetween(30000L, 60000L);
+    }
+
+    private static RetryPolicy retryPolicy(final int attempts, final int threshold, final String open) {
+        return new RetryPolicy(new BackupMetrics(new SimpleMeterRegistry())) {
+            {
+                maxAttempts = String.valueOf(attempts);
+                initialBackoffMillis = "1";
+                maxBackoffMillis = "50";
+                budgetRatio = "0.1";
+                budgetTokens = "20";
+                failureThreshold = String.valueOf(threshold);
+                openMillis = open;
+            }
+        };
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+
+        final Integer status = statuses.poll();
+
+        // Every attempt on a fresh connection, as the stand-in does not read the bodies it gets
+        exchange.getResponseHeaders().add("Connection", "close");
+        if (retryAfter != null) exchange.getResponseHeaders().add("Retry-After", retryAfter);
+
+        exchange.sendResponseHeaders(status == null ? 200 : status, -1);
+        exchange.close();
+    }
+}
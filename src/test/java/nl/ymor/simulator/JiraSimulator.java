@@ -0,0 +1,371 @@
+package nl.ymor.simulator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local stand-in for the backup API of Jira Cloud: {@code runbackup}, {@code getProgress} and the download servlet.
+ * <p>
+ * Any number of sites can be simulated at once, as the path in front of the endpoints names the site, e.g.
+ * {@code http://127.0.0.1:8080/site-1/rest/backup/1/export/runbackup}. Every backup follows the progress curve,
+ * and every site serves the same archive. The simulator can add latency to each request, limit the bandwidth of
+ * each download, answer progress checks with 429 and cut downloads off halfway, each at a configurable rate.
+ */
+public class JiraSimulator implements AutoCloseable {
+
+    private static final String BACKUP_ENDPOINT = "/rest/backup/1/export/runbackup";
+    private static final String PROGRESS_ENDPOINT = "/rest/backup/1/export/getProgress";
+    private static final String DOWNLOAD_ENDPOINT = "/plugins/servlet/export/download";
+    private static final Pattern TASK_ID = Pattern.compile("(?:taskId|fileId)=(\\d+)");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+    private static final int WRITE_SIZE = 16 * 1024;
+
+    private final Path archive;
+    private final long archiveSize;
+    private final FileChannel archiveChannel;
+    private final Map<String, Long> taskStartTimes = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTaskId = new AtomicInteger(10000);
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private ProgressCurve progressCurve = ProgressCurve.immediate();
+    private Duration latency = Duration.ZERO;
+    private long bandwidthBytesPerSecond;
+    private double throttleRate;
+    private long retryAfterSeconds = 1;
+    private double disconnectRate;
+    private boolean acceptRanges = true;
+
+    private final AtomicLong backupRequests = new AtomicLong();
+    private final AtomicLong progressChecks = new AtomicLong();
+    private final AtomicLong throttledChecks = new AtomicLong();
+    private final AtomicLong downloads = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicInteger activeDownloads = new AtomicInteger();
+    private final AtomicInteger maxActiveDownloads = new AtomicInteger();
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param archive Archive to serve, e.g. written by {@link SimulatedArchive}
+     */
+    public JiraSimulator(final Path archive) throws IOException {
+        this.archive = archive;
+        this.archiveChannel = FileChannel.open(archive, StandardOpenOption.READ);
+        this.archiveSize = archiveChannel.size();
+    }
+
+    /**
+     * Start serving on a free port of the loopback interface
+     */
+    public JiraSimulator start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        // Every request holds a thread while it waits or sends, as a slow server would
+        executor = Executors.newCachedThreadPool();
+
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+
+        return this;
+    }
+
+    /**
+     * @param site Name of the simulated site
+     * @return Instance URL of the site, to pass as {@code --instance}
+     */
+    public String getInstanceUrl(final String site) {
+        return String.format("http://%s:%d/%s", server.getAddress().getHostString(), server.getAddress().getPort(),
+                site);
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+
+        // Every connection comes from its own local port of the client
+        connections.add(exchange.getRemoteAddress());
+
+        try {
+            pause(latency.toMillis());
+
+            if (path.endsWith(BACKUP_ENDPOINT) && "POST".equals(exchange.getRequestMethod())) {
+                startBackup(exchange);
+            } else if (path.endsWith(PROGRESS_ENDPOINT)) {
+                checkProgress(exchange);
+            } else if (path.contains(DOWNLOAD_ENDPOINT)) {
+                download(exchange);
+            } else {
+                sendJson(exchange, 404, "{\"message\":\"Not found\"}");
+            }
+        } catch (final SimulatedDisconnect e) {
+            // Leaving the handler with an IOException makes the server drop the connection without ending the body
+            throw e;
+        } catch (final IOException | RuntimeException e) {
+            exchange.close();
+            throw e;
+        }
+    }
+
+    private void startBackup(final HttpExchange exchange) throws IOException {
+        final String taskId = String.valueOf(nextTaskId.getAndIncrement());
+
+        backupRequests.incrementAndGet();
+        taskStartTimes.put(taskId, System.nanoTime());
+
+        sendJson(exchange, 200, "{\"taskId\":\"" + taskId + "\"}");
+    }
+
+    private void checkProgress(final HttpExchange exchange) throws IOException {
+        final String taskId = getTaskId(exchange);
+        final Long startTime = taskId == null ? null : taskStartTimes.get(taskId);
+
+        progressChecks.incrementAndGet();
+
+        if (startTime == null) {
+            sendJson(exchange, 404, "{\"message\":\"Unknown task\"}");
+            return;
+        }
+
+        if (ThreadLocalRandom.current().nextDouble() < throttleRate) {
+            throttledChecks.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+            sendJson(exchange, 429, "{\"message\":\"Rate limit exceeded\"}");
+            return;
+        }
+
+        final int progress = progressCurve.progressAt(Duration.ofNanos(System.nanoTime() - startTime));
+
+        if (progress >= 100) {
+            sendJson(exchange, 200, "{\"status\":\"Success\",\"description\":\"Cloud Export task\"," +
+                    "\"message\":\"Completed export\",\"result\":\"export/download/?fileId=" + taskId + "\"," +
+                    "\"progress\":100}");
+        } else {
+            sendJson(exchange, 200, "{\"status\":\"InProgress\",\"description\":\"Cloud Export task\"," +
+                    "\"message\":\"Preparing database for export\",\"progress\":" + progress + "}");
+        }
+    }
+
+    private void download(final HttpExchange exchange) throws IOException {
+        final String taskId = getTaskId(exchange);
+
+        if (taskId == null || !taskStartTimes.containsKey(taskId)) {
+            sendJson(exchange, 404, "{\"message\":\"Unknown file\"}");
+            return;
+        }
+
+        if (acceptRanges) exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        exchange.getResponseHeaders().set("Content-Type", "application/zip");
+
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(archiveSize));
+            // The server drops the connection after a response without body, so the client must not reuse it
+            exchange.getResponseHeaders().set("Connection", "close");
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        final Matcher rangeMatcher = range == null ? null : RANGE.matcher(range);
+        long firstByte = 0;
+        long lastByte = archiveSize - 1;
+
+        if (acceptRanges && rangeMatcher != null && rangeMatcher.matches()) {
+            firstByte = Long.parseLong(rangeMatcher.group(1));
+            lastByte = Math.min(Long.parseLong(rangeMatcher.group(2)), archiveSize - 1);
+
+            exchange.getResponseHeaders().set("Content-Range",
+                    String.format("bytes %d-%d/%d", firstByte, lastByte, archiveSize));
+            exchange.sendResponseHeaders(206, lastByte - firstByte + 1);
+        } else {
+            exchange.sendResponseHeaders(200, archiveSize);
+        }
+
+        downloads.incrementAndGet();
+        maxActiveDownloads.accumulateAndGet(activeDownloads.incrementAndGet(), Math::max);
+
+        try {
+            sendArchive(exchange, firstByte, lastByte + 1);
+        } finally {
+            activeDownloads.decrementAndGet();
+        }
+    }
+
+    private void sendArchive(final HttpExchange exchange, final long firstByte, final long end) throws IOException {
+        final long length = end - firstByte;
+        // A disconnect happens somewhere in the body, never before its first byte
+        final long cutOff = ThreadLocalRandom.current().nextDouble() < disconnectRate
+                ? firstByte + 1 + ThreadLocalRandom.current().nextLong(Math.max(length - 1, 1)) : end;
+        final ByteBuffer buffer = ByteBuffer.allocate(WRITE_SIZE);
+        final long startTime = System.nanoTime();
+        final OutputStream body = exchange.getResponseBody();
+        long position = firstByte;
+
+        while (position < cutOff) {
+            buffer.clear().limit((int) Math.min(WRITE_SIZE, cutOff - position));
+
+            final int count = archiveChannel.read(buffer, position);
+
+            body.write(buffer.array(), 0, count);
+            position += count;
+            bytesSent.addAndGet(count);
+
+            if (bandwidthBytesPerSecond > 0) {
+                // Send no faster than the bandwidth allows, counted from the start of the body
+                final long dueNanos = (position - firstByte) * 1_000_000_000L / bandwidthBytesPerSecond;
+                pause((dueNanos - (System.nanoTime() - startTime)) / 1_000_000);
+            }
+        }
+
+        if (cutOff < end) {
+            disconnects.incrementAndGet();
+            body.flush();
+            throw new SimulatedDisconnect();
+        }
+
+        body.close();
+    }
+
+    private static String getTaskId(final HttpExchange exchange) {
+        final String query = exchange.getRequestURI().getRawQuery();
+        final Matcher matcher = query == null ? null : TASK_ID.matcher(query);
+
+        return matcher != null && matcher.find() ? matcher.group(1) : null;
+    }
+
+    private static void sendJson(final HttpExchange exchange, final int status, final String json)
+            throws IOException {
+        final byte[] body = json.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(body);
+        }
+    }
+
+    private static void pause(final long millis) throws IOException {
+        if (millis <= 0) return;
+
+        try {
+            Thread.sleep(millis);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (server != null) server.stop(0);
+        if (executor != null) executor.shutdownNow();
+
+        archiveChannel.close();
+    }
+
+    public Path getArchive() {
+        return archive;
+    }
+
+    public long getArchiveSize() {
+        return archiveSize;
+    }
+
+    public void setProgressCurve(final ProgressCurve progressCurve) {
+        this.progressCurve = progressCurve;
+    }
+
+    public void setLatency(final Duration latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @param bandwidthBytesPerSecond Bandwidth of each download, 0 for no limit
+     */
+    public void setBandwidth(final long bandwidthBytesPerSecond) {
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    }
+
+    /**
+     * @param throttleRate      Share of the progress checks that are answered with 429
+     * @param retryAfterSeconds Value of the Retry-After header of these answers
+     */
+    public void setThrottling(final double throttleRate, final long retryAfterSeconds) {
+        this.throttleRate = throttleRate;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @param disconnectRate Share of the downloads that are cut off before their end
+     */
+    public void setDisconnectRate(final double disconnectRate) {
+        this.disconnectRate = disconnectRate;
+    }
+
+    public void setAcceptRanges(final boolean acceptRanges) {
+        this.acceptRanges = acceptRanges;
+    }
+
+    public long getBackupRequests() {
+        return backupRequests.get();
+    }
+
+    public long getProgressChecks() {
+        return progressChecks.get();
+    }
+
+    public long getThrottledChecks() {
+        return throttledChecks.get();
+    }
+
+    public long getDownloads() {
+        return downloads.get();
+    }
+
+    public long getDisconnects() {
+        return disconnects.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public int getMaxActiveDownloads() {
+        return maxActiveDownloads.get();
+    }
+
+    /**
+     * @return Number of connections the requests came in over
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+
+    private static class SimulatedDisconnect extends IOException {
+        SimulatedDisconnect() {
+            super("Simulated disconnect");
+        }
+    }
+}
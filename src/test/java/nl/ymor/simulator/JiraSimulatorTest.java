@@ -0,0 +1,185 @@
+package nl.ymor.simulator;
+
+import nl.ymor.archive.ChecksumFile;
+import nl.ymor.archive.ChunkedCipher;
+import nl.ymor.archive.ZipCentralDirectory;
+import nl.ymor.archive.ZipCentralDirectoryEntry;
+import nl.ymor.archive.ZipReencoder;
+import nl.ymor.backup.BackupJob;
+import nl.ymor.config.TestConfiguration;
+import nl.ymor.model.Arguments;
+import nl.ymor.model.BackupResult;
+import nl.ymor.service.BackupService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.ConfigFileApplicationContextInitializer;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ActiveProfiles("test")
+@ContextConfiguration(classes = TestConfiguration.class,
+        initializers = ConfigFileApplicationContextInitializer.class)
+@TestPropertySource(locations = "classpath:test.properties")
+public class JiraSimulatorTest {
+
+    private static final String ARCHIVE_NAME = "jira-backup-test.zip";
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Autowired
+    private BackupService backupService;
+
+    private JiraSimulator simulator;
+
+    @Before
+    public void setup() throws IOException {
+        final Path archive = temporaryFolder.getRoot().toPath().resolve("simulated-backup.zip");
+        SimulatedArchive.write(archive, 1024);
+
+        simulator = new JiraSimulator(archive).start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        simulator.close();
+    }
+
+    @Test
+    public void shouldBackUpSiteInRanges() throws IOException {
+        final Path directory = temporaryFolder.newFolder("site-1").toPath();
+
+        final BackupResult result = backUp("site-1", directory);
+
+        assertThat(result.isSuccessful()).as(result.getMessage()).isTrue();
+        assertThat(Files.readAllBytes(directory.resolve(ARCHIVE_NAME)))
+                .isEqualTo(Files.readAllBytes(simulator.getArchive()));
+        assertThat(directory.resolve(ARCHIVE_NAME + ".sha256")).exists();
+        assertThat(simulator.getBackupRequests()).isEqualTo(1);
+        // Two connections download ranges of 8 bytes
+        assertThat(simulator.getDownloads()).isEqualTo((simulator.getArchiveSize() + 7) / 8);
+        assertThat(simulator.getMaxActiveDownloads()).isBetween(1, 2);
+    }
+
+    @Test
+    public void shouldReuseConnections() throws IOException {
+        final Path directory = temporaryFolder.newFolder("site-4").toPath();
+
+        final BackupResult result = backUp("site-4", directory);
+
+        assertThat(result.isSuccessful()).as(result.getMessage()).isTrue();
+        // The HEAD request closes its connection, all other requests share at most two connections
+        assertThat(simulator.getDownloads()).isGreaterThan(100);
+        assertThat(simulator.getConnections()).isLessThanOrEqualTo(3);
+    }
+
+    @Test
+    public void shouldReencodeSiteDownloadedInRanges() throws IOException {
+        final Path directory = temporaryFolder.newFolder("site-5").toPath();
+
+        ReflectionTestUtils.setField(backupService, "reencodeArchive", "zstd");
+        final BackupResult result;
+        try {
+            result = backUp("site-5", directory);
+        } finally {
+            ReflectionTestUtils.setField(backupService, "reencodeArchive", "none");
+        }
+
+        assertThat(result.isSuccessful()).as(result.getMessage()).isTrue();
+        assertThat(simulator.getDownloads()).isEqualTo((simulator.getArchiveSize() + 7) / 8);
+
+        try (FileChannel channel = FileChannel.open(directory.resolve(ARCHIVE_NAME))) {
+            assertThat(ZipCentralDirectory.read(channel).getEntries())
+                    .extracting(ZipCentralDirectoryEntry::getMethod)
+                    .contains(ZipReencoder.ZSTD);
+        }
+    }
+
+    @Test
+    public void shouldEncryptSiteDownloadedInRanges() throws IOException {
+        final Path directory = temporaryFolder.newFolder("site-6").toPath();
+        final byte[] key = new byte[32];
+
+        ReflectionTestUtils.setField(backupService, "encryptArchive", "true");
+        ReflectionTestUtils.setField(backupService, "encryptionKey", Base64.getEncoder().encodeToString(key));
+        final BackupResult result;
+        try {
+            result = backUp("site-6", directory);
+        } finally {
+            ReflectionTestUtils.setField(backupService, "encryptArchive", "false");
+            ReflectionTestUtils.setField(backupService, "encryptionKey", "");
+        }
+
+        assertThat(result.isSuccessful()).as(result.getMessage()).isTrue();
+        assertThat(Files.exists(directory.resolve(ARCHIVE_NAME))).isFalse();
+
+        final Path encrypted = directory.resolve(ARCHIVE_NAME + ChunkedCipher.EXTENSION);
+        final Path decrypted = directory.resolve("decrypted.zip");
+
+        assertThat(new String(Files.readAllBytes(directory.resolve(ARCHIVE_NAME + ".enc.sha256")),
+                StandardCharsets.UTF_8))
+                .startsWith(ChecksumFile.toHex(ChecksumFile.newDigest().digest(Files.readAllBytes(encrypted))));
+
+        new ChunkedCipher(key).decrypt(encrypted, decrypted, 4);
+
+        assertThat(Files.readAllBytes(decrypted)).isEqualTo(Files.readAllBytes(simulator.getArchive()));
+    }
+
+    @Test
+    public void shouldBackUpSiteInSingleStream() throws IOException {
+        final Path directory = temporaryFolder.newFolder("site-2").toPath();
+
+        simulator.setAcceptRanges(false);
+
+        final BackupResult result = backUp("site-2", directory);
+
+        assertThat(result.isSuccessful()).as(result.getMessage()).isTrue();
+        assertThat(Files.readAllBytes(directory.resolve(ARCHIVE_NAME)))
+                .isEqualTo(Files.readAllBytes(simulator.getArchive()));
+        assertThat(simulator.getDownloads()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldFailBackupWhenDownloadIsCutOff() throws IOException {
+        final Path directory = temporaryFolder.newFolder("site-3").toPath();
+
+        simulator.setAcceptRanges(false);
+        simulator.setDisconnectRate(1);
+
+        final BackupResult result = backUp("site-3", directory);
+
+        assertThat(result.isSuccessful()).isFalse();
+        assertThat(directory.resolve(ARCHIVE_NAME)).doesNotExist();
+        assertThat(simulator.getDisconnects()).isEqualTo(1);
+        assertThat(simulator.getBytesSent()).isLessThan(simulator.getArchiveSize());
+    }
+
+    private BackupResult backUp(final String site, final Path directory) {
+        final Arguments arguments = new Arguments();
+        arguments.setInstanceUrl(simulator.getInstanceUrl(site));
+        arguments.setDirectory(directory.toString());
+        arguments.setAuthorization(BackupService.getAuthorization("simulator@ymor.nl", "token"));
+
+        try (BackupService instanceService = backupService.forInstance(arguments)) {
+            return new BackupJob(instanceService).call();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package nl.ymor.simulator;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import nl.ymor.backup.BatchBackup;
+import nl.ymor.config.ApplicationConfiguration;
+import nl.ymor.model.Arguments;
+import nl.ymor.model.BackupResult;
+import nl.ymor.service.BackupService;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.io.support.ResourcePropertySource;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs hundreds of backups at once against a {@link JiraSimulator}, to find the limits of the tool before Atlassian
+ * does. Every backup targets its own simulated site, and all of them run through {@link BatchBackup} with the
+ * settings of the application. Properties can be overridden with system properties, e.g.
+ * {@code -Dbatch.async=false}.
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dstart-class=nl.ymor.simulator.LoadDriver \
+ *     -Dexec.args="--sites 500 --archive-size 16777216 --export-seconds 60 --throttle-rate 0.05"
+ * </pre>
+ */
+public class LoadDriver {
+
+    @Parameter(names = "--sites", description = "Number of sites to back up at once")
+    private int sites = 200;
+
+    @Parameter(names = "--archive-size", description = "Size of the archive of every site in bytes")
+    private long archiveSize = 4L * 1024 * 1024;
+
+    @Parameter(names = "--export-seconds", description = "Time every export takes to reach 100%")
+    private int exportSeconds = 10;
+
+    @Parameter(names = "--latency-ms", description = "Latency added to every request")
+    private int latencyMillis = 50;
+
+    @Parameter(names = "--bandwidth", description = "Bandwidth of every download in bytes per second, 0 for no limit")
+    private long bandwidth;
+
+    @Parameter(names = "--throttle-rate", description = "Share of the progress checks answered with 429")
+    private double throttleRate;
+
+    @Parameter(names = "--disconnect-rate", description = "Share of the downloads cut off before their end")
+    private double disconnectRate;
+
+    @Parameter(names = "--single-stream", description = "Do not accept byte ranges")
+    private boolean singleStream;
+
+    @Parameter(names = "--dir", description = "Directory to save the backups to, a temporary one by default")
+    private String directory;
+
+    @Parameter(names = "--help", help = true)
+    private boolean help;
+
+    public static void main(final String[] args) throws Exception {
+        final LoadDriver driver = new LoadDriver();
+        final JCommander argumentParser = JCommander.newBuilder().addObject(driver).build();
+
+        argumentParser.parse(args);
+
+        if (driver.help) {
+            argumentParser.usage();
+            return;
+        }
+
+        System.exit(driver.run() ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        // Wire logs of hundreds of downloads would be all that is measured
+        ((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+
+        final Path baseDirectory = directory == null ? Files.createTempDirectory("load-driver") : Paths.get(directory);
+        final Path archive = baseDirectory.resolve("simulated-backup.zip");
+
+        Files.createDirectories(baseDirectory);
+        SimulatedArchive.write(archive, archiveSize);
+
+        setDefault("batch.async", "true");
+        setDefault("batch.concurrency", String.valueOf(sites));
+        setDefault("batch.concurrency.per.host", String.valueOf(sites));
+        setDefault("download.resume", "false");
+
+        try (JiraSimulator simulator = new JiraSimulator(archive);
+             AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext()) {
+            simulator.setProgressCurve(ProgressCurve.preparing(Duration.ofSeconds(exportSeconds / 5),
+                    Duration.ofSeconds(exportSeconds - exportSeconds / 5)));
+            simulator.setLatency(Duration.ofMillis(latencyMillis));
+            simulator.setBandwidth(bandwidth);
+            simulator.setThrottling(throttleRate, 1);
+            simulator.setDisconnectRate(disconnectRate);
+            simulator.setAcceptRanges(!singleStream);
+            simulator.start();
+
+            context.getEnvironment().getPropertySources()
+                    .addLast(new ResourcePropertySource("classpath:application.properties"));
+            context.register(ApplicationConfiguration.class);
+            context.refresh();
+
+            final List<Arguments> instances = new ArrayList<>();
+
+            for (int i = 1; i <= sites; i++) {
+                final Arguments instance = new Arguments();
+                instance.setInstanceUrl(simulator.getInstanceUrl("site-" + i));
+                instance.setDirectory(baseDirectory.resolve("site-" + i).toString());
+                instance.setAuthorization(BackupService.getAuthorization("load@ymor.nl", "token"));
+                instances.add(instance);
+            }
+
+            System.out.printf("Backing up %d sites of %d bytes each from %s%n", sites, simulator.getArchiveSize(),
+                    simulator.getInstanceUrl(""));
+
+            final Instant startTime = Instant.now();
+            final List<BackupResult> results = context.getBean(BatchBackup.class).run(instances);
+            final Duration duration = Duration.between(startTime, Instant.now());
+
+            report(results, duration, simulator);
+
+            if (directory == null) delete(baseDirectory);
+
+            return results.stream().allMatch(BackupResult::isSuccessful);
+        }
+    }
+
+    private static void report(final List<BackupResult> results, final Duration duration,
+                               final JiraSimulator simulator) {
+        final List<Duration> durations = results.stream()
+                .filter(BackupResult::isSuccessful)
+                .map(BackupResult::getDuration)
+                .sorted()
+                .collect(Collectors.toList());
+        final double seconds = Math.max(duration.toMillis(), 1) / 1000.0;
+
+        System.out.printf("Finished in %.1f s: %d succeeded, %d failed%n", seconds, durations.size(),
+                results.size() - durations.size());
+        System.out.printf("Backup duration p50 %s, p95 %s, max %s%n", percentile(durations, 50),
+                percentile(durations, 95), percentile(durations, 100));
+        System.out.printf("Downloaded %d bytes at %.1f MB/s over %d requests, at most %d at once%n",
+                simulator.getBytesSent(), simulator.getBytesSent() / seconds / 1024 / 1024,
+                simulator.getDownloads(), simulator.getMaxActiveDownloads());
+        System.out.printf("Progress checks: %d, of which %d throttled. Disconnects: %d%n",
+                simulator.getProgressChecks(), simulator.getThrottledChecks(), simulator.getDisconnects());
+        System.out.printf("Peak threads: %d, heap used: %d MB%n",
+                ManagementFactory.getThreadMXBean().getPeakThreadCount(),
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024 / 1024);
+
+        results.stream()
+                .filter(result -> !result.isSuccessful())
+                .limit(10)
+                .forEach(result -> System.out.printf("FAILED %s: %s%n", result.getInstanceUrl(), result.getMessage()));
+    }
+
+    private static Duration percentile(final List<Duration> sortedDurations, final int percentile) {
+        if (sortedDurations.isEmpty()) return Duration.ZERO;
+
+        final int index = (int) Math.ceil(percentile / 100.0 * sortedDurations.size()) - 1;
+
+        return sortedDurations.get(Math.max(index, 0));
+    }
+
+    /**
+     * Set a property of the application, unless it is given as a system property already
+     */
+    private static void setDefault(final String property, final String value) {
+        if (System.getProperty(property) == null) System.setProperty(property, value);
+    }
+
+    private static void delete(final Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (final Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package nl.ymor.simulator;
+
+import java.time.Duration;
+
+/**
+ * Progress of a simulated export over time
+ */
+@FunctionalInterface
+public interface ProgressCurve {
+
+    /**
+     * @param elapsed Time since the backup was requested
+     * @return Progress percentage between 0 and 100
+     */
+    int progressAt(Duration elapsed);
+
+    /**
+     * @return Curve of an export that is finished at the first progress check
+     */
+    static ProgressCurve immediate() {
+        return elapsed -> 100;
+    }
+
+    /**
+     * @return Curve that rises evenly from 0 to 100 in the given time
+     */
+    static ProgressCurve linear(final Duration duration) {
+        return preparing(Duration.ZERO, duration);
+    }
+
+    /**
+     * Curve of a real export, which stays at 0 while the database is prepared and then rises evenly
+     *
+     * @param preparation Time spent at 0
+     * @param export      Time to rise from 0 to 100 after the preparation
+     */
+    static ProgressCurve preparing(final Duration preparation, final Duration export) {
+        return elapsed -> {
+            final long exportMillis = elapsed.toMillis() - preparation.toMillis();
+
+            if (exportMillis <= 0) return export.isZero() && preparation.isZero() ? 100 : 0;
+            if (exportMillis >= export.toMillis()) return 100;
+
+            return (int) (exportMillis * 100 / export.toMillis());
+        };
+    }
+
+    /**
+     * @return Curve that rises to 100 in the given time, in the given number of equal steps
+     */
+    static ProgressCurve stepped(final Duration duration, final int steps) {
+        final ProgressCurve linear = linear(duration);
+        final int step = 100 / steps;
+
+        return elapsed -> {
+            final int progress = linear.progressAt(elapsed);
+            return progress >= 100 ? 100 : progress / step * step;
+        };
+    }
+}
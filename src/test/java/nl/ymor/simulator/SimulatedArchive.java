@@ -0,0 +1,76 @@
+package nl.ymor.simulator;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a ZIP archive shaped like a Jira backup: an {@code entities.xml} that compresses well, followed by
+ * attachments of random bytes that do not compress at all
+ */
+public final class SimulatedArchive {
+
+    private static final int ATTACHMENT_SIZE = 1 << 20;
+
+    private SimulatedArchive() {
+    }
+
+    /**
+     * @param path Path of the archive to write
+     * @param size Approximate size of the archive in bytes
+     * @return Actual size of the archive
+     */
+    public static long write(final Path path, final long size) throws IOException {
+        final Random random = new Random(size);
+        final byte[] attachment = new byte[ATTACHMENT_SIZE];
+
+        try (CountingOutputStream counter = new CountingOutputStream(Files.newOutputStream(path));
+             ZipOutputStream zip = new ZipOutputStream(counter)) {
+            zip.putNextEntry(new ZipEntry("entities.xml"));
+            zip.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<entity-engine-xml>\n" +
+                    "<Issue id=\"10000\" key=\"SIM-1\" summary=\"Simulated issue\"/>\n</entity-engine-xml>\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            // Attachments are usually compressed already, so they are merely stored
+            zip.setLevel(0);
+
+            for (int i = 0; counter.count < size; i++) {
+                // Leave room for the entry headers and the central directory, which take about 150 bytes each
+                final int length = (int) Math.max(Math.min(size - counter.count - 150, ATTACHMENT_SIZE), 1);
+
+                random.nextBytes(attachment);
+                zip.putNextEntry(new ZipEntry(String.format("data/attachments/SIM/10000/SIM-1/%d", 10000 + i)));
+                zip.write(attachment, 0, length);
+                zip.closeEntry();
+            }
+        }
+
+        return Files.size(path);
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package nl.ymor.sink;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ArchiveCatalogTest {
+
+    private static final LocalDateTime NOW = LocalDateTime.of(2026, 10, 18, 2, 0);
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path directory;
+    private LocalFileSink sink;
+
+    @Before
+    public void setup() {
+        directory = temporaryFolder.getRoot().toPath();
+        sink = new LocalFileSink(directory);
+    }
+
+    @Test
+    public void shouldDeleteArchivesThatPolicyDoesNotKeep() throws IOException {
+        final ArchiveCatalog catalog = new ArchiveCatalog(sink, "jira-backup.zip");
+
+        for (int day = 9; day >= 0; day--) {
+            final ArchiveCatalog.Summary summary = catalog.add(archive(day), new RetentionPolicy(3, 0, 0), 4);
+
+            assertThat(summary.getKept()).isEqualTo(Math.min(10 - day, 3));
+        }
+
+        assertThat(catalog.read()).extracting(ArchiveCatalog.Archive::getName)
+                .containsExactly("jira-backup-2.zip", "jira-backup-1.zip", "jira-backup-0.zip");
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.map(file -> file.getFileName().toString())).containsExactlyInAnyOrder(
+                    "jira-backup.zip.catalog", "jira-backup-2.zip", "jira-backup-2.zip.sha256",
+                    "jira-backup-1.zip", "jira-backup-1.zip.sha256", "jira-backup-0.zip", "jira-backup-0.zip.sha256");
+        }
+    }
+
+    @Test
+    public void shouldKeepArchivesThatCannotBeDeletedInCatalog() throws IOException {
+        final BackupSink failingSink = new BackupSink() {
+            @Override
+            public ArchiveWriter open(final String archiveName, final long size, final boolean resume) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void writeFile(final String fileName, final byte[] content) throws IOException {
+                sink.writeFile(fileName, content);
+            }
+
+            @Override
+            public Optional<byte[]> readFile(final String fileName) throws IOException {
+                return sink.readFile(fileName);
+            }
+
+            @Override
+            public void deleteFile(final String fileName) throws IOException {
+                if (fileName.startsWith("jira-backup-3")) throw new IOException("Access denied");
+
+                sink.deleteFile(fileName);
+            }
+
+            @Override
+            public String getLocation() {
+                return sink.getLocation();
+            }
+        };
+        final ArchiveCatalog catalog = new ArchiveCatalog(failingSink, "jira-backup.zip");
+
+        for (int day = 5; day > 0; day--) catalog.add(archive(day), new RetentionPolicy(0, 0, 0), 1);
+
+        final ArchiveCatalog.Summary summary = catalog.add(archive(0), new RetentionPolicy(1, 0, 0), 2);
+
+        assertThat(summary.getDeleted()).isEqualTo(4);
+        assertThat(summary.getFailed()).isEqualTo(1);
+        assertThat(catalog.read()).extracting(ArchiveCatalog.Archive::getName)
+                .containsExactly("jira-backup-3.zip", "jira-backup-0.zip");
+        assertThat(directory.resolve("jira-backup-4.zip")).doesNotExist();
+        assertThat(directory.resolve("jira-backup-3.zip")).exists();
+    }
+
+    /**
+     * Save an archive of some days ago with its checksum
+     */
+    private ArchiveCatalog.Archive archive(final int daysAgo) throws IOException {
+        final String name = "jira-backup-" + daysAgo + ".zip";
+
+        sink.writeFile(name, name.getBytes(StandardCharsets.UTF_8));
+        sink.writeFile(name + ".sha256", name.getBytes(StandardCharsets.UTF_8));
+
+        return new ArchiveCatalog.Archive(NOW.minusDays(daysAgo), name, Collections.singletonList(name + ".sha256"));
+    }
+}
@@ -0,0 +1,62 @@
+package nl.ymor.sink;
+
+import nl.ymor.archive.ArchiveIndex;
+import nl.ymor.archive.ArchiveInspector;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InspectingWriterTest {
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldInspectRangesWrittenOutOfOrder() throws IOException {
+        final Path directory = temporaryFolder.getRoot().toPath();
+        final byte[] archive = zip();
+        final int middle = archive.length / 2;
+
+        try (InspectingWriter writer = new InspectingWriter(
+                new LocalFileSink(directory).open("inspected.zip", archive.length, false), new ArchiveInspector())) {
+            writer.write(ByteBuffer.wrap(archive, middle, archive.length - middle), middle);
+            writer.write(ByteBuffer.wrap(archive, 0, middle), 0);
+            writer.commit();
+
+            final ArchiveIndex index = writer.getIndex().get();
+
+            assertThat(index.getEntries()).extracting(ArchiveIndex.Entry::getName)
+                    .containsExactly("entities.xml", "activeobjects.xml");
+            assertThat(index.getEntityCounts()).containsEntry("Issue", 2L);
+        }
+
+        assertThat(Files.readAllBytes(directory.resolve("inspected.zip"))).isEqualTo(archive);
+    }
+
+    private static byte[] zip() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("entities.xml"));
+            zip.write("<entity-engine-xml><Issue id=\"1\"/><Issue id=\"2\"/></entity-engine-xml>"
+                    .getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("activeobjects.xml"));
+            zip.write("<backup/>".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,42 @@
+package nl.ymor.sink;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RetentionPolicyTest {
+
+    private static final LocalDateTime NOW = LocalDateTime.of(2026, 10, 18, 2, 0);
+
+    @Test
+    public void shouldKeepNewestArchiveOfEachPeriod() {
+        final List<LocalDateTime> times = new ArrayList<>();
+
+        // A backup every night for a year, and a second one on the last night
+        for (int day = 0; day < 365; day++) times.add(NOW.minusDays(day));
+        times.add(NOW.minusHours(1));
+
+        assertThat(new RetentionPolicy(7, 4, 12).select(times))
+                .hasSize(7 + 3 + 11)
+                .contains(NOW, NOW.minusDays(6))
+                .doesNotContain(NOW.minusHours(1), NOW.minusDays(8))
+                // Sunday of the weeks before the last one, the last one is a Sunday too
+                .contains(NOW.minusDays(7), NOW.minusDays(7 * 3))
+                // Last day of every month before the last one
+                .contains(LocalDateTime.of(2026, 9, 30, 2, 0), LocalDateTime.of(2025, 12, 31, 2, 0));
+    }
+
+    @Test
+    public void shouldKeepEverythingWithoutPeriods() {
+        final List<LocalDateTime> times = new ArrayList<>();
+
+        for (int day = 0; day < 30; day++) times.add(NOW.minusDays(day));
+
+        assertThat(new RetentionPolicy(0, 0, 0).select(times)).hasSize(30);
+        assertThat(new RetentionPolicy(1, 0, 0).select(times)).containsExactly(NOW);
+    }
+}
@@ -0,0 +1,188 @@
+package nl.ymor.sink;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.config.RequestConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Runs the sink against a minimal in-process stand-in for the multipart upload API. The same sink works against
+ * MinIO with {@code s3.endpoint=http://localhost:9000} and {@code s3.path.style=true}.
+ */
+public class S3SinkTest {
+
+    private static final String UPLOAD_ID = "upload/1";
+
+    private HttpServer server;
+    private final Map<Integer, byte[]> parts = new ConcurrentSkipListMap<>();
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private S3Sink sink;
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/backups/", this::handle);
+        server.start();
+
+        sink = new S3Sink("http://localhost:" + server.getAddress().getPort(), "us-east-1", "backups",
+                "jira/blackdog.atlassian.net/", "access", "secret", 8, 2, true, RequestConfig.DEFAULT);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        sink.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void shouldUploadPartsWrittenInAnyOrder() throws IOException {
+        final byte[] archive = "This is a backup file".getBytes(StandardCharsets.UTF_8);
+
+        try (ArchiveWriter writer = sink.open("jira-backup.zip", archive.length, true)) {
+            // Ranges of a ranged download complete in any order and do not line up with the parts
+            writer.write(ByteBuffer.wrap(archive, 12, 9), 12);
+            writer.write(ByteBuffer.wrap(archive, 0, 12), 0);
+            writer.commit();
+        }
+
+        sink.writeFile("jira-backup.zip.sha256", "checksum".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(parts).containsOnlyKeys(1, 2, 3);
+        assertThat(objects.get("/backups/jira/blackdog.atlassian.net/jira-backup.zip")).isEqualTo(archive);
+        assertThat(objects).containsKey("/backups/jira/blackdog.atlassian.net/jira-backup.zip.sha256");
+        assertThat(requests).allMatch(request -> request.startsWith("AWS4-HMAC-SHA256 Credential=access/"));
+    }
+
+    @Test
+    public void shouldUploadStreamOfUnknownSize() throws IOException {
+        final byte[] archive = "This is a backup file".getBytes(StandardCharsets.UTF_8);
+
+        try (ArchiveWriter writer = sink.open("jira-backup.zip", -1, false)) {
+            writer.write(ByteBuffer.wrap(archive, 0, 10), 0);
+            writer.write(ByteBuffer.wrap(archive, 10, 11), 10);
+            writer.commit();
+        }
+
+        assertThat(objects.get("/backups/jira/blackdog.atlassian.net/jira-backup.zip")).isEqualTo(archive);
+    }
+
+    @Test
+    public void shouldAbortUploadThatIsNotCommitted() throws IOException {
+        try (ArchiveWriter writer = sink.open("jira-backup.zip", 21, false)) {
+            writer.write(ByteBuffer.wrap(new byte[8]), 0);
+        }
+
+        assertThat(objects).isEmpty();
+        assertThat(parts).isEmpty();
+    }
+
+    @Test
+    public void shouldReadAndDeleteFiles() throws IOException {
+        final byte[] catalog = "# archive catalog 1\n".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(sink.readFile("jira-backup.zip.catalog")).isEmpty();
+
+        sink.writeFile("jira-backup.zip.catalog", catalog);
+
+        assertThat(sink.readFile("jira-backup.zip.catalog")).contains(catalog);
+
+        sink.deleteFile("jira-backup.zip.catalog");
+
+        assertThat(objects).isEmpty();
+    }
+
+    @Test
+    public void shouldTimeOutWhenServiceStopsResponding() throws IOException {
+        final CountDownLatch released = new CountDownLatch(1);
+
+        server.createContext("/stalled/", exchange -> {
+            try {
+                released.await(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        });
+
+        try (S3Sink stalledSink = new S3Sink("http://localhost:" + server.getAddress().getPort(), "us-east-1",
+                "stalled", "jira/blackdog.atlassian.net/", "access", "secret", 8, 2, true,
+                RequestConfig.custom().setSocketTimeout(200).build())) {
+            assertThatThrownBy(() -> stalledSink.readFile("jira-backup.zip.catalog"))
+                    .isInstanceOf(IOException.class).hasMessageContaining("Read timed out");
+        } finally {
+            released.countDown();
+        }
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        final String query = exchange.getRequestURI().getRawQuery();
+        final byte[] body = read(exchange.getRequestBody());
+        String response = "";
+        byte[] stored = null;
+        int status = 200;
+
+        requests.add(exchange.getRequestHeaders().getFirst("Authorization"));
+
+        if ("POST".equals(exchange.getRequestMethod()) && "uploads".equals(query)) {
+            response = "<InitiateMultipartUploadResult><UploadId>" + UPLOAD_ID + "</UploadId>"
+                    + "</InitiateMultipartUploadResult>";
+        } else if ("PUT".equals(exchange.getRequestMethod()) && query != null && query.startsWith("partNumber=")) {
+            assertThat(query).endsWith("uploadId=upload%2F1");
+            final int partNumber = Integer.parseInt(query.substring("partNumber=".length(), query.indexOf('&')));
+            parts.put(partNumber, body);
+            exchange.getResponseHeaders().add("ETag", "\"etag-" + partNumber + "\"");
+        } else if ("POST".equals(exchange.getRequestMethod())) {
+            final ByteArrayOutputStream object = new ByteArrayOutputStream();
+            for (final byte[] part : parts.values()) object.write(part);
+            objects.put(path, object.toByteArray());
+            response = "<CompleteMultipartUploadResult/>";
+        } else if ("DELETE".equals(exchange.getRequestMethod()) && query == null) {
+            objects.remove(path);
+        } else if ("DELETE".equals(exchange.getRequestMethod())) {
+            parts.clear();
+        } else if ("GET".equals(exchange.getRequestMethod())) {
+            stored = objects.get(path);
+            status = stored == null ? 404 : 200;
+        } else if ("PUT".equals(exchange.getRequestMethod())) {
+            objects.put(path, body);
+        }
+
+        final byte[] responseBytes = stored != null ? stored : response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, responseBytes.length == 0 ? -1 : responseBytes.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            if (responseBytes.length > 0) responseBody.write(responseBytes);
+        }
+    }
+
+    private static byte[] read(final InputStream input) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+
+        while ((read = input.read(buffer)) != -1) bytes.write(buffer, 0, read);
+
+        return bytes.toByteArray();
+    }
+}